@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.AuxThreadWorthy;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// simulates a transaction that fans out to many threads (e.g. CompletableFuture or reactive
+// pipelines), where each thread starts auxiliary thread contexts at the same time
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AuxThreadContextBenchmark extends TransactionWorthy {
+
+    // stays below the default aux thread context limit (1000) even with 16 threads
+    private static final int AUX_THREAD_CONTEXTS_PER_THREAD = 50;
+
+    @Param({"1", "4", "16"})
+    private int threads;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < threads; i++) {
+            final List<AuxThreadWorthy> auxThreadWorthies = new ArrayList<AuxThreadWorthy>();
+            for (int j = 0; j < AUX_THREAD_CONTEXTS_PER_THREAD; j++) {
+                AuxThreadWorthy auxThreadWorthy = new AuxThreadWorthy();
+                auxThreadWorthy.captureAuxThreadContext();
+                auxThreadWorthies.add(auxThreadWorthy);
+            }
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    latch.await();
+                    for (AuxThreadWorthy auxThreadWorthy : auxThreadWorthies) {
+                        auxThreadWorthy.doSomethingAuxThreadWorthy();
+                    }
+                    return null;
+                }
+            }));
+        }
+        latch.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// simulates app server startup where classes (with overlapping super types) are loaded from many
+// threads at the same time
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ParallelWeavingBenchmark {
+
+    @Param({"1", "4", "16"})
+    private int threads;
+
+    private List<List<String>> classNamesPerThread;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() throws IOException {
+        classNamesPerThread = new ArrayList<List<String>>();
+        for (int i = 0; i < threads; i++) {
+            classNamesPerThread.add(new ArrayList<String>());
+        }
+        int count = 0;
+        for (String path : getClassPath()) {
+            if (!path.endsWith(".jar")) {
+                continue;
+            }
+            JarFile jarFile = new JarFile(path);
+            try {
+                Enumeration<JarEntry> e = jarFile.entries();
+                while (e.hasMoreElements()) {
+                    JarEntry jarEntry = e.nextElement();
+                    String name = jarEntry.getName();
+                    if (name.startsWith("org/springframework/") && name.endsWith(".class")) {
+                        name = name.replace('/', '.');
+                        name = name.substring(0, name.length() - ".class".length());
+                        // round robin so that each thread loads classes from each package
+                        classNamesPerThread.get(count++ % threads).add(name);
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        Thread.sleep(100);
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final List<String> classNames : classNamesPerThread) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (String className : classNames) {
+                        try {
+                            Class.forName(className, false,
+                                    ParallelWeavingBenchmark.class.getClassLoader());
+                        } catch (NoClassDefFoundError e) {
+                            // optional dependencies are not transitively included
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private static List<String> getClassPath() {
+        String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
+        return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
+    }
+}
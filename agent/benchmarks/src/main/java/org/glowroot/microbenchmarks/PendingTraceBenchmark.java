@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Sets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// measures the cost of enqueuing (and later dequeuing) a pending trace in
+// org.glowroot.agent.impl.TransactionCollector, given an existing backlog of pending traces
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PendingTraceBenchmark {
+
+    private static final int PENDING_LIMIT = 100;
+
+    @Param({"0", "100", "500"})
+    private int backlog;
+
+    @Param
+    private PendingSetType pendingSetType;
+
+    private Set<Object> pendingTransactions;
+    private AtomicInteger pendingTransactionCount;
+
+    @Setup
+    public void setup() {
+        switch (pendingSetType) {
+            case COPY_ON_WRITE:
+                pendingTransactions = Sets.newCopyOnWriteArraySet();
+                break;
+            case CONCURRENT_HASH:
+                pendingTransactions = Sets.newConcurrentHashSet();
+                break;
+        }
+        pendingTransactionCount = new AtomicInteger();
+        for (int i = 0; i < backlog; i++) {
+            pendingTransactions.add(new Object());
+            pendingTransactionCount.incrementAndGet();
+        }
+    }
+
+    @Benchmark
+    public boolean execute() {
+        Object transaction = new Object();
+        // back pressure check is made on every enqueue
+        boolean overLimit = pendingSetType == PendingSetType.COPY_ON_WRITE
+                ? pendingTransactions.size() >= PENDING_LIMIT
+                : pendingTransactionCount.get() >= PENDING_LIMIT;
+        pendingTransactions.add(transaction);
+        pendingTransactionCount.incrementAndGet();
+        pendingTransactions.remove(transaction);
+        pendingTransactionCount.decrementAndGet();
+        return overLimit;
+    }
+
+    public enum PendingSetType {
+        COPY_ON_WRITE, CONCURRENT_HASH
+    }
+}
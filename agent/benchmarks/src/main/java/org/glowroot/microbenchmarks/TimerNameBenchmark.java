@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.agent.plugin.api.Agent;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.microbenchmarks.support.TimerWorthyAspect.TimerWorthyAdvice;
+
+// measures the cost of looking up timer names in org.glowroot.agent.impl.TimerNameCache, both by
+// advice class and by (dynamic) name, as plugins do on request threads
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TimerNameBenchmark {
+
+    @Param({"1", "16", "256"})
+    private int distinctNames;
+
+    private String[] names;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        names = new String[distinctNames];
+        for (int i = 0; i < distinctNames; i++) {
+            // new String so that lookups are not short circuited by reference equality
+            names[i] = new String("timer name " + i);
+            Agent.getTimerName(names[i]);
+        }
+    }
+
+    @Benchmark
+    public TimerName getTimerNameByAdviceClass() {
+        return Agent.getTimerName(TimerWorthyAdvice.class);
+    }
+
+    @Benchmark
+    public TimerName getTimerNameByName() {
+        if (++index == distinctNames) {
+            index = 0;
+        }
+        return Agent.getTimerName(names[index]);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+public class AuxThreadWorthy {
+
+    private volatile Object auxThreadContext;
+
+    // captures an auxiliary thread context from the current transaction (see aspect)
+    public void captureAuxThreadContext() {}
+
+    // starts the captured auxiliary thread context on the current thread (see aspect)
+    public void doSomethingAuxThreadWorthy() {}
+
+    public Object getAuxThreadContext() {
+        return auxThreadContext;
+    }
+
+    public void setAuxThreadContext(Object auxThreadContext) {
+        this.auxThreadContext = auxThreadContext;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.AuxThreadContext;
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.plugin.api.weaving.BindReceiver;
+import org.glowroot.agent.plugin.api.weaving.BindThrowable;
+import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.OnAfter;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.OnThrow;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+public class AuxThreadWorthyAspect {
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AuxThreadWorthy",
+            methodName = "captureAuxThreadContext", methodParameterTypes = {})
+    public static class CaptureAdvice {
+
+        @OnBefore
+        public static void onBefore(ThreadContext context,
+                @BindReceiver AuxThreadWorthy auxThreadWorthy) {
+            auxThreadWorthy.setAuxThreadContext(context.createAuxThreadContext());
+        }
+    }
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AuxThreadWorthy",
+            methodName = "doSomethingAuxThreadWorthy", methodParameterTypes = {})
+    public static class StartAdvice {
+
+        @OnBefore
+        public static TraceEntry onBefore(@BindReceiver AuxThreadWorthy auxThreadWorthy) {
+            return ((AuxThreadContext) auxThreadWorthy.getAuxThreadContext()).start();
+        }
+
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t,
+                @BindTraveler TraceEntry traceEntry) {
+            traceEntry.endWithError(t);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler TraceEntry traceEntry) {
+            traceEntry.end();
+        }
+    }
+}
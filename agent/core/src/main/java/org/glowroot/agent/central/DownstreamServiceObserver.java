@@ -37,6 +37,7 @@ import org.glowroot.common.live.LiveJvmService.DirectoryDoesNotExistException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInIbmJvmException;
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInJreException;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
+import org.glowroot.common.live.LiveWeavingService.ReweaveResult;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamServiceStub;
@@ -649,9 +650,13 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
 
     private void reweaveAndRespond(CentralRequest request,
             StreamObserver<AgentResponse> responseObserver) throws Exception {
-        int classUpdateCount;
+        ReweaveResult result;
         try {
-            classUpdateCount = liveWeavingService.reweave("");
+            if (request.getReweaveRequest().getBackground()) {
+                result = liveWeavingService.reweave("");
+            } else {
+                result = liveWeavingService.reweaveAndWait();
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             sendExceptionResponse(request, responseObserver);
@@ -660,7 +665,10 @@ class DownstreamServiceObserver implements StreamObserver<CentralRequest> {
         responseObserver.onNext(AgentResponse.newBuilder()
                 .setRequestId(request.getRequestId())
                 .setReweaveResponse(ReweaveResponse.newBuilder()
-                        .setClassUpdateCount(classUpdateCount))
+                        .setClassUpdateCount(result.classUpdateCount())
+                        .setBatchCount(result.batchCount())
+                        .setDurationMillis(result.durationMillis())
+                        .setInProgress(result.inProgress()))
                 .build());
     }
 
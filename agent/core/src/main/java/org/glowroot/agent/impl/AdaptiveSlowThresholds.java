@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// adaptive slow trace thresholds, based on a streaming estimate of a configurable percentile of
+// the duration of each transaction type / transaction name, which is fed from the aggregate
+// histograms each time an aggregate interval is flushed
+//
+// slow traces are also rate limited per transaction name using a token bucket, so that a single
+// busy transaction name cannot use up the backlog limit of traces waiting to be stored
+//
+// the adaptive threshold replaces the configured slow threshold (see
+// TransactionCollector.shouldStoreSlow()), so it can go below the configured slow threshold in
+// order to catch regressions in fast transaction names, but it never goes below its own minimum
+//
+// this is opt-in, e.g. -Dglowroot.trace.adaptiveSlowPercentile=99
+class AdaptiveSlowThresholds {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveSlowThresholds.class);
+
+    private static final String PERCENTILE_PROPERTY_NAME = "glowroot.trace.adaptiveSlowPercentile";
+
+    private static final int TOKENS_PER_MINUTE =
+            Math.max(Integer.getInteger("glowroot.trace.adaptiveSlowTokensPerMinute", 10), 1);
+
+    private static final long MIN_THRESHOLD_NANOS = MILLISECONDS.toNanos(
+            Math.max(Long.getLong("glowroot.trace.adaptiveSlowMinThresholdMillis", 10), 0));
+
+    // minimum number of transactions in an aggregate interval for its percentile to be used
+    static final int MIN_TRANSACTION_COUNT = 20;
+
+    // weight given to the percentile from the most recent aggregate interval
+    private static final double SMOOTHING_FACTOR = 0.3;
+
+    // estimates that have not been updated in this many aggregate intervals are removed, which
+    // bounds memory when transaction names come and go over time
+    private static final int MAX_IDLE_INTERVALS = 60;
+
+    // maximum number of token buckets for transaction names that do not (yet) have an estimate,
+    // since there is no bound on the number of distinct transaction names
+    //
+    // only full token buckets are removed to make room (since a new token bucket starts out full,
+    // removing a full one does not bypass the rate limit), and transaction names that still do
+    // not fit share a single overflow token bucket
+    @VisibleForTesting
+    static final int MAX_PENDING_TOKEN_BUCKETS = 1000;
+
+    private static final long MIN_PENDING_SWEEP_INTERVAL_NANOS = SECONDS.toNanos(1);
+
+    private final double percentile;
+    private final long minThresholdNanos;
+    private final int maxTokens;
+    private final double nanosPerToken;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, NameState>> nameStates =
+            Maps.newConcurrentMap();
+
+    // token buckets for transaction names that do not (yet) have an estimate, key is transaction
+    // type and transaction name (see getPendingKey())
+    @GuardedBy("pendingTokenBuckets")
+    private final Map<String, TokenBucket> pendingTokenBuckets = Maps.newHashMap();
+    @GuardedBy("pendingTokenBuckets")
+    private long lastPendingSweepTick;
+
+    private final TokenBucket overflowTokenBucket;
+
+    // only accessed by the aggregate flushing thread
+    private long generation;
+
+    @VisibleForTesting
+    AdaptiveSlowThresholds(double percentile, long minThresholdNanos, int tokensPerMinute,
+            Ticker ticker) {
+        this.percentile = percentile;
+        this.minThresholdNanos = minThresholdNanos;
+        this.maxTokens = tokensPerMinute;
+        this.nanosPerToken = MINUTES.toNanos(1) / (double) tokensPerMinute;
+        this.ticker = ticker;
+        long currentTick = ticker.read();
+        lastPendingSweepTick = currentTick;
+        overflowTokenBucket = new TokenBucket(currentTick);
+    }
+
+    static @Nullable AdaptiveSlowThresholds create(Ticker ticker) {
+        String value = System.getProperty(PERCENTILE_PROPERTY_NAME);
+        if (value == null) {
+            return null;
+        }
+        double percentile;
+        try {
+            percentile = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid value for {}: {}", PERCENTILE_PROPERTY_NAME, value);
+            return null;
+        }
+        if (percentile <= 0 || percentile >= 100) {
+            logger.warn("{} must be greater than 0 and less than 100: {}",
+                    PERCENTILE_PROPERTY_NAME, value);
+            return null;
+        }
+        return new AdaptiveSlowThresholds(percentile, MIN_THRESHOLD_NANOS, TOKENS_PER_MINUTE,
+                ticker);
+    }
+
+    double getPercentile() {
+        return percentile;
+    }
+
+    // returns -1 if there is no estimate (yet) for the transaction type / transaction name
+    long getThresholdNanos(String transactionType, String transactionName) {
+        NameState nameState = getNameState(transactionType, transactionName);
+        return nameState == null ? -1 : Math.max(nameState.thresholdNanos, minThresholdNanos);
+    }
+
+    // this has side effect of consuming a token
+    boolean tryAcquire(String transactionType, String transactionName) {
+        NameState nameState = getNameState(transactionType, transactionName);
+        TokenBucket tokenBucket;
+        if (nameState == null) {
+            tokenBucket = getPendingTokenBucket(transactionType, transactionName);
+        } else {
+            tokenBucket = nameState.tokenBucket;
+        }
+        return tokenBucket.tryAcquire(ticker.read());
+    }
+
+    // called by the aggregate flushing thread
+    void update(AggregateIntervalCollector intervalCollector) {
+        generation++;
+        intervalCollector.updateAdaptiveSlowThresholds(this);
+        for (ConcurrentMap<String, NameState> typeNameStates : nameStates.values()) {
+            Iterator<NameState> i = typeNameStates.values().iterator();
+            while (i.hasNext()) {
+                if (generation - i.next().generation > MAX_IDLE_INTERVALS) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    // called by the aggregate flushing thread
+    void update(String transactionType, String transactionName, long percentileNanos) {
+        ConcurrentMap<String, NameState> typeNameStates = nameStates.get(transactionType);
+        if (typeNameStates == null) {
+            typeNameStates = Maps.newConcurrentMap();
+            nameStates.put(transactionType, typeNameStates);
+        }
+        NameState nameState = typeNameStates.get(transactionName);
+        if (nameState == null) {
+            // carry over the token bucket that was used while there was no estimate, so that
+            // getting an estimate does not refill the tokens
+            TokenBucket tokenBucket;
+            synchronized (pendingTokenBuckets) {
+                tokenBucket =
+                        pendingTokenBuckets.remove(getPendingKey(transactionType, transactionName));
+            }
+            if (tokenBucket == null) {
+                tokenBucket = new TokenBucket(ticker.read());
+            }
+            nameState = new NameState(percentileNanos, tokenBucket);
+            typeNameStates.put(transactionName, nameState);
+        } else {
+            nameState.thresholdNanos = (long) (nameState.thresholdNanos
+                    + SMOOTHING_FACTOR * (percentileNanos - nameState.thresholdNanos));
+        }
+        nameState.generation = generation;
+    }
+
+    private TokenBucket getPendingTokenBucket(String transactionType, String transactionName) {
+        String key = getPendingKey(transactionType, transactionName);
+        synchronized (pendingTokenBuckets) {
+            TokenBucket tokenBucket = pendingTokenBuckets.get(key);
+            if (tokenBucket != null) {
+                return tokenBucket;
+            }
+            long currentTick = ticker.read();
+            if (pendingTokenBuckets.size() >= MAX_PENDING_TOKEN_BUCKETS
+                    && currentTick - lastPendingSweepTick >= MIN_PENDING_SWEEP_INTERVAL_NANOS) {
+                lastPendingSweepTick = currentTick;
+                Iterator<TokenBucket> i = pendingTokenBuckets.values().iterator();
+                while (i.hasNext()) {
+                    if (i.next().isFull(currentTick)) {
+                        i.remove();
+                    }
+                }
+            }
+            if (pendingTokenBuckets.size() >= MAX_PENDING_TOKEN_BUCKETS) {
+                return overflowTokenBucket;
+            }
+            tokenBucket = new TokenBucket(currentTick);
+            pendingTokenBuckets.put(key, tokenBucket);
+            return tokenBucket;
+        }
+    }
+
+    @VisibleForTesting
+    int getPendingTokenBucketCount() {
+        synchronized (pendingTokenBuckets) {
+            return pendingTokenBuckets.size();
+        }
+    }
+
+    private @Nullable NameState getNameState(String transactionType, String transactionName) {
+        ConcurrentMap<String, NameState> typeNameStates = nameStates.get(transactionType);
+        if (typeNameStates == null) {
+            return null;
+        }
+        return typeNameStates.get(transactionName);
+    }
+
+    private static String getPendingKey(String transactionType, String transactionName) {
+        return transactionType + ':' + transactionName;
+    }
+
+    private static class NameState {
+
+        private volatile long thresholdNanos;
+        private final TokenBucket tokenBucket;
+
+        // only accessed by the aggregate flushing thread
+        private long generation;
+
+        private NameState(long thresholdNanos, TokenBucket tokenBucket) {
+            this.thresholdNanos = thresholdNanos;
+            this.tokenBucket = tokenBucket;
+        }
+    }
+
+    private class TokenBucket {
+
+        @GuardedBy("this")
+        private double tokens;
+        @GuardedBy("this")
+        private long lastRefillTick;
+
+        private TokenBucket(long currentTick) {
+            tokens = maxTokens;
+            lastRefillTick = currentTick;
+        }
+
+        private synchronized boolean tryAcquire(long currentTick) {
+            refill(currentTick);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private synchronized boolean isFull(long currentTick) {
+            refill(currentTick);
+            return tokens >= maxTokens;
+        }
+
+        @GuardedBy("this")
+        private void refill(long currentTick) {
+            tokens = Math.min(maxTokens, tokens + (currentTick - lastRefillTick) / nanosPerToken);
+            lastRefillTick = currentTick;
+        }
+    }
+}
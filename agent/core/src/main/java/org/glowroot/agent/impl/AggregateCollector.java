@@ -100,6 +100,62 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to merge aggregates from separate aggregate processing shards
+    void merge(AggregateCollector collector) {
+        mergeCounts(collector);
+        mergeTimersAndThreadStats(collector);
+        mergeHistogram(collector);
+        if (collector.queries != null) {
+            collector.queries.mergeQueriesInto(getQueryCollector());
+        }
+        if (collector.serviceCalls != null) {
+            collector.serviceCalls.mergeServiceCallsInto(getServiceCallCollector());
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
+    // the merge methods below are used to merge only the data needed by a particular live query
+    // (e.g. getThroughputAggregate() only needs the counts), since the queries, service calls and
+    // profiles are comparatively expensive to merge
+
+    void mergeCounts(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        asyncTransactions |= collector.asyncTransactions;
+    }
+
+    void mergeTimersAndThreadStats(AggregateCollector collector) {
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+    }
+
+    void mergeHistogram(AggregateCollector collector) {
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+    }
+
+    long getTransactionCount() {
+        return transactionCount;
+    }
+
+    long getDurationNanosAtPercentile(double percentile) {
+        return durationNanosHistogram.getValueAtPercentile(percentile);
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -267,6 +323,10 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            MutableAggregateTimer.mergeRootTimers(collector.rootMutableTimers, rootMutableTimers);
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -310,6 +370,16 @@ class AggregateCollector {
                     threadStats.getTotalAllocatedBytes());
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
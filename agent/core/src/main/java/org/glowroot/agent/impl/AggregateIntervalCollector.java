@@ -17,6 +17,8 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -54,19 +56,36 @@ public class AggregateIntervalCollector {
     private final int maxServiceCallAggregates;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+    // each shard is only added to by a single aggregate processing thread, and has its own lock so
+    // that aggregate processing threads do not contend with each other, a given transaction type
+    // and transaction name always goes to the same shard, but the overall aggregate for a
+    // transaction type (and the limit exceeded bucket) can be split across shards, and is merged
+    // when it is read
+    private final IntervalShard[] shards;
 
-    private final Object lock = new Object();
+    // max transaction aggregates is applied across all shards
+    private final ConcurrentMap<String, AtomicInteger> transactionAggregateCounts =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
             Clock clock) {
+        this(currentTime, aggregateIntervalMillis, maxTransactionAggregates, maxQueryAggregates,
+                maxServiceCallAggregates, 1, clock);
+    }
+
+    AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
+            int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
+            int shardCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.clock = clock;
+        shards = new IntervalShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new IntervalShard();
+        }
     }
 
     public long getCaptureTime() {
@@ -74,158 +93,208 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        synchronized (lock) {
+        add(transaction, 0);
+    }
+
+    void add(Transaction transaction, int shardIndex) {
+        IntervalShard shard = shards[shardIndex];
+        synchronized (shard.lock) {
             IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+                    shard.getTypeCollector(transaction.getTransactionType());
             typeCollector.add(transaction);
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                        .values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                IntervalTypeCollector typeCollector = shard.typeCollectors.get(transactionType);
+                if (typeCollector == null) {
+                    continue;
+                }
+                for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
+                        .values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (shards.length == 1) {
+            IntervalShard shard = shards[0];
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getOverviewAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName, LiveData.OVERVIEW);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getOverviewAggregate(liveCaptureTime);
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (shards.length == 1) {
+            IntervalShard shard = shards[0];
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getPercentileAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName, LiveData.PERCENTILE);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getPercentileAggregate(liveCaptureTime);
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+        if (shards.length == 1) {
+            IntervalShard shard = shards[0];
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return aggregateCollector.getThroughputAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
         }
+        AggregateCollector aggregateCollector =
+                getMergedAggregateCollector(transactionType, transactionName, LiveData.THROUGHPUT);
+        if (aggregateCollector == null) {
+            return null;
+        }
+        return aggregateCollector.getThroughputAggregate(liveCaptureTime);
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
-            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-                if (fullQueryText != null) {
-                    return fullQueryText;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                for (IntervalTypeCollector typeCollector : shard.typeCollectors.values()) {
+                    String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                    if (fullQueryText != null) {
+                        return fullQueryText;
+                    }
                 }
             }
-            return null;
         }
+        return null;
     }
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeQueriesInto(collector);
             }
-            aggregateCollector.mergeQueriesInto(collector);
         }
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeServiceCallsInto(collector);
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
         }
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeMainThreadProfilesInto(collector);
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                aggregateCollector.mergeAuxThreadProfilesInto(collector);
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
     }
 
@@ -233,34 +302,153 @@ public class AggregateIntervalCollector {
         collector.collectAggregates(new AggregatesImpl(captureTime));
     }
 
+    void updateAdaptiveSlowThresholds(AdaptiveSlowThresholds adaptiveSlowThresholds) {
+        double percentile = adaptiveSlowThresholds.getPercentile();
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                for (Map.Entry<String, IntervalTypeCollector> entry : shard.typeCollectors
+                        .entrySet()) {
+                    String transactionType = entry.getKey();
+                    for (Map.Entry<String, AggregateCollector> innerEntry : entry
+                            .getValue().transactionAggregateCollectors.entrySet()) {
+                        String transactionName = innerEntry.getKey();
+                        AggregateCollector aggregateCollector = innerEntry.getValue();
+                        if (transactionName.equals(LIMIT_EXCEEDED_BUCKET)
+                                || aggregateCollector.getTransactionCount()
+                                        < AdaptiveSlowThresholds.MIN_TRANSACTION_COUNT) {
+                            continue;
+                        }
+                        adaptiveSlowThresholds.update(transactionType, transactionName,
+                                aggregateCollector.getDurationNanosAtPercentile(percentile));
+                    }
+                }
+            }
+        }
+    }
+
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                shard.typeCollectors.clear();
+            }
         }
+        transactionAggregateCounts.clear();
     }
 
-    @GuardedBy("lock")
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+    private @Nullable AggregateCollector getMergedAggregateCollector(String transactionType,
+            @Nullable String transactionName, LiveData liveData) {
+        AggregateCollector mergedAggregateCollector = null;
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                AggregateCollector aggregateCollector =
+                        shard.getAggregateCollector(transactionType, transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(transactionName,
+                            maxQueryAggregates, maxServiceCallAggregates);
+                }
+                mergedAggregateCollector.mergeCounts(aggregateCollector);
+                if (liveData == LiveData.OVERVIEW) {
+                    mergedAggregateCollector.mergeTimersAndThreadStats(aggregateCollector);
+                } else if (liveData == LiveData.PERCENTILE) {
+                    mergedAggregateCollector.mergeHistogram(aggregateCollector);
+                }
+            }
         }
-        return typeCollector;
+        return mergedAggregateCollector;
     }
 
-    @GuardedBy("lock")
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
+    private Map<String, IntervalTypeCollector> getMergedTypeCollectors() {
+        Map<String, IntervalTypeCollector> mergedTypeCollectors = Maps.newHashMap();
+        for (IntervalShard shard : shards) {
+            synchronized (shard.lock) {
+                for (Map.Entry<String, IntervalTypeCollector> entry : shard.typeCollectors
+                        .entrySet()) {
+                    String transactionType = entry.getKey();
+                    IntervalTypeCollector mergedTypeCollector =
+                            mergedTypeCollectors.get(transactionType);
+                    if (mergedTypeCollector == null) {
+                        mergedTypeCollector = new IntervalTypeCollector(new AtomicInteger());
+                        mergedTypeCollectors.put(transactionType, mergedTypeCollector);
+                    }
+                    mergedTypeCollector.merge(entry.getValue());
+                }
+            }
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        return mergedTypeCollectors;
+    }
+
+    private static void visit(Map<String, IntervalTypeCollector> typeCollectors,
+            AggregateVisitor aggregateVisitor) throws Exception {
+        SharedQueryTextCollectionImpl sharedQueryTextCollector =
+                new SharedQueryTextCollectionImpl();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
+            String transactionType = e.getKey();
+            IntervalTypeCollector intervalTypeCollector = e.getValue();
+            Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
+                    .build(sharedQueryTextCollector, scratchBuffer);
+            aggregateVisitor.visitOverallAggregate(transactionType,
+                    sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                    overallAggregate);
+            for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
+                    .entrySet()) {
+                Aggregate transactionAggregate =
+                        f.getValue().build(sharedQueryTextCollector, scratchBuffer);
+                aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        transactionAggregate);
+            }
+        }
+    }
+
+    private class IntervalShard {
+
+        @GuardedBy("lock")
+        private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
+
+        private final Object lock = new Object();
+
+        @GuardedBy("lock")
+        private IntervalTypeCollector getTypeCollector(String transactionType) {
+            IntervalTypeCollector typeCollector;
+            typeCollector = typeCollectors.get(transactionType);
+            if (typeCollector == null) {
+                typeCollector =
+                        new IntervalTypeCollector(getTransactionAggregateCount(transactionType));
+                typeCollectors.put(transactionType, typeCollector);
+            }
+            return typeCollector;
+        }
+
+        @GuardedBy("lock")
+        private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+                @Nullable String transactionName) {
+            IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
+            if (intervalTypeCollector == null) {
+                return null;
+            }
+            if (transactionName == null) {
+                return intervalTypeCollector.overallAggregateCollector;
+            } else {
+                return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+            }
+        }
+
+        private AtomicInteger getTransactionAggregateCount(String transactionType) {
+            AtomicInteger transactionAggregateCount =
+                    transactionAggregateCounts.get(transactionType);
+            if (transactionAggregateCount == null) {
+                transactionAggregateCount = new AtomicInteger();
+                AtomicInteger existing = transactionAggregateCounts
+                        .putIfAbsent(transactionType, transactionAggregateCount);
+                if (existing != null) {
+                    transactionAggregateCount = existing;
+                }
+            }
+            return transactionAggregateCount;
         }
     }
 
@@ -269,10 +457,13 @@ public class AggregateIntervalCollector {
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
+        // shared by all shards
+        private final AtomicInteger transactionAggregateCount;
 
-        private IntervalTypeCollector() {
+        private IntervalTypeCollector(AtomicInteger transactionAggregateCount) {
             overallAggregateCollector =
                     new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+            this.transactionAggregateCount = transactionAggregateCount;
         }
 
         private void add(Transaction transaction) {
@@ -280,7 +471,8 @@ public class AggregateIntervalCollector {
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
+                if (transactionAggregateCount.get() < maxTransactionAggregates
+                        && transactionAggregateCount.incrementAndGet() <= maxTransactionAggregates) {
                     transactionAggregateCollector =
                             createTransactionAggregateCollector(transaction.getTransactionName());
                 } else {
@@ -295,6 +487,21 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        private void merge(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.merge(typeCollector.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : typeCollector.transactionAggregateCollectors
+                    .entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    transactionAggregateCollector =
+                            createTransactionAggregateCollector(transactionName);
+                }
+                transactionAggregateCollector.merge(entry.getValue());
+            }
+        }
+
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
                     transactionName, maxQueryAggregates, maxServiceCallAggregates);
@@ -350,31 +557,24 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollectionImpl sharedQueryTextCollector =
-                        new SharedQueryTextCollectionImpl();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
-                    }
+            if (shards.length == 1) {
+                IntervalShard shard = shards[0];
+                synchronized (shard.lock) {
+                    visit(shard.typeCollectors, aggregateVisitor);
                 }
+            } else {
+                // all shards have completed this interval by the time it is flushed, so the merged
+                // aggregates are complete
+                visit(getMergedTypeCollectors(), aggregateVisitor);
             }
         }
     }
 
+    // the data needed by each of the live queries that are served from a merged aggregate collector
+    private enum LiveData {
+        OVERVIEW, PERCENTILE, THROUGHPUT
+    }
+
     private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
 
         private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
@@ -15,13 +15,18 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.annotation.concurrent.GuardedBy;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
@@ -31,25 +36,41 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Aggregator {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
-    // back pressure on transaction collection
+    // number of aggregate processing threads, each of which aggregates into its own shard of the
+    // interval collector (shards are merged when the interval is flushed)
+    private static final int SHARD_COUNT =
+            Math.max(Integer.getInteger("glowroot.aggregate.shards", 1), 1);
+
+    // back pressure on transaction collection (per shard)
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
-    private final List<AggregateIntervalCollector> pendingIntervalCollectors =
+    // ordered by capture time, this includes intervals that are still being aggregated into and
+    // intervals that are waiting to be flushed
+    private final List<AggregateIntervalCollector> intervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
+    // ordered by capture time, this includes only intervals that are still being aggregated into
+    // (by at least one shard)
+    @GuardedBy("intervalLock")
+    private final List<OpenInterval> openIntervals = Lists.newArrayList();
+    private final Object intervalLock = new Object();
+
+    private final TransactionProcessor[] processors;
+
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
@@ -58,14 +79,8 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    // null unless adaptive slow trace thresholds are enabled
+    private final @Nullable AdaptiveSlowThresholds adaptiveSlowThresholds;
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
@@ -73,27 +88,42 @@ public class Aggregator {
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, SHARD_COUNT, clock);
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            int shardCount, Clock clock) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        adaptiveSlowThresholds = AdaptiveSlowThresholds.create(Tickers.getTicker());
+        processingExecutor = Executors.newFixedThreadPool(shardCount,
+                ThreadFactories.create(shardCount == 1 ? "Glowroot-Aggregate-Processing"
+                        : "Glowroot-Aggregate-Processing-%d"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        processors = new TransactionProcessor[shardCount];
+        AggregateIntervalCollector intervalCollector =
+                createIntervalCollector(clock.currentTimeMillis());
+        synchronized (intervalLock) {
+            intervalCollectors.add(intervalCollector);
+            openIntervals.add(new OpenInterval(intervalCollector, shardCount));
+            for (int i = 0; i < shardCount; i++) {
+                processors[i] = new TransactionProcessor(i, intervalCollector);
+            }
+        }
+        for (TransactionProcessor processor : processors) {
+            processingExecutor.execute(processor);
+        }
     }
 
     // from is non-inclusive
     public List<AggregateIntervalCollector> getOrderedIntervalCollectorsInRange(long from,
             long to) {
         List<AggregateIntervalCollector> intervalCollectors = Lists.newArrayList();
-        for (AggregateIntervalCollector intervalCollector : getOrderedAllIntervalCollectors()) {
+        for (AggregateIntervalCollector intervalCollector : this.intervalCollectors) {
             long captureTime = intervalCollector.getCaptureTime();
             if (captureTime > from && captureTime <= to) {
                 intervalCollectors.add(intervalCollector);
@@ -103,51 +133,39 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        synchronized (intervalLock) {
+            for (OpenInterval openInterval : openIntervals) {
+                openInterval.intervalCollector.clear();
+            }
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-            } else {
-                newTail.captureTime = captureTime;
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            }
+        if (processors.length == 1) {
+            return processors[0].add(transaction);
         }
-        return captureTime;
+        // a given transaction type and transaction name always goes to the same shard, in order
+        // to minimize the number of aggregates that need to be merged across shards
+        int hash = 31 * transaction.getTransactionType().hashCode()
+                + transaction.getTransactionName().hashCode();
+        hash ^= hash >>> 16;
+        return processors[(hash & Integer.MAX_VALUE) % processors.length].add(transaction);
     }
 
-    private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
-        // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
-        List<AggregateIntervalCollector> intervalCollectors =
-                Lists.newArrayList(pendingIntervalCollectors);
-        if (intervalCollectors.isEmpty()) {
-            // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
-        }
+    @Nullable
+    AdaptiveSlowThresholds getAdaptiveSlowThresholds() {
+        return adaptiveSlowThresholds;
     }
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
+        for (TransactionProcessor processor : processors) {
+            Thread processingThread = processor.processingThread;
+            if (processingThread != null) {
+                LockSupport.unpark(processingThread);
+            }
+        }
         processingExecutor.shutdown();
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -158,10 +176,172 @@ public class Aggregator {
         }
     }
 
+    // called by a shard once it is done aggregating into all intervals prior to the interval
+    // containing the given capture time
+    private AggregateIntervalCollector advanceToInterval(TransactionProcessor processor,
+            long captureTime) {
+        long intervalCaptureTime = CaptureTimes.getRollup(captureTime, aggregateIntervalMillis);
+        synchronized (intervalLock) {
+            Iterator<OpenInterval> i = openIntervals.iterator();
+            while (i.hasNext()) {
+                OpenInterval openInterval = i.next();
+                long openCaptureTime = openInterval.intervalCollector.getCaptureTime();
+                if (openCaptureTime >= intervalCaptureTime) {
+                    break;
+                }
+                if (openCaptureTime < processor.intervalCaptureTime) {
+                    // this shard was already past this interval when this interval was opened
+                    continue;
+                }
+                if (--openInterval.remainingShards == 0) {
+                    i.remove();
+                    flush(openInterval.intervalCollector);
+                }
+            }
+            processor.intervalCaptureTime = intervalCaptureTime;
+            int index = 0;
+            for (OpenInterval openInterval : openIntervals) {
+                long openCaptureTime = openInterval.intervalCollector.getCaptureTime();
+                if (openCaptureTime == intervalCaptureTime) {
+                    return openInterval.intervalCollector;
+                }
+                if (openCaptureTime > intervalCaptureTime) {
+                    break;
+                }
+                index++;
+            }
+            // shards that are already past this interval will never add to it
+            int remainingShards = 0;
+            for (TransactionProcessor p : processors) {
+                if (p.intervalCaptureTime <= intervalCaptureTime) {
+                    remainingShards++;
+                }
+            }
+            AggregateIntervalCollector intervalCollector =
+                    createIntervalCollector(intervalCaptureTime);
+            openIntervals.add(index, new OpenInterval(intervalCollector, remainingShards));
+            int allIndex = 0;
+            for (AggregateIntervalCollector existing : intervalCollectors) {
+                if (existing.getCaptureTime() > intervalCaptureTime) {
+                    break;
+                }
+                allIndex++;
+            }
+            intervalCollectors.add(allIndex, intervalCollector);
+            return intervalCollector;
+        }
+    }
+
+    @GuardedBy("intervalLock")
+    private void flush(final AggregateIntervalCollector intervalCollector) {
+        if (intervalCollectors.size() - openIntervals.size() > AGGREGATE_PENDING_LIMIT) {
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            intervalCollectors.remove(intervalCollector);
+            return;
+        }
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (adaptiveSlowThresholds != null) {
+                        adaptiveSlowThresholds.update(intervalCollector);
+                    }
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    synchronized (intervalLock) {
+                        intervalCollectors.remove(intervalCollector);
+                    }
+                }
+            }
+        });
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long captureTime) {
+        return new AggregateIntervalCollector(captureTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(), processors.length,
+                clock);
+    }
+
     private class TransactionProcessor implements Runnable {
 
+        private final int shardIndex;
+
+        // the transaction queue is a multi-producer/single-consumer linked list, producers append
+        // by swapping the tail (via compare and set), and only the processing thread advances the
+        // head
+        //
+        // head is non-volatile since only accessed by the processing thread
+        private PendingTransaction head = new PendingTransaction(null, 0);
+        private final AtomicReference<PendingTransaction> tail =
+                new AtomicReference<PendingTransaction>(head);
+        private final AtomicInteger queueLength = new AtomicInteger();
+
+        // processing thread parks when there is nothing in the queue, and producers unpark it
+        private volatile @Nullable Thread processingThread;
+        private final AtomicBoolean processingThreadParked = new AtomicBoolean();
+
+        // non-volatile since only accessed by the processing thread
+        private AggregateIntervalCollector intervalCollector;
+
+        // this is the capture time of intervalCollector, but guarded by intervalLock so that it
+        // can be read by other shards when opening a new interval
+        @GuardedBy("intervalLock")
+        private long intervalCaptureTime;
+
+        private TransactionProcessor(int shardIndex, AggregateIntervalCollector intervalCollector) {
+            this.shardIndex = shardIndex;
+            this.intervalCollector = intervalCollector;
+            intervalCaptureTime = intervalCollector.getCaptureTime();
+        }
+
+        private long add(Transaction transaction) {
+            if (queueLength.get() >= TRANSACTION_PENDING_LIMIT) {
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        TRANSACTION_PENDING_LIMIT);
+                transaction.removeFromActiveTransactions();
+                return clock.currentTimeMillis();
+            }
+            queueLength.incrementAndGet();
+            long captureTime = enqueue(transaction);
+            if (processingThreadParked.get()
+                    && processingThreadParked.compareAndSet(true, false)) {
+                Thread processingThread = this.processingThread;
+                if (processingThread != null) {
+                    LockSupport.unpark(processingThread);
+                }
+            }
+            return captureTime;
+        }
+
+        // transactions are placed into the processing queue in the order of captureTime (so that
+        // queue reader can assume if captureTime indicates time to flush, then no new transactions
+        // will come in with prior captureTime)
+        //
+        // this is done without a lock by never letting a capture time be less than the capture
+        // time of the pending transaction it is appended after (this only adjusts capture time in
+        // the rare case where another thread read the clock later but appended to the queue first)
+        private long enqueue(@Nullable Transaction transaction) {
+            while (true) {
+                PendingTransaction currTail = tail.get();
+                long captureTime = Math.max(clock.currentTimeMillis(), currTail.captureTime);
+                PendingTransaction newTail = new PendingTransaction(transaction, captureTime);
+                if (tail.compareAndSet(currTail, newTail)) {
+                    currTail.next = newTail;
+                    return captureTime;
+                }
+            }
+        }
+
         @Override
         public void run() {
+            processingThread = Thread.currentThread();
             while (!closed) {
                 try {
                     processOne();
@@ -172,100 +352,87 @@ public class Aggregator {
             }
         }
 
-        private void processOne() throws InterruptedException {
+        private void processOne() {
             PendingTransaction pendingTransaction = head.next;
+            if (pendingTransaction == null && tail.get() != head) {
+                // a producer has swapped the tail but has not yet linked it to the prior tail (see
+                // enqueue()), so the queue is not empty, and linking is imminent
+                do {
+                    Thread.yield();
+                    pendingTransaction = head.next;
+                } while (pendingTransaction == null);
+            }
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+                if (clock.currentTimeMillis() > intervalCollector.getCaptureTime()) {
+                    // the end of interval marker goes through the queue (like any other pending
+                    // transaction) which guarantees that any transaction that has already read an
+                    // earlier capture time is processed prior to flushing
+                    enqueue(null);
                 } else {
-                    // TODO benchmark other alternatives to sleep (e.g. wait/notify)
-                    Thread.sleep(1);
+                    parkUntilNextTransactionOrEndOfInterval();
                 }
                 return;
             }
+            // remove head (the previous head is now garbage, and the new head is retained only as
+            // a placeholder, so release its reference to the transaction)
+            head = pendingTransaction;
+            Transaction transaction = pendingTransaction.transaction;
+            pendingTransaction.transaction = null;
+
+            if (pendingTransaction.captureTime > intervalCollector.getCaptureTime()) {
+                intervalCollector = advanceToInterval(this, pendingTransaction.captureTime);
+            }
+            if (transaction == null) {
+                // end of interval marker
+                return;
+            }
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
-
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-            }
-            activeIntervalCollector.add(transaction);
+            queueLength.decrementAndGet();
+            intervalCollector.add(transaction, shardIndex);
         }
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+        private void parkUntilNextTransactionOrEndOfInterval() {
+            processingThreadParked.set(true);
+            // re-check after setting the parked flag, since a transaction may have been added (and
+            // seen the flag still unset) just prior to setting the parked flag (checking the tail
+            // instead of head.next, since head.next is linked after the tail is swapped)
+            if (tail.get() == head && !closed) {
+                long remainingMillis =
+                        intervalCollector.getCaptureTime() - clock.currentTimeMillis();
+                // add 1 millisecond so that the clock is past the end of the interval on wake up
+                LockSupport.parkNanos(MILLISECONDS.toNanos(Math.max(remainingMillis, 0) + 1));
             }
-        }
-
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
-                return;
-            }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
-                }
-            });
+            processingThreadParked.set(false);
         }
     }
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for head and for end of interval markers
+        // non-volatile since only accessed by the processing thread (after it was published via
+        // the volatile next field)
+        private @Nullable Transaction transaction;
+        private final long captureTime;
         private volatile @Nullable PendingTransaction next;
 
-        private PendingTransaction(@Nullable Transaction transaction) {
+        private PendingTransaction(@Nullable Transaction transaction, long captureTime) {
             this.transaction = transaction;
+            this.captureTime = captureTime;
+        }
+    }
+
+    private static class OpenInterval {
+
+        private final AggregateIntervalCollector intervalCollector;
+        // number of shards that may still aggregate into this interval
+        private int remainingShards;
+
+        private OpenInterval(AggregateIntervalCollector intervalCollector, int remainingShards) {
+            this.intervalCollector = intervalCollector;
+            this.remainingShards = remainingShards;
         }
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// once the in-order portion of the maxTraceEntries limit has been used up, the remaining portion
+// of the limit is used to retain the slowest completed trace entries (instead of simply the next
+// trace entries in order), so that the stored trace shows the most expensive work
+//
+// ancestors of retained trace entries are retained as well (by reference from the retained trace
+// entries), so that the retained trace entries can be shown in context, and these ancestors count
+// against the same limit
+//
+// this is opt-in since trace entries beyond the limit are no longer consecutive
+class SlowestTraceEntries {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.keepSlowestTraceEntries");
+
+    private static final Comparator<RetainedEntry> DURATION_ORDERING =
+            new Comparator<RetainedEntry>() {
+                @Override
+                public int compare(RetainedEntry left, RetainedEntry right) {
+                    return Longs.compare(left.durationNanos, right.durationNanos);
+                }
+            };
+
+    private static final Comparator<TraceEntryImpl> START_TICK_ORDERING =
+            new Comparator<TraceEntryImpl>() {
+                @Override
+                public int compare(TraceEntryImpl left, TraceEntryImpl right) {
+                    // ticks can wrap around, so compare the difference instead of the ticks
+                    return Long.signum(left.getStartTick() - right.getStartTick());
+                }
+            };
+
+    private final int capacity;
+
+    // min-heap by duration, so the fastest retained trace entry is the one that gets evicted
+    @GuardedBy("this")
+    private final PriorityQueue<RetainedEntry> heap;
+
+    // the number of trace entries in the heap that each retained trace entry (beyond the in-order
+    // limit) is referenced by, either as itself or as an ancestor, so the size of this map is the
+    // number of trace entries that are being retained
+    @GuardedBy("this")
+    private final Map<TraceEntryImpl, Integer> referenceCounts = Maps.newHashMap();
+
+    SlowestTraceEntries(int capacity) {
+        this.capacity = capacity;
+        // not pre-sizing to capacity since most transactions never exceed the in-order limit
+        heap = new PriorityQueue<RetainedEntry>(11, DURATION_ORDERING);
+    }
+
+    // called by the thread that completed the trace entry
+    synchronized void offer(TraceEntryImpl entry, long durationNanos) {
+        List<TraceEntryImpl> chain = getChain(entry);
+        if (chain.size() > capacity) {
+            // cannot be retained together with its ancestors
+            return;
+        }
+        while (referenceCounts.size() + getNotRetainedCount(chain) > capacity) {
+            RetainedEntry fastest = heap.peek();
+            if (fastest == null || durationNanos <= fastest.durationNanos) {
+                // the remaining retained trace entries are all slower than this one (any trace
+                // entries already evicted above were faster than this one, and their space is
+                // left for subsequent trace entries)
+                return;
+            }
+            heap.poll();
+            release(fastest.entry);
+        }
+        heap.add(new RetainedEntry(entry, durationNanos));
+        for (TraceEntryImpl curr : chain) {
+            Integer referenceCount = referenceCounts.get(curr);
+            referenceCounts.put(curr, referenceCount == null ? 1 : referenceCount + 1);
+        }
+    }
+
+    // merges the retained trace entries (and their ancestors) into the parent child map that was
+    // populated from the in-order trace entries
+    void populateParentChildMap(ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
+        List<TraceEntryImpl> entries = Lists.newArrayList();
+        synchronized (this) {
+            for (RetainedEntry retainedEntry : heap) {
+                entries.add(retainedEntry.entry);
+            }
+        }
+        Set<TraceEntryImpl> attached = Sets.newHashSet();
+        Set<TraceEntryImpl> parentsToSort = Sets.newHashSet();
+        // in-order trace entries (e.g. error entries and auxiliary thread root entries) can have
+        // a slowest-retained trace entry as parent, so those parents need to be attached too
+        for (TraceEntryImpl parent : ImmutableList.copyOf(parentChildMap.keySet())) {
+            if (parent.isBeyondInOrderLimit()) {
+                attach(parent, parentChildMap, attached, parentsToSort);
+            }
+        }
+        for (TraceEntryImpl entry : entries) {
+            attach(entry, parentChildMap, attached, parentsToSort);
+        }
+        for (TraceEntryImpl parent : parentsToSort) {
+            Collections.sort(parentChildMap.get(parent), START_TICK_ORDERING);
+        }
+    }
+
+    @GuardedBy("this")
+    private int getNotRetainedCount(List<TraceEntryImpl> chain) {
+        int count = 0;
+        for (TraceEntryImpl curr : chain) {
+            if (!referenceCounts.containsKey(curr)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @GuardedBy("this")
+    private void release(TraceEntryImpl entry) {
+        for (TraceEntryImpl curr : getChain(entry)) {
+            int referenceCount = checkNotNull(referenceCounts.get(curr));
+            if (referenceCount == 1) {
+                referenceCounts.remove(curr);
+            } else {
+                referenceCounts.put(curr, referenceCount - 1);
+            }
+        }
+    }
+
+    // the trace entry followed by its ancestors that are also beyond the in-order limit
+    private static List<TraceEntryImpl> getChain(TraceEntryImpl entry) {
+        List<TraceEntryImpl> chain = Lists.newArrayList();
+        @Nullable
+        TraceEntryImpl curr = entry;
+        while (curr != null && curr.isBeyondInOrderLimit()) {
+            chain.add(curr);
+            curr = curr.getParentTraceEntry();
+        }
+        return chain;
+    }
+
+    private static void attach(TraceEntryImpl entry,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap,
+            Set<TraceEntryImpl> attached, Set<TraceEntryImpl> parentsToSort) {
+        TraceEntryImpl curr = entry;
+        while (curr.isBeyondInOrderLimit() && attached.add(curr)) {
+            TraceEntryImpl parent = curr.getParentTraceEntry();
+            if (parent == null) {
+                // trace entries beyond the in-order limit are never root entries
+                return;
+            }
+            parentChildMap.put(parent, curr);
+            parentsToSort.add(parent);
+            curr = parent;
+        }
+    }
+
+    private static class RetainedEntry {
+
+        private final TraceEntryImpl entry;
+        private final long durationNanos;
+
+        private RetainedEntry(TraceEntryImpl entry, long durationNanos) {
+            this.entry = entry;
+            this.durationNanos = durationNanos;
+        }
+    }
+}
@@ -150,8 +150,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
         this.parentTraceEntry = parentTraceEntry;
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
+        // trace entries of auxiliary thread contexts are never allocated from the arena since they
+        // are more likely to be referenced after the transaction completes
+        TraceEntryArena arena = TraceEntryArena.ENABLED && parentTraceEntry == null
+                ? TraceEntryArena.acquire() : null;
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
-                rootTimer, startTick);
+                rootTimer, startTick, arena);
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
         threadStatsComponent =
@@ -423,6 +427,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     void captureStackTrace(ThreadInfo threadInfo) {
         transaction.captureStackTrace(isAuxiliary(), threadInfo);
+        if (threadStatsComponent != null) {
+            threadStatsComponent.onStackTraceSample(threadInfo);
+        }
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -455,6 +462,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     // preventing any nasty bugs from a missed pop, e.g. a trace never being marked as complete)
     void popEntry(TraceEntryImpl entry, long endTick) {
         traceEntryComponent.popEntry(entry, endTick);
+        if (entry.isBeyondInOrderLimit()) {
+            endEntryBeyondInOrderLimit(entry);
+        }
         // memory barrier write ensures partial trace capture will see data collected up to now
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierReadWrite();
@@ -469,6 +479,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (!isAuxiliary() || transactionAsyncComplete) {
                 transaction.end(endTick, transactionAsyncComplete);
             }
+            if (traceEntryComponent.hasArena()) {
+                // an aux thread context that has not started yet can still reference the trace
+                // entries of this thread context
+                traceEntryComponent.releaseArena(
+                        !mayHaveChildAuxThreadContext && transaction.tryRecycleTraceEntries());
+            }
             threadContextHolder.set(outerTransactionThreadContext);
             if (outerTransactionThreadContext != null) {
                 outerTransactionThreadContext.innerTransactionThreadContext = null;
@@ -486,6 +502,17 @@ public class ThreadContextImpl implements ThreadContextPlus {
         transaction.memoryBarrierReadWrite();
     }
 
+    // split typically unused path into separate method to not affect inlining budget
+    private void endEntryBeyondInOrderLimit(TraceEntryImpl entry) {
+        if (entry.getErrorMessage() != null && transaction.allowAnotherErrorEntry()) {
+            // same as trace entries beyond the limit that end with an error when not retaining the
+            // slowest trace entries, see DummyTraceEntryOrQuery
+            traceEntryComponent.appendCompletedEntry(entry);
+        } else {
+            transaction.offerSlowestEntry(entry);
+        }
+    }
+
     // detach is called from another thread
     void detach() {
         // this synchronization protects against clobbering valid thread context in race condition
@@ -565,6 +592,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
+        } else if (transaction.isRetainingSlowestEntries()) {
+            return traceEntryComponent.pushEntryBeyondInOrderLimit(startTick, messageSupplier,
+                    timer, null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
         }
@@ -584,6 +614,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
+        } else if (transaction.isRetainingSlowestEntries()) {
+            return traceEntryComponent.pushEntryBeyondInOrderLimit(startTick, messageSupplier,
+                    timer, null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
         }
@@ -638,6 +671,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
                     queryData, 1);
         } else {
             SyncQueryData queryData = getOrCreateQueryData(queryType, queryText, false);
+            if (transaction.isRetainingSlowestEntries()) {
+                return traceEntryComponent.pushEntryBeyondInOrderLimit(startTick,
+                        queryMessageSupplier, timer, queryData, 1);
+            }
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
                     queryData, 1);
         }
@@ -674,6 +711,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
                     queryData, queryExecutionCount);
         } else {
             SyncQueryData queryData = getOrCreateQueryData(queryType, queryText, false);
+            if (transaction.isRetainingSlowestEntries()) {
+                return traceEntryComponent.pushEntryBeyondInOrderLimit(startTick,
+                        queryMessageSupplier, timer, queryData, queryExecutionCount);
+            }
             return new DummyTraceEntryOrQuery(timer, null, startTick, queryMessageSupplier,
                     queryData, queryExecutionCount);
         }
@@ -744,6 +785,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         } else {
             SyncQueryData queryData =
                     getOrCreateServiceCallData(serviceCallType, serviceCallText, false);
+            if (transaction.isRetainingSlowestEntries()) {
+                return traceEntryComponent.pushEntryBeyondInOrderLimit(startTick,
+                        messageSupplier, timer, queryData, 1);
+            }
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, queryData,
                     1);
         }
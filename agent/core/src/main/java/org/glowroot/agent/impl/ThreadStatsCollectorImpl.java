@@ -26,6 +26,7 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
     private long totalBlockedMillis;
     private long totalWaitedMillis;
     private long totalAllocatedBytes;
+    private boolean blockedWaitedPartial;
 
     @Override
     public void mergeThreadStats(ThreadStats threadStats) {
@@ -36,11 +37,12 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
                 NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
         totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
                 threadStats.getTotalAllocatedBytes());
+        blockedWaitedPartial |= threadStats.isBlockedWaitedPartial();
     }
 
     ThreadStats getMergedThreadStats() {
         return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
-                totalAllocatedBytes);
+                totalAllocatedBytes, blockedWaitedPartial);
     }
 
     long getTotalCpuNanos() {
@@ -53,6 +55,7 @@ class ThreadStatsCollectorImpl implements ThreadStatsCollector {
                 .setTotalBlockedNanos(NotAvailableAware.millisToNanos(totalBlockedMillis))
                 .setTotalWaitedNanos(NotAvailableAware.millisToNanos(totalWaitedMillis))
                 .setTotalAllocatedBytes(totalAllocatedBytes)
+                .setBlockedWaitedPartial(blockedWaitedPartial)
                 .build();
     }
 }
@@ -15,9 +15,12 @@
  */
 package org.glowroot.agent.impl;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.MapMaker;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,26 +33,60 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 // equality
 //
 // also used to ensure @Pointcut timer name matches the timer name passed to TransactionService
+//
+// getTimerName(String) can be called by plugins on request threads (e.g. for dynamically named
+// timers), so names are interned in a lock-free open addressing table (lookups of existing names
+// never lock, only adding a new name locks)
 public class TimerNameCache {
 
     private static final Logger logger = LoggerFactory.getLogger(TimerNameCache.class);
 
-    private final LoadingCache<String, TimerNameImpl> names = CacheBuilder.newBuilder()
-            .build(new CacheLoader<String, TimerNameImpl>() {
-                @Override
-                public TimerNameImpl load(String name) {
-                    return ImmutableTimerNameImpl.of(name, false);
-                }
-            });
+    // weak keys so that advice classes can be unloaded
+    private final ConcurrentMap<Class<?>, TimerName> adviceClassTimerNames =
+            new MapMaker().weakKeys().makeMap();
+
+    // capacity is always a power of 2, and the table is always kept at most half full, so that
+    // there is always an empty slot to terminate probing
+    //
+    // slots are only ever changed from null to non-null (under lock), and the table is replaced
+    // (under lock) when it needs to grow, so readers never need to lock
+    //
+    // TimerNameImpl is immutable (all final fields), so it is safe to read from the table without
+    // synchronization even though slots are not volatile
+    private volatile @Nullable TimerNameImpl[] table = new TimerNameImpl[64];
 
-    private final TimerName unknownTimerName = names.getUnchecked("unknown");
-    private final TimerName auxThreadTimerName = names.getUnchecked("auxiliary thread");
+    @GuardedBy("this")
+    private int size;
+
+    private final TimerName unknownTimerName = getName("unknown");
+    private final TimerName auxThreadTimerName = getName("auxiliary thread");
 
     public TimerName getTimerName(Class<?> adviceClass) {
         if (adviceClass == null) {
             logger.error("getTimerName(): argument 'adviceClass' must be non-null");
             return unknownTimerName;
         }
+        TimerName timerName = adviceClassTimerNames.get(adviceClass);
+        if (timerName == null) {
+            timerName = readTimerName(adviceClass);
+            adviceClassTimerNames.put(adviceClass, timerName);
+        }
+        return timerName;
+    }
+
+    TimerName getTimerName(String name) {
+        if (name == null) {
+            logger.error("getTimerName(): argument 'name' must be non-null");
+            return unknownTimerName;
+        }
+        return getName(name);
+    }
+
+    TimerName getAuxThreadTimerName() {
+        return auxThreadTimerName;
+    }
+
+    private TimerName readTimerName(Class<?> adviceClass) {
         Pointcut pointcut = adviceClass.getAnnotation(Pointcut.class);
         if (pointcut == null) {
             logger.warn("advice has no @Pointcut: {}", adviceClass.getName());
@@ -62,19 +99,63 @@ public class TimerNameCache {
         }
     }
 
-    TimerName getTimerName(String name) {
-        if (name == null) {
-            logger.error("getTimerName(): argument 'name' must be non-null");
-            return unknownTimerName;
+    private TimerName getName(String name) {
+        TimerNameImpl timerName = find(table, name);
+        if (timerName != null) {
+            return timerName;
         }
-        return getName(name);
+        return add(name);
     }
 
-    TimerName getAuxThreadTimerName() {
-        return auxThreadTimerName;
+    private synchronized TimerNameImpl add(String name) {
+        // check again under lock in case it was just added by another thread
+        @Nullable
+        TimerNameImpl[] table = this.table;
+        TimerNameImpl timerName = find(table, name);
+        if (timerName != null) {
+            return timerName;
+        }
+        timerName = ImmutableTimerNameImpl.of(name, false);
+        if (++size > table.length >> 1) {
+            @Nullable
+            TimerNameImpl[] newTable = new TimerNameImpl[table.length << 1];
+            for (TimerNameImpl existing : table) {
+                if (existing != null) {
+                    insert(newTable, existing);
+                }
+            }
+            insert(newTable, timerName);
+            this.table = newTable;
+        } else {
+            insert(table, timerName);
+        }
+        return timerName;
     }
 
-    private TimerName getName(String name) {
-        return names.getUnchecked(name);
+    private static @Nullable TimerNameImpl find(/*@Nullable*/ TimerNameImpl[] table,
+            String name) {
+        // this mask requires table length to be a power of 2
+        int mask = table.length - 1;
+        int i = spread(name.hashCode()) & mask;
+        while (true) {
+            TimerNameImpl timerName = table[i];
+            if (timerName == null || timerName.name().equals(name)) {
+                return timerName;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static void insert(/*@Nullable*/ TimerNameImpl[] table, TimerNameImpl timerName) {
+        int mask = table.length - 1;
+        int i = spread(timerName.name().hashCode()) & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = timerName;
+    }
+
+    private static int spread(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
     }
 }
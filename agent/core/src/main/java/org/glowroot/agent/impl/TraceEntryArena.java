@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.QueryData;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// reusable storage for the trace entries of the main thread context of a transaction, so that
+// transactions that are not stored (the vast majority) do not generate garbage for each trace entry
+//
+// there is one arena per thread, and it can only be used by one thread context at a time
+//
+// query entries are never allocated from the arena, since plugins retain them beyond the end of
+// the transaction (see TraceEntryComponent.pushEntry()), and this is opt-in since it still relies
+// on plugins not retaining other trace entries beyond the end of the transaction
+class TraceEntryArena {
+
+    static final boolean ENABLED = Boolean.getBoolean("glowroot.traceEntryArena");
+
+    private static final int CHUNK_SIZE = 64;
+
+    // this is only to limit memory retained per thread, trace entries beyond this are allocated
+    // normally
+    private static final int MAX_CHUNKS = 16;
+
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private static final ThreadLocal<TraceEntryArena> arenas = new ThreadLocal<TraceEntryArena>() {
+        @Override
+        protected TraceEntryArena initialValue() {
+            return new TraceEntryArena();
+        }
+    };
+
+    private final List</*@Nullable*/ TraceEntryImpl[]> chunks =
+            new ArrayList</*@Nullable*/ TraceEntryImpl[]>();
+
+    // number of trace entries in use by the current owner
+    private int size;
+
+    private boolean inUse;
+
+    // returns null if the arena for the current thread is already in use (e.g. by an outer
+    // transaction on hold while an inner transaction is executing)
+    static @Nullable TraceEntryArena acquire() {
+        TraceEntryArena arena = arenas.get();
+        if (arena.inUse) {
+            return null;
+        }
+        arena.inUse = true;
+        return arena;
+    }
+
+    // returns null if the arena is full
+    @Nullable
+    TraceEntryImpl allocate(ThreadContextImpl threadContext, TraceEntryImpl parentTraceEntry,
+            Object messageSupplier, @Nullable QueryData queryData, long queryExecutionCount,
+            long startTick, TimerImpl syncTimer) {
+        int chunkIndex = size / CHUNK_SIZE;
+        if (chunkIndex == MAX_CHUNKS) {
+            return null;
+        }
+        if (chunkIndex == chunks.size()) {
+            chunks.add(new TraceEntryImpl[CHUNK_SIZE]);
+        }
+        /*@Nullable*/ TraceEntryImpl[] chunk = chunks.get(chunkIndex);
+        int slot = size % CHUNK_SIZE;
+        TraceEntryImpl entry = chunk[slot];
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, null);
+            chunk[slot] = entry;
+        } else {
+            entry.reset(threadContext, parentTraceEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer);
+        }
+        size++;
+        return entry;
+    }
+
+    // called when nothing can reference the trace entries anymore, so they can be reused by the
+    // next thread context on this thread
+    void recycle() {
+        for (int i = 0; i < size; i++) {
+            // clear references so the arena does not retain the prior transaction
+            checkNotNull(chunks.get(i / CHUNK_SIZE)[i % CHUNK_SIZE]).clearReferences();
+        }
+        size = 0;
+        inUse = false;
+    }
+
+    // called when the trace entries are still needed (e.g. the trace will be stored), in which
+    // case ownership of the trace entries is handed off to the transaction (which is cheaper than
+    // copying them out)
+    void release() {
+        for (int i = 0; i < size; i++) {
+            chunks.get(i / CHUNK_SIZE)[i % CHUNK_SIZE] = null;
+        }
+        size = 0;
+        inUse = false;
+    }
+
+    @OnlyUsedByTests
+    int getPooledCount() {
+        int count = 0;
+        for (/*@Nullable*/ TraceEntryImpl[] chunk : chunks) {
+            for (TraceEntryImpl entry : chunk) {
+                if (entry != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
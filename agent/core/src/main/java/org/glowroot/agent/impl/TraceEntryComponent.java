@@ -43,10 +43,13 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    private @Nullable TraceEntryArena arena;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
-            TimerImpl timer, long startTick) {
+            TimerImpl timer, long startTick, @Nullable TraceEntryArena arena) {
         this.threadContext = threadContext;
         this.startTick = startTick;
+        this.arena = arena;
         rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
                 timer, null);
         activeEntry = rootEntry;
@@ -72,14 +75,46 @@ class TraceEntryComponent {
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimerImpl asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
-        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
-                queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
+        TraceEntryImpl entry = null;
+        if (arena != null && asyncTimer == null && queryData == null) {
+            // async trace entries can be ended by another thread, even after the transaction
+            // completes, so they are never allocated from the arena
+            //
+            // query (and service call) entries are never allocated from the arena either, since
+            // plugins retain them and update them after the transaction completes (e.g. the jdbc
+            // plugin retains the last query entry of each statement in order to increment its row
+            // count while the result set is being read)
+            entry = arena.allocate(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer);
+        }
+        if (entry == null) {
+            entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier, queryData,
+                    queryExecutionCount, startTick, syncTimer, asyncTimer);
+        }
         tailEntry.setNextTraceEntry(entry);
         tailEntry = entry;
         activeEntry = entry;
         return entry;
     }
 
+    // the trace entry is not added to the linear list of trace entries, see SlowestTraceEntries
+    TraceEntryImpl pushEntryBeyondInOrderLimit(long startTick, Object messageSupplier,
+            TimerImpl syncTimer, @Nullable QueryData queryData, long queryExecutionCount) {
+        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
+                queryData, queryExecutionCount, startTick, syncTimer, null);
+        entry.setBeyondInOrderLimit(true);
+        activeEntry = entry;
+        return entry;
+    }
+
+    // this is used to add a completed trace entry that was beyond the in-order limit to the linear
+    // list of trace entries
+    void appendCompletedEntry(TraceEntryImpl entry) {
+        entry.setBeyondInOrderLimit(false);
+        tailEntry.setNextTraceEntry(entry);
+        tailEntry = entry;
+    }
+
     // typically pop() methods don't require the objects to pop, but for safety, the entry is
     // passed in just to make sure it is the one on top (and if not, then pop until it is found,
     // preventing any nasty bugs from a missed pop, e.g. an entry never being marked as complete)
@@ -115,6 +150,23 @@ class TraceEntryComponent {
         return tailEntry;
     }
 
+    boolean hasArena() {
+        return arena != null;
+    }
+
+    // called by the transaction thread once this thread context is completed
+    void releaseArena(boolean recycle) {
+        if (arena == null) {
+            return;
+        }
+        if (recycle) {
+            arena.recycle();
+        } else {
+            arena.release();
+        }
+        arena = null;
+    }
+
     boolean isEmpty() {
         return rootEntry == tailEntry;
     }
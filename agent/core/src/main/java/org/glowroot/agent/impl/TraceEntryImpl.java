@@ -56,14 +56,15 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     private static final Logger logger = LoggerFactory.getLogger(TraceEntryImpl.class);
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TraceEntryImpl parentTraceEntry;
-    private final @Nullable Object messageSupplier;
+    // these fields are only non-final so that trace entries can be reused, see TraceEntryArena
+    private ThreadContextImpl threadContext;
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable Object messageSupplier;
 
     // volatile so it can be set from another thread (needed for async trace entries)
     private volatile @Nullable ErrorMessage errorMessage;
 
-    private final long startTick;
+    private long startTick;
 
     // these fields are not volatile, so depends on memory barrier in Transaction for visibility
     private long revisedStartTick;
@@ -74,9 +75,13 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
     // this is for maintaining linear list of trace entries
     private @Nullable TraceEntryImpl nextTraceEntry;
 
+    // trace entries beyond the in-order limit are not in the linear list of trace entries, see
+    // SlowestTraceEntries
+    private boolean beyondInOrderLimit;
+
     // only null for trace entries added using addEntryEntry()
-    private final @Nullable TimerImpl syncTimer;
-    private final @Nullable AsyncTimerImpl asyncTimer;
+    private @Nullable TimerImpl syncTimer;
+    private @Nullable AsyncTimerImpl asyncTimer;
     // not volatile, so depends on memory barrier in Transaction for visibility
     private @Nullable ImmutableList<StackTraceElement> locationStackTrace;
 
@@ -116,6 +121,45 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         selfNestingLevel = 1;
     }
 
+    // re-initializes a trace entry from TraceEntryArena, same as the constructor
+    void reset(ThreadContextImpl threadContext, TraceEntryImpl parentTraceEntry,
+            Object messageSupplier, @Nullable QueryData queryData, long queryExecutionCount,
+            long startTick, TimerImpl syncTimer) {
+        resetQueryEntryBase(queryData, startTick, queryExecutionCount);
+        this.threadContext = threadContext;
+        this.parentTraceEntry = parentTraceEntry;
+        this.messageSupplier = messageSupplier;
+        this.startTick = startTick;
+        this.syncTimer = syncTimer;
+        asyncTimer = null;
+        errorMessage = null;
+        revisedStartTick = startTick;
+        selfNestingLevel = 1;
+        endTick = 0;
+        initialComplete = false;
+        nextTraceEntry = null;
+        beyondInOrderLimit = false;
+        locationStackTrace = null;
+        locationStackTraceThreshold = 0;
+        extendedTimer = null;
+    }
+
+    // called by TraceEntryArena when recycling, initialComplete is set so that any (unexpected)
+    // end*() calls on this trace entry are ignored until it is reset
+    @SuppressWarnings("nullness:assignment.type.incompatible")
+    void clearReferences() {
+        initialComplete = true;
+        resetQueryEntryBase(null, 0, -1);
+        threadContext = null;
+        parentTraceEntry = null;
+        messageSupplier = null;
+        syncTimer = null;
+        errorMessage = null;
+        nextTraceEntry = null;
+        locationStackTrace = null;
+        extendedTimer = null;
+    }
+
     @Override
     public @Nullable Object getMessageSupplier() {
         return messageSupplier;
@@ -364,6 +408,19 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         this.nextTraceEntry = nextTraceEntry;
     }
 
+    boolean isBeyondInOrderLimit() {
+        return beyondInOrderLimit;
+    }
+
+    void setBeyondInOrderLimit(boolean beyondInOrderLimit) {
+        this.beyondInOrderLimit = beyondInOrderLimit;
+    }
+
+    // only valid once the trace entry is completed
+    long getDurationNanos() {
+        return endTick - revisedStartTick;
+    }
+
     boolean isAuxThreadRoot() {
         // TODO this is a little hacky depending on timer name
         return syncTimer != null && syncTimer.getName().equals("auxiliary thread");
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// coordinates recycling of trace entries by the transaction thread (see TraceEntryArena) with
+// other threads that read the trace entries (partial trace capture and the live trace UI), which
+// can still be holding on to the transaction after it completes
+//
+// trace entries are only recycled when there are no readers, and readers cannot start once the
+// trace entries have been recycled
+class TraceEntryReadGuard {
+
+    private static final int RECYCLED = -1;
+
+    // number of readers, or RECYCLED
+    private final AtomicInteger state = new AtomicInteger();
+
+    // returns false if the trace entries have already been recycled, in which case the trace
+    // entries must not be read
+    boolean tryAcquire() {
+        while (true) {
+            int readers = state.get();
+            if (readers == RECYCLED) {
+                return false;
+            }
+            if (state.compareAndSet(readers, readers + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        state.decrementAndGet();
+    }
+
+    // called by the transaction thread, returns false if there are readers, in which case the
+    // trace entries must not be recycled (ownership of the trace entries is handed off to the
+    // transaction instead, see TraceEntryArena.release())
+    boolean tryRecycle() {
+        return state.compareAndSet(0, RECYCLED);
+    }
+}
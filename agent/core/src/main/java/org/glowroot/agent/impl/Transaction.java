@@ -24,6 +24,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -104,6 +106,13 @@ public class Transaction {
 
     private static final Random random = new Random();
 
+    private static final AtomicReferenceFieldUpdater<Transaction, PendingAuxThreadContext>
+            pendingAuxThreadContextsUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    Transaction.class, PendingAuxThreadContext.class, "pendingAuxThreadContexts");
+
+    private static final AtomicIntegerFieldUpdater<Transaction> auxThreadContextCountUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "auxThreadContextCount");
+
     private volatile @Nullable String traceId;
 
     private final long startTime;
@@ -155,6 +164,11 @@ public class Transaction {
     private volatile boolean partiallyStored;
 
     private long captureTime;
+    private boolean willStoreTrace;
+
+    // only needed when trace entries can be recycled, see TraceEntryArena
+    private final @Nullable TraceEntryReadGuard traceEntryReadGuard =
+            TraceEntryArena.ENABLED ? new TraceEntryReadGuard() : null;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
     // namely after each entry
@@ -172,10 +186,24 @@ public class Transaction {
     private volatile int entryLimitCounter;
     private volatile int extraErrorEntryLimitCounter;
 
+    // this is the same as maxTraceEntries unless retaining the slowest trace entries, in which
+    // case the remainder of maxTraceEntries is used for retaining the slowest trace entries
+    private final int inOrderEntryLimit;
+    private final @Nullable SlowestTraceEntries slowestTraceEntries;
+
     private volatile @Nullable AtomicInteger throwableFrameLimitCounter;
 
     private final ThreadContextImpl mainThreadContext;
 
+    // aux thread contexts are registered lock-free by pushing onto this stack, and are moved into
+    // auxThreadContexts (under the mainThreadContext lock) by the next reader, so that
+    // transactions which fan out to many aux threads do not serialize on the mainThreadContext
+    // lock when starting aux thread contexts
+    private volatile @Nullable PendingAuxThreadContext pendingAuxThreadContexts;
+    // number of aux thread contexts with trace entries (pending + auxThreadContexts +
+    // unmergeableAuxThreadContexts), used for lock-free limit check
+    private volatile int auxThreadContextCount;
+
     @GuardedBy("mainThreadContext")
     private @MonotonicNonNull List<ThreadContextImpl> auxThreadContexts;
     @GuardedBy("mainThreadContext")
@@ -232,6 +260,14 @@ public class Transaction {
         this.transactionRegistry = transactionRegistry;
         this.transactionService = transactionService;
         this.configService = configService;
+        if (SlowestTraceEntries.ENABLED && maxTraceEntries > 1) {
+            int slowestEntryLimit = maxTraceEntries / 2;
+            inOrderEntryLimit = maxTraceEntries - slowestEntryLimit;
+            slowestTraceEntries = new SlowestTraceEntries(slowestEntryLimit);
+        } else {
+            inOrderEntryLimit = maxTraceEntries;
+            slowestTraceEntries = null;
+        }
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, null,
                 messageSupplier, timerName, startTick, captureThreadStats, maxQueryAggregates,
                 maxServiceCallAggregates, threadAllocatedBytes, false, ticker, threadContextHolder,
@@ -336,6 +372,7 @@ public class Transaction {
 
     void mergeAuxThreadTimersInto(RootTimerCollector rootTimers) {
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return;
             }
@@ -364,6 +401,7 @@ public class Transaction {
     public long getTotalCpuNanos() {
         long totalCpuNanos = mainThreadContext.getTotalCpuNanos();
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return totalCpuNanos;
             }
@@ -381,6 +419,7 @@ public class Transaction {
 
     void mergeAuxThreadStatsInto(ThreadStatsCollector collector) {
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return;
             }
@@ -397,6 +436,7 @@ public class Transaction {
         memoryBarrierRead();
         mainThreadContext.mergeQueriesInto(collector);
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts != null) {
                 if (alreadyMergedAuxQueries != null) {
                     alreadyMergedAuxQueries.mergeQueriesInto(collector);
@@ -445,6 +485,7 @@ public class Transaction {
         memoryBarrierRead();
         mainThreadContext.mergeServiceCallsInto(collector);
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts != null) {
                 if (alreadyMergedAuxServiceCalls != null) {
                     alreadyMergedAuxServiceCalls.mergeServiceCallsInto(collector);
@@ -461,7 +502,17 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
-        return entryLimitCounter++ < maxTraceEntries;
+        return entryLimitCounter++ < inOrderEntryLimit;
+    }
+
+    boolean isRetainingSlowestEntries() {
+        return slowestTraceEntries != null;
+    }
+
+    void offerSlowestEntry(TraceEntryImpl entry) {
+        if (slowestTraceEntries != null) {
+            slowestTraceEntries.offer(entry, entry.getDurationNanos());
+        }
     }
 
     // this method has side effect of incrementing counter
@@ -488,6 +539,25 @@ public class Transaction {
 
     private void visitEntriesInternal(long captureTick, EntryVisitor entryVisitor,
             SharedQueryTextCollection sharedQueryTextCollection) throws Exception {
+        if (traceEntryReadGuard == null) {
+            visitEntriesGuarded(captureTick, entryVisitor, sharedQueryTextCollection);
+            return;
+        }
+        if (!traceEntryReadGuard.tryAcquire()) {
+            // the trace entries have already been recycled, which only happens after the
+            // transaction has completed and is not going to be stored, so there is nothing left to
+            // visit
+            return;
+        }
+        try {
+            visitEntriesGuarded(captureTick, entryVisitor, sharedQueryTextCollection);
+        } finally {
+            traceEntryReadGuard.release();
+        }
+    }
+
+    private void visitEntriesGuarded(long captureTick, EntryVisitor entryVisitor,
+            SharedQueryTextCollection sharedQueryTextCollection) throws Exception {
         memoryBarrierRead();
         ListMultimap<TraceEntryImpl, ThreadContextImpl> priorEntryChildThreadContextMap =
                 buildPriorEntryChildThreadContextMap();
@@ -495,6 +565,7 @@ public class Transaction {
         mainThreadContext.populateParentChildMap(parentChildMap, captureTick,
                 priorEntryChildThreadContextMap);
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts != null) {
                 for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
                     auxThreadContext.populateParentChildMap(parentChildMap, captureTick,
@@ -502,6 +573,9 @@ public class Transaction {
                 }
             }
         }
+        if (slowestTraceEntries != null) {
+            slowestTraceEntries.populateParentChildMap(parentChildMap);
+        }
         new ParentChildMapTrimmer(mainThreadContext.getRootEntry(), parentChildMap, captureTick)
                 .traverse();
         addProtobufChildEntries(mainThreadContext.getRootEntry(), parentChildMap, startTick,
@@ -576,6 +650,7 @@ public class Transaction {
 
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return ImmutableList.of();
             }
@@ -684,7 +759,56 @@ public class Transaction {
             long startTick, ThreadContextThreadLocal.Holder threadContextHolder,
             @Nullable ServletRequestInfo servletRequestInfo,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        if (completed) {
+            return null;
+        }
         ThreadContextImpl auxThreadContext;
+        if (parentTraceEntry != null && parentThreadContextPriorEntry != null
+                && auxThreadContextCountUpdater
+                        .incrementAndGet(this) <= TRANSACTION_AUX_THREAD_CONTEXT_LIMIT) {
+            auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
+                    parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE,
+                    auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
+                    maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, false,
+                    ticker, threadContextHolder, servletRequestInfo);
+            pushPendingAuxThreadContext(auxThreadContext);
+            // completion handshake with end(): end() sets completed before draining the pending
+            // aux thread contexts, and this pushes the aux thread context before re-checking
+            // completed, so either end() sees (and detaches) this aux thread context, or this sees
+            // completed (or both)
+            if (completed) {
+                synchronized (mainThreadContext) {
+                    drainPendingAuxThreadContexts();
+                    removeAuxThreadContext(auxThreadContext);
+                }
+                return null;
+            }
+        } else {
+            if (parentTraceEntry != null && parentThreadContextPriorEntry != null) {
+                auxThreadContextCountUpdater.decrementAndGet(this);
+            }
+            auxThreadContext = startAuxThreadContextUnderLock(parentTraceEntry,
+                    parentThreadContextPriorEntry, auxTimerName, startTick, threadContextHolder,
+                    servletRequestInfo, threadAllocatedBytes);
+            if (auxThreadContext == null) {
+                return null;
+            }
+        }
+        // see counterpart to this synchronization (and explanation) in ThreadContextImpl.detach()
+        synchronized (threadContextHolder) {
+            threadContextHolder.set(auxThreadContext);
+        }
+        return auxThreadContext;
+    }
+
+    // this is only used once the aux thread context limit is reached (or without parent trace
+    // entry), since it needs to (potentially) merge existing aux thread contexts
+    private @Nullable ThreadContextImpl startAuxThreadContextUnderLock(
+            @Nullable TraceEntryImpl parentTraceEntry,
+            @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
+            long startTick, ThreadContextThreadLocal.Holder threadContextHolder,
+            @Nullable ServletRequestInfo servletRequestInfo,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
         synchronized (mainThreadContext) {
             // check completed and add aux thread context inside synchronized block to avoid race
             // condition with setting completed and detaching incomplete aux thread contexts, see
@@ -692,6 +816,7 @@ public class Transaction {
             if (completed) {
                 return null;
             }
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts == null) {
                 auxThreadContexts = Lists.newArrayList();
             }
@@ -700,36 +825,40 @@ public class Transaction {
             // starts returning false
             if (allowAnotherAuxThreadContextWithTraceEntries() && parentTraceEntry != null
                     && parentThreadContextPriorEntry != null) {
-                auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
+                ThreadContextImpl auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                         parentThreadContextPriorEntry, AuxThreadRootMessageSupplier.INSTANCE,
                         auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
                         maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, false,
                         ticker, threadContextHolder, servletRequestInfo);
                 auxThreadContexts.add(auxThreadContext);
+                auxThreadContextCountUpdater.incrementAndGet(this);
+                return auxThreadContext;
             } else {
-                auxThreadContext = new ThreadContextImpl(this, mainThreadContext.getRootEntry(),
-                        mainThreadContext.getTailEntry(), AuxThreadRootMessageSupplier.INSTANCE,
-                        auxTimerName, startTick, mainThreadContext.getCaptureThreadStats(),
-                        maxQueryAggregates, maxServiceCallAggregates, threadAllocatedBytes, true,
-                        ticker, threadContextHolder, servletRequestInfo);
+                ThreadContextImpl auxThreadContext = new ThreadContextImpl(this,
+                        mainThreadContext.getRootEntry(), mainThreadContext.getTailEntry(),
+                        AuxThreadRootMessageSupplier.INSTANCE, auxTimerName, startTick,
+                        mainThreadContext.getCaptureThreadStats(), maxQueryAggregates,
+                        maxServiceCallAggregates, threadAllocatedBytes, true, ticker,
+                        threadContextHolder, servletRequestInfo);
                 if (unmergedLimitExceededAuxThreadContexts == null) {
                     unmergedLimitExceededAuxThreadContexts = Sets.newHashSet();
                 }
                 unmergedLimitExceededAuxThreadContexts.add(auxThreadContext);
+                return auxThreadContext;
             }
         }
-        // see counterpart to this synchronization (and explanation) in ThreadContextImpl.detach()
-        synchronized (threadContextHolder) {
-            threadContextHolder.set(auxThreadContext);
-        }
-        return auxThreadContext;
     }
 
     void mergeLimitExceededAuxThreadContext(ThreadContextImpl auxThreadContext) {
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             checkNotNull(unmergedLimitExceededAuxThreadContexts).remove(auxThreadContext);
             if (auxThreadContext.hasTraceEntries()) {
-                checkNotNull(auxThreadContexts).add(auxThreadContext);
+                if (auxThreadContexts == null) {
+                    auxThreadContexts = Lists.newArrayList();
+                }
+                auxThreadContexts.add(auxThreadContext);
+                auxThreadContextCountUpdater.incrementAndGet(this);
                 return;
             }
             initAlreadyMergedAuxComponentsIfNeeded();
@@ -810,6 +939,7 @@ public class Transaction {
             // to avoid race condition with adding new aux thread contexts, see synchronized block
             // in startAuxThreadContext()
             completed = true;
+            drainPendingAuxThreadContexts();
             detachIncompleteAuxThreadContexts();
         }
         if (immedateTraceStoreRunnable != null) {
@@ -824,6 +954,29 @@ public class Transaction {
     // called by the transaction thread
     void onCompleteWillStoreTrace(long captureTime) {
         this.captureTime = captureTime;
+        willStoreTrace = true;
+    }
+
+    // called by the transaction thread, see TraceEntryArena
+    //
+    // if this returns true, the trace entries must be recycled, since readers are no longer able
+    // to read them
+    boolean tryRecycleTraceEntries() {
+        if (traceEntryReadGuard == null || !completed || async || willStoreTrace
+                || partiallyStored) {
+            return false;
+        }
+        synchronized (mainThreadContext) {
+            // aux thread contexts reference trace entries from their parent thread context, and
+            // can outlive the transaction
+            drainPendingAuxThreadContexts();
+            if (auxThreadContexts != null || unmergeableAuxThreadContexts != null
+                    || unmergedLimitExceededAuxThreadContexts != null) {
+                return false;
+            }
+        }
+        // partial trace capture and the live trace UI can still be reading the trace entries
+        return traceEntryReadGuard.tryRecycle();
     }
 
     long getCaptureTime() {
@@ -905,6 +1058,7 @@ public class Transaction {
         for (ThreadContextImpl mergeableAuxThreadContext : mergeableAuxThreadContexts) {
             mergeAux(mergeableAuxThreadContext);
         }
+        auxThreadContextCountUpdater.addAndGet(this, -mergeableAuxThreadContexts.size());
         if (this.unmergeableAuxThreadContexts == null) {
             this.unmergeableAuxThreadContexts = Lists.newArrayList(unmergeableAuxThreadContexts);
         } else {
@@ -914,6 +1068,45 @@ public class Transaction {
         return true;
     }
 
+    private void pushPendingAuxThreadContext(ThreadContextImpl auxThreadContext) {
+        while (true) {
+            PendingAuxThreadContext head = pendingAuxThreadContexts;
+            if (pendingAuxThreadContextsUpdater.compareAndSet(this, head,
+                    new PendingAuxThreadContext(auxThreadContext, head))) {
+                return;
+            }
+        }
+    }
+
+    @GuardedBy("mainThreadContext")
+    private void drainPendingAuxThreadContexts() {
+        if (pendingAuxThreadContexts == null) {
+            return;
+        }
+        PendingAuxThreadContext head = pendingAuxThreadContextsUpdater.getAndSet(this, null);
+        if (head == null) {
+            return;
+        }
+        if (auxThreadContexts == null) {
+            auxThreadContexts = Lists.newArrayList();
+        }
+        // pending aux thread contexts are in reverse order of registration
+        List<ThreadContextImpl> drained = Lists.newArrayList();
+        for (PendingAuxThreadContext curr = head; curr != null; curr = curr.next) {
+            drained.add(curr.auxThreadContext);
+        }
+        auxThreadContexts.addAll(Lists.reverse(drained));
+    }
+
+    @GuardedBy("mainThreadContext")
+    private void removeAuxThreadContext(ThreadContextImpl auxThreadContext) {
+        if (auxThreadContexts != null && auxThreadContexts.remove(auxThreadContext)
+                || unmergeableAuxThreadContexts != null
+                        && unmergeableAuxThreadContexts.remove(auxThreadContext)) {
+            auxThreadContextCountUpdater.decrementAndGet(this);
+        }
+    }
+
     @GuardedBy("mainThreadContext")
     @EnsuresNonNull({"alreadyMergedAuxThreadTimers", "alreadyMergedAuxThreadStats",
             "alreadyMergedAuxQueries", "alreadyMergedAuxServiceCalls"})
@@ -984,6 +1177,7 @@ public class Transaction {
 
     private ListMultimap<TraceEntryImpl, ThreadContextImpl> buildPriorEntryChildThreadContextMap() {
         synchronized (mainThreadContext) {
+            drainPendingAuxThreadContexts();
             if (auxThreadContexts == null) {
                 return ImmutableListMultimap.of();
             }
@@ -1074,6 +1268,18 @@ public class Transaction {
         void mergeThreadStats(ThreadStats threadStats);
     }
 
+    private static class PendingAuxThreadContext {
+
+        private final ThreadContextImpl auxThreadContext;
+        private final @Nullable PendingAuxThreadContext next;
+
+        private PendingAuxThreadContext(ThreadContextImpl auxThreadContext,
+                @Nullable PendingAuxThreadContext next) {
+            this.auxThreadContext = auxThreadContext;
+            this.next = next;
+        }
+    }
+
     private static class AuxThreadRootMessageSupplier extends MessageSupplier {
 
         private static final AuxThreadRootMessageSupplier INSTANCE =
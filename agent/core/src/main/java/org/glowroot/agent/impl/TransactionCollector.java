@@ -18,8 +18,10 @@ package org.glowroot.agent.impl;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableMap;
@@ -51,12 +53,31 @@ public class TransactionCollector {
     // back pressure on trace collection
     private static final int PENDING_LIMIT = 100;
 
-    private final ExecutorService dedicatedExecutor;
+    // number of threads used to store slow and error traces
+    private static final int STORAGE_THREADS =
+            Math.max(Integer.getInteger("glowroot.trace.storage.threads", 1), 1);
+
+    // the executor queue is bounded by PENDING_LIMIT (except for transactions that were already
+    // partially stored, see below)
+    private final ThreadPoolExecutor dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
+    // concurrent hash set so that adding and removing pending transactions is constant time
+    // (these are performed on the transaction threads, and there can be many pending transactions
+    // exactly at the time when many transactions are slow)
+    private final Set<Transaction> pendingTransactions = Sets.newConcurrentHashSet();
+    // separate counter since ConcurrentHashMap.size() is not constant time
+    private final AtomicInteger pendingTransactionCount = new AtomicInteger();
+
+    // used to preserve ordering of traces with the same priority
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong storedTraceCount = new AtomicLong();
+    private final AtomicLong droppedTraceCount = new AtomicLong();
+    private final AtomicLong sampledOutTraceCount = new AtomicLong();
+    private final AtomicLong totalStorageNanos = new AtomicLong();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
@@ -72,11 +93,17 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
-        dedicatedExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
+        dedicatedExecutor = new ThreadPoolExecutor(STORAGE_THREADS, STORAGE_THREADS, 0,
+                MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                ThreadFactories.create(STORAGE_THREADS == 1 ? "Glowroot-Trace-Collector"
+                        : "Glowroot-Trace-Collector-%d"));
         configService.addConfigListener(new UpdateSlowThresholds(configService));
     }
 
+    private @Nullable AdaptiveSlowThresholds getAdaptiveSlowThresholds() {
+        return aggregator.getAdaptiveSlowThresholds();
+    }
+
     public boolean shouldStoreSlow(Transaction transaction) {
         if (transaction.isPartiallyStored()) {
             return true;
@@ -97,14 +124,33 @@ public class TransactionCollector {
                 if (slowThresholdNanos != null) {
                     return durationNanos >= slowThresholdNanos;
                 }
-                slowThresholdNanos = slowThresholdForType.defaultThresholdNanos();
+            }
+        }
+        // check if there is a matching transaction type specific slow threshold, otherwise fall back
+        // to default slow trace threshold
+        long configuredSlowThresholdNanos = defaultSlowThresholdNanos;
+        if (!slowThresholds.isEmpty()) {
+            SlowThresholdsForType slowThresholdForType =
+                    slowThresholds.get(transaction.getTransactionType());
+            if (slowThresholdForType != null) {
+                Long slowThresholdNanos = slowThresholdForType.defaultThresholdNanos();
                 if (slowThresholdNanos != null) {
-                    return durationNanos >= slowThresholdNanos;
+                    configuredSlowThresholdNanos = slowThresholdNanos;
                 }
             }
         }
-        // fall back to default slow trace threshold
-        return durationNanos >= defaultSlowThresholdNanos;
+        // check if there is an adaptive slow threshold for the transaction type / transaction name
+        // (which can be lower than the configured slow threshold, so that a regression in a fast
+        // transaction name is captured, see AdaptiveSlowThresholds)
+        AdaptiveSlowThresholds adaptiveSlowThresholds = getAdaptiveSlowThresholds();
+        if (adaptiveSlowThresholds != null) {
+            long slowThresholdNanos = adaptiveSlowThresholds.getThresholdNanos(
+                    transaction.getTransactionType(), transaction.getTransactionName());
+            if (slowThresholdNanos != -1) {
+                return durationNanos >= slowThresholdNanos;
+            }
+        }
+        return durationNanos >= configuredSlowThresholdNanos;
     }
 
     public boolean shouldStoreError(Transaction transaction) {
@@ -115,6 +161,27 @@ public class TransactionCollector {
         return pendingTransactions;
     }
 
+    public int getPendingTraceCount() {
+        return pendingTransactionCount.get();
+    }
+
+    public long getStoredTraceCount() {
+        return storedTraceCount.get();
+    }
+
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    // number of slow traces not stored because of the adaptive slow trace rate limit
+    public long getSampledOutTraceCount() {
+        return sampledOutTraceCount.get();
+    }
+
+    public long getTotalStorageNanos() {
+        return totalStorageNanos.get();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         dedicatedExecutor.shutdown();
@@ -129,37 +196,34 @@ public class TransactionCollector {
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        boolean error = shouldStoreError(transaction);
+        if (!slow && !error) {
+            return;
+        }
+        AdaptiveSlowThresholds adaptiveSlowThresholds = getAdaptiveSlowThresholds();
+        if (adaptiveSlowThresholds != null && !error && !transaction.isPartiallyStored()
+                && !adaptiveSlowThresholds.tryAcquire(transaction.getTransactionType(),
+                        transaction.getTransactionName())) {
+            sampledOutTraceCount.incrementAndGet();
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
+        if (pendingTransactionCount.get() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT);
+            droppedTraceCount.incrementAndGet();
             return;
         }
         pendingTransactions.add(transaction);
+        pendingTransactionCount.incrementAndGet();
 
         // this need to be called inside the transaction thread
         transaction.onCompleteWillStoreTrace(captureTime);
 
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
-        dedicatedExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    TraceReader traceReader =
-                            TraceCreator.createTraceReaderForCompleted(transaction, slow);
-                    collector.collectTrace(traceReader);
-                } catch (Throwable t) {
-                    logger.error(t.getMessage(), t);
-                } finally {
-                    pendingTransactions.remove(transaction);
-                }
-            }
-        });
+        dedicatedExecutor.execute(new TraceStorageTask(transaction, slow));
     }
 
     // no need to throttle partial trace storage since throttling is handled upstream by using a
@@ -178,6 +242,54 @@ public class TransactionCollector {
         }
     }
 
+    // traces that were already partially stored are stored first (since the partial trace is
+    // already visible), then error traces, then slow traces, and otherwise in arrival order
+    private class TraceStorageTask implements Runnable, Comparable<TraceStorageTask> {
+
+        private final Transaction transaction;
+        private final boolean slow;
+        private final int priority;
+        private final long sequence;
+
+        private TraceStorageTask(Transaction transaction, boolean slow) {
+            this.transaction = transaction;
+            this.slow = slow;
+            if (transaction.isPartiallyStored()) {
+                priority = 0;
+            } else if (transaction.getErrorMessage() != null) {
+                priority = 1;
+            } else {
+                priority = 2;
+            }
+            sequence = TransactionCollector.this.sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            long startTick = ticker.read();
+            try {
+                TraceReader traceReader =
+                        TraceCreator.createTraceReaderForCompleted(transaction, slow);
+                collector.collectTrace(traceReader);
+                totalStorageNanos.addAndGet(ticker.read() - startTick);
+                storedTraceCount.incrementAndGet();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            } finally {
+                pendingTransactions.remove(transaction);
+                pendingTransactionCount.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(TraceStorageTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+
     private class UpdateSlowThresholds implements ConfigListener {
 
         private final ConfigService configService;
@@ -72,6 +72,7 @@ import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -153,9 +154,15 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        if (instrumentation != null && Boolean.getBoolean("glowroot.weaving.cache")) {
+            weavingCache = new WeavingCache(new File(tmpDir, "weaving-cache"),
+                    adviceCache.getAdvisorsSupplier().get(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes(), analyzedWorld);
+        }
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                timerNameCache, configService, weavingCache);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -288,6 +295,10 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        lazyPlatformMBeanServer.lazyRegisterMBean(new TraceCollectorStats(transactionCollector),
+                "org.glowroot:type=TraceCollector");
+        lazyPlatformMBeanServer.lazyRegisterMBean(new WeavingStats(weaver),
+                "org.glowroot:type=Weaving");
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 instrumentation, clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
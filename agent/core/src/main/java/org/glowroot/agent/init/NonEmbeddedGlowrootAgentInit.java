@@ -171,7 +171,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
     public void resetConfig() throws Exception {
         AgentModule agentModule = checkNotNull(this.agentModule);
         agentModule.getConfigService().resetConfig();
-        agentModule.getLiveWeavingService().reweave("");
+        agentModule.getLiveWeavingService().reweaveAndWait();
     }
 
     @Override
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import org.glowroot.agent.impl.TransactionCollector;
+import org.glowroot.agent.model.ThreadStatsComponent;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+class TraceCollectorStats implements TraceCollectorStatsMXBean {
+
+    private final TransactionCollector transactionCollector;
+
+    TraceCollectorStats(TransactionCollector transactionCollector) {
+        this.transactionCollector = transactionCollector;
+    }
+
+    @Override
+    public int getPendingTraces() {
+        return transactionCollector.getPendingTraceCount();
+    }
+
+    @Override
+    public long getStoredTraces() {
+        return transactionCollector.getStoredTraceCount();
+    }
+
+    @Override
+    public long getDroppedTraces() {
+        return transactionCollector.getDroppedTraceCount();
+    }
+
+    @Override
+    public long getSampledOutTraces() {
+        return transactionCollector.getSampledOutTraceCount();
+    }
+
+    @Override
+    public double getAverageStorageMillis() {
+        long storedTraces = transactionCollector.getStoredTraceCount();
+        if (storedTraces == 0) {
+            return 0;
+        }
+        return transactionCollector.getTotalStorageNanos() / (double) storedTraces
+                / NANOSECONDS.convert(1, MILLISECONDS);
+    }
+
+    @Override
+    public long getThreadStatsSkippedThreadInfoCalls() {
+        // each deferred thread context skips ThreadMXBean.getThreadInfo() at start, and also at
+        // completion unless it was sampled by the stack trace collector
+        return 2 * ThreadStatsComponent.getDeferredCount()
+                - ThreadStatsComponent.getDeferredCaptureCount();
+    }
+
+    @Override
+    public double getThreadStatsEstimatedSavedMillis() {
+        long deferredCaptures = ThreadStatsComponent.getDeferredCaptureCount();
+        if (deferredCaptures == 0) {
+            return 0;
+        }
+        // estimated based on the measured cost of the ThreadMXBean.getThreadInfo() calls that were
+        // still needed for deferred capture
+        return getThreadStatsSkippedThreadInfoCalls()
+                * ThreadStatsComponent.getDeferredCaptureNanos() / (double) deferredCaptures
+                / NANOSECONDS.convert(1, MILLISECONDS);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+import org.glowroot.agent.weaving.Weaver;
+
+class WeavingStats implements WeavingStatsMXBean {
+
+    private final Weaver weaver;
+
+    WeavingStats(Weaver weaver) {
+        this.weaver = weaver;
+    }
+
+    @Override
+    public long getPrefilterRejectedClasses() {
+        return weaver.getPrefilterRejectedClassCount();
+    }
+
+    @Override
+    public long getAnalyzedClasses() {
+        return weaver.getAnalyzedClassCount();
+    }
+
+    @Override
+    public long getWovenClasses() {
+        return weaver.getWovenClassCount();
+    }
+}
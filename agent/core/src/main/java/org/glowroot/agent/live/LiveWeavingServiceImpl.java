@@ -20,9 +20,16 @@ import java.lang.reflect.Modifier;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -34,22 +41,41 @@ import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.InstrumentationConfig;
 import org.glowroot.agent.live.ClasspathCache.UiAnalyzedMethod;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.weaving.AdviceCache;
 import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.common.live.ImmutableReweaveResult;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
 
 public class LiveWeavingServiceImpl implements LiveWeavingService {
 
+    private static final Logger logger = LoggerFactory.getLogger(LiveWeavingServiceImpl.class);
+
+    // re-transforming a large number of classes in a single call blocks application threads (e.g.
+    // at safepoints and on class loading locks) for the entire duration, so re-transformation is
+    // broken up into batches with a pause in between
+    //
+    // when there is more than one batch, the batches are re-transformed in the background (unless
+    // the caller waits for completion), and progress is reported via getGlobalMeta()
+    private static final int REWEAVE_BATCH_SIZE =
+            Integer.getInteger("glowroot.reweave.batchSize", 100);
+    private static final long REWEAVE_BATCH_PAUSE_MILLIS =
+            Long.getLong("glowroot.reweave.batchPauseMillis", 50);
+
     private static final String THE_SINGLE_KEY = "THE_SINGLE_KEY";
     private static final Splitter splitter = Splitter.on(' ').omitEmptyStrings();
 
@@ -59,6 +85,18 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     private final AdviceCache adviceCache;
     private final boolean jvmRetransformClassesSupported;
 
+    // single thread is only created on first background reweave, and only lives while there are
+    // background reweaves (see allowCoreThreadTimeOut below)
+    private final ThreadPoolExecutor reweaveExecutor;
+
+    // non-null while batches are being re-transformed in the background
+    private volatile @Nullable ReweaveProgress reweaveProgress;
+    @GuardedBy("this")
+    private @Nullable Future<?> reweaveFuture;
+    // a reweave was requested while a background reweave was in progress
+    @GuardedBy("this")
+    private boolean reweavePending;
+
     // hopefully can simplify someday https://github.com/google/guava/issues/872
     private final LoadingCache<String, ClasspathCache> classpathCache = CacheBuilder.newBuilder()
             .softValues()
@@ -78,14 +116,22 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         this.configService = configService;
         this.adviceCache = adviceCache;
         this.jvmRetransformClassesSupported = jvmRetransformClassesSupported;
+        reweaveExecutor = new ThreadPoolExecutor(1, 1, 60, SECONDS,
+                new LinkedBlockingQueue<Runnable>(), ThreadFactories.create("Glowroot-Reweave"));
+        reweaveExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
     public GlobalMeta getGlobalMeta(String agentId) {
-        return GlobalMeta.newBuilder()
+        GlobalMeta.Builder builder = GlobalMeta.newBuilder()
                 .setJvmOutOfSync(adviceCache.isOutOfSync(configService.getInstrumentationConfigs()))
-                .setJvmRetransformClassesSupported(jvmRetransformClassesSupported)
-                .build();
+                .setJvmRetransformClassesSupported(jvmRetransformClassesSupported);
+        ReweaveProgress reweaveProgress = this.reweaveProgress;
+        if (reweaveProgress != null) {
+            builder.setReweaveBatchCount(reweaveProgress.batchCount)
+                    .setReweaveCompletedBatchCount(reweaveProgress.completedBatchCount.get());
+        }
+        return builder.build();
     }
 
     @Override
@@ -150,17 +196,31 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         return methodSignatures;
     }
 
+    // re-transforms in the background when there is more than one batch
     @Override
-    public int reweave(String agentId) throws Exception {
+    public ReweaveResult reweave(String agentId) throws Exception {
+        return reweave(false);
+    }
+
+    public ReweaveResult reweaveAndWait() throws Exception {
+        return reweave(true);
+    }
+
+    private ReweaveResult reweave(boolean wait) throws Exception {
         if (instrumentation == null) {
             // this method is called from GlowrootAgentInit.resetConfig() by tests when
             // instrumentation is null
-            return 0;
+            return ImmutableReweaveResult.builder()
+                    .classUpdateCount(0)
+                    .batchCount(0)
+                    .durationMillis(0)
+                    .inProgress(false)
+                    .build();
         }
         // this command is filtered out of the UI when retransform classes is not supported
         checkState(instrumentation.isRetransformClassesSupported(),
                 "Retransform classes is not supported");
-        return reweaveInternal();
+        return reweaveInternal(wait);
     }
 
     private List<UiAnalyzedMethod> getAnalyzedMethods(String className, String methodName) {
@@ -180,7 +240,41 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     }
 
     @RequiresNonNull("instrumentation")
-    private int reweaveInternal() throws Exception {
+    private ReweaveResult reweaveInternal(boolean wait) throws Exception {
+        while (true) {
+            Future<?> priorReweaveFuture;
+            synchronized (this) {
+                if (reweaveFuture == null || reweaveFuture.isDone()) {
+                    reweaveFuture = null;
+                    return reweaveNow(wait);
+                }
+                if (!wait) {
+                    // instead of blocking the (e.g. UI) request thread until the prior background
+                    // reweave completes, a single follow-up reweave is run in the background once
+                    // it completes (see completeBackgroundReweave())
+                    reweavePending = true;
+                    ReweaveProgress reweaveProgress = this.reweaveProgress;
+                    return ImmutableReweaveResult.builder()
+                            .classUpdateCount(0)
+                            .batchCount(reweaveProgress == null ? 0 : reweaveProgress.batchCount)
+                            .durationMillis(0)
+                            .inProgress(true)
+                            .build();
+                }
+                priorReweaveFuture = reweaveFuture;
+            }
+            // the lock is not held while waiting, since completing the background reweave needs it
+            priorReweaveFuture.get();
+        }
+    }
+
+    // must be called while holding the lock, to prevent concurrent (batched) reweaves from
+    // interleaving, and the prior background reweave must be complete, since it must not interleave
+    // with updating the advisors and removing classes from AnalyzedWorld below
+    @GuardedBy("this")
+    @RequiresNonNull("instrumentation")
+    private ReweaveResult reweaveNow(boolean wait) throws Exception {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
         List<InstrumentationConfig> configs = configService.getInstrumentationConfigs();
         adviceCache.updateAdvisors(configs);
         Set<String> classNames = Sets.newHashSet();
@@ -191,19 +285,92 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
             }
         }
         Set<Class<?>> classes = Sets.newHashSet();
-        List<Class<?>> possibleNewReweavableClasses = getExistingSubClasses(classNames);
+        final List<Class<?>> possibleNewReweavableClasses = getExistingSubClasses(classNames);
         // need to remove these classes from AnalyzedWorld, otherwise if a subclass and its parent
         // class are both in the list and the subclass is re-transformed first, it will use the
         // old cached AnalyzedClass for its parent which will have the old AnalyzedMethod advisors
-        List<Class<?>> existingReweavableClasses =
+        final List<Class<?>> existingReweavableClasses =
                 analyzedWorld.getClassesWithReweavableAdvice(true);
         analyzedWorld.removeClasses(possibleNewReweavableClasses);
         classes.addAll(existingReweavableClasses);
         classes.addAll(possibleNewReweavableClasses);
         if (classes.isEmpty()) {
-            return 0;
+            return ImmutableReweaveResult.builder()
+                    .classUpdateCount(0)
+                    .batchCount(0)
+                    .durationMillis(stopwatch.elapsed(MILLISECONDS))
+                    .inProgress(false)
+                    .build();
+        }
+        final List<List<Class<?>>> batches = Lists.partition(Lists.newArrayList(classes),
+                Math.max(REWEAVE_BATCH_SIZE, 1));
+        if (wait || batches.size() == 1) {
+            retransformClassesInBatches(instrumentation, batches, null);
+            return ImmutableReweaveResult.builder()
+                    .classUpdateCount(getClassUpdateCount(existingReweavableClasses,
+                            possibleNewReweavableClasses))
+                    .batchCount(batches.size())
+                    .durationMillis(stopwatch.elapsed(MILLISECONDS))
+                    .inProgress(false)
+                    .build();
         }
-        instrumentation.retransformClasses(Iterables.toArray(classes, Class.class));
+        final Instrumentation instrumentation = this.instrumentation;
+        final ReweaveProgress reweaveProgress = new ReweaveProgress(batches.size());
+        this.reweaveProgress = reweaveProgress;
+        reweaveFuture = reweaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    retransformClassesInBatches(instrumentation, batches, reweaveProgress);
+                    logger.debug("re-transformed {} classes in {} batches ({} milliseconds)",
+                            getClassUpdateCount(existingReweavableClasses,
+                                    possibleNewReweavableClasses),
+                            batches.size(), stopwatch.elapsed(MILLISECONDS));
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    LiveWeavingServiceImpl.this.reweaveProgress = null;
+                    completeBackgroundReweave();
+                }
+            }
+        });
+        // the number of classes that actually end up with updated advice is only known once all
+        // batches are complete, so the number of classes being re-transformed is returned instead
+        return ImmutableReweaveResult.builder()
+                .classUpdateCount(classes.size())
+                .batchCount(batches.size())
+                .durationMillis(stopwatch.elapsed(MILLISECONDS))
+                .inProgress(true)
+                .build();
+    }
+
+    private synchronized void completeBackgroundReweave() {
+        if (!reweavePending) {
+            return;
+        }
+        reweavePending = false;
+        // the follow-up reweave is submitted to the same (single thread) executor, so it starts
+        // once the current background reweave completes
+        reweaveFuture = reweaveExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runPendingReweave();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+    }
+
+    private synchronized void runPendingReweave() throws Exception {
+        if (instrumentation != null) {
+            reweaveNow(false);
+        }
+    }
+
+    private int getClassUpdateCount(List<Class<?>> existingReweavableClasses,
+            List<Class<?>> possibleNewReweavableClasses) {
         List<Class<?>> updatedReweavableClasses =
                 analyzedWorld.getClassesWithReweavableAdvice(false);
         // all existing reweavable classes were woven
@@ -218,6 +385,28 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         return count;
     }
 
+    private static void retransformClassesInBatches(Instrumentation instrumentation,
+            List<List<Class<?>>> batches, @Nullable ReweaveProgress reweaveProgress)
+            throws Exception {
+        int retransformedCount = 0;
+        int classCount = 0;
+        for (List<Class<?>> batch : batches) {
+            classCount += batch.size();
+        }
+        for (int i = 0; i < batches.size(); i++) {
+            if (i > 0 && REWEAVE_BATCH_PAUSE_MILLIS > 0) {
+                MILLISECONDS.sleep(REWEAVE_BATCH_PAUSE_MILLIS);
+            }
+            List<Class<?>> batch = batches.get(i);
+            instrumentation.retransformClasses(Iterables.toArray(batch, Class.class));
+            retransformedCount += batch.size();
+            if (reweaveProgress != null) {
+                reweaveProgress.completedBatchCount.incrementAndGet();
+            }
+            logger.debug("re-transformed {} of {} classes", retransformedCount, classCount);
+        }
+    }
+
     @RequiresNonNull("instrumentation")
     private List<Class<?>> getExistingSubClasses(Set<String> classNames) {
         List<Class<?>> classes = Lists.newArrayList();
@@ -245,6 +434,16 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
         return false;
     }
 
+    private static class ReweaveProgress {
+
+        private final int batchCount;
+        private final AtomicInteger completedBatchCount = new AtomicInteger();
+
+        private ReweaveProgress(int batchCount) {
+            this.batchCount = batchCount;
+        }
+    }
+
     @VisibleForTesting
     static class UiAnalyzedMethodOrdering extends Ordering<UiAnalyzedMethod> {
 
@@ -24,17 +24,24 @@ import javax.annotation.concurrent.GuardedBy;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.common.model.StackFrameCache;
 
 public class ThreadProfile {
 
     private final int maxSamples;
     private final Object lock = new Object();
+    // unmerged stack traces are stored as StackFrameCache frame ids, which are more compact than
+    // stack trace elements and faster to merge
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private final List<int[]> unmergedStackTraces = Lists.newArrayList();
     @GuardedBy("lock")
     private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    // the StackFrameCache generation that issued the unmerged frame ids
+    @GuardedBy("lock")
+    private @Nullable StackFrameCache unmergedFrameCache;
     @GuardedBy("lock")
     private @MonotonicNonNull MutableProfile profile;
     @GuardedBy("lock")
@@ -62,6 +69,7 @@ public class ThreadProfile {
                 mergeTheUnmergedInto(profile);
                 unmergedStackTraces.clear();
                 unmergedStackTraceThreadStates.clear();
+                unmergedFrameCache = null;
             }
             return profile.toProto();
         }
@@ -88,10 +96,14 @@ public class ThreadProfile {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
             Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
+            StackFrameCache frameCache = StackFrameCache.getCurrent();
+            int[] frameIds = frameCache.getFrameIds(stackTrace);
+            if (profile == null && frameIds != null
+                    && (unmergedFrameCache == null || unmergedFrameCache == frameCache)) {
+                unmergedFrameCache = frameCache;
+                unmergedStackTraces.add(frameIds);
                 unmergedStackTraceThreadStates.add(threadState);
                 if (unmergedStackTraces.size() >= 10) {
                     // merged stack tree takes up less memory
@@ -99,19 +111,36 @@ public class ThreadProfile {
                     mergeTheUnmergedInto(profile);
                     unmergedStackTraces.clear();
                     unmergedStackTraceThreadStates.clear();
+                    unmergedFrameCache = null;
                 }
+                return;
+            }
+            if (profile == null) {
+                profile = new MutableProfile();
+                mergeTheUnmergedInto(profile);
+                unmergedStackTraces.clear();
+                unmergedStackTraceThreadStates.clear();
+                unmergedFrameCache = null;
+            }
+            if (frameIds == null) {
+                // frame cache generation is full
+                profile.merge(Arrays.asList(stackTrace), threadState);
             } else {
-                profile.merge(stackTrace, threadState);
+                profile.merge(frameIds, frameCache, threadState);
             }
         }
     }
 
     @GuardedBy("lock")
     private void mergeTheUnmergedInto(MutableProfile profile) {
+        StackFrameCache frameCache = unmergedFrameCache;
+        if (frameCache == null) {
+            return;
+        }
         for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
+            int[] frameIds = unmergedStackTraces.get(i);
             Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+            profile.merge(frameIds, frameCache, threadState);
         }
     }
 }
@@ -27,13 +27,21 @@ public class ThreadStats {
     private final long totalBlockedMillis; // not converting to nanos here for micro-opt purposes
     private final long totalWaitedMillis; // not converting to nanos here for micro-opt purposes
     private final long totalAllocatedBytes;
+    // blocked and waited time only cover the time since the first stack trace sample
+    private final boolean blockedWaitedPartial;
 
     public ThreadStats(long totalCpuNanos, long totalBlockedMillis, long totalWaitedMillis,
             long totalAllocatedBytes) {
+        this(totalCpuNanos, totalBlockedMillis, totalWaitedMillis, totalAllocatedBytes, false);
+    }
+
+    public ThreadStats(long totalCpuNanos, long totalBlockedMillis, long totalWaitedMillis,
+            long totalAllocatedBytes, boolean blockedWaitedPartial) {
         this.totalCpuNanos = totalCpuNanos;
         this.totalBlockedMillis = totalBlockedMillis;
         this.totalWaitedMillis = totalWaitedMillis;
         this.totalAllocatedBytes = totalAllocatedBytes;
+        this.blockedWaitedPartial = blockedWaitedPartial;
     }
 
     public long getTotalCpuNanos() {
@@ -51,4 +59,8 @@ public class ThreadStats {
     public long getTotalAllocatedBytes() {
         return totalAllocatedBytes;
     }
+
+    public boolean isBlockedWaitedPartial() {
+        return blockedWaitedPartial;
+    }
 }
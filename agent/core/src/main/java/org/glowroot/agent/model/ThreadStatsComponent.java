@@ -18,9 +18,11 @@ package org.glowroot.agent.model;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
@@ -37,12 +39,33 @@ public class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // ThreadMXBean.getThreadInfo() is by far the most expensive part of capturing thread stats, and
+    // is only needed for blocked and waited time, so when this is enabled, blocked and waited time
+    // are only captured for thread contexts that are still running when the stack trace collector
+    // samples them (which are the ones that end up being slow), starting from the first sample
+    //
+    // blocked and waited time before the first sample cannot be recovered (ThreadInfo only exposes
+    // lifetime totals for the thread), so the resulting thread stats are marked as partial
+    private static final boolean DEFER_BLOCKED_WAITED =
+            Boolean.getBoolean("glowroot.threadStats.deferBlockedWaited");
+
+    private static final AtomicLong deferredCount = new AtomicLong();
+    private static final AtomicLong deferredCaptureCount = new AtomicLong();
+    private static final AtomicLong deferredCaptureNanos = new AtomicLong();
+
     private final long threadId;
     private final long startingCpuNanos;
-    private final long startingBlockedMillis;
-    private final long startingWaitedMillis;
     private final long startingAllocatedBytes;
 
+    private final boolean deferBlockedWaited;
+
+    @GuardedBy("lock")
+    private boolean blockedWaitedCaptured;
+    @GuardedBy("lock")
+    private long startingBlockedMillis = -1;
+    @GuardedBy("lock")
+    private long startingWaitedMillis = -1;
+
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
     @GuardedBy("lock")
@@ -51,34 +74,66 @@ public class ThreadStatsComponent {
     private final Object lock = new Object();
 
     public ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        this(threadAllocatedBytes, DEFER_BLOCKED_WAITED);
+    }
+
+    @VisibleForTesting
+    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            boolean deferBlockedWaited) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
+        this.deferBlockedWaited = deferBlockedWaited;
+        if (deferBlockedWaited) {
+            deferredCount.getAndIncrement();
+        } else {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
+            captureStartingBlockedWaited(threadInfo);
+        }
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            startingBlockedMillis = threadInfo.getBlockedTime();
-            startingWaitedMillis = threadInfo.getWaitedTime();
-        } else {
-            startingBlockedMillis = -1;
-            startingWaitedMillis = -1;
-        }
         if (threadAllocatedBytes != null) {
-            startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+            startingAllocatedBytes =
+                    threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely(threadId);
         } else {
             startingAllocatedBytes = -1;
         }
         this.threadAllocatedBytes = threadAllocatedBytes;
     }
 
+    // number of thread contexts that skipped ThreadMXBean.getThreadInfo() at start
+    public static long getDeferredCount() {
+        return deferredCount.get();
+    }
+
+    // number of (deferred) thread contexts that needed ThreadMXBean.getThreadInfo() at completion
+    public static long getDeferredCaptureCount() {
+        return deferredCaptureCount.get();
+    }
+
+    public static long getDeferredCaptureNanos() {
+        return deferredCaptureNanos.get();
+    }
+
+    // called by the stack trace collector, with thread info for this thread
+    public void onStackTraceSample(ThreadInfo threadInfo) {
+        if (!deferBlockedWaited) {
+            return;
+        }
+        synchronized (lock) {
+            if (completedThreadStats == null && !blockedWaitedCaptured) {
+                captureStartingBlockedWaited(threadInfo);
+            }
+        }
+    }
+
     // must be called from transaction thread
     public void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            completedThreadStats = getThreadStatsInternal(true);
         }
     }
 
@@ -89,7 +144,7 @@ public class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
@@ -104,7 +159,7 @@ public class ThreadStatsComponent {
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadCpuTime()
                 // for the transaction thread
                 if (IS_THREAD_CPU_TIME_SUPPORTED) {
-                    return getTotalCpuNanosInternal();
+                    return getTotalCpuNanosInternal(false);
                 } else {
                     return -1;
                 }
@@ -114,41 +169,66 @@ public class ThreadStatsComponent {
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
+    @GuardedBy("lock")
+    private void captureStartingBlockedWaited(ThreadInfo threadInfo) {
+        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            startingBlockedMillis = threadInfo.getBlockedTime();
+            startingWaitedMillis = threadInfo.getWaitedTime();
+        }
+        blockedWaitedCaptured = true;
+    }
+
+    @GuardedBy("lock")
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
+        long totalBlockedMillis = -1;
+        long totalWaitedMillis = -1;
+        if (blockedWaitedCaptured) {
+            ThreadInfo threadInfo = getThreadInfo(currentThread);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
+            if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+                totalBlockedMillis = getTotalBlockedMillis(threadInfo);
+                totalWaitedMillis = getTotalWaitedMillis(threadInfo);
+            }
         }
         long totalCpuNanos;
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            totalCpuNanos = getTotalCpuNanosInternal();
+            totalCpuNanos = getTotalCpuNanosInternal(currentThread);
         } else {
             totalCpuNanos = -1;
         }
-        long totalBlockedMillis;
-        long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
-            totalBlockedMillis = getTotalBlockedMillis(threadInfo);
-            totalWaitedMillis = getTotalWaitedMillis(threadInfo);
-        } else {
-            totalBlockedMillis = -1;
-            totalWaitedMillis = -1;
-        }
         long totalAllocatedBytes;
         if (this.threadAllocatedBytes != null) {
-            totalAllocatedBytes = getThreadAllocatedBytes();
+            totalAllocatedBytes = getThreadAllocatedBytes(currentThread);
         } else {
             totalAllocatedBytes = -1;
         }
         return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
-                totalAllocatedBytes);
+                totalAllocatedBytes, deferBlockedWaited && blockedWaitedCaptured);
     }
 
-    private long getTotalCpuNanosInternal() {
+    private @Nullable ThreadInfo getThreadInfo(boolean currentThread) {
+        if (!deferBlockedWaited || !currentThread) {
+            return threadMXBean.getThreadInfo(threadId, 0);
+        }
+        // track the cost of deferred capture, so that the cost saved by skipping
+        // ThreadMXBean.getThreadInfo() for the other thread contexts can be estimated
+        long startNanos = System.nanoTime();
+        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+        deferredCaptureNanos.getAndAdd(System.nanoTime() - startNanos);
+        deferredCaptureCount.getAndIncrement();
+        return threadInfo;
+    }
+
+    private long getTotalCpuNanosInternal(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        //
+        // getCurrentThreadCpuTime() is cheaper since it does not need to look up the thread by id
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -156,6 +236,7 @@ public class ThreadStatsComponent {
         }
     }
 
+    @GuardedBy("lock")
     private long getTotalBlockedMillis(ThreadInfo threadInfo) {
         // getBlockedTime() return -1 if thread contention monitoring is disabled (which is
         // different than whether or not it is supported)
@@ -167,6 +248,7 @@ public class ThreadStatsComponent {
         }
     }
 
+    @GuardedBy("lock")
     private long getTotalWaitedMillis(ThreadInfo threadInfo) {
         // getWaitedTime() returns -1 if thread contention monitoring is disabled (which is
         // different than whether or not it is supported)
@@ -179,8 +261,10 @@ public class ThreadStatsComponent {
     }
 
     @RequiresNonNull("threadAllocatedBytes")
-    private long getThreadAllocatedBytes() {
-        long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+    private long getThreadAllocatedBytes(boolean currentThread) {
+        long allocatedBytes = currentThread
+                ? threadAllocatedBytes.getCurrentThreadAllocatedBytesSafely(threadId)
+                : threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
         if (startingAllocatedBytes != -1 && allocatedBytes != -1) {
             return allocatedBytes - startingAllocatedBytes;
         } else {
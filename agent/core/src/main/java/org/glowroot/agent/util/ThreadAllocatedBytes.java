@@ -28,6 +28,9 @@ public class ThreadAllocatedBytes {
     private static final Logger logger = LoggerFactory.getLogger(ThreadAllocatedBytes.class);
 
     private final Method getThreadAllocatedBytesMethod;
+    // com.sun.management.ThreadMXBean.getCurrentThreadAllocatedBytes() was introduced in Java 14,
+    // and is cheaper since it does not need to look up the thread by id
+    private final @Nullable Method getCurrentThreadAllocatedBytesMethod;
     private volatile boolean disabledDueToError;
 
     public static OptionalService<ThreadAllocatedBytes> create() {
@@ -68,24 +71,48 @@ public class ThreadAllocatedBytes {
         }
         Method getThreadAllocatedBytesMethod =
                 sunThreadMXBeanClass.getMethod("getThreadAllocatedBytes", long.class);
-        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod));
+        Method getCurrentThreadAllocatedBytesMethod;
+        try {
+            getCurrentThreadAllocatedBytesMethod =
+                    sunThreadMXBeanClass.getMethod("getCurrentThreadAllocatedBytes");
+        } catch (NoSuchMethodException e) {
+            // log exception at debug level
+            logger.debug(e.getMessage(), e);
+            getCurrentThreadAllocatedBytesMethod = null;
+        }
+        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod,
+                getCurrentThreadAllocatedBytesMethod));
     }
 
-    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod) {
+    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod,
+            @Nullable Method getCurrentThreadAllocatedBytesMethod) {
         this.getThreadAllocatedBytesMethod = getThreadAllocatedBytesMethod;
+        this.getCurrentThreadAllocatedBytesMethod = getCurrentThreadAllocatedBytesMethod;
+    }
+
+    // threadId must be the id of the current thread
+    public long getCurrentThreadAllocatedBytesSafely(long threadId) {
+        if (getCurrentThreadAllocatedBytesMethod == null) {
+            return getThreadAllocatedBytesSafely(threadId);
+        }
+        return invokeSafely(getCurrentThreadAllocatedBytesMethod);
     }
 
     public long getThreadAllocatedBytesSafely(long threadId) {
+        return invokeSafely(getThreadAllocatedBytesMethod, threadId);
+    }
+
+    private long invokeSafely(Method method, Object... args) {
         if (disabledDueToError) {
             // prevent excessive error logging in case there is a problem
             return -1;
         }
         try {
-            Long threadAllocatedBytes = (Long) getThreadAllocatedBytesMethod
-                    .invoke(ManagementFactory.getThreadMXBean(), threadId);
+            Long threadAllocatedBytes =
+                    (Long) method.invoke(ManagementFactory.getThreadMXBean(), args);
             if (threadAllocatedBytes == null) {
                 logger.error("method unexpectedly returned null:"
-                        + " com.sun.management.ThreadMXBean.getThreadAllocatedBytes()");
+                        + " com.sun.management.ThreadMXBean." + method.getName() + "()");
                 disabledDueToError = true;
                 return -1;
             }
@@ -17,14 +17,15 @@ package org.glowroot.agent.weaving;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -73,8 +74,18 @@ public class AnalyzedWorld {
     // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
     // additional classes that must then be pre-initialized since this is called from inside
     // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    //
+    // not using Collections.synchronizedMap(new WeakHashMap()) since that serializes class loading
+    // across all threads (e.g. app servers loading classes on many threads during startup)
+    private final ConcurrentMap<Object, ConcurrentMap<String, AnalyzedClass>> world =
+            new ConcurrentHashMap<Object, ConcurrentMap<String, AnalyzedClass>>();
+
+    private final ReferenceQueue<ClassLoader> clearedLoaderKeys = new ReferenceQueue<ClassLoader>();
+
+    // this is used so that two threads needing the same (not yet analyzed) super type will wait on
+    // a single analysis rather than both parsing it
+    private final ConcurrentMap<AnalysisKey, AnalysisInProgress> analysesInProgress =
+            new ConcurrentHashMap<AnalysisKey, AnalysisInProgress>();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
@@ -117,9 +128,14 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
+        List<ClassLoader> loaders = Lists.newArrayList();
+        for (Object key : world.keySet()) {
+            ClassLoader loader = ((LoaderKey) key).get();
+            if (loader != null) {
+                loaders.add(loader);
+            }
         }
+        return ImmutableList.copyOf(loaders);
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
@@ -221,12 +237,47 @@ public class AnalyzedWorld {
                     return analyzedClass;
                 }
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass =
+                    createAnalyzedClassOnce(className, analyzedClassLoader, loaderAnalyzedClasses);
         }
         return analyzedClass;
     }
 
+    private AnalyzedClass createAnalyzedClassOnce(String className, @Nullable ClassLoader loader,
+            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses)
+            throws ClassNotFoundException, IOException {
+        AnalysisKey analysisKey = new AnalysisKey(className, loader);
+        AnalysisInProgress analysisInProgress = new AnalysisInProgress();
+        AnalysisInProgress existingAnalysisInProgress =
+                analysesInProgress.putIfAbsent(analysisKey, analysisInProgress);
+        if (existingAnalysisInProgress != null) {
+            // the thread check is needed since analysis can be re-entrant (e.g. plan B below
+            // triggers class loading and weaving on the same thread)
+            if (existingAnalysisInProgress.thread != Thread.currentThread()) {
+                AnalyzedClass analyzedClass = existingAnalysisInProgress.await();
+                if (analyzedClass != null) {
+                    return analyzedClass;
+                }
+            }
+            // the other analysis failed or took too long, so fall back to analyzing independently
+            AnalyzedClass analyzedClass = createAnalyzedClass(className, loader);
+            return putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+        }
+        AnalyzedClass analyzedClass = null;
+        try {
+            // need to check again since another analysis may have completed in between
+            analyzedClass = loaderAnalyzedClasses.get(className);
+            if (analyzedClass == null) {
+                analyzedClass = createAnalyzedClass(className, loader);
+                analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            }
+            return analyzedClass;
+        } finally {
+            analysesInProgress.remove(analysisKey, analysisInProgress);
+            analysisInProgress.complete(analyzedClass);
+        }
+    }
+
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
@@ -345,22 +396,26 @@ public class AnalyzedWorld {
     private ConcurrentMap<String, AnalyzedClass> getAnalyzedClasses(@Nullable ClassLoader loader) {
         if (loader == null) {
             return bootstrapLoaderWorld;
-        } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
-                }
-                return map;
-            }
         }
+        ConcurrentMap<String, AnalyzedClass> map = world.get(new LoaderLookupKey(loader));
+        if (map != null) {
+            return map;
+        }
+        removeClearedLoaderKeys();
+        map = new ConcurrentHashMap<String, AnalyzedClass>();
+        ConcurrentMap<String, AnalyzedClass> existingMap =
+                world.putIfAbsent(new LoaderKey(loader, clearedLoaderKeys), map);
+        return existingMap == null ? map : existingMap;
     }
 
     private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
+        return ImmutableList.copyOf(world.values());
+    }
+
+    private void removeClearedLoaderKeys() {
+        Reference<? extends ClassLoader> clearedLoaderKey;
+        while ((clearedLoaderKey = clearedLoaderKeys.poll()) != null) {
+            world.remove(clearedLoaderKey);
         }
     }
 
@@ -552,6 +607,131 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    // the world map is keyed by LoaderKey, and looked up by LoaderLookupKey (to avoid allocating a
+    // weak reference on each lookup), the two are equal when they refer to the same class loader
+    private static class LoaderKey extends WeakReference<ClassLoader> {
+
+        private final int hashCode;
+
+        LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            hashCode = System.identityHashCode(loader);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            ClassLoader loader = get();
+            if (loader == null) {
+                // cleared keys are only equal to themselves
+                return false;
+            }
+            if (obj instanceof LoaderKey) {
+                return ((LoaderKey) obj).get() == loader;
+            }
+            if (obj instanceof LoaderLookupKey) {
+                return ((LoaderLookupKey) obj).loader == loader;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class LoaderLookupKey {
+
+        private final ClassLoader loader;
+
+        LoaderLookupKey(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj instanceof LoaderKey) {
+                return ((LoaderKey) obj).get() == loader;
+            }
+            if (obj instanceof LoaderLookupKey) {
+                return ((LoaderLookupKey) obj).loader == loader;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(loader);
+        }
+    }
+
+    // class loader is intentionally strongly referenced since these keys are short-lived
+    private static class AnalysisKey {
+
+        private final String className;
+        private final @Nullable ClassLoader loader;
+
+        AnalysisKey(String className, @Nullable ClassLoader loader) {
+            this.className = className;
+            this.loader = loader;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof AnalysisKey)) {
+                return false;
+            }
+            AnalysisKey that = (AnalysisKey) obj;
+            return className.equals(that.className) && loader == that.loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * className.hashCode() + System.identityHashCode(loader);
+        }
+    }
+
+    static class AnalysisInProgress {
+
+        // bounded wait, to protect against waiting on an analysis that is itself (indirectly)
+        // blocked by the waiting thread, e.g. via a class loader lock held by the waiting thread
+        private static final long MAX_WAIT_MILLIS = 100;
+
+        final Thread thread = Thread.currentThread();
+
+        // guarded by this
+        private @Nullable AnalyzedClass analyzedClass;
+        // guarded by this
+        private boolean complete;
+
+        synchronized void complete(@Nullable AnalyzedClass analyzedClass) {
+            this.analyzedClass = analyzedClass;
+            complete = true;
+            notifyAll();
+        }
+
+        // returns null if the analysis failed or did not complete in time
+        synchronized @Nullable AnalyzedClass await() {
+            long remainingMillis = MAX_WAIT_MILLIS;
+            long endMillis = System.currentTimeMillis() + remainingMillis;
+            while (!complete && remainingMillis > 0) {
+                try {
+                    wait(remainingMillis);
+                } catch (InterruptedException e) {
+                    // probably shutdown requested
+                    logger.debug(e.getMessage(), e);
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                remainingMillis = endMillis - System.currentTimeMillis();
+            }
+            return analyzedClass;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
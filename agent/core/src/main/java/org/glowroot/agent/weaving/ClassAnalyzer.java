@@ -218,6 +218,10 @@ class ClassAnalyzer {
         return analyzedClassBuilder.build();
     }
 
+    ImmutableList<AnalyzedClass> getSuperAnalyzedClasses() {
+        return superAnalyzedClasses;
+    }
+
     List<AnalyzedMethod> getMethodsThatOnlyNowFulfillAdvice() {
         return checkNotNull(methodsThatOnlyNowFulfillAdvice);
     }
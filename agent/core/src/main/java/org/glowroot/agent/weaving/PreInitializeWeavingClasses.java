@@ -313,6 +313,10 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$AnalysisInProgress");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$AnalysisKey");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$LoaderKey");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$LoaderLookupKey");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
@@ -387,6 +391,10 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
         types.add("org.glowroot.agent.weaving.Weaver");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Registry");
+        types.add("org.glowroot.agent.weaving.WeavingPrefilter");
+        types.add("org.glowroot.agent.weaving.WeavingPrefilter$Markers");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -523,6 +531,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.PointcutClassVisitor$1");
         types.add("org.glowroot.agent.weaving.Weaver$1");
         types.add("org.glowroot.agent.weaving.Weaver$2");
+        types.add("org.glowroot.agent.weaving.WeavingCache$1");
         types.add("org.glowroot.agent.weaving.Weaver$FelixOsgiHackClassVisitor$1");
         types.add("org.glowroot.agent.weaving.Weaver$EclipseOsgiHackClassVisitor$1");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$1");
@@ -580,6 +589,8 @@ public class PreInitializeWeavingClasses {
         // java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:617)[na:1.8.0_20]
         // java.lang.Thread.run(Thread.java:745)[na:1.8.0_20]
         types.add("java.util.concurrent.ThreadLocalRandom");
+        // used by WeavingCache (when enabled)
+        types.add("java.util.zip.CRC32");
         return types;
     }
 
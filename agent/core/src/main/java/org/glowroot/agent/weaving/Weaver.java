@@ -28,6 +28,7 @@ import java.security.CodeSource;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
@@ -84,6 +85,9 @@ public class Weaver {
         }
     }
 
+    private static final boolean PREFILTER_DISABLED =
+            Boolean.getBoolean("glowroot.weaving.disablePrefilter");
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -91,6 +95,12 @@ public class Weaver {
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
+    private final @Nullable WeavingCache weavingCache;
+    private final @Nullable WeavingPrefilter prefilter;
+
+    private final AtomicLong prefilterRejectedClassCount = new AtomicLong();
+    private final AtomicLong analyzedClassCount = new AtomicLong();
+    private final AtomicLong wovenClassCount = new AtomicLong();
 
     private volatile boolean weavingTimerEnabled;
 
@@ -102,7 +112,7 @@ public class Weaver {
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -116,6 +126,24 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.weavingCache = weavingCache;
+        if (PREFILTER_DISABLED) {
+            prefilter = null;
+        } else {
+            prefilter = new WeavingPrefilter(this.shimTypes, this.mixinTypes, analyzedWorld);
+        }
+    }
+
+    public long getPrefilterRejectedClassCount() {
+        return prefilterRejectedClassCount.get();
+    }
+
+    public long getAnalyzedClassCount() {
+        return analyzedClassCount.get();
+    }
+
+    public long getWovenClassCount() {
+        return wovenClassCount.get();
     }
 
     public void checkForDeadlockedActiveWeaving() {
@@ -146,6 +174,7 @@ public class Weaver {
             byte[] transformedBytes =
                     weaveUnderTimer(classBytes, className, classBeingRedefined, codeSource, loader);
             if (transformedBytes != null) {
+                wovenClassCount.getAndIncrement();
                 logger.debug("transform(): transformed {}", className);
             }
             return transformedBytes;
@@ -176,8 +205,31 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> baseAdvisors = this.advisors.get();
+        if (prefilter != null && classBeingRedefined == null
+                && !className.equals(DEBUG_CLASS_NAME)) {
+            AnalyzedClass analyzedClass =
+                    prefilter.reject(classBytes, className, baseAdvisors, loader, codeSource);
+            if (analyzedClass != null) {
+                analyzedWorld.add(analyzedClass, loader);
+                prefilterRejectedClassCount.getAndIncrement();
+                return null;
+            }
+        }
+        analyzedClassCount.getAndIncrement();
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(baseAdvisors,
                 classBytes, loader, className);
+        WeavingCache weavingCache = null;
+        // advisors generated from @Instrumentation annotations are specific to this class loader
+        if (this.weavingCache != null && classBeingRedefined == null && advisors == baseAdvisors
+                && !className.equals(DEBUG_CLASS_NAME)) {
+            weavingCache = this.weavingCache;
+            byte[] cachedBytes =
+                    weavingCache.get(className, classBytes, loader, advisors, codeSource);
+            if (cachedBytes != null) {
+                return cachedBytes;
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         boolean frames = accv.getMajorVersion() >= V1_6;
@@ -237,7 +289,12 @@ public class Weaver {
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCache != null && maybeProcessedBytes != null) {
+                weavingCache.put(className, classBytes, loader, advisors, analyzedClass,
+                        classAnalyzer.getSuperAnalyzedClasses(), maybeProcessedBytes);
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -295,6 +352,11 @@ public class Weaver {
             }
             return null;
         }
+        if (weavingCache != null && !cv.hasMetaHolder()) {
+            weavingCache.put(className, classBytes, loader, advisors,
+                    classAnalyzer.getAnalyzedClass(), classAnalyzer.getSuperAnalyzedClasses(),
+                    transformedBytes);
+        }
         if (className.equals(DEBUG_CLASS_NAME)) {
             try {
                 File tempFile = File.createTempFile("glowroot-transformed-", ".class");
@@ -0,0 +1,688 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Modifier;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Version;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// persistent cache of weaving results so that warm restarts can skip analyzing and weaving classes
+// that have not changed
+//
+// entries are keyed by the class bytes, and are stored under a directory per fingerprint of the
+// advisors, shim types, mixin types and glowroot version, so any change to those simply results in
+// a new (empty) directory
+//
+// the weaving result also depends on the analyzed super types (e.g. advice inherited from super
+// types, public final methods that cannot be overridden), so a fingerprint of the analyzed super
+// types is part of each entry's key, which means the same class bytes woven against different super
+// types (e.g. different library versions in different class loaders) get separate entries, and
+// classes whose super type hierarchy is not fully known (e.g. a super type could not be found) are
+// never cached
+//
+// the number of entries is bounded, once the bound is reached no new entries are written, and the
+// least recently used entries are pruned the next time the cache is opened
+//
+// weaving results that depend on anything else are never cached, in particular classes whose advice
+// requires a meta holder (meta holder class names are only unique within a single jvm), classes
+// with @Instrumentation annotations (their advisors are generated per class loader), classes that
+// are being re-transformed and classes that are affected by the @javax.ejb.Remote hack
+//
+// this is called from inside ClassFileTransformer.transform(), so it intentionally only uses jdk
+// types (see PreInitializeWeavingClasses)
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int DEFAULT_MAX_ENTRIES =
+            Integer.getInteger("glowroot.weaving.cache.maxEntries", 50000);
+
+    private static final int DIGEST_LENGTH = 20;
+
+    // length of "." + hex encoded digest at the end of each entry's file name
+    private static final int FILE_NAME_SUFFIX_LENGTH = 1 + DIGEST_LENGTH * 2;
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File cacheDir;
+    private final AnalyzedWorld analyzedWorld;
+    private final int maxEntries;
+    private final String version;
+
+    private final Map<ShimType, Integer> shimTypeIndexes;
+    private final Map<MixinType, Integer> mixinTypeIndexes;
+    private final List<ShimType> sortedShimTypes;
+    private final List<MixinType> sortedMixinTypes;
+
+    private final Object lock = new Object();
+
+    // advisors change when reweavable instrumentation config changes
+    private volatile Registry registry;
+
+    private final AtomicInteger tempFileCounter = new AtomicInteger();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    public WeavingCache(File cacheDir, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld) {
+        this(cacheDir, advisors, shimTypes, mixinTypes, analyzedWorld, DEFAULT_MAX_ENTRIES);
+    }
+
+    WeavingCache(File cacheDir, List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld, int maxEntries) {
+        this.cacheDir = cacheDir;
+        this.analyzedWorld = analyzedWorld;
+        this.maxEntries = maxEntries;
+        version = Version.getVersion(WeavingCache.class);
+        sortedShimTypes = sortByToString(shimTypes);
+        sortedMixinTypes = sortByToString(mixinTypes);
+        shimTypeIndexes = getIndexes(sortedShimTypes);
+        mixinTypeIndexes = getIndexes(sortedMixinTypes);
+        registry = createRegistry(advisors);
+        // clean up entries from prior advisors (and prior glowroot versions)
+        File[] dirs = cacheDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.equals(registry.dir)) {
+                    deleteRecursively(dir);
+                }
+            }
+        }
+        logger.debug("weaving cache: {} ({} entries)", registry.dir, registry.classNames.size());
+    }
+
+    // returns null if there is no usable cache entry
+    byte /*@Nullable*/ [] get(String className, byte[] classBytes, @Nullable ClassLoader loader,
+            List<Advice> advisors, @Nullable CodeSource codeSource) {
+        Registry registry = getRegistry(advisors);
+        String javaClassName = ClassNames.fromInternalName(className);
+        if (!registry.classNames.contains(javaClassName)) {
+            return null;
+        }
+        ClassReader cr = new ClassReader(classBytes);
+        String superName = cr.getSuperName();
+        List<String> interfaceNames = Lists.newArrayList();
+        for (String interfaceName : cr.getInterfaces()) {
+            interfaceNames.add(ClassNames.fromInternalName(interfaceName));
+        }
+        boolean intf = Modifier.isInterface(cr.getAccess());
+        List<AnalyzedClass> superAnalyzedClasses = getSuperAnalyzedClasses(javaClassName,
+                superName == null ? null : ClassNames.fromInternalName(superName),
+                interfaceNames, intf, loader, codeSource);
+        byte[] superClassesFingerprint = getFingerprint(
+                superName == null ? null : ClassNames.fromInternalName(superName), interfaceNames,
+                intf, superAnalyzedClasses, registry);
+        if (superClassesFingerprint == null) {
+            return null;
+        }
+        byte[] entryKey = getEntryKey(classBytes, loader, superClassesFingerprint);
+        File file = registry.getFile(javaClassName, entryKey);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] entryBytes = readFully(file);
+            DataInputStream in = openEntry(entryBytes);
+            if (in == null || in.readInt() != FORMAT_VERSION
+                    || !in.readUTF().equals(javaClassName)
+                    || !Arrays.equals(readBytes(in, DIGEST_LENGTH), entryKey)) {
+                logger.debug("deleting invalid weaving cache entry: {}", file);
+                deleteEntry(file, registry);
+                return null;
+            }
+            byte[] transformedBytes = readBytes(in, in.readInt());
+            AnalyzedClass analyzedClass = readAnalyzedClass(in, registry);
+            analyzedWorld.add(analyzedClass, loader);
+            // last modified time is used to prune the least recently used entries
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                logger.debug("could not update last modified time: {}", file);
+            }
+            hitCount.getAndIncrement();
+            return transformedBytes;
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            deleteEntry(file, registry);
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. index out of bounds from an entry written by an incompatible build
+            logger.debug(e.getMessage(), e);
+            deleteEntry(file, registry);
+            return null;
+        }
+    }
+
+    void put(String className, byte[] classBytes, @Nullable ClassLoader loader,
+            List<Advice> advisors, AnalyzedClass analyzedClass,
+            List<AnalyzedClass> superAnalyzedClasses, byte[] transformedBytes) {
+        Registry registry = getRegistry(advisors);
+        if (registry.entryCount.get() >= maxEntries) {
+            return;
+        }
+        byte[] superClassesFingerprint = getFingerprint(analyzedClass.superName(),
+                analyzedClass.interfaceNames(), analyzedClass.isInterface(), superAnalyzedClasses,
+                registry);
+        if (superClassesFingerprint == null || !isCacheable(analyzedClass, registry)) {
+            return;
+        }
+        String javaClassName = ClassNames.fromInternalName(className);
+        byte[] entryKey = getEntryKey(classBytes, loader, superClassesFingerprint);
+        File file = registry.getFile(javaClassName, entryKey);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(transformedBytes.length + 1024);
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(javaClassName);
+            out.write(entryKey);
+            out.writeInt(transformedBytes.length);
+            out.write(transformedBytes);
+            writeAnalyzedClass(out, analyzedClass, registry);
+            CRC32 crc = new CRC32();
+            crc.update(baos.toByteArray());
+            out.writeLong(crc.getValue());
+            // write to temp file and then rename, so that partially written entries are never
+            // visible
+            File tempFile = new File(registry.dir,
+                    file.getName() + '.' + tempFileCounter.getAndIncrement() + TEMP_FILE_SUFFIX);
+            OutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                baos.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+            boolean exists = file.exists();
+            if (!tempFile.renameTo(file)) {
+                // e.g. entry was concurrently written by another thread (on windows)
+                deleteFile(tempFile);
+            } else if (!exists) {
+                registry.entryCount.getAndIncrement();
+            }
+            registry.classNames.add(javaClassName);
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // this needs to return the super types in the same order as ClassAnalyzer
+    private List<AnalyzedClass> getSuperAnalyzedClasses(String className,
+            @Nullable String superName, List<String> interfaceNames, boolean intf,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : interfaceNames) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        if (!intf) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(superName, loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    private Registry getRegistry(List<Advice> advisors) {
+        Registry registry = this.registry;
+        if (registry.advisors == advisors) {
+            return registry;
+        }
+        synchronized (lock) {
+            registry = this.registry;
+            if (registry.advisors != advisors) {
+                registry = createRegistry(advisors);
+                this.registry = registry;
+            }
+            return registry;
+        }
+    }
+
+    private Registry createRegistry(List<Advice> advisors) {
+        List<Advice> sortedAdvisors = sortByToString(advisors);
+        MessageDigest digest = newDigest();
+        updateDigest(digest, Integer.toString(FORMAT_VERSION));
+        updateDigest(digest, version);
+        for (Advice advice : sortedAdvisors) {
+            updateDigest(digest, advice.toString());
+        }
+        for (ShimType shimType : sortedShimTypes) {
+            updateDigest(digest, shimType.toString());
+        }
+        for (MixinType mixinType : sortedMixinTypes) {
+            updateDigest(digest, mixinType.toString());
+        }
+        File dir = new File(cacheDir, toHex(digest.digest()));
+        Set<String> classNames =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        List<File> entryFiles = Lists.newArrayList();
+        if (dir.isDirectory()) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                        // left over from a jvm that was killed while writing the entry
+                        deleteFile(file);
+                    } else if (file.getName().length() > FILE_NAME_SUFFIX_LENGTH) {
+                        entryFiles.add(file);
+                    }
+                }
+            }
+        } else if (!dir.mkdirs()) {
+            logger.warn("could not create weaving cache directory: {}", dir);
+        }
+        if (entryFiles.size() > maxEntries) {
+            entryFiles = pruneLeastRecentlyUsed(entryFiles, maxEntries * 3 / 4);
+        }
+        for (File entryFile : entryFiles) {
+            String fileName = entryFile.getName();
+            classNames.add(fileName.substring(0, fileName.length() - FILE_NAME_SUFFIX_LENGTH));
+        }
+        return new Registry(advisors, sortedAdvisors, getIndexes(sortedAdvisors), dir,
+                classNames, entryFiles.size());
+    }
+
+    // returns null if the super types cannot be cached, including if the super type hierarchy is
+    // not fully known
+    private byte /*@Nullable*/ [] getFingerprint(@Nullable String superName,
+            List<String> interfaceNames, boolean intf, List<AnalyzedClass> superAnalyzedClasses,
+            Registry registry) {
+        if (!isComplete(superName, interfaceNames, intf, superAnalyzedClasses)) {
+            return null;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+                if (superAnalyzedClass.isInterface() && superAnalyzedClass.ejbRemote()) {
+                    return null;
+                }
+                if (!isCacheable(superAnalyzedClass, registry)) {
+                    return null;
+                }
+                writeAnalyzedClass(out, superAnalyzedClass, registry);
+            }
+        } catch (IOException e) {
+            // writing to ByteArrayOutputStream should never fail
+            throw new IllegalStateException(e);
+        }
+        MessageDigest digest = newDigest();
+        digest.update(baos.toByteArray());
+        return digest.digest();
+    }
+
+    private boolean isCacheable(AnalyzedClass analyzedClass, Registry registry) {
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            if (!registry.adviceIndexes.keySet().containsAll(analyzedMethod.advisors())
+                    || !registry.adviceIndexes.keySet()
+                            .containsAll(analyzedMethod.subTypeRestrictedAdvisors())) {
+                return false;
+            }
+        }
+        return shimTypeIndexes.keySet().containsAll(analyzedClass.shimTypes())
+                && mixinTypeIndexes.keySet().containsAll(analyzedClass.mixinTypes());
+    }
+
+    private void writeAnalyzedClass(DataOutputStream out, AnalyzedClass analyzedClass,
+            Registry registry) throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeIndexes(out, analyzedMethod.advisors(), registry.adviceIndexes);
+            writeIndexes(out, analyzedMethod.subTypeRestrictedAdvisors(), registry.adviceIndexes);
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+        writeIndexes(out, analyzedClass.shimTypes(), shimTypeIndexes);
+        writeIndexes(out, analyzedClass.mixinTypes(), mixinTypeIndexes);
+        out.writeBoolean(analyzedClass.ejbRemote());
+    }
+
+    private AnalyzedClass readAnalyzedClass(DataInputStream in, Registry registry)
+            throws IOException {
+        ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            classBuilder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in))
+                    .addAllAdvisors(readIndexed(in, registry.sortedAdvisors))
+                    .addAllSubTypeRestrictedAdvisors(readIndexed(in, registry.sortedAdvisors))
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            classBuilder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        return classBuilder.addAllShimTypes(readIndexed(in, sortedShimTypes))
+                .addAllMixinTypes(readIndexed(in, sortedMixinTypes))
+                .ejbRemote(in.readBoolean())
+                .build();
+    }
+
+    @OnlyUsedByTests
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    // returns null if the checksum does not match
+    private static @Nullable DataInputStream openEntry(byte[] entryBytes) throws IOException {
+        if (entryBytes.length < 8) {
+            return null;
+        }
+        int checksumIndex = entryBytes.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(entryBytes, 0, checksumIndex);
+        DataInputStream checksumIn = new DataInputStream(
+                new ByteArrayInputStream(entryBytes, checksumIndex, 8));
+        if (checksumIn.readLong() != crc.getValue()) {
+            return null;
+        }
+        return new DataInputStream(new ByteArrayInputStream(entryBytes, 0, checksumIndex));
+    }
+
+    // AnalyzedWorld.getAnalyzedHierarchy() silently leaves out super types that cannot be found
+    private static boolean isComplete(@Nullable String superName, List<String> interfaceNames,
+            boolean intf, List<AnalyzedClass> superAnalyzedClasses) {
+        Set<String> superClassNames = new HashSet<String>();
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            superClassNames.add(superAnalyzedClass.name());
+        }
+        if ((!intf && !isFound(superName, superClassNames))
+                || !superClassNames.containsAll(interfaceNames)) {
+            return false;
+        }
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            if (!isFound(superAnalyzedClass.superName(), superClassNames)
+                    || !superClassNames.containsAll(superAnalyzedClass.interfaceNames())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFound(@Nullable String superName, Set<String> superClassNames) {
+        return superName == null || superName.equals("java.lang.Object")
+                || superClassNames.contains(superName);
+    }
+
+    private static byte[] getEntryKey(byte[] classBytes, @Nullable ClassLoader loader,
+            byte[] superClassesFingerprint) {
+        MessageDigest digest = newDigest();
+        // weaving is slightly different for the bootstrap class loader
+        digest.update((byte) (loader == null ? 0 : 1));
+        digest.update(classBytes);
+        digest.update(superClassesFingerprint);
+        return digest.digest();
+    }
+
+    // returns the remaining entry files
+    private static List<File> pruneLeastRecentlyUsed(List<File> entryFiles, int retainCount) {
+        final Map<File, Long> lastModifiedTimes = new HashMap<File, Long>();
+        for (File entryFile : entryFiles) {
+            lastModifiedTimes.put(entryFile, entryFile.lastModified());
+        }
+        List<File> sortedEntryFiles = Lists.newArrayList(entryFiles);
+        // most recently used first
+        Collections.sort(sortedEntryFiles, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                long leftLastModified = lastModifiedTimes.get(left);
+                long rightLastModified = lastModifiedTimes.get(right);
+                return leftLastModified > rightLastModified ? -1
+                        : leftLastModified < rightLastModified ? 1 : 0;
+            }
+        });
+        for (File entryFile : sortedEntryFiles.subList(retainCount, sortedEntryFiles.size())) {
+            deleteFile(entryFile);
+        }
+        logger.debug("pruned {} weaving cache entries", sortedEntryFiles.size() - retainCount);
+        return sortedEntryFiles.subList(0, retainCount);
+    }
+
+    private static void deleteEntry(File file, Registry registry) {
+        if (file.delete()) {
+            registry.entryCount.getAndDecrement();
+        } else if (file.exists()) {
+            logger.debug("could not delete weaving cache file: {}", file);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is required to be supported by every jvm
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void updateDigest(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+
+    private static <T> List<T> sortByToString(List<T> list) {
+        Map<String, T> map = new HashMap<String, T>();
+        for (T item : list) {
+            map.put(item.toString(), item);
+        }
+        List<String> keys = Lists.newArrayList(map.keySet());
+        Collections.sort(keys);
+        List<T> sorted = Lists.newArrayList();
+        for (String key : keys) {
+            sorted.add(map.get(key));
+        }
+        return sorted;
+    }
+
+    private static <T> Map<T, Integer> getIndexes(List<T> sorted) {
+        Map<T, Integer> indexes = new HashMap<T, Integer>();
+        for (int i = 0; i < sorted.size(); i++) {
+            indexes.put(sorted.get(i), i);
+        }
+        return indexes;
+    }
+
+    private static <T> void writeIndexes(DataOutputStream out, List<T> items,
+            Map<T, Integer> indexes) throws IOException {
+        out.writeInt(items.size());
+        for (T item : items) {
+            Integer index = indexes.get(item);
+            if (index == null) {
+                // isCacheable() is always checked first
+                throw new IllegalStateException("Unexpected item: " + item);
+            }
+            out.writeInt(index);
+        }
+    }
+
+    private static <T> List<T> readIndexed(DataInputStream in, List<T> sorted)
+            throws IOException {
+        int count = in.readInt();
+        List<T> items = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            items.add(sorted.get(in.readInt()));
+        }
+        return items;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected weaving cache entry size: " + length);
+            }
+            DataInputStream din = new DataInputStream(in);
+            byte[] bytes = new byte[(int) length];
+            din.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        deleteFile(file);
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.debug("could not delete weaving cache file: {}", file);
+        }
+    }
+
+    private static class Registry {
+
+        // this is compared by identity to check if the advisors have changed
+        private final List<Advice> advisors;
+        private final List<Advice> sortedAdvisors;
+        private final Map<Advice, Integer> adviceIndexes;
+        private final File dir;
+        // class names that have entries in dir (possibly more than one entry per class name, e.g.
+        // different versions of the same class in different class loaders)
+        private final Set<String> classNames;
+        private final AtomicInteger entryCount;
+
+        private Registry(List<Advice> advisors, List<Advice> sortedAdvisors,
+                Map<Advice, Integer> adviceIndexes, File dir, Set<String> classNames,
+                int entryCount) {
+            this.advisors = advisors;
+            this.sortedAdvisors = sortedAdvisors;
+            this.adviceIndexes = adviceIndexes;
+            this.dir = dir;
+            this.classNames = classNames;
+            this.entryCount = new AtomicInteger(entryCount);
+        }
+
+        private File getFile(String javaClassName, byte[] entryKey) {
+            return new File(dir, javaClassName + '.' + toHex(entryKey));
+        }
+    }
+}
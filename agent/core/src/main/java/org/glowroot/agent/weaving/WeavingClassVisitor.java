@@ -213,6 +213,11 @@ class WeavingClassVisitor extends ClassVisitor {
         return false;
     }
 
+    // meta holder class names are generated, so the woven bytes are only valid in this jvm
+    boolean hasMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     @Override
     public void visitEnd() {
         checkNotNull(type);
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// scans the raw constant pool of a class (without allocating any ASM objects) to reject classes
+// that no advice, shim type or mixin type can possibly match, so that the ThinClassVisitor and
+// ClassAnalyzer passes can be skipped for the large majority of (JDK and library) classes
+//
+// this is intentionally conservative: any class that could possibly need weaving is passed through
+// to the full analysis, which still makes the final decision
+class WeavingPrefilter {
+
+    private static final String POINTCUT_DESC =
+            "L" + ClassNames.toInternalName(Pointcut.class.getName()) + ";";
+
+    private static final String INSTRUMENTATION_DESC_PREFIX =
+            "Lorg/glowroot/agent/api/Instrumentation$";
+
+    private static final String EJB_REMOTE_DESC = "Ljavax/ejb/Remote;";
+
+    private static final String MAIN_METHOD_DESC = "([Ljava/lang/String;)V";
+
+    private static final String[] HACK_CLASS_NAMES = {
+            ImportantClassNames.MANAGEMENT_FACTORY_CLASS_NAME,
+            ImportantClassNames.JBOSS_WELD_HACK_CLASS_NAME,
+            ImportantClassNames.JBOSS_MODULES_HACK_CLASS_NAME,
+            ImportantClassNames.JBOSS_URL_HACK_CLASS_NAME,
+            ImportantClassNames.FELIX_OSGI_HACK_CLASS_NAME,
+            ImportantClassNames.FELIX3_OSGI_HACK_CLASS_NAME,
+            ImportantClassNames.ECLIPSE_OSGI_HACK_CLASS_NAME,
+            ImportantClassNames.OPENEJB_HACK_CLASS_NAME};
+
+    private static final byte[] INSTRUMENTATION_DESC_PREFIX_BYTES =
+            INSTRUMENTATION_DESC_PREFIX.getBytes(UTF_8);
+
+    private final List<ShimType> shimTypes;
+    private final List<MixinType> mixinTypes;
+    private final AnalyzedWorld analyzedWorld;
+
+    // rebuilt whenever the advisors change (e.g. after reweaving)
+    private volatile @Nullable Markers markers;
+
+    WeavingPrefilter(List<ShimType> shimTypes, List<MixinType> mixinTypes,
+            AnalyzedWorld analyzedWorld) {
+        this.shimTypes = shimTypes;
+        this.mixinTypes = mixinTypes;
+        this.analyzedWorld = analyzedWorld;
+    }
+
+    // returns the analyzed class (to be added to the analyzed world) if the class can be rejected,
+    // otherwise returns null and the class needs to go through the full analysis
+    @Nullable
+    AnalyzedClass reject(byte[] classBytes, String className, List<Advice> advisors,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        Markers markers = getMarkers(advisors);
+        if (markers.disabled || markers.classNames.contains(className)) {
+            return null;
+        }
+        if (classBytes.length < 10 || readInt(classBytes, 0) != 0xCAFEBABE) {
+            return null;
+        }
+        int constantPoolCount = readUnsignedShort(classBytes, 8);
+        // offset of each constant pool entry (past its tag byte)
+        int[] offsets = new int[constantPoolCount];
+        int index = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            offsets[i] = index + 1;
+            int tag = classBytes[index];
+            switch (tag) {
+                case 1: // Utf8
+                    int length = readUnsignedShort(classBytes, index + 1);
+                    if (markers.isMatch(classBytes, index + 3, length)) {
+                        return null;
+                    }
+                    index += 3 + length;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    index += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    index += 9;
+                    // these take up two constant pool entries
+                    i++;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    index += 3;
+                    break;
+                case 15: // MethodHandle
+                    index += 4;
+                    break;
+                default:
+                    // unexpected class file format, leave it to ASM
+                    return null;
+            }
+        }
+        int access = readUnsignedShort(classBytes, index);
+        String superInternalName = readClassName(classBytes, offsets, index + 4);
+        int interfaceCount = readUnsignedShort(classBytes, index + 6);
+        index += 8;
+        List<String> interfaceNames = new ArrayList<String>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            String interfaceInternalName = readClassName(classBytes, offsets, index);
+            if (interfaceInternalName == null) {
+                return null;
+            }
+            interfaceNames.add(ClassNames.fromInternalName(interfaceInternalName));
+            index += 2;
+        }
+        String dottedClassName = ClassNames.fromInternalName(className);
+        if (markers.isClassNameMatch(dottedClassName)
+                || markers.isSuperTypeNameMatch(dottedClassName)) {
+            return null;
+        }
+        String superClassName = ClassNames.fromInternalName(superInternalName);
+        ParseContext parseContext = ImmutableParseContext.of(dottedClassName, codeSource);
+        for (String interfaceName : interfaceNames) {
+            if (isMatch(analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext),
+                    markers)) {
+                return null;
+            }
+        }
+        boolean intf = Modifier.isInterface(access);
+        if (!intf && isMatch(analyzedWorld.getAnalyzedHierarchy(superClassName, loader,
+                parseContext), markers)) {
+            return null;
+        }
+        ImmutableAnalyzedClass.Builder analyzedClassBuilder = ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(dottedClassName)
+                .superName(superClassName)
+                .addAllInterfaceNames(interfaceNames)
+                .ejbRemote(false);
+        // public final methods are still needed for subclass analysis, see
+        // ClassAnalyzer.removeMethodsThatWouldOverridePublicFinalMethodsFromSuperClass()
+        //
+        // and same as ClassAnalyzer, all interface methods are recorded (even without advice),
+        // since they are needed for analysis of implementations, e.g. the @javax.ejb.Remote hack in
+        // ClassAnalyzer adds advice to the analyzed methods of the remote interface
+        int fieldCount = readUnsignedShort(classBytes, index);
+        index += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            index = skipAttributes(classBytes, index + 6);
+        }
+        int methodCount = readUnsignedShort(classBytes, index);
+        index += 2;
+        for (int i = 0; i < methodCount; i++) {
+            int methodAccess = readUnsignedShort(classBytes, index);
+            boolean publicFinal = Modifier.isPublic(methodAccess) && Modifier.isFinal(methodAccess);
+            if (publicFinal || intf) {
+                String name = readUtf8(classBytes, offsets, index + 2);
+                String desc = readUtf8(classBytes, offsets, index + 4);
+                List<String> parameterTypeNames = getParameterTypeNames(desc);
+                if (publicFinal) {
+                    analyzedClassBuilder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                            .name(name)
+                            .addAllParameterTypes(parameterTypeNames)
+                            .build());
+                }
+                if (intf) {
+                    analyzedClassBuilder.addAnalyzedMethods(createAnalyzedMethod(classBytes,
+                            offsets, index, methodAccess, name, desc, parameterTypeNames));
+                }
+            }
+            index = skipAttributes(classBytes, index + 6);
+        }
+        return analyzedClassBuilder.build();
+    }
+
+    private Markers getMarkers(List<Advice> advisors) {
+        Markers markers = this.markers;
+        if (markers == null || markers.advisors != advisors) {
+            markers = new Markers(advisors, shimTypes, mixinTypes);
+            this.markers = markers;
+        }
+        return markers;
+    }
+
+    private static boolean isMatch(List<AnalyzedClass> superAnalyzedClasses, Markers markers) {
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            if (!superAnalyzedClass.shimTypes().isEmpty()
+                    || !superAnalyzedClass.mixinTypes().isEmpty()
+                    || superAnalyzedClass.ejbRemote()
+                    || markers.isSuperTypeNameMatch(superAnalyzedClass.name())) {
+                return true;
+            }
+            for (AnalyzedMethod analyzedMethod : superAnalyzedClass.analyzedMethods()) {
+                if (!analyzedMethod.advisors().isEmpty()
+                        || !analyzedMethod.subTypeRestrictedAdvisors().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static AnalyzedMethod createAnalyzedMethod(byte[] classBytes, int[] offsets,
+            int methodIndex, int methodAccess, String name, String desc,
+            List<String> parameterTypeNames) {
+        ImmutableAnalyzedMethod.Builder builder = ImmutableAnalyzedMethod.builder()
+                .name(name)
+                .addAllParameterTypes(parameterTypeNames)
+                .returnType(getTypeName(desc, desc.indexOf(')') + 1))
+                .modifiers(methodAccess);
+        int index = methodIndex + 6;
+        int attributeCount = readUnsignedShort(classBytes, index);
+        index += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = readUtf8(classBytes, offsets, index);
+            if (attributeName.equals("Signature")) {
+                builder.signature(readUtf8(classBytes, offsets, index + 6));
+            } else if (attributeName.equals("Exceptions")) {
+                int exceptionCount = readUnsignedShort(classBytes, index + 6);
+                for (int j = 0; j < exceptionCount; j++) {
+                    String exceptionInternalName =
+                            readClassName(classBytes, offsets, index + 8 + j * 2);
+                    if (exceptionInternalName != null) {
+                        builder.addExceptions(ClassNames.fromInternalName(exceptionInternalName));
+                    }
+                }
+            }
+            index += 6 + readInt(classBytes, index + 2);
+        }
+        return builder.build();
+    }
+
+    private static @Nullable String readClassName(byte[] bytes, int[] offsets, int index) {
+        int classIndex = readUnsignedShort(bytes, index);
+        if (classIndex == 0) {
+            return null;
+        }
+        return readUtf8(bytes, offsets, offsets[classIndex]);
+    }
+
+    private static String readUtf8(byte[] bytes, int[] offsets, int index) {
+        return readUtf8(bytes, offsets[readUnsignedShort(bytes, index)]);
+    }
+
+    // decodes "modified UTF-8" as used in class files
+    private static String readUtf8(byte[] bytes, int offset) {
+        int length = readUnsignedShort(bytes, offset);
+        char[] chars = new char[length];
+        int index = offset + 2;
+        int endIndex = index + length;
+        int charCount = 0;
+        while (index < endIndex) {
+            int b = bytes[index++];
+            if ((b & 0x80) == 0) {
+                chars[charCount++] = (char) (b & 0x7F);
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[charCount++] = (char) (((b & 0x1F) << 6) + (bytes[index++] & 0x3F));
+            } else {
+                chars[charCount++] = (char) (((b & 0xF) << 12) + ((bytes[index++] & 0x3F) << 6)
+                        + (bytes[index++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private static int skipAttributes(byte[] bytes, int index) {
+        int attributeCount = readUnsignedShort(bytes, index);
+        index += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            index += 6 + readInt(bytes, index + 2);
+        }
+        return index;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int index) {
+        return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return ((bytes[index] & 0xFF) << 24) | ((bytes[index + 1] & 0xFF) << 16)
+                | ((bytes[index + 2] & 0xFF) << 8) | (bytes[index + 3] & 0xFF);
+    }
+
+    // matches the class names produced by org.objectweb.asm.Type.getClassName()
+    private static List<String> getParameterTypeNames(String desc) {
+        List<String> parameterTypeNames = new ArrayList<String>();
+        int index = 1;
+        while (desc.charAt(index) != ')') {
+            parameterTypeNames.add(getTypeName(desc, index));
+            index = getTypeEndIndex(desc, index);
+        }
+        return parameterTypeNames;
+    }
+
+    // matches the class name produced by org.objectweb.asm.Type.getClassName()
+    private static String getTypeName(String desc, int index) {
+        int dimensions = 0;
+        while (desc.charAt(index) == '[') {
+            dimensions++;
+            index++;
+        }
+        StringBuilder sb = new StringBuilder();
+        char c = desc.charAt(index);
+        if (c == 'L') {
+            sb.append(desc.substring(index + 1, desc.indexOf(';', index)).replace('/', '.'));
+        } else {
+            sb.append(getPrimitiveTypeName(c));
+        }
+        for (int i = 0; i < dimensions; i++) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+
+    private static int getTypeEndIndex(String desc, int index) {
+        while (desc.charAt(index) == '[') {
+            index++;
+        }
+        if (desc.charAt(index) == 'L') {
+            return desc.indexOf(';', index) + 1;
+        }
+        return index + 1;
+    }
+
+    private static String getPrimitiveTypeName(char c) {
+        switch (c) {
+            case 'V':
+                return "void";
+            case 'Z':
+                return "boolean";
+            case 'C':
+                return "char";
+            case 'B':
+                return "byte";
+            case 'S':
+                return "short";
+            case 'I':
+                return "int";
+            case 'F':
+                return "float";
+            case 'J':
+                return "long";
+            case 'D':
+                return "double";
+            default:
+                throw new IllegalStateException("Unexpected descriptor char: " + c);
+        }
+    }
+
+    private static class Markers {
+
+        final List<Advice> advisors;
+
+        // if any advice has no class level restriction that can be checked here (e.g. it matches
+        // every class, or it matches only by annotation pattern) then nothing can be rejected
+        final boolean disabled;
+
+        // internal names, matched against the class name only
+        final Set<String> classNames = new HashSet<String>();
+        // dotted names, matched against the class name only
+        private final List<Pattern> classNamePatterns = new ArrayList<Pattern>();
+
+        // dotted names, matched against the class name and all of its super types
+        private final Set<String> superTypeNames = new HashSet<String>();
+        private final List<Pattern> superTypePatterns = new ArrayList<Pattern>();
+
+        // constant pool utf8 entries (e.g. annotation descriptors), indexed by length
+        private final byte[][][] utf8MarkersByLength;
+
+        Markers(List<Advice> advisors, List<ShimType> shimTypes,
+                List<MixinType> mixinTypes) {
+            this.advisors = advisors;
+            Set<String> utf8Markers = new HashSet<String>();
+            utf8Markers.add(POINTCUT_DESC);
+            utf8Markers.add(EJB_REMOTE_DESC);
+            // WeavingClassVisitor instruments all main methods
+            utf8Markers.add(MAIN_METHOD_DESC);
+            for (String hackClassName : HACK_CLASS_NAMES) {
+                classNames.add(hackClassName);
+            }
+            boolean disabled = false;
+            for (Advice advice : advisors) {
+                Pointcut pointcut = advice.pointcut();
+                Pattern classNamePattern = advice.pointcutClassNamePattern();
+                Pattern superTypeRestrictionPattern = advice.pointcutSuperTypeRestrictionPattern();
+                if (classNamePattern != null) {
+                    classNamePatterns.add(classNamePattern);
+                } else if (!pointcut.className().isEmpty()) {
+                    classNames.add(ClassNames.toInternalName(pointcut.className()));
+                } else if (superTypeRestrictionPattern != null) {
+                    superTypePatterns.add(superTypeRestrictionPattern);
+                } else if (!pointcut.superTypeRestriction().isEmpty()) {
+                    superTypeNames.add(pointcut.superTypeRestriction());
+                } else if (advice.pointcutClassAnnotationPattern() == null
+                        && !pointcut.classAnnotation().isEmpty()) {
+                    utf8Markers.add(getDesc(pointcut.classAnnotation()));
+                } else if (advice.pointcutMethodAnnotationPattern() == null
+                        && !pointcut.methodAnnotation().isEmpty()) {
+                    utf8Markers.add(getDesc(pointcut.methodAnnotation()));
+                } else {
+                    disabled = true;
+                }
+            }
+            for (ShimType shimType : shimTypes) {
+                for (String target : shimType.targets()) {
+                    classNames.add(ClassNames.toInternalName(target));
+                }
+            }
+            for (MixinType mixinType : mixinTypes) {
+                for (String target : mixinType.targets()) {
+                    classNames.add(ClassNames.toInternalName(target));
+                }
+            }
+            this.disabled = disabled;
+            int maxLength = INSTRUMENTATION_DESC_PREFIX_BYTES.length;
+            for (String utf8Marker : utf8Markers) {
+                maxLength = Math.max(maxLength, utf8Marker.length());
+            }
+            utf8MarkersByLength = new byte[maxLength + 1][][];
+            for (String utf8Marker : utf8Markers) {
+                byte[] bytes = utf8Marker.getBytes(UTF_8);
+                byte[][] existing = utf8MarkersByLength[bytes.length];
+                if (existing == null) {
+                    utf8MarkersByLength[bytes.length] = new byte[][] {bytes};
+                } else {
+                    byte[][] updated = new byte[existing.length + 1][];
+                    System.arraycopy(existing, 0, updated, 0, existing.length);
+                    updated[existing.length] = bytes;
+                    utf8MarkersByLength[bytes.length] = updated;
+                }
+            }
+        }
+
+        boolean isMatch(byte[] bytes, int offset, int length) {
+            if (length >= INSTRUMENTATION_DESC_PREFIX_BYTES.length
+                    && regionMatches(bytes, offset, INSTRUMENTATION_DESC_PREFIX_BYTES)) {
+                return true;
+            }
+            if (length >= utf8MarkersByLength.length) {
+                return false;
+            }
+            byte[][] utf8Markers = utf8MarkersByLength[length];
+            if (utf8Markers == null) {
+                return false;
+            }
+            for (byte[] utf8Marker : utf8Markers) {
+                if (regionMatches(bytes, offset, utf8Marker)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isClassNameMatch(String className) {
+            for (Pattern classNamePattern : classNamePatterns) {
+                if (classNamePattern.matcher(className).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isSuperTypeNameMatch(String className) {
+            if (superTypeNames.contains(className)) {
+                return true;
+            }
+            for (Pattern superTypePattern : superTypePatterns) {
+                if (superTypePattern.matcher(className).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean regionMatches(byte[] bytes, int offset, byte[] marker) {
+            for (int i = 0; i < marker.length; i++) {
+                if (bytes[offset + i] != marker[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String getDesc(String annotationClassName) {
+            return "L" + ClassNames.toInternalName(annotationClassName) + ";";
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveSlowThresholdsTest {
+
+    private Ticker ticker;
+    private AdaptiveSlowThresholds adaptiveSlowThresholds;
+
+    @Before
+    public void beforeEachTest() {
+        ticker = mock(Ticker.class);
+        adaptiveSlowThresholds = new AdaptiveSlowThresholds(99, 0, 2, ticker);
+    }
+
+    @Test
+    public void shouldNotHaveThresholdBeforeUpdate() {
+        assertThat(adaptiveSlowThresholds.getThresholdNanos("Web", "/abc")).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldSmoothThreshold() {
+        // when
+        adaptiveSlowThresholds.update("Web", "/abc", 1000);
+        adaptiveSlowThresholds.update("Web", "/abc", 2000);
+        // then
+        assertThat(adaptiveSlowThresholds.getThresholdNanos("Web", "/abc")).isEqualTo(1300);
+        assertThat(adaptiveSlowThresholds.getThresholdNanos("Web", "/xyz")).isEqualTo(-1);
+        assertThat(adaptiveSlowThresholds.getThresholdNanos("Background", "/abc")).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldApplyMinThreshold() {
+        // given
+        adaptiveSlowThresholds = new AdaptiveSlowThresholds(99, 1500, 2, ticker);
+        // when
+        adaptiveSlowThresholds.update("Web", "/abc", 1000);
+        adaptiveSlowThresholds.update("Web", "/xyz", 2000);
+        // then
+        assertThat(adaptiveSlowThresholds.getThresholdNanos("Web", "/abc")).isEqualTo(1500);
+        assertThat(adaptiveSlowThresholds.getThresholdNanos("Web", "/xyz")).isEqualTo(2000);
+    }
+
+    @Test
+    public void shouldRateLimitPerTransactionName() {
+        // given
+        adaptiveSlowThresholds.update("Web", "/abc", 1000);
+        adaptiveSlowThresholds.update("Web", "/xyz", 1000);
+        // when
+        boolean first = adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        boolean second = adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        boolean third = adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/xyz")).isTrue();
+    }
+
+    @Test
+    public void shouldRefillTokens() {
+        // given
+        adaptiveSlowThresholds.update("Web", "/abc", 1000);
+        adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        // when
+        when(ticker.read()).thenReturn(SECONDS.toNanos(30));
+        // then
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc")).isTrue();
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc")).isFalse();
+    }
+
+    @Test
+    public void shouldRateLimitPerTransactionNameWithoutEstimate() {
+        // when
+        boolean first = adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        boolean second = adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        boolean third = adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        // a busy transaction name without an estimate does not use up the tokens of others
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/xyz")).isTrue();
+        assertThat(adaptiveSlowThresholds.tryAcquire("Background", "/abc")).isTrue();
+    }
+
+    @Test
+    public void shouldKeepTokensWhenEstimateArrives() {
+        // given
+        adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        adaptiveSlowThresholds.tryAcquire("Web", "/abc");
+        // when
+        adaptiveSlowThresholds.update("Web", "/abc", 1000);
+        // then
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc")).isFalse();
+        assertThat(adaptiveSlowThresholds.getPendingTokenBucketCount()).isZero();
+    }
+
+    @Test
+    public void shouldBoundTokenBucketsWithoutEstimate() {
+        // when
+        for (int i = 0; i < AdaptiveSlowThresholds.MAX_PENDING_TOKEN_BUCKETS + 10; i++) {
+            adaptiveSlowThresholds.tryAcquire("Web", "/abc" + i);
+        }
+        // then
+        assertThat(adaptiveSlowThresholds.getPendingTokenBucketCount())
+                .isEqualTo(AdaptiveSlowThresholds.MAX_PENDING_TOKEN_BUCKETS);
+    }
+
+    @Test
+    public void shouldNotRefillTokensOfTransactionNamesThatDoNotFit() {
+        // given
+        for (int i = 0; i < AdaptiveSlowThresholds.MAX_PENDING_TOKEN_BUCKETS; i++) {
+            adaptiveSlowThresholds.tryAcquire("Web", "/abc" + i);
+        }
+        // when
+        // transaction names that do not fit share the overflow token bucket
+        boolean first = adaptiveSlowThresholds.tryAcquire("Web", "/xyz1");
+        boolean second = adaptiveSlowThresholds.tryAcquire("Web", "/xyz2");
+        boolean third = adaptiveSlowThresholds.tryAcquire("Web", "/xyz3");
+        // then
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(third).isFalse();
+        // the existing token buckets were not evicted (and refilled)
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc0")).isTrue();
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc0")).isFalse();
+    }
+
+    @Test
+    public void shouldRemoveFullTokenBucketsToMakeRoom() {
+        // given
+        for (int i = 0; i < AdaptiveSlowThresholds.MAX_PENDING_TOKEN_BUCKETS; i++) {
+            adaptiveSlowThresholds.tryAcquire("Web", "/abc" + i);
+        }
+        adaptiveSlowThresholds.tryAcquire("Web", "/abc0");
+        // when
+        // enough time for the token buckets that were used once to refill, but not for the token
+        // bucket that was used twice
+        when(ticker.read()).thenReturn(SECONDS.toNanos(40));
+        adaptiveSlowThresholds.tryAcquire("Web", "/xyz");
+        // then
+        assertThat(adaptiveSlowThresholds.getPendingTokenBucketCount()).isEqualTo(2);
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc0")).isTrue();
+        assertThat(adaptiveSlowThresholds.tryAcquire("Web", "/abc0")).isFalse();
+    }
+}
@@ -16,6 +16,7 @@
 package org.glowroot.agent.impl;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -25,6 +26,9 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -36,6 +40,7 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 public class AggregatorTest {
 
@@ -74,12 +79,146 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldFlushWithoutTrace() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock());
+
+        // when
+        aggregator.add(buildTransaction());
+        aggregator.add(buildTransaction());
+
+        // then
+        // no more transactions arrive, so flush is triggered by end of interval
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalDurationNanos() > 0) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(2 * 123 * 1000000.0);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldMergeShardsOnFlush() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, 4, Clock.systemClock());
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            aggregator.add(buildTransaction("name " + i % 10));
+        }
+
+        // then
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalDurationNanos() > 0) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(100 * 123 * 1000000.0);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldMergeShardsOnRead() {
+        // given
+        AggregateIntervalCollector intervalCollector =
+                new AggregateIntervalCollector(0, 60000, 100, 100, 100, 2, Clock.systemClock());
+
+        // when
+        intervalCollector.add(buildTransaction("name 1"), 0);
+        intervalCollector.add(buildTransaction("name 2"), 1);
+        intervalCollector.add(buildTransaction("name 2"), 1);
+
+        // then
+        OverviewAggregate overviewAggregate =
+                intervalCollector.getOverviewAggregate("a type", null);
+        assertThat(overviewAggregate.transactionCount()).isEqualTo(3);
+        assertThat(overviewAggregate.mainThreadRootTimers()).hasSize(1);
+        PercentileAggregate percentileAggregate =
+                intervalCollector.getPercentileAggregate("a type", "name 2");
+        assertThat(percentileAggregate.transactionCount()).isEqualTo(2);
+        assertThat(percentileAggregate.durationNanosHistogram().getOrderedRawValueCount())
+                .isEqualTo(2);
+        ThroughputAggregate throughputAggregate =
+                intervalCollector.getThroughputAggregate("a type", null);
+        assertThat(throughputAggregate.transactionCount()).isEqualTo(3);
+        assertThat(intervalCollector.getThroughputAggregate("another type", null)).isNull();
+    }
+
+    @Test
+    public void shouldAggregateConcurrentlyAddedTransactions() throws Exception {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        final Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 100, Clock.systemClock());
+        final Transaction transaction = buildTransaction();
+        // total is within the pending transaction limit, so that none are dropped
+        final int countPerThread = 250;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < countPerThread; j++) {
+                        aggregator.add(transaction);
+                    }
+                }
+            }));
+        }
+
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // then
+        // all transactions are aggregated, even when the processing thread observes a producer
+        // that has swapped the queue tail but not yet linked it
+        double expectedTotalDurationNanos = 4 * countPerThread * 123 * 1000000.0;
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 10000) {
+            if (aggregateCollector.getSumOfTotalDurationNanos() == expectedTotalDurationNanos) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        assertThat(aggregateCollector.getSumOfTotalDurationNanos())
+                .isEqualTo(expectedTotalDurationNanos);
+        aggregator.close();
+    }
+
     private static Transaction buildTransaction() {
-        Transaction transaction = mock(Transaction.class);
-        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
+        return buildTransaction("a name");
+    }
+
+    private static Transaction buildTransaction(String transactionName) {
+        // stub only since the concurrent test invokes the same mock many times from many threads
+        Transaction transaction = mock(Transaction.class, withSettings().stubOnly());
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class, withSettings().stubOnly());
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
         when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
@@ -90,11 +229,17 @@ public class AggregatorTest {
 
         // volatile needed for visibility from other thread
         private volatile double totalDurationNanos;
+        // sum across all intervals
+        private volatile double sumOfTotalDurationNanos;
 
         private double getTotalDurationNanos() {
             return totalDurationNanos;
         }
 
+        private double getSumOfTotalDurationNanos() {
+            return sumOfTotalDurationNanos;
+        }
+
         @Override
         public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
                 AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
@@ -109,6 +254,8 @@ public class AggregatorTest {
                     if (totalDurationNanos == 0) {
                         totalDurationNanos = overallAggregate.getTotalDurationNanos();
                     }
+                    // only called by the single flushing thread
+                    sumOfTotalDurationNanos += overallAggregate.getTotalDurationNanos();
                 }
                 @Override
                 public void visitTransactionAggregate(String transactionType,
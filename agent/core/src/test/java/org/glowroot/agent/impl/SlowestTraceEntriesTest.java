@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SlowestTraceEntriesTest {
+
+    private TraceEntryComponent component;
+    private ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap;
+
+    @Before
+    public void beforeEachTest() {
+        component = new TraceEntryComponent(mock(ThreadContextImpl.class),
+                mock(MessageSupplier.class), mock(TimerImpl.class), 0, null);
+        parentChildMap = ArrayListMultimap.create();
+    }
+
+    @Test
+    public void shouldRetainSlowestEntries() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(2);
+        TraceEntryImpl entry1 = pushAndPop(1);
+        TraceEntryImpl entry2 = pushAndPop(2);
+        TraceEntryImpl entry3 = pushAndPop(3);
+        TraceEntryImpl entry4 = pushAndPop(4);
+        // when
+        slowestTraceEntries.offer(entry1, 5);
+        slowestTraceEntries.offer(entry2, 10);
+        slowestTraceEntries.offer(entry3, 1);
+        slowestTraceEntries.offer(entry4, 20);
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.get(component.getRootEntry())).containsExactly(entry2, entry4);
+    }
+
+    @Test
+    public void shouldRetainAncestors() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(2);
+        TraceEntryImpl parentEntry = push(1);
+        TraceEntryImpl childEntry = pushAndPop(2);
+        component.popNonRootEntry(parentEntry);
+        // when
+        slowestTraceEntries.offer(childEntry, 10);
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.get(component.getRootEntry())).containsExactly(parentEntry);
+        assertThat(parentChildMap.get(parentEntry)).containsExactly(childEntry);
+    }
+
+    @Test
+    public void shouldCountAncestorsAgainstCapacity() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(2);
+        TraceEntryImpl parentEntry = push(1);
+        TraceEntryImpl childEntry = pushAndPop(2);
+        component.popNonRootEntry(parentEntry);
+        TraceEntryImpl entry = pushAndPop(3);
+        // when
+        slowestTraceEntries.offer(childEntry, 10);
+        slowestTraceEntries.offer(entry, 20);
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.get(component.getRootEntry())).containsExactly(entry);
+        assertThat(parentChildMap.containsKey(parentEntry)).isFalse();
+    }
+
+    @Test
+    public void shouldNotRetainEntryWhoseAncestorsExceedCapacity() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(1);
+        TraceEntryImpl parentEntry = push(1);
+        TraceEntryImpl childEntry = pushAndPop(2);
+        component.popNonRootEntry(parentEntry);
+        // when
+        slowestTraceEntries.offer(childEntry, 10);
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldRetainAncestorThatIsAlsoOffered() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(2);
+        TraceEntryImpl parentEntry = push(1);
+        TraceEntryImpl childEntry = pushAndPop(2);
+        component.popNonRootEntry(parentEntry);
+        TraceEntryImpl entry = pushAndPop(3);
+        // when
+        slowestTraceEntries.offer(childEntry, 5);
+        // parent entry is already retained as an ancestor, so does not take up more space
+        slowestTraceEntries.offer(parentEntry, 10);
+        slowestTraceEntries.offer(entry, 1);
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.get(component.getRootEntry())).containsExactly(parentEntry);
+        assertThat(parentChildMap.get(parentEntry)).containsExactly(childEntry);
+    }
+
+    @Test
+    public void shouldAttachParentsOfInOrderEntries() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(1);
+        TraceEntryImpl parentEntry = push(1);
+        TraceEntryImpl errorEntry = pushAndPop(2);
+        component.appendCompletedEntry(errorEntry);
+        component.popNonRootEntry(parentEntry);
+        parentChildMap.put(parentEntry, errorEntry);
+        // when
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.get(component.getRootEntry())).containsExactly(parentEntry);
+        assertThat(parentChildMap.get(parentEntry)).containsExactly(errorEntry);
+    }
+
+    @Test
+    public void shouldOrderByStartTick() {
+        // given
+        SlowestTraceEntries slowestTraceEntries = new SlowestTraceEntries(2);
+        TraceEntryImpl entry1 = pushAndPop(1);
+        TraceEntryImpl entry2 = component.pushEntry(5, mock(MessageSupplier.class),
+                mock(TimerImpl.class), null, null, 0);
+        component.popNonRootEntry(entry2);
+        TraceEntryImpl entry3 = pushAndPop(10);
+        parentChildMap.put(component.getRootEntry(), entry2);
+        // when
+        slowestTraceEntries.offer(entry3, 10);
+        slowestTraceEntries.offer(entry1, 10);
+        slowestTraceEntries.populateParentChildMap(parentChildMap);
+        // then
+        assertThat(parentChildMap.get(component.getRootEntry())).containsExactly(entry1, entry2,
+                entry3);
+    }
+
+    private TraceEntryImpl push(long startTick) {
+        return component.pushEntryBeyondInOrderLimit(startTick, mock(MessageSupplier.class),
+                mock(TimerImpl.class), null, 0);
+    }
+
+    private TraceEntryImpl pushAndPop(long startTick) {
+        TraceEntryImpl entry = push(startTick);
+        component.popNonRootEntry(entry);
+        return entry;
+    }
+}
@@ -15,6 +15,9 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
 import org.glowroot.agent.model.TimerNameImpl;
@@ -65,6 +68,35 @@ public class TimerNameCacheTest {
         assertThat(((TimerNameImpl) timerName).name()).isEqualTo("z");
     }
 
+    @Test
+    public void testSameName() {
+        // given
+        TimerNameCache timerNameCache = new TimerNameCache();
+        // when
+        TimerName timerName1 = timerNameCache.getTimerName(new String("z"));
+        TimerName timerName2 = timerNameCache.getTimerName(new String("z"));
+        // then
+        assertThat(timerName1).isSameAs(timerName2);
+        assertThat(timerNameCache.getTimerName(C.class)).isSameAs(timerName1);
+    }
+
+    @Test
+    public void testManyNames() {
+        // given
+        TimerNameCache timerNameCache = new TimerNameCache();
+        List<TimerName> timerNames = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 1000; i++) {
+            timerNames.add(timerNameCache.getTimerName("name" + i));
+        }
+        // then
+        for (int i = 0; i < 1000; i++) {
+            TimerName timerName = timerNameCache.getTimerName("name" + i);
+            assertThat(timerName).isSameAs(timerNames.get(i));
+            assertThat(((TimerNameImpl) timerName).name()).isEqualTo("name" + i);
+        }
+    }
+
     private static class A {}
 
     @Pointcut(className = "x", methodName = "y", methodParameterTypes = {})
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.model.AsyncTimerImpl;
+import org.glowroot.agent.model.QueryData;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TraceEntryArenaTest {
+
+    private TraceEntryArena arena;
+
+    private volatile Snapshot published;
+
+    @Before
+    public void beforeEachTest() {
+        arena = TraceEntryArena.acquire();
+    }
+
+    @After
+    public void afterEachTest() {
+        arena.release();
+    }
+
+    @Test
+    public void shouldNotAcquireWhileInUse() {
+        assertThat(arena).isNotNull();
+        assertThat(TraceEntryArena.acquire()).isNull();
+    }
+
+    @Test
+    public void shouldReuseRecycledEntries() {
+        // given
+        TraceEntryComponent component1 = newTraceEntryComponent(arena);
+        TraceEntryImpl entry1 = pushEntry(component1);
+        component1.releaseArena(true);
+        // when
+        TraceEntryArena arena2 = TraceEntryArena.acquire();
+        TraceEntryComponent component2 = newTraceEntryComponent(arena2);
+        TraceEntryImpl entry2 = pushEntry(component2);
+        // then
+        assertThat(arena2).isSameAs(arena);
+        assertThat(entry2).isSameAs(entry1);
+        assertThat(entry2.getParentTraceEntry()).isSameAs(component2.getRootEntry());
+        assertThat(entry2.getThreadContext())
+                .isSameAs(component2.getRootEntry().getThreadContext());
+    }
+
+    @Test
+    public void shouldNotReuseReleasedEntries() {
+        // given
+        TraceEntryComponent component1 = newTraceEntryComponent(arena);
+        TraceEntryImpl entry1 = pushEntry(component1);
+        component1.releaseArena(false);
+        // when
+        TraceEntryComponent component2 = newTraceEntryComponent(TraceEntryArena.acquire());
+        TraceEntryImpl entry2 = pushEntry(component2);
+        // then
+        assertThat(entry2).isNotSameAs(entry1);
+        assertThat(entry1.getParentTraceEntry()).isSameAs(component1.getRootEntry());
+        assertThat(arena.getPooledCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotAllocateAsyncEntriesFromArena() {
+        // given
+        TraceEntryComponent component = newTraceEntryComponent(arena);
+        // when
+        component.pushEntry(0, mock(MessageSupplier.class), mock(TimerImpl.class),
+                mock(AsyncTimerImpl.class), null, 0);
+        // then
+        assertThat(arena.getPooledCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotAllocateQueryEntriesFromArena() {
+        // given
+        TraceEntryComponent component = newTraceEntryComponent(arena);
+        // when
+        component.pushEntry(0, mock(MessageSupplier.class), mock(TimerImpl.class), null,
+                mock(QueryData.class), 1);
+        // then
+        assertThat(arena.getPooledCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotRecycleEntriesWhileBeingRead() throws Exception {
+        // given
+        final TimerImpl timer = mock(TimerImpl.class);
+        final ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier rootMessageSupplier = mock(MessageSupplier.class);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger readCount = new AtomicInteger();
+        final AtomicInteger mismatchCount = new AtomicInteger();
+        // when
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    Snapshot snapshot = published;
+                    if (snapshot == null || !snapshot.guard.tryAcquire()) {
+                        continue;
+                    }
+                    try {
+                        TraceEntryImpl entry = snapshot.rootEntry.getNextTraceEntry();
+                        while (entry != null) {
+                            if (entry.getMessageSupplier() != snapshot.messageSupplier
+                                    || entry.getThreadContext() != threadContext) {
+                                mismatchCount.incrementAndGet();
+                            }
+                            entry = entry.getNextTraceEntry();
+                        }
+                        readCount.incrementAndGet();
+                    } finally {
+                        snapshot.guard.release();
+                    }
+                }
+            }
+        });
+        reader.start();
+        int recycledCount = 0;
+        TraceEntryArena currArena = arena;
+        // keep going until both the recycle and the hand off paths have been exercised
+        for (int i = 0; i < 10000 || readCount.get() == 0 || recycledCount == 0; i++) {
+            Object messageSupplier = new Object();
+            TraceEntryComponent component = new TraceEntryComponent(threadContext,
+                    rootMessageSupplier, timer, 0, currArena);
+            for (int j = 0; j < 10; j++) {
+                TraceEntryImpl entry = component.pushEntry(0, messageSupplier, timer, null, null, 0);
+                component.popNonRootEntry(entry);
+            }
+            TraceEntryReadGuard guard = new TraceEntryReadGuard();
+            published = new Snapshot(component.getRootEntry(), messageSupplier, guard);
+            boolean recycle = guard.tryRecycle();
+            if (recycle) {
+                recycledCount++;
+            }
+            component.releaseArena(recycle);
+            currArena = TraceEntryArena.acquire();
+        }
+        done.set(true);
+        reader.join();
+        // drop any entries pooled by the last iteration, since the arena is per thread and so is
+        // shared with the other tests
+        TraceEntryComponent component = new TraceEntryComponent(threadContext,
+                rootMessageSupplier, timer, 0, currArena);
+        for (int j = 0; j < 10; j++) {
+            component.popNonRootEntry(component.pushEntry(0, new Object(), timer, null, null, 0));
+        }
+        component.releaseArena(false);
+        // then
+        assertThat(readCount.get()).isPositive();
+        assertThat(recycledCount).isPositive();
+        assertThat(mismatchCount.get()).isZero();
+        assertThat(arena.getPooledCount()).isZero();
+    }
+
+    private static TraceEntryComponent newTraceEntryComponent(TraceEntryArena arena) {
+        return new TraceEntryComponent(mock(ThreadContextImpl.class),
+                mock(MessageSupplier.class), mock(TimerImpl.class), 0, arena);
+    }
+
+    private static TraceEntryImpl pushEntry(TraceEntryComponent component) {
+        TraceEntryImpl entry = component.pushEntry(0, mock(MessageSupplier.class),
+                mock(TimerImpl.class), null, null, 0);
+        component.popNonRootEntry(entry);
+        return entry;
+    }
+
+    private static class Snapshot {
+
+        private final TraceEntryImpl rootEntry;
+        private final Object messageSupplier;
+        private final TraceEntryReadGuard guard;
+
+        private Snapshot(TraceEntryImpl rootEntry, Object messageSupplier,
+                TraceEntryReadGuard guard) {
+            this.rootEntry = rootEntry;
+            this.messageSupplier = messageSupplier;
+            this.guard = guard;
+        }
+    }
+}
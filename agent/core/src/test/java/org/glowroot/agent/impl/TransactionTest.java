@@ -15,9 +15,30 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.impl.Transaction.RootTimerCollector;
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class TransactionTest {
 
@@ -59,4 +80,71 @@ public class TransactionTest {
         // then
         assertThat(lowerSixBytes).isEqualTo("9ab0affd1a83");
     }
+
+    @Test
+    public void shouldStartAuxThreadContextsConcurrently() throws Exception {
+        // given
+        final Transaction transaction = createTransaction();
+        final ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+        final TimerNameImpl timerName = mock(TimerNameImpl.class);
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    latch.await();
+                    for (int j = 0; j < 50; j++) {
+                        assertThat(transaction.startAuxThreadContext(
+                                mainThreadContext.getRootEntry(),
+                                mainThreadContext.getTailEntry(), timerName, 0,
+                                new ThreadContextThreadLocal().getHolder(), null, null))
+                                        .isNotNull();
+                    }
+                    return null;
+                }
+            }));
+        }
+        latch.countDown();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        // then
+        RootTimerCollector rootTimers = mock(RootTimerCollector.class);
+        transaction.mergeAuxThreadTimersInto(rootTimers);
+        verify(rootTimers, times(400)).mergeRootTimer(any(CommonTimerImpl.class));
+    }
+
+    @Test
+    public void shouldNotStartAuxThreadContextAfterEnd() {
+        // given
+        Transaction transaction = createTransaction();
+        ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
+        ThreadContextThreadLocal.Holder threadContextHolder =
+                new ThreadContextThreadLocal().getHolder();
+        ThreadContextImpl auxThreadContext = transaction.startAuxThreadContext(
+                mainThreadContext.getRootEntry(), mainThreadContext.getTailEntry(),
+                mock(TimerNameImpl.class), 0, threadContextHolder, null, null);
+        // when
+        transaction.end(0, false);
+        // then
+        assertThat(threadContextHolder.get()).isNull();
+        assertThat(auxThreadContext).isNotNull();
+        assertThat(transaction.getActiveAuxThreadContexts()).isEmpty();
+        assertThat(transaction.startAuxThreadContext(mainThreadContext.getRootEntry(),
+                mainThreadContext.getTailEntry(), mock(TimerNameImpl.class), 0,
+                new ThreadContextThreadLocal().getHolder(), null, null)).isNull();
+    }
+
+    private static Transaction createTransaction() {
+        return new Transaction(0, 0, "type", "name", mock(MessageSupplier.class),
+                mock(TimerNameImpl.class), false, 100, 100, 100, 100, null,
+                mock(CompletionCallback.class), mock(Ticker.class),
+                mock(TransactionRegistry.class), mock(TransactionService.class),
+                mock(ConfigService.class), mock(UserProfileScheduler.class),
+                new ThreadContextThreadLocal().getHolder());
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.live;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.InstrumentationConfig;
+import org.glowroot.agent.weaving.AdviceCache;
+import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.common.live.LiveWeavingService.ReweaveResult;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LiveWeavingServiceImplTest {
+
+    private Instrumentation instrumentation;
+    private AnalyzedWorld analyzedWorld;
+    private LiveWeavingServiceImpl liveWeavingService;
+
+    @Before
+    public void beforeEachTest() {
+        instrumentation = mock(Instrumentation.class);
+        when(instrumentation.isRetransformClassesSupported()).thenReturn(true);
+        when(instrumentation.getAllLoadedClasses()).thenReturn(new Class<?>[0]);
+        analyzedWorld = mock(AnalyzedWorld.class);
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getInstrumentationConfigs())
+                .thenReturn(ImmutableList.<InstrumentationConfig>of());
+        liveWeavingService = new LiveWeavingServiceImpl(analyzedWorld, instrumentation,
+                configService, mock(AdviceCache.class), true);
+    }
+
+    @Test
+    public void shouldReweaveSingleBatchImmediately() throws Exception {
+        // given
+        when(analyzedWorld.getClassesWithReweavableAdvice(true)).thenReturn(createClasses(10));
+
+        // when
+        ReweaveResult result = liveWeavingService.reweave("");
+
+        // then
+        assertThat(result.inProgress()).isFalse();
+        assertThat(result.classUpdateCount()).isEqualTo(10);
+        assertThat(result.batchCount()).isEqualTo(1);
+        verify(instrumentation).retransformClasses(ArgumentMatchers.<Class<?>>any());
+    }
+
+    @Test
+    public void shouldReweaveMultipleBatchesInBackground() throws Exception {
+        // given
+        when(analyzedWorld.getClassesWithReweavableAdvice(true)).thenReturn(createClasses(250));
+        final CountDownLatch firstBatchLatch = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                firstBatchLatch.await();
+                return null;
+            }
+        }).when(instrumentation).retransformClasses(ArgumentMatchers.<Class<?>>any());
+
+        // when
+        ReweaveResult result = liveWeavingService.reweave("");
+        GlobalMeta globalMeta = liveWeavingService.getGlobalMeta("");
+        firstBatchLatch.countDown();
+
+        // then
+        assertThat(result.inProgress()).isTrue();
+        assertThat(result.classUpdateCount()).isEqualTo(250);
+        assertThat(result.batchCount()).isEqualTo(3);
+        assertThat(globalMeta.getReweaveBatchCount()).isEqualTo(3);
+        assertThat(globalMeta.getReweaveCompletedBatchCount()).isZero();
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000
+                && liveWeavingService.getGlobalMeta("").getReweaveBatchCount() != 0) {
+            Thread.sleep(10);
+        }
+        assertThat(liveWeavingService.getGlobalMeta("").getReweaveBatchCount()).isZero();
+        verify(instrumentation, times(3)).retransformClasses(ArgumentMatchers.<Class<?>>any());
+    }
+
+    @Test
+    public void shouldNotBlockOnBackgroundReweave() throws Exception {
+        // given
+        when(analyzedWorld.getClassesWithReweavableAdvice(true)).thenReturn(createClasses(250));
+        final CountDownLatch firstBatchLatch = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                firstBatchLatch.await();
+                return null;
+            }
+        }).when(instrumentation).retransformClasses(ArgumentMatchers.<Class<?>>any());
+
+        // when
+        liveWeavingService.reweave("");
+        ReweaveResult result = liveWeavingService.reweave("");
+        ReweaveResult result2 = liveWeavingService.reweave("");
+        firstBatchLatch.countDown();
+
+        // then
+        assertThat(result.inProgress()).isTrue();
+        assertThat(result.classUpdateCount()).isZero();
+        assertThat(result.batchCount()).isEqualTo(3);
+        assertThat(result2.inProgress()).isTrue();
+        // the two pending reweaves are coalesced into a single follow-up reweave
+        verify(instrumentation, timeout(5000).times(6))
+                .retransformClasses(ArgumentMatchers.<Class<?>>any());
+        ReweaveResult result3 = liveWeavingService.reweaveAndWait();
+        assertThat(result3.inProgress()).isFalse();
+        verify(instrumentation, times(9)).retransformClasses(ArgumentMatchers.<Class<?>>any());
+    }
+
+    @Test
+    public void shouldWaitForMultipleBatches() throws Exception {
+        // given
+        when(analyzedWorld.getClassesWithReweavableAdvice(true)).thenReturn(createClasses(250));
+
+        // when
+        ReweaveResult result = liveWeavingService.reweaveAndWait();
+
+        // then
+        assertThat(result.inProgress()).isFalse();
+        assertThat(result.batchCount()).isEqualTo(3);
+        verify(instrumentation, times(3)).retransformClasses(ArgumentMatchers.<Class<?>>any());
+        assertThat(liveWeavingService.getGlobalMeta("").getReweaveBatchCount()).isZero();
+    }
+
+    // array classes of increasing dimension are used since they are distinct classes
+    private static List<Class<?>> createClasses(int count) {
+        List<Class<?>> classes = Lists.newArrayList();
+        for (int i = 1; i <= count; i++) {
+            classes.add(Array.newInstance(Object.class, new int[i]).getClass());
+        }
+        return classes;
+    }
+}
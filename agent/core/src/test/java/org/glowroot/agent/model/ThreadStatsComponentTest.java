@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadStatsComponentTest {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    @BeforeClass
+    public static void setUp() {
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+    }
+
+    @Test
+    public void shouldCaptureBlockedWaited() throws Exception {
+        // given
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null, false);
+        Thread.sleep(10);
+        // when
+        threadStatsComponent.onComplete();
+        // then
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        assertThat(threadStats.getTotalCpuNanos()).isNotEqualTo(-1);
+        assertThat(threadStats.getTotalBlockedMillis()).isNotEqualTo(-1);
+        assertThat(threadStats.getTotalWaitedMillis()).isNotEqualTo(-1);
+        assertThat(threadStats.isBlockedWaitedPartial()).isFalse();
+    }
+
+    @Test
+    public void shouldNotCaptureDeferredBlockedWaitedWithoutSample() {
+        // given
+        long deferredCaptureCount = ThreadStatsComponent.getDeferredCaptureCount();
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null, true);
+        // when
+        threadStatsComponent.onComplete();
+        // then
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        assertThat(threadStats.getTotalCpuNanos()).isNotEqualTo(-1);
+        assertThat(threadStats.getTotalBlockedMillis()).isEqualTo(-1);
+        assertThat(threadStats.getTotalWaitedMillis()).isEqualTo(-1);
+        assertThat(threadStats.isBlockedWaitedPartial()).isFalse();
+        assertThat(ThreadStatsComponent.getDeferredCaptureCount())
+                .isEqualTo(deferredCaptureCount);
+    }
+
+    @Test
+    public void shouldCaptureDeferredBlockedWaitedAfterSample() throws Exception {
+        // given
+        long deferredCaptureCount = ThreadStatsComponent.getDeferredCaptureCount();
+        ThreadStatsComponent threadStatsComponent = new ThreadStatsComponent(null, true);
+        threadStatsComponent.onStackTraceSample(
+                threadMXBean.getThreadInfo(Thread.currentThread().getId(), 0));
+        Thread.sleep(10);
+        // when
+        threadStatsComponent.onComplete();
+        // then
+        ThreadStats threadStats = threadStatsComponent.getThreadStats();
+        assertThat(threadStats.getTotalCpuNanos()).isNotEqualTo(-1);
+        assertThat(threadStats.getTotalBlockedMillis()).isNotEqualTo(-1);
+        assertThat(threadStats.getTotalWaitedMillis()).isGreaterThanOrEqualTo(10);
+        assertThat(threadStats.isBlockedWaitedPartial()).isTrue();
+        assertThat(ThreadStatsComponent.getDeferredCaptureCount())
+                .isEqualTo(deferredCaptureCount + 1);
+    }
+}
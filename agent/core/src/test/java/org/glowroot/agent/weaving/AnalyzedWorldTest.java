@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    private AnalyzedWorld analyzedWorld;
+
+    @Before
+    public void beforeEachTest() {
+        analyzedWorld = new AnalyzedWorld(Suppliers.ofInstance(ImmutableList.<Advice>of()),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+    }
+
+    @Test
+    public void shouldTrackClassLoaders() {
+        // given
+        ClassLoader loader1 = new IsolatedWeavingClassLoader();
+        ClassLoader loader2 = new IsolatedWeavingClassLoader();
+        // when
+        analyzedWorld.add(analyzedClass("a.A"), loader1);
+        analyzedWorld.add(analyzedClass("b.B"), loader2);
+        analyzedWorld.add(analyzedClass("c.C"), loader1);
+        // then
+        assertThat(analyzedWorld.getClassLoaders()).containsOnly(loader1, loader2);
+    }
+
+    @Test
+    public void shouldShareConcurrentAnalysis() throws Exception {
+        // given
+        final ClassLoader loader = AnalyzedWorldTest.class.getClassLoader();
+        final ParseContext parseContext = ImmutableParseContext.of("test", null);
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<List<AnalyzedClass>>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<List<AnalyzedClass>>() {
+                @Override
+                public List<AnalyzedClass> call() throws Exception {
+                    latch.await();
+                    return analyzedWorld.getAnalyzedHierarchy(BasicMisc.class.getName(), loader,
+                            parseContext);
+                }
+            }));
+        }
+        latch.countDown();
+        // then
+        List<AnalyzedClass> hierarchy = futures.get(0).get();
+        assertThat(hierarchy.get(0).name()).isEqualTo(BasicMisc.class.getName());
+        for (Future<List<AnalyzedClass>> future : futures) {
+            List<AnalyzedClass> otherHierarchy = future.get();
+            assertThat(otherHierarchy).hasSameSizeAs(hierarchy);
+            for (int i = 0; i < hierarchy.size(); i++) {
+                assertThat(otherHierarchy.get(i)).isSameAs(hierarchy.get(i));
+            }
+        }
+        executor.shutdown();
+    }
+
+    private static AnalyzedClass analyzedClass(String name) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(0)
+                .name(name)
+                .ejbRemote(false)
+                .build();
+    }
+}
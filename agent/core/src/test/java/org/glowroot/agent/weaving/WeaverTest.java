@@ -134,6 +134,8 @@ import org.glowroot.agent.weaving.targets.Misc2;
 import org.glowroot.agent.weaving.targets.NativeMisc;
 import org.glowroot.agent.weaving.targets.NestingMisc;
 import org.glowroot.agent.weaving.targets.OnlyThrowingMisc;
+import org.glowroot.agent.weaving.targets.PrefilterRejectedInterface.ImplementsPrefilterRejectedInterface;
+import org.glowroot.agent.weaving.targets.PrefilterRejectedSuperMisc.ExtendsPrefilterRejectedSuperMisc;
 import org.glowroot.agent.weaving.targets.PrimitiveMisc;
 import org.glowroot.agent.weaving.targets.ShimmedMisc;
 import org.glowroot.agent.weaving.targets.StaticMisc;
@@ -1019,7 +1021,7 @@ public class WeaverTest {
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
                 ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
-                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class));
+                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1364,6 +1366,34 @@ public class WeaverTest {
         assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(1);
     }
 
+    @Test
+    public void shouldHandleSubclassOfPrefilterRejectedSuperClass() throws Exception {
+        // given
+        Misc test = newWovenObject(ExtendsPrefilterRejectedSuperMisc.class, Misc.class,
+                BasicAdvice.class);
+        // when
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldHandleImplementationOfPrefilterRejectedInterface() throws Exception {
+        // given
+        Misc test = newWovenObject(ImplementsPrefilterRejectedInterface.class, Misc.class,
+                BasicAdvice.class);
+        // when
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(1);
+    }
+
     @Test
     public void shouldNotCrashOnInheritedFinalMethodFulfillingAnInterface() throws Exception {
         // given
@@ -1767,7 +1797,7 @@ public class WeaverTest {
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
-                mock(ConfigService.class));
+                mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1807,7 +1837,7 @@ public class WeaverTest {
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
-                mock(ConfigService.class));
+                mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindClassMetaAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindMethodNameAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+import org.glowroot.agent.weaving.targets.SuperBasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+import static org.mockito.Mockito.when;
+
+public class WeavingCacheTest {
+
+    private File cacheDir;
+
+    @Before
+    public void beforeEachTest() {
+        cacheDir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void shouldUseCachedWeavingAfterRestart() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        TestJvm jvm1 = new TestJvm(cacheDir, BasicAdvice.class);
+        byte[] wovenBytes = jvm1.weave(classBytes);
+        // when
+        TestJvm jvm2 = new TestJvm(cacheDir, BasicAdvice.class);
+        byte[] cachedBytes = jvm2.weave(classBytes);
+        // then
+        assertThat(wovenBytes).isNotNull();
+        assertThat(jvm1.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(jvm2.weavingCache.getHitCount()).isEqualTo(1);
+        assertThat(cachedBytes).isEqualTo(wovenBytes);
+    }
+
+    @Test
+    public void shouldNotUseCachedWeavingAfterAdvisorsChange() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        byte[] wovenBytes = new TestJvm(cacheDir, BasicAdvice.class).weave(classBytes);
+        // when
+        TestJvm jvm = new TestJvm(cacheDir, BasicAdvice.class, BindMethodNameAdvice.class);
+        byte[] rewovenBytes = jvm.weave(classBytes);
+        // then
+        assertThat(jvm.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(rewovenBytes).isNotEqualTo(wovenBytes);
+        // entries from prior advisors are cleaned up
+        assertThat(cacheDir.list()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotCacheWeavingWithMetaHolder() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        new TestJvm(cacheDir, BindClassMetaAdvice.class).weave(classBytes);
+        // when
+        TestJvm jvm = new TestJvm(cacheDir, BindClassMetaAdvice.class);
+        jvm.weave(classBytes);
+        // then
+        assertThat(jvm.weavingCache.getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldIgnoreCorruptEntry() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        byte[] wovenBytes = new TestJvm(cacheDir, BasicAdvice.class).weave(classBytes);
+        File entryFile = cacheDir.listFiles()[0].listFiles()[0];
+        byte[] entryBytes = Files.toByteArray(entryFile);
+        entryBytes[entryBytes.length / 2] ^= 1;
+        Files.write(entryBytes, entryFile);
+        // when
+        TestJvm jvm = new TestJvm(cacheDir, BasicAdvice.class);
+        byte[] rewovenBytes = jvm.weave(classBytes);
+        // then
+        assertThat(jvm.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(rewovenBytes).isEqualTo(wovenBytes);
+    }
+
+    @Test
+    public void shouldKeepSeparateEntriesForDifferentSuperTypes() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        byte[] wovenBytes = new TestJvm(cacheDir, BasicAdvice.class).weave(classBytes);
+        // when
+        TestJvm jvm1 = new TestJvm(cacheDir, BasicAdvice.class);
+        // e.g. a different version of the super class in this class loader
+        jvm1.analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(SuperBasicMisc.class.getName())
+                .superName(Object.class.getName())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("execute1")
+                        .build())
+                .ejbRemote(false)
+                .build(), jvm1.loader);
+        byte[] rewovenBytes = jvm1.weave(classBytes);
+        TestJvm jvm2 = new TestJvm(cacheDir, BasicAdvice.class);
+        byte[] cachedBytes = jvm2.weave(classBytes);
+        // then
+        assertThat(jvm1.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(rewovenBytes).isNotNull();
+        assertThat(cacheDir.listFiles()[0].list()).hasSize(2);
+        assertThat(jvm2.weavingCache.getHitCount()).isEqualTo(1);
+        assertThat(cachedBytes).isEqualTo(wovenBytes);
+    }
+
+    @Test
+    public void shouldNotCacheWeavingWithUnknownSuperType() throws Exception {
+        // given
+        String className = "org/glowroot/agent/weaving/targets/UnknownSuperMisc";
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, className, null,
+                "org/glowroot/agent/weaving/targets/DoesNotExist",
+                new String[] {Type.getInternalName(Misc.class)});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "execute1", "()V", null, null);
+        mv.visitCode();
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        byte[] classBytes = cw.toByteArray();
+        byte[] wovenBytes = new TestJvm(cacheDir, BasicAdvice.class).weave(className, classBytes);
+        // when
+        TestJvm jvm = new TestJvm(cacheDir, BasicAdvice.class);
+        jvm.weave(className, classBytes);
+        // then
+        assertThat(wovenBytes).isNotNull();
+        assertThat(jvm.weavingCache.getHitCount()).isEqualTo(0);
+        assertThat(cacheDir.listFiles()[0].list()).isEmpty();
+    }
+
+    @Test
+    public void shouldPruneLeastRecentlyUsedEntries() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        byte[] wovenBytes = new TestJvm(cacheDir, BasicAdvice.class).weave(classBytes);
+        File dir = cacheDir.listFiles()[0];
+        long lastModified = dir.listFiles()[0].lastModified();
+        for (int i = 0; i < 5; i++) {
+            File file = new File(dir, "org.example.Stale" + i + "." + Strings.repeat("0", 40));
+            Files.write(new byte[0], file);
+            assertThat(file.setLastModified(lastModified - 60000 * (i + 1))).isTrue();
+        }
+        // when
+        TestJvm jvm = new TestJvm(cacheDir, 4, BasicAdvice.class);
+        byte[] cachedBytes = jvm.weave(classBytes);
+        // then
+        assertThat(dir.list()).hasSize(3);
+        assertThat(new File(dir, "org.example.Stale0." + Strings.repeat("0", 40))).exists();
+        assertThat(new File(dir, "org.example.Stale2." + Strings.repeat("0", 40))).doesNotExist();
+        assertThat(jvm.weavingCache.getHitCount()).isEqualTo(1);
+        assertThat(cachedBytes).isEqualTo(wovenBytes);
+    }
+
+    @Test
+    public void shouldNotWriteEntriesBeyondMaxEntries() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        new TestJvm(cacheDir, 0, BasicAdvice.class).weave(classBytes);
+        // when
+        TestJvm jvm = new TestJvm(cacheDir, 0, BasicAdvice.class);
+        jvm.weave(classBytes);
+        // then
+        assertThat(cacheDir.listFiles()[0].list()).isEmpty();
+        assertThat(jvm.weavingCache.getHitCount()).isEqualTo(0);
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+
+    // simulates a new jvm, with a new analyzed world and a new class loader
+    private static class TestJvm {
+
+        private final AnalyzedWorld analyzedWorld;
+        private final WeavingCache weavingCache;
+        private final Weaver weaver;
+        private final IsolatedWeavingClassLoader loader = new IsolatedWeavingClassLoader();
+
+        private TestJvm(File cacheDir, Class<?>... adviceClasses) throws Exception {
+            this(cacheDir, 50000, adviceClasses);
+        }
+
+        private TestJvm(File cacheDir, int maxEntries, Class<?>... adviceClasses)
+                throws Exception {
+            List<Advice> advisors = Lists.newArrayList();
+            for (Class<?> adviceClass : adviceClasses) {
+                advisors.add(new AdviceBuilder(adviceClass).build());
+            }
+            Supplier<List<Advice>> advisorsSupplier =
+                    Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
+            analyzedWorld = new AnalyzedWorld(advisorsSupplier, ImmutableList.<ShimType>of(),
+                    ImmutableList.<MixinType>of());
+            weavingCache = new WeavingCache(cacheDir, advisorsSupplier.get(),
+                    ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), analyzedWorld,
+                    maxEntries);
+            TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+            when(transactionRegistry.getCurrentThreadContextHolder())
+                    .thenReturn(new ThreadContextThreadLocal().getHolder());
+            weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
+                    ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
+                    Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class),
+                    weavingCache);
+        }
+
+        private byte /*@Nullable*/ [] weave(byte[] classBytes) {
+            return weave(ClassNames.toInternalName(BasicMisc.class.getName()), classBytes);
+        }
+
+        private byte /*@Nullable*/ [] weave(String className, byte[] classBytes) {
+            return weaver.weave(classBytes, className, null, null, loader);
+        }
+    }
+}
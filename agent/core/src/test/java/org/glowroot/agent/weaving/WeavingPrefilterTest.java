@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.Misc;
+import org.glowroot.agent.weaving.targets.PrefilterRejectedInterface;
+import org.glowroot.agent.weaving.targets.PrefilterRejectedSuperMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingPrefilterTest {
+
+    private List<Advice> advisors;
+    private WeavingPrefilter prefilter;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        prefilter = new WeavingPrefilter(ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld);
+    }
+
+    @Test
+    public void shouldRejectClassWithNoMatchingAdvice() throws Exception {
+        // when
+        AnalyzedClass analyzedClass = reject(Plain.class);
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.name()).isEqualTo(Plain.class.getName());
+        assertThat(analyzedClass.superName()).isEqualTo(Exception.class.getName());
+        assertThat(analyzedClass.interfaceNames()).containsExactly(Runnable.class.getName());
+        assertThat(analyzedClass.analyzedMethods()).isEmpty();
+        assertThat(analyzedClass.publicFinalMethods()).hasSize(1);
+        PublicFinalMethod publicFinalMethod = analyzedClass.publicFinalMethods().get(0);
+        assertThat(publicFinalMethod.name()).isEqualTo("execute");
+        assertThat(publicFinalMethod.parameterTypes()).containsExactly("java.lang.String",
+                "int[][]", "long", Misc.class.getName() + "[]");
+    }
+
+    @Test
+    public void shouldRejectSuperClassOfMatchingClass() throws Exception {
+        // when
+        AnalyzedClass analyzedClass = reject(PrefilterRejectedSuperMisc.class);
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.isAbstract()).isTrue();
+        assertThat(analyzedClass.analyzedMethods()).isEmpty();
+        assertThat(analyzedClass.publicFinalMethods()).hasSize(1);
+        assertThat(analyzedClass.publicFinalMethods().get(0).name()).isEqualTo("executeWithArgs");
+    }
+
+    @Test
+    public void shouldRecordMethodsOfRejectedInterface() throws Exception {
+        // when
+        AnalyzedClass analyzedClass = reject(PrefilterRejectedInterface.class);
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.isInterface()).isTrue();
+        assertThat(analyzedClass.analyzedMethods()).hasSize(2);
+        AnalyzedMethod analyzedMethod1 = analyzedClass.analyzedMethods().get(0);
+        assertThat(analyzedMethod1.name()).isEqualTo("execute1");
+        assertThat(analyzedMethod1.parameterTypes()).isEmpty();
+        assertThat(analyzedMethod1.returnType()).isEqualTo("void");
+        assertThat(analyzedMethod1.modifiers())
+                .isEqualTo(Modifier.PUBLIC | Modifier.ABSTRACT);
+        assertThat(analyzedMethod1.signature()).isNull();
+        assertThat(analyzedMethod1.exceptions()).isEmpty();
+        assertThat(analyzedMethod1.advisors()).isEmpty();
+        AnalyzedMethod analyzedMethod2 = analyzedClass.analyzedMethods().get(1);
+        assertThat(analyzedMethod2.name()).isEqualTo("executeWithSignature");
+        assertThat(analyzedMethod2.parameterTypes()).containsExactly("java.lang.CharSequence[]",
+                "int");
+        assertThat(analyzedMethod2.returnType()).isEqualTo("java.util.List");
+        assertThat(analyzedMethod2.signature()).isEqualTo(
+                "<T::Ljava/lang/CharSequence;>([TT;I)Ljava/util/List<TT;>;");
+        assertThat(analyzedMethod2.exceptions()).containsExactly("java.io.IOException",
+                "java.lang.InterruptedException");
+        assertThat(analyzedMethod2.getDesc())
+                .isEqualTo("([Ljava/lang/CharSequence;I)Ljava/util/List;");
+    }
+
+    @Test
+    public void shouldNotRejectClassMatchingAdvice() throws Exception {
+        assertThat(reject(Misc.class)).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectClassInheritingAdvice() throws Exception {
+        assertThat(reject(BasicMisc.class)).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectClassWithMainMethod() throws Exception {
+        assertThat(reject(WithMain.class)).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectHackClass() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(Plain.class);
+        // when
+        AnalyzedClass analyzedClass = prefilter.reject(classBytes,
+                ImportantClassNames.MANAGEMENT_FACTORY_CLASS_NAME, advisors,
+                WeavingPrefilterTest.class.getClassLoader(), null);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    private AnalyzedClass reject(Class<?> clazz) throws Exception {
+        return prefilter.reject(getClassBytes(clazz), ClassNames.toInternalName(clazz.getName()),
+                advisors, WeavingPrefilterTest.class.getClassLoader(), null);
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(
+                Resources.getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+    }
+
+    @SuppressWarnings("serial")
+    public static class Plain extends Exception implements Runnable {
+        @Override
+        public void run() {
+            // long and double constants take up two constant pool entries
+            System.out.println(1234567890123L + 1.5e300);
+        }
+        public final void execute(String s, int[][] i, long l, Misc[] misc) {}
+    }
+
+    public static class WithMain {
+        public static void main(String[] args) {}
+    }
+}
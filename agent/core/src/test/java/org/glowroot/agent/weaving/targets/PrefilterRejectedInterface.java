@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving.targets;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+// nothing in this interface matches any advice, so it is rejected by the weaving prefilter, while
+// its implementation still needs to be woven
+public interface PrefilterRejectedInterface {
+
+    void execute1();
+
+    <T extends CharSequence> List<T> executeWithSignature(T[] items, int count)
+            throws IOException, InterruptedException;
+
+    public static class ImplementsPrefilterRejectedInterface
+            implements PrefilterRejectedInterface, Misc {
+
+        @Override
+        public void execute1() {}
+
+        @Override
+        public <T extends CharSequence> List<T> executeWithSignature(T[] items, int count) {
+            return Collections.<T>emptyList();
+        }
+
+        @Override
+        public String executeWithReturn() {
+            return "xyz";
+        }
+
+        @Override
+        public void executeWithArgs(String one, int two) {}
+    }
+}
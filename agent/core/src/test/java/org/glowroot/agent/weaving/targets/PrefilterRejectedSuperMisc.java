@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving.targets;
+
+// nothing in this class (or in its super types) matches any advice, so it is rejected by the
+// weaving prefilter, while its subclass still needs to be woven
+public abstract class PrefilterRejectedSuperMisc {
+
+    public void execute1() {}
+
+    public final void executeWithArgs(String one, int two) {}
+
+    public static class ExtendsPrefilterRejectedSuperMisc extends PrefilterRejectedSuperMisc
+            implements Misc {
+
+        @Override
+        public String executeWithReturn() {
+            return "xyz";
+        }
+    }
+}
@@ -113,7 +113,7 @@ class EmbeddedGlowrootAgentInit implements GlowrootAgentInit {
         AgentModule agentModule = embeddedAgentModule.getAgentModule();
         agentModule.getConfigService().resetConfig();
         embeddedAgentModule.getSimpleRepoModule().getConfigRepository().resetAdminConfig();
-        agentModule.getLiveWeavingService().reweave("");
+        agentModule.getLiveWeavingService().reweaveAndWait();
     }
 
     @Override
@@ -75,10 +75,16 @@ class PreInitializeStorageShutdownClasses {
 
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
+        types.add("org.glowroot.agent.embedded.util.BlockCodec");
+        types.add("org.glowroot.agent.embedded.util.BlockCodec$1");
+        types.add("org.glowroot.agent.embedded.util.BlockCodec$2");
+        types.add("org.glowroot.agent.embedded.util.BlockCodec$3");
         types.add("org.glowroot.agent.embedded.util.CappedDatabase");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabase$ReadView");
         types.add("org.glowroot.agent.embedded.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$ReadConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
         types.add("org.glowroot.agent.util.AppServerDetection");
         types.add("org.glowroot.agent.util.JavaVersion");
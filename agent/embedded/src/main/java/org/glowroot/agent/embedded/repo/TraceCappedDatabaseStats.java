@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Map;
+
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
@@ -50,4 +52,14 @@ public class TraceCappedDatabaseStats implements TraceCappedDatabaseStatsMXBean
     public CappedDatabaseStats getTraceProfiles() {
         return cappedDatabase.getStats(TRACE_PROFILES);
     }
+
+    @Override
+    public String getCodec() {
+        return cappedDatabase.getCodec().getId();
+    }
+
+    @Override
+    public Map<String, CappedDatabaseStats> getStatsByCodec() {
+        return cappedDatabase.getStatsByCodec();
+    }
 }
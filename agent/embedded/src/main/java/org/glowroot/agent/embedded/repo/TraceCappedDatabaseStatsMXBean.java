@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.embedded.repo;
 
+import java.util.Map;
+
 import org.glowroot.agent.embedded.util.CappedDatabaseStats;
 
 public interface TraceCappedDatabaseStatsMXBean {
@@ -23,4 +25,6 @@ public interface TraceCappedDatabaseStatsMXBean {
     CappedDatabaseStats getTraceQueries();
     CappedDatabaseStats getTraceSharedQueryTexts();
     CappedDatabaseStats getTraceProfiles();
+    String getCodec();
+    Map<String, CappedDatabaseStats> getStatsByCodec();
 }
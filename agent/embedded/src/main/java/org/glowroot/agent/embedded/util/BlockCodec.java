@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.StandardSystemProperty;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import com.ning.compress.lzf.util.ChunkDecoderFactory;
+import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.util.AppServerDetection;
+import org.glowroot.agent.util.JavaVersion;
+
+// each capped database block starts with a codec tag so that blocks written with different codecs
+// can co-exist in the same capped database (e.g. after changing the configured codec)
+//
+// LZF blocks are written without a tag, since LZF chunks always start with 'Z' (which is not used
+// as a tag), this keeps LZF blocks compatible with capped databases written by prior versions
+public enum BlockCodec {
+
+    // LZF chunks always start with 'Z'
+    LZF("lzf", 'Z') {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            if (USE_SAFE_ENCODER) {
+                return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), out);
+            } else {
+                return new LZFOutputStream(out);
+            }
+        }
+        @Override
+        InputStream wrap(InputStream in) throws IOException {
+            if (USE_SAFE_ENCODER) {
+                return new LZFInputStream(ChunkDecoderFactory.safeInstance(), in);
+            } else {
+                return new LZFInputStream(in);
+            }
+        }
+    },
+
+    // favors speed, similar ratio to LZF
+    LZ4("lz4", 1) {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            return new LZ4BlockOutputStream(out, LZ4_BLOCK_SIZE, getLZ4Factory().fastCompressor(),
+                    newLZ4Checksum(), false);
+        }
+        @Override
+        InputStream wrap(InputStream in) {
+            return new LZ4BlockInputStream(in, getLZ4Factory().fastDecompressor(),
+                    newLZ4Checksum());
+        }
+    },
+
+    // favors compression ratio, which is a good trade-off for highly repetitive trace data (e.g.
+    // the same queries and stack frames over and over) in order to retain more data in the same
+    // capped database size
+    DEFLATE("deflate", 2) {
+        @Override
+        OutputStream wrap(OutputStream out) {
+            // default deflater is ended when the stream is closed
+            return new DeflaterOutputStream(out);
+        }
+        @Override
+        InputStream wrap(InputStream in) {
+            // default inflater is ended when the stream is closed
+            return new InflaterInputStream(in);
+        }
+    };
+
+    private static final int LZ4_BLOCK_SIZE = 65536;
+    // this is the default seed used by LZ4BlockOutputStream
+    private static final int LZ4_CHECKSUM_SEED = 0x9747b28c;
+
+    private static final boolean USE_SAFE_ENCODER;
+
+    static {
+        String arch = StandardSystemProperty.OS_ARCH.value();
+        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
+        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
+                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
+                || "ppc64le".equals(arch);
+        USE_SAFE_ENCODER =
+                !unalignedAccessAllowed || (AppServerDetection.isIbmJvm() && JavaVersion.isJava6());
+    }
+
+    private final String id;
+    private final int tag;
+
+    private BlockCodec(String id, int tag) {
+        this.id = id;
+        this.tag = tag;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    abstract OutputStream wrap(OutputStream out) throws IOException;
+
+    abstract InputStream wrap(InputStream in) throws IOException;
+
+    OutputStream newOutputStream(OutputStream out) throws IOException {
+        if (this != LZF) {
+            out.write(tag);
+        }
+        return wrap(out);
+    }
+
+    // the input stream must support mark/reset
+    static InputStream newInputStream(InputStream in) throws IOException {
+        in.mark(1);
+        int tag = in.read();
+        for (BlockCodec codec : values()) {
+            if (codec.tag == tag) {
+                if (codec == LZF) {
+                    in.reset();
+                }
+                return codec.wrap(in);
+            }
+        }
+        if (tag == -1) {
+            // empty block
+            in.reset();
+            return LZF.wrap(in);
+        }
+        throw new IOException("Unexpected capped database block codec tag: " + tag);
+    }
+
+    static @Nullable BlockCodec fromId(String id) {
+        for (BlockCodec codec : values()) {
+            if (codec.id.equals(id)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    // only the pure java instances are used, in order to avoid extracting and loading native
+    // libraries into the monitored JVM
+    private static LZ4Factory getLZ4Factory() {
+        if (USE_SAFE_ENCODER) {
+            return LZ4Factory.safeInstance();
+        } else {
+            return LZ4Factory.fastestJavaInstance();
+        }
+    }
+
+    private static Checksum newLZ4Checksum() {
+        XXHashFactory factory;
+        if (USE_SAFE_ENCODER) {
+            factory = XXHashFactory.safeInstance();
+        } else {
+            factory = XXHashFactory.fastestJavaInstance();
+        }
+        return factory.newStreamingHash32(LZ4_CHECKSUM_SEED).asChecksum();
+    }
+}
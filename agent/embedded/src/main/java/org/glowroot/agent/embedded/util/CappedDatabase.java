@@ -16,22 +16,31 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.concurrent.GuardedBy;
 
-import com.google.common.base.StandardSystemProperty;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
@@ -41,15 +50,9 @@ import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.MessageLite;
 import com.google.protobuf.Parser;
-import com.ning.compress.lzf.LZFInputStream;
-import com.ning.compress.lzf.LZFOutputStream;
-import com.ning.compress.lzf.util.ChunkDecoderFactory;
-import com.ning.compress.lzf.util.ChunkEncoderFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.glowroot.agent.util.AppServerDetection;
-import org.glowroot.agent.util.JavaVersion;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
@@ -59,35 +62,60 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
-    private static final boolean USE_SAFE_LZF_ENCODER;
+    private static final String CODEC_PROPERTY_NAME = "glowroot.internal.cappedDatabase.codec";
 
-    static {
-        String arch = StandardSystemProperty.OS_ARCH.value();
-        // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
-        boolean unalignedAccessAllowed = "i386".equals(arch) || "x86".equals(arch)
-                || "amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch)
-                || "ppc64le".equals(arch);
-        USE_SAFE_LZF_ENCODER =
-                !unalignedAccessAllowed || (AppServerDetection.isIbmJvm() && JavaVersion.isJava6());
-    }
+    private static final BlockCodec DEFAULT_CODEC = getDefaultCodec();
+
+    // compression buffers larger than this are not returned to the pool
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    private static final int BUFFER_POOL_SIZE = 4;
 
     private final File file;
     private final Object lock = new Object();
-    @GuardedBy("lock")
+    // fsync is performed outside of lock so that writers can append blocks while another writer
+    // is waiting on fsync, and so that a single fsync can cover multiple writers' blocks
+    private final Object syncLock = new Object();
+    // writes to out are guarded by lock, but its read-side accessors are safe to call without it
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
+    // readers do not take the lock, instead they validate after each read that the read view is
+    // still current (it is replaced under lock whenever the file layout changes, e.g. on resize)
+    // and that the bytes they read have not been overwritten in the meantime
+    private volatile ReadView readView;
     private volatile boolean closed = false;
 
+    // index just past the last block that has been completely written (including block header)
+    private volatile long lastBlockEndIndex;
+    @GuardedBy("syncLock")
+    private long syncedIndex;
+
+    private final BlockingQueue<CompressionBuffer> bufferPool =
+            new ArrayBlockingQueue<CompressionBuffer>(BUFFER_POOL_SIZE);
+
+    // codec used for writing new blocks, existing blocks are read using the codec they were
+    // written with
+    private final BlockCodec codec;
+
     private final Ticker ticker;
-    private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
+    private final ConcurrentMap<String, CappedDatabaseStats> statsByType =
+            Maps.newConcurrentMap();
+    private final ConcurrentMap<String, CappedDatabaseStats> statsByCodec =
+            Maps.newConcurrentMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, DEFAULT_CODEC, ticker);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, BlockCodec codec, Ticker ticker)
+            throws IOException {
         this.file = file;
+        this.codec = codec;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
-        inFile = new RandomAccessFile(file, "r");
+        readView = openReadView();
+        lastBlockEndIndex = out.getCurrIndex();
+        syncedIndex = lastBlockEndIndex;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -121,6 +149,15 @@ public class CappedDatabase {
         return stats;
     }
 
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    // keyed by codec id, only includes codecs that have been used for writing since startup
+    public Map<String, CappedDatabaseStats> getStatsByCodec() {
+        return ImmutableMap.copyOf(statsByCodec);
+    }
+
     @OnlyUsedByTests
     long write(final ByteSource byteSource, String type) throws IOException {
         return write(type, new Copier() {
@@ -132,42 +169,126 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
-        synchronized (lock) {
-            if (closed) {
-                return -1;
-            }
-            long startTick = ticker.read();
-            out.startBlock();
-            NonClosingCountingOutputStream countingStreamAfterCompression =
-                    new NonClosingCountingOutputStream(out);
+        if (closed) {
+            return -1;
+        }
+        long startTick = ticker.read();
+        // serialization and compression are performed outside of the lock so that concurrent
+        // writers only contend on appending the already compressed block
+        CompressionBuffer buffer = borrowBuffer();
+        try {
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(newLZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(codec.newOutputStream(buffer));
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
+            long compressionEndTick = ticker.read();
+            long lockAcquiredTick;
+            long lockReleasedTick;
+            long cappedId;
+            long blockEndIndex;
+            synchronized (lock) {
+                if (closed) {
+                    return -1;
+                }
+                lockAcquiredTick = ticker.read();
+                out.startBlock();
+                buffer.writeTo(out);
+                cappedId = out.endBlock();
+                blockEndIndex = out.getCurrIndex();
+                lastBlockEndIndex = blockEndIndex;
+                lockReleasedTick = ticker.read();
+            }
+            if (!syncUpTo(blockEndIndex)) {
+                return -1;
+            }
             long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
+            long bytesBeforeCompression = countingStreamBeforeCompression.getCount();
+            long bytesAfterCompression = buffer.size();
+            long totalNanos = endTick - startTick;
+            long compressionNanos = compressionEndTick - startTick;
+            long lockHoldNanos = lockReleasedTick - lockAcquiredTick;
+            long syncNanos = endTick - lockReleasedTick;
+            getOrCreateStats(statsByType, type).record(bytesBeforeCompression,
+                    bytesAfterCompression, totalNanos, compressionNanos, lockHoldNanos, syncNanos);
+            getOrCreateStats(statsByCodec, codec.getId()).record(bytesBeforeCompression,
+                    bytesAfterCompression, totalNanos, compressionNanos, lockHoldNanos, syncNanos);
+            return cappedId;
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    // group commit: writers that queue up on syncLock while another writer is performing fsync are
+    // typically all covered by the next fsync
+    //
+    // returns false if the capped database was closed
+    private boolean syncUpTo(long blockEndIndex) throws IOException {
+        synchronized (syncLock) {
+            if (syncedIndex >= blockEndIndex) {
+                return true;
+            }
+            if (closed) {
+                return false;
             }
-            stats.record(countingStreamBeforeCompression.getCount(),
-                    countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            // read before fsync, since blocks that end after this may not be completely written yet
+            long index = lastBlockEndIndex;
+            out.sync();
+            syncedIndex = index;
+            return true;
+        }
+    }
+
+    private static CappedDatabaseStats getOrCreateStats(
+            ConcurrentMap<String, CappedDatabaseStats> statsMap, String key) {
+        CappedDatabaseStats stats = statsMap.get(key);
+        if (stats == null) {
+            stats = new CappedDatabaseStats();
+            CappedDatabaseStats existing = statsMap.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    // an invalid value must not throw here, since this is called during class initialization
+    private static BlockCodec getDefaultCodec() {
+        String value = System.getProperty(CODEC_PROPERTY_NAME);
+        if (value == null) {
+            return BlockCodec.LZF;
+        }
+        BlockCodec codec = BlockCodec.fromId(value);
+        if (codec == null) {
+            logger.warn("invalid value for {}: {}", CODEC_PROPERTY_NAME, value);
+            return BlockCodec.LZF;
         }
+        return codec;
+    }
+
+    private CompressionBuffer borrowBuffer() {
+        CompressionBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            return new CompressionBuffer();
+        }
+        return buffer;
+    }
+
+    private void returnBuffer(CompressionBuffer buffer) {
+        if (buffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+            // don't hold on to large buffers
+            return;
+        }
+        buffer.reset();
+        // if the pool is full, the buffer is just discarded
+        bufferPool.offer(buffer);
     }
 
     public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        if (isExpired(cappedId)) {
             return null;
         }
-        if (inTheFuture) {
+        if (cappedId >= out.getCurrIndex()) {
             // this can happen when the glowroot folder is copied for analysis without shutting down
             // the JVM and glowroot.capped.db is copied first, then new data is written to
             // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
@@ -178,15 +299,12 @@ public class CappedDatabase {
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
         // lots of small reads from the underlying RandomAccessFile
         final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
+        InputStream input = BlockCodec.newInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isExpired(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -197,16 +315,10 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ MessageLite> List<T> readMessages(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        if (isExpired(cappedId)) {
             return ImmutableList.of();
         }
-        if (inTheFuture) {
+        if (cappedId >= out.getCurrIndex()) {
             // this can happen when the glowroot folder is copied for analysis without shutting down
             // the JVM and glowroot.capped.db is copied first, then new data is written to
             // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
@@ -217,7 +329,7 @@ public class CappedDatabase {
         // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
         // lots of small reads from the underlying RandomAccessFile
         final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
+        InputStream input = BlockCodec.newInputStream(
                 new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
@@ -228,10 +340,7 @@ public class CappedDatabase {
                 messages.add(message);
             }
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isExpired(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -247,15 +356,11 @@ public class CappedDatabase {
     }
 
     boolean isExpired(long cappedId) {
-        synchronized (lock) {
-            return out.isOverwritten(cappedId);
-        }
+        return cappedId < getSmallestNonExpiredId();
     }
 
     public long getSmallestNonExpiredId() {
-        synchronized (lock) {
-            return out.getSmallestNonOverwrittenId();
-        }
+        return getSmallestNonExpiredId(readView);
     }
 
     public void resize(int newSizeKb) throws IOException {
@@ -263,9 +368,12 @@ public class CappedDatabase {
             if (closed) {
                 return;
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+            // closing the read view causes concurrent readers to retry against the new read view
+            readView.close();
+            synchronized (syncLock) {
+                out.resize(newSizeKb);
+            }
+            readView = openReadView();
         }
     }
 
@@ -273,25 +381,41 @@ public class CappedDatabase {
     public void close() throws IOException {
         synchronized (lock) {
             closed = true;
-            out.close();
-            inFile.close();
+            synchronized (syncLock) {
+                out.close();
+            }
+            readView.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
-        } else {
-            return new LZFOutputStream(outputStream);
-        }
+    private long getSmallestNonExpiredId(ReadView view) {
+        // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
+        // writeLimitIndex - sizeBytes would be less than lastResizeBaseIndex
+        //
+        // using writeLimitIndex instead of currIndex so that bytes which are in the process of
+        // being overwritten are already considered expired
+        return Math.max(view.lastResizeBaseIndex, out.getWriteLimitIndex() - view.sizeBytes);
+    }
+
+    private ReadView openReadView() throws IOException {
+        return new ReadView(new RandomAccessFile(file, "r"), out.getSizeBytes(),
+                out.getLastResizeBaseIndex());
     }
 
-    private static LZFInputStream newLZFInputStream(InputStream inputStream) throws IOException {
-        if (USE_SAFE_LZF_ENCODER) {
-            return new LZFInputStream(ChunkDecoderFactory.safeInstance(), inputStream);
-        } else {
-            return new LZFInputStream(inputStream);
+    // returns false if the read view was closed because the capped database was closed
+    private boolean replaceClosedReadView(ReadView closedView) throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            if (readView == closedView) {
+                // closed due to thread interrupt (FileChannel is interruptible, and being
+                // interrupted during a read closes the channel for all readers)
+                closedView.close();
+                readView = openReadView();
+            }
+            return true;
         }
     }
 
@@ -309,7 +433,7 @@ public class CappedDatabase {
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
             // lots of small reads from the underlying RandomAccessFile
             final int bufferSize = 32768;
-            return new InputStreamReader(newLZFInputStream(
+            return new InputStreamReader(BlockCodec.newInputStream(
                     new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
                     UTF_8);
         }
@@ -330,24 +454,52 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            while (true) {
+                ReadView view = readView;
+                try {
+                    int numRead = read(view, bytes, off, len);
+                    if (numRead != -1) {
+                        return numRead;
+                    }
+                    // read view was replaced during the read, retry against the new read view
+                } catch (ClosedChannelException e) {
+                    if (e instanceof ClosedByInterruptException
+                            || !replaceClosedReadView(view)) {
+                        throw e;
+                    }
                 }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            }
+        }
+
+        // returns -1 if the read view was replaced during the read
+        private int read(ReadView view, byte[] bytes, int off, int len) throws IOException {
+            checkNotOverwritten(view);
+            if (blockLength == -1) {
+                long length = view.readLong(view.convertToFilePosition(cappedId));
+                if (readView != view) {
+                    return -1;
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
-                inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                // validate before using the length since block header may have been overwritten
+                checkNotOverwritten(view);
+                blockLength = length;
+            }
+            long filePosition = view.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = view.sizeBytes - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            view.readFully(bytes, off, numToRead, filePosition);
+            if (readView != view) {
+                return -1;
+            }
+            checkNotOverwritten(view);
+            blockIndex += numToRead;
+            return numToRead;
+        }
+
+        private void checkNotOverwritten(ReadView view) throws IOException {
+            if (cappedId < getSmallestNonExpiredId(view)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
             }
         }
 
@@ -365,6 +517,51 @@ public class CappedDatabase {
         }
     }
 
+    private static class ReadView {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long sizeBytes;
+        private final long lastResizeBaseIndex;
+
+        private ReadView(RandomAccessFile file, long sizeBytes, long lastResizeBaseIndex) {
+            this.file = file;
+            channel = file.getChannel();
+            this.sizeBytes = sizeBytes;
+            this.lastResizeBaseIndex = lastResizeBaseIndex;
+        }
+
+        private long convertToFilePosition(long index) {
+            return (index - lastResizeBaseIndex) % sizeBytes;
+        }
+
+        private long readLong(long filePosition) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            readFully(buffer, filePosition);
+            return buffer.getLong(0);
+        }
+
+        // positional reads do not modify the channel position, so can be used concurrently
+        private void readFully(byte[] bytes, int off, int len, long filePosition)
+                throws IOException {
+            readFully(ByteBuffer.wrap(bytes, off, len).slice(), filePosition);
+        }
+
+        private void readFully(ByteBuffer buffer, long filePosition) throws IOException {
+            long position = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + buffer.position());
+                if (n == -1) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        private void close() throws IOException {
+            file.close();
+        }
+    }
+
     private class ShutdownHookThread extends Thread {
         @Override
         public void run() {
@@ -374,8 +571,10 @@ public class CappedDatabase {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
-                    out.close();
-                    inFile.close();
+                    synchronized (syncLock) {
+                        out.close();
+                    }
+                    readView.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
@@ -394,31 +593,14 @@ public class CappedDatabase {
         }
     }
 
-    private static class NonClosingCountingOutputStream extends FilterOutputStream {
-
-        private long count;
-
-        private NonClosingCountingOutputStream(OutputStream out) {
-            super(out);
-        }
-
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            out.write(b, off, len);
-            count += len;
-        }
+    private static class CompressionBuffer extends ByteArrayOutputStream {
 
-        @Override
-        public void write(int b) throws IOException {
-            out.write(b);
-            count++;
+        private CompressionBuffer() {
+            super(32768);
         }
 
-        @Override
-        public void close() {}
-
-        private long getCount() {
-            return count;
+        private int capacity() {
+            return buf.length;
         }
     }
 }
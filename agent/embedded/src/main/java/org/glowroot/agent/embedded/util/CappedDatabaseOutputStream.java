@@ -20,9 +20,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
-import org.glowroot.common.util.OnlyUsedByTests;
-
-// Needs to be externally synchronized around startBlock()/write()/endBlock().
+// Needs to be externally synchronized around startBlock()/write()/endBlock()/resize().
+//
+// sync() can be called concurrently with startBlock()/write()/endBlock(), but needs to be
+// externally synchronized with resize() and close().
+//
+// The read-side accessors getCurrIndex(), getWriteLimitIndex(), getSizeBytes() and
+// getLastResizeBaseIndex() can be called without external synchronization.
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -35,13 +39,17 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    private volatile long currIndex;
+    // writeLimitIndex is published before bytes are written to the file, so that readers (who do
+    // not synchronize with the writer) can detect after a read that the bytes they read may have
+    // been overwritten in the meantime
+    private volatile long writeLimitIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
+    private volatile long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
     // startBlock()/write()/endBlock()
     private volatile int sizeKb;
-    private long sizeBytes;
+    private volatile long sizeBytes;
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -66,6 +74,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        writeLimitIndex = currIndex;
     }
 
     void startBlock() {
@@ -79,27 +88,30 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        // block size is written at the end, but covers bytes before currIndex
+        writeLimitIndex = currIndex;
     }
 
     long endBlock() throws IOException {
         out.seek(HEADER_SKIP_BYTES + blockStartPosition);
         out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
         return blockStartIndex;
     }
 
-    boolean isOverwritten(long cappedId) {
-        return cappedId < getSmallestNonOverwrittenId();
+    long getCurrIndex() {
+        return currIndex;
+    }
+
+    long getWriteLimitIndex() {
+        return writeLimitIndex;
     }
 
-    long getSmallestNonOverwrittenId() {
-        // need to check lastResizeBaseIndex in case it was recently resized larger, in which case
-        // currIndex - sizeBytes would be less than lastResizeBaseIndex
-        return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
+    long getSizeBytes() {
+        return sizeBytes;
     }
 
-    long getCurrIndex() {
-        return currIndex;
+    long getLastResizeBaseIndex() {
+        return lastResizeBaseIndex;
     }
 
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
@@ -175,6 +187,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        writeLimitIndex = currIndex + len;
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -219,7 +232,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
     void sync() throws IOException {
         out.getFD().sync();
     }
@@ -15,50 +15,85 @@
  */
 package org.glowroot.agent.embedded.util;
 
+// compression happens outside of the capped database lock and fsync happens outside of the lock
+// as well (and can be shared across concurrent writers), so total time is broken down into
+// compression time, lock hold time and sync time (the remainder is time spent waiting on locks)
 public class CappedDatabaseStats {
 
     private long totalBytesBeforeCompression;
     private long totalBytesAfterCompression;
     private long totalNanos;
+    private long totalCompressionNanos;
+    private long totalLockHoldNanos;
+    private long totalSyncNanos;
     private long writeCount;
 
-    public long getTotalBytesBeforeCompression() {
+    public synchronized long getTotalBytesBeforeCompression() {
         return totalBytesBeforeCompression;
     }
 
-    public long getTotalBytesAfterCompression() {
+    public synchronized long getTotalBytesAfterCompression() {
         return totalBytesAfterCompression;
     }
 
-    public double getTotalMillis() {
+    public synchronized double getTotalMillis() {
         return totalNanos / 1000000.0;
     }
 
-    public long getWriteCount() {
+    public synchronized double getTotalCompressionMillis() {
+        return totalCompressionNanos / 1000000.0;
+    }
+
+    public synchronized double getTotalLockHoldMillis() {
+        return totalLockHoldNanos / 1000000.0;
+    }
+
+    public synchronized double getTotalSyncMillis() {
+        return totalSyncNanos / 1000000.0;
+    }
+
+    public synchronized long getWriteCount() {
         return writeCount;
     }
 
-    public double getCompressionRatio() {
+    public synchronized double getCompressionRatio() {
         return (totalBytesBeforeCompression - totalBytesAfterCompression)
                 / (double) totalBytesBeforeCompression;
     }
 
-    public double getAverageBytesPerWriteBeforeCompression() {
+    // compression throughput in terms of uncompressed bytes
+    public synchronized double getCompressionMBPerSecond() {
+        return totalBytesBeforeCompression * 1000 / (1024 * 1024 * (double) totalCompressionNanos);
+    }
+
+    public synchronized double getAverageBytesPerWriteBeforeCompression() {
         return totalBytesBeforeCompression / (double) writeCount;
     }
 
-    public double getAverageBytesPerWriteAfterCompression() {
+    public synchronized double getAverageBytesPerWriteAfterCompression() {
         return totalBytesAfterCompression / (double) writeCount;
     }
 
-    public double getAverageMillisPerWrite() {
+    public synchronized double getAverageMillisPerWrite() {
         return totalNanos / (1000 * 1000 * (double) writeCount);
     }
 
-    void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos) {
+    public synchronized double getAverageCompressionMillisPerWrite() {
+        return totalCompressionNanos / (1000 * 1000 * (double) writeCount);
+    }
+
+    public synchronized double getAverageLockHoldMillisPerWrite() {
+        return totalLockHoldNanos / (1000 * 1000 * (double) writeCount);
+    }
+
+    synchronized void record(long bytesBeforeCompression, long bytesAfterCompression, long nanos,
+            long compressionNanos, long lockHoldNanos, long syncNanos) {
         totalBytesBeforeCompression += bytesBeforeCompression;
         totalBytesAfterCompression += bytesAfterCompression;
         totalNanos += nanos;
+        totalCompressionNanos += compressionNanos;
+        totalLockHoldNanos += lockHoldNanos;
+        totalSyncNanos += syncNanos;
         writeCount++;
     }
 }
@@ -24,6 +24,8 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 
@@ -65,6 +67,32 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    // number of read only connections used for queries (e.g. from the UI), in addition to the
+    // single connection used for writes, so that queries don't block writes (zero means that
+    // queries share the single write connection)
+    //
+    // this requires h2's multi-threaded mode, since otherwise h2 only executes one statement at a
+    // time per database
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 0);
+
+    // h2 multi-threaded mode still uses table level locks, and h2 1.3 does not support combining
+    // it with mvcc (or with lock_mode=0), and mvcc without multi-threaded mode executes only one
+    // statement at a time per database, so a query on a read connection blocks writes to the
+    // tables that it reads until it completes
+    //
+    // a write that times out waiting for a table lock releases the data source lock (so that
+    // writes to other tables are not held up behind it) before it is retried, and is given up on
+    // (and the write is lost) once it has been waiting for longer than MAX_WRITE_WAIT_MILLIS
+    private static final int LOCK_TIMEOUT_MILLIS =
+            Integer.getInteger("glowroot.internal.h2.lockTimeout", 1000);
+    private static final int MAX_WRITE_WAIT_MILLIS =
+            Integer.getInteger("glowroot.internal.h2.maxWriteWait", 5000);
+    private static final int WRITE_RETRY_DELAY_MILLIS = 100;
+
+    // org.h2.constant.ErrorCode.LOCK_TIMEOUT_1
+    private static final int H2_LOCK_TIMEOUT_ERROR_CODE = 50200;
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
@@ -73,6 +101,13 @@ public class DataSource {
     private Connection connection;
     private volatile boolean closed;
 
+    // read connections are not used for in-memory database since each connection to an unnamed
+    // in-memory database gets its own database
+    private final int readConnectionCount;
+    // read connections are checked out by queries, and all of them are checked out (under lock)
+    // when the database needs to be closed and re-opened (e.g. defrag)
+    private final BlockingQueue<ReadConnection> readConnections;
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -99,14 +134,26 @@ public class DataSource {
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        connection = createConnection(null, false);
+        readConnectionCount = 0;
+        readConnections = new ArrayBlockingQueue<ReadConnection>(1);
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readConnectionCount) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        this.readConnectionCount = readConnectionCount;
+        connection = createConnection(dbFile, readConnectionCount > 0);
+        readConnections = new ArrayBlockingQueue<ReadConnection>(Math.max(readConnectionCount, 1));
+        synchronized (lock) {
+            addReadConnections();
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -119,9 +166,11 @@ public class DataSource {
             if (closed) {
                 return;
             }
+            closeReadConnections();
             execute("shutdown defrag");
             preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            connection = createConnection(dbFile, readConnectionCount > 0);
+            addReadConnections();
         }
     }
 
@@ -133,9 +182,11 @@ public class DataSource {
             if (closed) {
                 return;
             }
+            closeReadConnections();
             execute("shutdown compact");
             preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            connection = createConnection(dbFile, readConnectionCount > 0);
+            addReadConnections();
         }
     }
 
@@ -162,12 +213,14 @@ public class DataSource {
             }
             List<String> schemaVersionRows =
                     queryForStringList("select schema_version from schema_version");
+            closeReadConnections();
             connection.close();
             preparedStatementCache.invalidateAll();
             if (!dbFile.delete()) {
                 throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
             }
-            connection = createConnection(dbFile);
+            connection = createConnection(dbFile, readConnectionCount > 0);
+            addReadConnections();
             for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
                     .entrySet()) {
                 syncTable(entry.getKey(), entry.getValue());
@@ -205,50 +258,74 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
+        ResultSetExtractor<Long> rse = new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
+                }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        };
+        ReadConnection readConnection = checkoutReadConnection();
+        if (readConnection != null) {
+            try {
+                if (closed) {
+                    return 0;
+                }
+                return query(readConnection.prepareStatement(sql), args, rse);
+            } finally {
+                readConnections.add(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return 0;
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
-                }
-            });
+            return queryUnderLock(sql, args, rse);
         }
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
+        ResultSetExtractor</*@Nullable*/ Long> rse = new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        };
+        ReadConnection readConnection = checkoutReadConnection();
+        if (readConnection != null) {
+            try {
+                if (closed) {
+                    return null;
+                }
+                return query(readConnection.prepareStatement(sql), args, rse);
+            } finally {
+                readConnections.add(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return null;
             }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
-                }
-            });
+            return queryUnderLock(sql, args, rse);
         }
     }
 
@@ -268,22 +345,24 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
+        ReadConnection readConnection = checkoutReadConnection();
+        if (readConnection != null) {
+            try {
+                if (closed) {
+                    return jdbcQuery.valueIfDataSourceClosed();
+                }
+                return query(readConnection.prepareStatement(jdbcQuery.getSql()), jdbcQuery);
+            } finally {
+                readConnections.add(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return jdbcQuery.valueIfDataSourceClosed();
             }
             PreparedStatement preparedStatement =
                     prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return query(preparedStatement, jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -302,26 +381,24 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
+        ReadConnection readConnection = checkoutReadConnection();
+        if (readConnection != null) {
+            try {
+                if (closed) {
+                    return ImmutableList.of();
+                }
+                return query(readConnection.prepareStatement(jdbcQuery.getSql()), jdbcQuery);
+            } finally {
+                readConnections.add(readConnection);
+            }
+        }
         synchronized (lock) {
             if (closed) {
                 return ImmutableList.of();
             }
             PreparedStatement preparedStatement =
                     prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            return query(preparedStatement, jdbcQuery);
             // don't need to close statement since they are all cached and used under lock
         }
     }
@@ -350,14 +427,24 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return 0;
         }
-        synchronized (lock) {
-            if (closed) {
-                return 0;
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (true) {
+            synchronized (lock) {
+                if (closed) {
+                    return 0;
+                }
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                try {
+                    return preparedStatement.executeUpdate();
+                } catch (SQLException e) {
+                    if (!shouldRetryWrite(e, stopwatch)) {
+                        throw e;
+                    }
+                }
+                // don't need to close statement since they are all cached and used under lock
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeUpdate();
-            // don't need to close statement since they are all cached and used under lock
+            sleepBeforeRetryingWrite();
         }
     }
 
@@ -369,14 +456,35 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return new int[0];
         }
-        synchronized (lock) {
-            if (closed) {
-                return new int[0];
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (true) {
+            synchronized (lock) {
+                if (closed) {
+                    return new int[0];
+                }
+                PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+                jdbcUpdate.bind(preparedStatement);
+                if (readConnectionCount == 0) {
+                    return preparedStatement.executeBatch();
+                }
+                // the batch is executed in a single transaction so that it can be safely retried,
+                // since otherwise the batch entries prior to the lock timeout are already committed
+                connection.setAutoCommit(false);
+                try {
+                    int[] updateCounts = preparedStatement.executeBatch();
+                    connection.commit();
+                    return updateCounts;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    if (!shouldRetryWrite(e, stopwatch)) {
+                        throw e;
+                    }
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+                // don't need to close statement since they are all cached and used under lock
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
-            jdbcUpdate.bind(preparedStatement);
-            return preparedStatement.executeBatch();
-            // don't need to close statement since they are all cached and used under lock
+            sleepBeforeRetryingWrite();
         }
     }
 
@@ -487,6 +595,7 @@ public class DataSource {
                 return;
             }
             closed = true;
+            closeReadConnections();
             connection.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
@@ -535,14 +644,79 @@ public class DataSource {
     private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
             ResultSetExtractor<T> rse) throws SQLException {
         PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
-        }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
+        return query(preparedStatement, args, rse);
         // don't need to close statement since they are all cached and used under lock
     }
 
+    private boolean shouldRetryWrite(SQLException e, Stopwatch stopwatch) {
+        if (readConnectionCount == 0 || e.getErrorCode() != H2_LOCK_TIMEOUT_ERROR_CODE) {
+            return false;
+        }
+        if (stopwatch.elapsed(MILLISECONDS) + LOCK_TIMEOUT_MILLIS > MAX_WRITE_WAIT_MILLIS) {
+            logger.warn("giving up on write after waiting {} milliseconds for a long running"
+                    + " query to release its table lock", stopwatch.elapsed(MILLISECONDS));
+            return false;
+        }
+        logger.debug("retrying write after lock timeout: {}", e.getMessage(), e);
+        return true;
+    }
+
+    // called outside of the data source lock, so that other writes can proceed in the meantime
+    private static void sleepBeforeRetryingWrite() throws SQLException {
+        try {
+            MILLISECONDS.sleep(WRITE_RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
+    private @Nullable ReadConnection checkoutReadConnection() throws SQLException {
+        if (readConnectionCount == 0) {
+            return null;
+        }
+        try {
+            while (true) {
+                // read connections are all checked out while the database is being closed and
+                // re-opened (e.g. defrag), and are never returned once the data source is closed
+                ReadConnection readConnection = readConnections.poll(100, MILLISECONDS);
+                if (readConnection != null) {
+                    return readConnection;
+                }
+                if (closed) {
+                    // fall back to write connection, which will then return empty result
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addReadConnections() throws SQLException {
+        if (dbFile == null) {
+            return;
+        }
+        for (int i = 0; i < readConnectionCount; i++) {
+            readConnections.add(new ReadConnection(createConnection(dbFile, true)));
+        }
+    }
+
+    // waits for all read connections to be returned
+    @GuardedBy("lock")
+    private void closeReadConnections() throws SQLException {
+        try {
+            for (int i = 0; i < readConnectionCount; i++) {
+                readConnections.take().connection.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
     @GuardedBy("lock")
     private List</*@Untainted*/ String> getAllTableNamesUnderLock() throws SQLException {
         ResultSet resultSet = connection.getMetaData().getTables(null, null, null, null);
@@ -584,6 +758,47 @@ public class DataSource {
         }
     }
 
+    private static <T extends /*@Nullable*/ Object> T query(PreparedStatement preparedStatement,
+            Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        for (int i = 0; i < args.length; i++) {
+            preparedStatement.setObject(i + 1, args[i]);
+        }
+        ResultSet resultSet = preparedStatement.executeQuery();
+        return extractAndClose(resultSet, rse);
+    }
+
+    private static <T> T query(PreparedStatement preparedStatement, JdbcQuery<T> jdbcQuery)
+            throws Exception {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return jdbcQuery.processResultSet(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    private static <T extends /*@NonNull*/ Object> List<T> query(
+            PreparedStatement preparedStatement, JdbcRowQuery<T> jdbcQuery) throws SQLException {
+        jdbcQuery.bind(preparedStatement);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            List<T> mappedRows = Lists.newArrayList();
+            while (resultSet.next()) {
+                mappedRows.add(jdbcQuery.mapRow(resultSet));
+            }
+            return ImmutableList.copyOf(mappedRows);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
     private static <T> T extractAndClose(ResultSet resultSet, ResultSetExtractor<T> rse)
             throws SQLException {
         ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -596,7 +811,8 @@ public class DataSource {
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private static Connection createConnection(@Nullable File dbFile, boolean multiThreaded)
+            throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
@@ -610,6 +826,9 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (multiThreaded) {
+                url += ";multi_threaded=true;lock_timeout=" + LOCK_TIMEOUT_MILLIS;
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -667,6 +886,47 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private class ReadConnection {
+
+        private final Connection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
+                CacheBuilder.newBuilder().weakValues()
+                        .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                            @Override
+                            public PreparedStatement load(@Untainted String sql)
+                                    throws SQLException {
+                                return connection.prepareStatement(sql);
+                            }
+                        });
+
+        private ReadConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            connection.setReadOnly(true);
+        }
+
+        // only called by the thread that has checked out this read connection
+        private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            try {
+                PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+                // setQueryTimeout() affects all statements of this connection (at least with h2)
+                if (suppressQueryTimeout.get()) {
+                    preparedStatement.setQueryTimeout(0);
+                } else {
+                    preparedStatement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+                }
+                return preparedStatement;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -679,6 +939,12 @@ public class DataSource {
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
                 synchronized (lock) {
+                    // not waiting for read connections that are in use, since shutdown should not
+                    // be held up by a long running query
+                    ReadConnection readConnection;
+                    while ((readConnection = readConnections.poll()) != null) {
+                        readConnection.connection.close();
+                    }
                     connection.close();
                 }
             } catch (SQLException e) {
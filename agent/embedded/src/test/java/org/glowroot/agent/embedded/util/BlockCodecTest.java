@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockCodecTest {
+
+    private static final String TEXT = Strings.repeat("select x from y where z = ?\n", 100);
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        for (BlockCodec codec : BlockCodec.values()) {
+            // given
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            OutputStream out = codec.newOutputStream(baos);
+
+            // when
+            out.write(TEXT.getBytes(UTF_8));
+            out.close();
+
+            // then
+            assertThat(baos.size()).isLessThan(TEXT.length());
+            InputStream in = BlockCodec.newInputStream(
+                    new BufferedInputStream(new ByteArrayInputStream(baos.toByteArray())));
+            assertThat(new String(ByteStreams.toByteArray(in), UTF_8)).isEqualTo(TEXT);
+            in.close();
+        }
+    }
+
+    @Test
+    public void shouldReadBlocksWrittenWithDifferentCodecs() throws Exception {
+        // given
+        File tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+        CappedDatabase cappedDatabase =
+                new CappedDatabase(tempFile, 1024, BlockCodec.LZF, Ticker.systemTicker());
+        long lzfCappedId = cappedDatabase.write(ByteSource.wrap(TEXT.getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+
+        // when
+        cappedDatabase = new CappedDatabase(tempFile, 1024, BlockCodec.LZ4, Ticker.systemTicker());
+        long lz4CappedId = cappedDatabase.write(ByteSource.wrap(TEXT.getBytes(UTF_8)), "test");
+        cappedDatabase.close();
+        cappedDatabase =
+                new CappedDatabase(tempFile, 1024, BlockCodec.DEFLATE, Ticker.systemTicker());
+        long deflateCappedId = cappedDatabase.write(ByteSource.wrap(TEXT.getBytes(UTF_8)), "test");
+
+        // then
+        assertThat(cappedDatabase.read(lzfCappedId).read()).isEqualTo(TEXT);
+        assertThat(cappedDatabase.read(lz4CappedId).read()).isEqualTo(TEXT);
+        assertThat(cappedDatabase.read(deflateCappedId).read()).isEqualTo(TEXT);
+        assertThat(cappedDatabase.getStatsByCodec().keySet()).containsExactly("deflate");
+        cappedDatabase.close();
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldReadEmptyBlock() throws Exception {
+        for (BlockCodec codec : BlockCodec.values()) {
+            // given
+            File tempFile = File.createTempFile("glowroot-test-", ".capped.db");
+            CappedDatabase cappedDatabase =
+                    new CappedDatabase(tempFile, 1024, codec, Ticker.systemTicker());
+
+            // when
+            long cappedId = cappedDatabase.write(ByteSource.empty(), "test");
+
+            // then
+            assertThat(cappedDatabase.read(cappedId).read()).isEmpty();
+            cappedDatabase.close();
+            tempFile.delete();
+        }
+    }
+}
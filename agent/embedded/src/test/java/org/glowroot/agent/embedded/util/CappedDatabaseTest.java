@@ -18,9 +18,17 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -152,4 +160,84 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldReadConcurrentlyWithWrites() throws Exception {
+        // given
+        Random random = new Random();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        final String text = sb.toString();
+        final AtomicLong lastCappedId =
+                new AtomicLong(cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test"));
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<Future<Integer>> futures = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int successfulReads = 0;
+                    while (!done.get()) {
+                        String text2;
+                        try {
+                            text2 = cappedDatabase.read(lastCappedId.get()).read();
+                        } catch (IOException e) {
+                            // rolled over mid-read is expected, anything else is not
+                            assertThat(e.getClass().getSimpleName())
+                                    .isEqualTo("CappedBlockRolledOverMidReadException");
+                            continue;
+                        }
+                        assertThat(text2).isEqualTo(text);
+                        successfulReads++;
+                    }
+                    return successfulReads;
+                }
+            }));
+        }
+
+        // when
+        for (int i = 0; i < 2000; i++) {
+            lastCappedId.set(cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test"));
+        }
+        done.set(true);
+
+        // then
+        for (Future<Integer> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldWriteConcurrently() throws Exception {
+        // given
+        cappedDatabase.resize(1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Long>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            final String text = "text" + i;
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+                }
+            }));
+        }
+
+        // then
+        for (int i = 0; i < 100; i++) {
+            String text2 = cappedDatabase.read(futures.get(i).get()).read();
+            assertThat(text2).isEqualTo("text" + i);
+        }
+        executor.shutdown();
+        CappedDatabaseStats stats = cappedDatabase.getStats("test");
+        assertThat(stats.getWriteCount()).isEqualTo(100);
+        assertThat(stats.getTotalCompressionMillis()).isLessThanOrEqualTo(stats.getTotalMillis());
+        assertThat(stats.getTotalLockHoldMillis()).isLessThanOrEqualTo(stats.getTotalMillis());
+    }
 }
@@ -15,11 +15,21 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.Schemas.Column;
+import org.glowroot.agent.embedded.util.Schemas.ColumnType;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +104,110 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testReadConnections() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        DataSource dataSource = new DataSource(dbFile, 2);
+        try {
+            dataSource.syncTable("test",
+                    ImmutableList.<Column>of(ImmutableColumn.of("value", ColumnType.BIGINT)));
+            // when
+            dataSource.update("insert into test (value) values (?)", 1);
+            dataSource.update("insert into test (value) values (?)", 2);
+            // then
+            assertThat(dataSource.queryForLong("select sum(value) from test")).isEqualTo(3);
+            // and read connections are re-created after defrag
+            dataSource.defrag();
+            dataSource.update("insert into test (value) values (?)", 3);
+            assertThat(dataSource.queryForLong("select sum(value) from test")).isEqualTo(6);
+        } finally {
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testWriteDuringLongRead() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            dataSource.syncTable("test",
+                    ImmutableList.<Column>of(ImmutableColumn.of("value", ColumnType.BIGINT)));
+            dataSource.update("insert into test (value) values (?)", 1);
+            dataSource.execute("create alias if not exists test_sleep for"
+                    + " \"java.lang.Thread.sleep\"");
+            // when
+            Future<Long> future = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    // reads the table for longer than the h2 default lock timeout (1 second)
+                    // which is how long writes used to wait before failing
+                    return dataSource.queryForLong("select sum(value) from test where"
+                            + " test_sleep(3000) is null");
+                }
+            });
+            // give the read time to start
+            Thread.sleep(500);
+            dataSource.update("insert into test (value) values (?)", 2);
+            // then
+            assertThat(future.get()).isEqualTo(1);
+            assertThat(dataSource.queryForLong("select sum(value) from test")).isEqualTo(3);
+        } finally {
+            executor.shutdown();
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testWriteToOtherTableWhileWriteIsWaitingForLongRead() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            dataSource.syncTable("test",
+                    ImmutableList.<Column>of(ImmutableColumn.of("value", ColumnType.BIGINT)));
+            dataSource.syncTable("other",
+                    ImmutableList.<Column>of(ImmutableColumn.of("value", ColumnType.BIGINT)));
+            dataSource.update("insert into test (value) values (?)", 1);
+            dataSource.execute("create alias if not exists test_sleep for"
+                    + " \"java.lang.Thread.sleep\"");
+            Future<Long> readFuture = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return dataSource.queryForLong("select sum(value) from test where"
+                            + " test_sleep(4000) is null");
+                }
+            });
+            // give the read time to start
+            Thread.sleep(500);
+            Future<Integer> writeFuture = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return dataSource.update("insert into test (value) values (?)", 2);
+                }
+            });
+            // give the write time to start waiting on the table lock
+            Thread.sleep(500);
+            // when
+            dataSource.update("insert into other (value) values (?)", 3);
+            // then
+            // the write to the other table did not have to wait for the long read to complete
+            assertThat(readFuture.isDone()).isFalse();
+            assertThat(writeFuture.get()).isEqualTo(1);
+            assertThat(dataSource.queryForLong("select sum(value) from test")).isEqualTo(3);
+        } finally {
+            executor.shutdown();
+            dataSource.close();
+            dbFile.delete();
+        }
+    }
 }
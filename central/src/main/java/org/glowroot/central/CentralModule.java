@@ -165,7 +165,9 @@ public class CentralModule {
                 centralConfig = getCentralConfiguration(centralDir);
             }
             CentralRepoModule repos = new CentralRepoModule(clusterManager, session,
-                    centralConfig.cassandraSymmetricEncryptionKey(), clock);
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.traceUserLookup(), centralConfig.traceLookupAttributeNames(),
+                    clock);
 
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
@@ -207,8 +209,9 @@ public class CentralModule {
                 }
             });
             rollupService = new RollupService(repos.getAgentDao(), repos.getAggregateDao(),
-                    repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    repos.getGaugeValueDao(), repos.getSyntheticResultDao(),
+                    repos.getTraceDaoImpl(), centralAlertingService, repos.getRollupOwnership(),
+                    centralConfig.rollupThreads(), clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getAgentDao(),
                     repos.getConfigRepository(), repos.getIncidentDao(), alertingService,
                     repos.getSyntheticResultDao(), ticker, clock, version);
@@ -391,7 +394,9 @@ public class CentralModule {
             }
             startupLogger.info("creating glowroot central schema ...");
             new CentralRepoModule(ClusterManager.create(), session,
-                    centralConfig.cassandraSymmetricEncryptionKey(), Clock.systemClock());
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.traceUserLookup(), centralConfig.traceLookupAttributeNames(),
+                    Clock.systemClock());
             schemaUpgrade.updateSchemaVersionToCurent();
         } finally {
             if (session != null) {
@@ -464,7 +469,9 @@ public class CentralModule {
                 return;
             }
             CentralRepoModule repos = new CentralRepoModule(ClusterManager.create(), session,
-                    centralConfig.cassandraSymmetricEncryptionKey(), Clock.systemClock());
+                    centralConfig.cassandraSymmetricEncryptionKey(),
+                    centralConfig.traceUserLookup(), centralConfig.traceLookupAttributeNames(),
+                    Clock.systemClock());
             if (initialSchemaVersion == null) {
                 schemaUpgrade.updateSchemaVersionToCurent();
                 startupLogger.info("glowroot central schema created");
@@ -554,6 +561,19 @@ public class CentralModule {
                 builder.grpcHttpsPort(Integer.parseInt(grpcHttpsPortText));
             }
         }
+        String rollupThreads = properties.get("glowroot.rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreads)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreads));
+        }
+        String traceUserLookup = properties.get("glowroot.trace.userLookup");
+        if (!Strings.isNullOrEmpty(traceUserLookup)) {
+            builder.traceUserLookup(Boolean.parseBoolean(traceUserLookup));
+        }
+        String traceLookupAttributeNames = properties.get("glowroot.trace.lookupAttributeNames");
+        if (!Strings.isNullOrEmpty(traceLookupAttributeNames)) {
+            builder.traceLookupAttributeNames(Splitter.on(',').trimResults().omitEmptyStrings()
+                    .splitToList(traceLookupAttributeNames));
+        }
         String uiBindAddress = properties.get("glowroot.ui.bindAddress");
         if (!Strings.isNullOrEmpty(uiBindAddress)) {
             builder.uiBindAddress(uiBindAddress);
@@ -895,6 +915,23 @@ public class CentralModule {
             return null;
         }
 
+        @Value.Default
+        int rollupThreads() {
+            return 4;
+        }
+
+        // trace points can also be written to lookup tables keyed by user and/or by selected
+        // attribute values, which speeds up trace point searches that filter on these values
+        @Value.Default
+        boolean traceUserLookup() {
+            return false;
+        }
+
+        @Value.Default
+        List<String> traceLookupAttributeNames() {
+            return ImmutableList.of();
+        }
+
         @Value.Default
         String uiBindAddress() {
             return "0.0.0.0";
@@ -41,6 +41,7 @@ import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DistributedExecutionMap;
 import org.glowroot.common.live.ImmutableEntries;
 import org.glowroot.common.live.ImmutableQueries;
+import org.glowroot.common.live.ImmutableReweaveResult;
 import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
 import org.glowroot.common.live.LiveJvmService.AgentUnsupportedOperationException;
 import org.glowroot.common.live.LiveJvmService.DirectoryDoesNotExistException;
@@ -48,6 +49,7 @@ import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInIbmJvmEx
 import org.glowroot.common.live.LiveJvmService.UnavailableDueToRunningInJreException;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Queries;
+import org.glowroot.common.live.LiveWeavingService.ReweaveResult;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -97,6 +99,7 @@ import org.glowroot.wire.api.model.DownstreamServiceOuterClass.PreloadClasspathC
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.QueriesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.QueriesResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveRequest;
+import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ReweaveResponse;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.SystemPropertiesRequest;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDump;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.ThreadDumpRequest;
@@ -322,11 +325,18 @@ class DownstreamServiceImpl extends DownstreamServiceImplBase {
         return responseWrapper.getMethodSignaturesResponse().getMethodSignatureList();
     }
 
-    int reweave(String agentId) throws Exception {
+    ReweaveResult reweave(String agentId) throws Exception {
         AgentResponse responseWrapper = runOnCluster(agentId, CentralRequest.newBuilder()
-                .setReweaveRequest(ReweaveRequest.getDefaultInstance())
+                .setReweaveRequest(ReweaveRequest.newBuilder()
+                        .setBackground(true))
                 .build());
-        return responseWrapper.getReweaveResponse().getClassUpdateCount();
+        ReweaveResponse response = responseWrapper.getReweaveResponse();
+        return ImmutableReweaveResult.builder()
+                .classUpdateCount(response.getClassUpdateCount())
+                .batchCount(response.getBatchCount())
+                .durationMillis(response.getDurationMillis())
+                .inProgress(response.getInProgress())
+                .build();
     }
 
     Trace. /*@Nullable*/ Header getHeader(String agentId, String traceId) throws Exception {
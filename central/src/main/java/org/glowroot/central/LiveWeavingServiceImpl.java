@@ -18,6 +18,7 @@ package org.glowroot.central;
 import java.util.List;
 
 import org.glowroot.common.live.LiveWeavingService;
+import org.glowroot.common.live.LiveWeavingService.ReweaveResult;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
 
@@ -58,7 +59,7 @@ class LiveWeavingServiceImpl implements LiveWeavingService {
     }
 
     @Override
-    public int reweave(String agentId) throws Exception {
+    public ReweaveResult reweave(String agentId) throws Exception {
         return downstreamService.reweave(agentId);
     }
 }
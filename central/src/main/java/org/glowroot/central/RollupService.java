@@ -15,13 +15,22 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,7 +39,10 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.RollupOwnership;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDaoImpl;
+import org.glowroot.central.util.ConsistentHashRing;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.AgentRollupRepository.AgentRollup;
 
@@ -40,26 +52,48 @@ class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final long ROLLUP_INTERVAL_MILLIS = 60000;
+
+    // key used to pick the single central node that deletes expired trace count minutes
+    private static final String DELETE_EXPIRED_TRACE_COUNT_MINUTES_KEY =
+            "delete expired trace count minutes";
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
+    private final TraceDaoImpl traceDaoImpl;
     private final CentralAlertingService centralAlertingService;
+    // top-level agent rollups are partitioned across the central cluster nodes, so that each node
+    // only rolls up its own share (child agent rollups are owned by their top-level agent rollup)
+    private final RollupOwnership rollupOwnership;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    private final Stats stats = new Stats();
+    private final @Nullable ObjectName statsObjectName;
 
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            SyntheticResultDao syntheticResultDao, CentralAlertingService centralAlertingService,
-            Clock clock) {
+            SyntheticResultDao syntheticResultDao, TraceDaoImpl traceDaoImpl,
+            CentralAlertingService centralAlertingService, RollupOwnership rollupOwnership,
+            int threads, Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
+        this.traceDaoImpl = traceDaoImpl;
         this.centralAlertingService = centralAlertingService;
+        this.rollupOwnership = rollupOwnership;
         this.clock = clock;
+        statsObjectName = registerMBean(stats);
+        workerExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup-Worker-%d")
+                .build());
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -68,8 +102,10 @@ class RollupService implements Runnable {
     public void run() {
         while (!closed) {
             try {
-                Thread.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
-                runInternal();
+                long currentTimeMillis = clock.currentTimeMillis();
+                long millisUntilNextRollup = millisUntilNextRollup(currentTimeMillis);
+                Thread.sleep(millisUntilNextRollup);
+                runInternal(currentTimeMillis + millisUntilNextRollup);
             } catch (InterruptedException e) {
                 // probably shutdown requested (see close method below)
                 logger.debug(e.getMessage(), e);
@@ -84,21 +120,95 @@ class RollupService implements Runnable {
         closed = true;
         // shutdownNow() is needed here to send interrupt to RollupService thread
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Timed out waiting for rollup thread to terminate");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Timed out waiting for rollup threads to terminate");
+        }
+        if (statsObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsObjectName);
+            } catch (JMException e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
+    private void runInternal(long scheduledTimeMillis) throws Exception {
         Glowroot.setTransactionOuter();
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentDao.readRecentlyActiveAgentRollups(7))) {
+        long startTimeMillis = clock.currentTimeMillis();
+        ConsistentHashRing ring = rollupOwnership.getRing();
+        List<AgentRollup> ownedAgentRollups = new ArrayList<>();
+        for (AgentRollup agentRollup : agentDao.readRecentlyActiveAgentRollups(7)) {
+            if (ring.isLocal(agentRollup.id())) {
+                ownedAgentRollups.add(agentRollup);
+            }
+        }
+        stats.ownedAgentRollupCount = ownedAgentRollups.size();
+        stats.clusterNodeCount = ring.getNodeCount();
+        rollup(ownedAgentRollups);
+        // FIXME keep this here as fallback, but also resolve alerts immediately when they are
+        // deleted (or when their condition is updated)
+        centralAlertingService.checkForAllDeletedAlerts();
+        if (ring.isLocal(DELETE_EXPIRED_TRACE_COUNT_MINUTES_KEY)) {
+            try {
+                traceDaoImpl.deleteExpiredCountMinutes();
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        long durationMillis = clock.currentTimeMillis() - startTimeMillis;
+        stats.lastCycleDurationMillis = durationMillis;
+        stats.lastCycleLagMillis = startTimeMillis - scheduledTimeMillis;
+        stats.completedCycleCount.incrementAndGet();
+        if (durationMillis > ROLLUP_INTERVAL_MILLIS) {
+            stats.overrunCycleCount.incrementAndGet();
+            logger.warn("rollup of {} agent rollups took {} milliseconds, which is longer than the"
+                    + " rollup interval", ownedAgentRollups.size(), durationMillis);
+        }
+    }
+
+    // rolls up agent rollups in parallel, but only after all of their children have been rolled
+    // up, since the initial roll up of gauge values (and alerts on rollups) depend on the children
+    private void rollup(List<AgentRollup> agentRollups) throws InterruptedException {
+        List<RollupNode> leafNodes = new ArrayList<>();
+        int nodeCount = addNodes(agentRollups, null, leafNodes);
+        CountDownLatch latch = new CountDownLatch(nodeCount);
+        for (RollupNode leafNode : leafNodes) {
+            submit(leafNode, latch);
+        }
+        latch.await();
+    }
+
+    private void submit(RollupNode node, CountDownLatch latch) {
+        try {
+            workerExecutor.execute(() -> rollup(node.agentRollup, node, latch));
+        } catch (RejectedExecutionException e) {
+            // probably shutdown requested (see close method above)
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // the worker threads run outside of the outer rollup loop transaction, so each rollup is its
+    // own (outer) transaction
+    @Instrumentation.Transaction(transactionType = "Background", transactionName = "Rollup",
+            traceHeadline = "Rollup: {{0.id}}", timer = "rollup")
+    private void rollup(AgentRollup agentRollup, RollupNode node, CountDownLatch latch) {
+        Glowroot.setTransactionOuter();
+        try {
             rollupAggregates(agentRollup);
-            rollupGauges(agentRollup);
+            // need to _not_ roll up parent if exception occurs while rolling up a child, since
+            // gauge values initial roll up from children is done on the 1-min aggregates of the
+            // children
+            boolean gaugeSuccess = !node.childGaugeRollupFailed && rollupGauges(agentRollup);
+            if (!gaugeSuccess && node.parent != null) {
+                node.parent.childGaugeRollupFailed = true;
+            }
             rollupSyntheticMonitors(agentRollup);
             // checking aggregate and gauge alerts after rollup since their calculation can depend
             // on rollups depending on time period length (and alerts on rollups are not checked
@@ -107,19 +217,23 @@ class RollupService implements Runnable {
             // agent (not rollup) alerts are also checked right after receiving the respective data
             // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
             // minute in case no data has been received from the agent recently
-            checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+            centralAlertingService.checkAggregateAndGaugeAndHeartbeatAlertsAsync(
+                    agentRollup.id(), agentRollup.display(), clock.currentTimeMillis());
+        } catch (InterruptedException e) {
+            // probably shutdown requested (see close method above)
+            logger.debug(e.getMessage(), e);
+            return;
+        } catch (Throwable t) {
+            logger.error("{} - {}", agentRollup.id(), t.getMessage(), t);
+        }
+        latch.countDown();
+        RollupNode parent = node.parent;
+        if (parent != null && parent.remainingChildCount.decrementAndGet() == 0) {
+            submit(parent, latch);
         }
-        // FIXME keep this here as fallback, but also resolve alerts immediately when they are
-        // deleted (or when their condition is updated)
-        centralAlertingService.checkForAllDeletedAlerts();
     }
 
     private void rollupAggregates(AgentRollup agentRollup) throws InterruptedException {
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
-            rollupAggregates(childAgentRollup);
-        }
         try {
             aggregateDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -132,19 +246,6 @@ class RollupService implements Runnable {
 
     // returns true on success, false on failure
     private boolean rollupGauges(AgentRollup agentRollup) throws InterruptedException {
-        // need to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup);
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // need to _not_ roll up parent if exception occurs while rolling up a child, since
-            // gauge values initial roll up from children is done on the 1-min aggregates of the
-            // children
-            return false;
-        }
         try {
             gaugeValueDao.rollup(agentRollup.id());
             return true;
@@ -157,10 +258,7 @@ class RollupService implements Runnable {
         }
     }
 
-    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupSyntheticMonitors(childAgentRollup);
-        }
+    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
         try {
             syntheticResultDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -171,24 +269,35 @@ class RollupService implements Runnable {
         }
     }
 
-    private void checkAggregateAndGaugeAndHeartbeatAlertsAsync(AgentRollup agentRollup)
-            throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkAggregateAndGaugeAndHeartbeatAlertsAsync(childAgentRollup);
+    // returns the total number of nodes added
+    private static int addNodes(List<AgentRollup> agentRollups, @Nullable RollupNode parent,
+            List<RollupNode> leafNodes) {
+        int count = 0;
+        for (AgentRollup agentRollup : agentRollups) {
+            List<AgentRollup> children = agentRollup.children();
+            RollupNode node = new RollupNode(agentRollup, parent, children.size());
+            if (children.isEmpty()) {
+                leafNodes.add(node);
+            }
+            count += 1 + addNodes(children, node, leafNodes);
         }
-        centralAlertingService.checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup.id(),
-                agentRollup.display(), clock.currentTimeMillis());
+        return count;
     }
 
-    private static <T> List<T> shuffle(List<T> agentRollups) {
-        List<T> mutable = new ArrayList<>(agentRollups);
-        Collections.shuffle(mutable);
-        return mutable;
+    private static @Nullable ObjectName registerMBean(Object mbean) {
+        try {
+            ObjectName objectName = new ObjectName("org.glowroot.central:type=RollupService");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            logger.warn(e.getMessage(), e);
+            return null;
+        }
     }
 
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
-        return 60000 - (currentTimeMillis - 10000) % 60000;
+        return ROLLUP_INTERVAL_MILLIS - (currentTimeMillis - 10000) % ROLLUP_INTERVAL_MILLIS;
     }
 
     @SuppressWarnings("return.type.incompatible")
@@ -196,6 +305,61 @@ class RollupService implements Runnable {
         return obj;
     }
 
+    private static class RollupNode {
+
+        private final AgentRollup agentRollup;
+        private final @Nullable RollupNode parent;
+        private final AtomicInteger remainingChildCount;
+
+        private volatile boolean childGaugeRollupFailed;
+
+        private RollupNode(AgentRollup agentRollup, @Nullable RollupNode parent, int childCount) {
+            this.agentRollup = agentRollup;
+            this.parent = parent;
+            remainingChildCount = new AtomicInteger(childCount);
+        }
+    }
+
+    private static class Stats implements RollupServiceStatsMXBean {
+
+        private volatile int ownedAgentRollupCount;
+        private volatile int clusterNodeCount;
+        private volatile long lastCycleDurationMillis;
+        private volatile long lastCycleLagMillis;
+        private final AtomicLong completedCycleCount = new AtomicLong();
+        private final AtomicLong overrunCycleCount = new AtomicLong();
+
+        @Override
+        public int getOwnedAgentRollupCount() {
+            return ownedAgentRollupCount;
+        }
+
+        @Override
+        public int getClusterNodeCount() {
+            return clusterNodeCount;
+        }
+
+        @Override
+        public long getLastCycleDurationMillis() {
+            return lastCycleDurationMillis;
+        }
+
+        @Override
+        public long getLastCycleLagMillis() {
+            return lastCycleLagMillis;
+        }
+
+        @Override
+        public long getCompletedCycleCount() {
+            return completedCycleCount.get();
+        }
+
+        @Override
+        public long getOverrunCycleCount() {
+            return overrunCycleCount.get();
+        }
+    }
+
     @FunctionalInterface
     interface AgentRollupConsumer {
         void accept(AgentRollup agentRollup) throws Exception;
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+public interface RollupServiceStatsMXBean {
+
+    // number of top-level agent rollups rolled up by this central node
+    int getOwnedAgentRollupCount();
+
+    int getClusterNodeCount();
+
+    long getLastCycleDurationMillis();
+
+    // how late the last cycle started relative to its scheduled time
+    long getLastCycleLagMillis();
+
+    long getCompletedCycleCount();
+
+    // number of cycles that took longer than the one minute rollup interval
+    long getOverrunCycleCount();
+}
@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
@@ -44,8 +45,11 @@ import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.repo.BufferedAggregates.BufferedAggregate;
+import org.glowroot.central.repo.BufferedAggregates.TransactionTypeAggregates;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
@@ -204,6 +208,8 @@ public class AggregateDaoImpl implements AggregateDao {
     private final ConfigRepositoryImpl configRepository;
     private final Clock clock;
 
+    private final RollupBuffer<BufferedAggregates> rollupBuffer;
+
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
     private final Map<Table, List<PreparedStatement>> insertTransactionPS;
@@ -230,7 +236,8 @@ public class AggregateDaoImpl implements AggregateDao {
     private final ImmutableList<Table> allTables;
 
     AggregateDaoImpl(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepositoryImpl configRepository, Clock clock)
+            FullQueryTextDao fullQueryTextDao, ConfigRepositoryImpl configRepository,
+            ClusterManager clusterManager, RollupOwnership rollupOwnership, Clock clock)
             throws Exception {
         this.session = session;
         this.agentDao = agentDao;
@@ -238,6 +245,8 @@ public class AggregateDaoImpl implements AggregateDao {
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
         this.clock = clock;
+        rollupBuffer = new RollupBuffer<>("aggregateRollupBuffer", BufferedAggregates::new,
+                clusterManager, rollupOwnership, clock);
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -507,15 +516,26 @@ public class AggregateDaoImpl implements AggregateDao {
         // insert into aggregate_needs_rollup_1
         long intervalMillis = rollupConfigs.get(1).intervalMillis();
         long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
+        UUID uniqueness = UUIDs.timeBased();
         BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setUUID(i++, uniqueness);
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
         MoreFutures.waitForAll(futures);
+
+        // buffer the aggregates so that the 5-minute rollup does not need to read them back
+        // (copying to immutable lists since the update may be serialized and sent to the central
+        // node that owns the rollup, see RollupBuffer)
+        List<OldAggregatesByType> bufferedAggregatesByTypeList =
+                ImmutableList.copyOf(aggregatesByTypeList);
+        List<Aggregate.SharedQueryText> bufferedSharedQueryTexts =
+                ImmutableList.copyOf(sharedQueryTexts);
+        rollupBuffer.add(agentId, rollupCaptureTime, uniqueness, data -> data.add(captureTime,
+                bufferedAggregatesByTypeList, bufferedSharedQueryTexts));
     }
 
     // query.from() is non-inclusive
@@ -895,9 +915,21 @@ public class AggregateDaoImpl implements AggregateDao {
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
             Set<String> transactionTypes = needsRollup.getKeys();
+            BufferedAggregates bufferedAggregates = null;
+            if (rollupLevel == 1) {
+                bufferedAggregates = rollupBuffer.remove(agentRollupId, captureTime,
+                        needsRollup.getUniquenessKeysForDeletion());
+            }
             List<Future<?>> futures = new ArrayList<>();
             for (String transactionType : transactionTypes) {
-                futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                TransactionTypeAggregates transactionTypeAggregates = bufferedAggregates == null
+                        ? null : bufferedAggregates.get(transactionType);
+                if (transactionTypeAggregates == null) {
+                    futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                } else {
+                    futures.addAll(rollupOneFromBuffer(rollupParams, transactionType, captureTime,
+                            transactionTypeAggregates));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -981,6 +1013,117 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    // same as rollupOne(), but using the level 0 aggregates that were buffered as they were
+    // received, instead of reading them back from cassandra
+    private List<Future<?>> rollupOneFromBuffer(RollupParams rollup, String transactionType,
+            long to, TransactionTypeAggregates transactionTypeAggregates) throws Exception {
+
+        ImmutableTransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType(transactionType)
+                .from(to)
+                .to(to)
+                .rollupLevel(rollup.rollupLevel())
+                .build();
+        List<Future<?>> futures = new ArrayList<>();
+
+        BufferedAggregate overallAggregate = transactionTypeAggregates.getOverallAggregate();
+        MutableAggregate overall = overallAggregate.getAggregate();
+        futures.addAll(insertOverallSummary(rollup, query, overall.getTotalDurationNanos(),
+                overall.getTransactionCount()));
+        if (overallAggregate.hasErrorSummary()) {
+            futures.addAll(insertErrorSummary(rollup, query, overall.getErrorCount(),
+                    overallAggregate.getErrorSummaryTransactionCount()));
+        }
+
+        Map<String, BufferedAggregate> transactionAggregates =
+                transactionTypeAggregates.getTransactionAggregates();
+        Map<String, MutableSummary> summaries = new HashMap<>();
+        Map<String, MutableErrorSummary> errorSummaries = new HashMap<>();
+        for (Map.Entry<String, BufferedAggregate> entry : transactionAggregates.entrySet()) {
+            BufferedAggregate transactionAggregate = entry.getValue();
+            MutableAggregate aggregate = transactionAggregate.getAggregate();
+            MutableSummary summary = new MutableSummary();
+            summary.totalDurationNanos = aggregate.getTotalDurationNanos();
+            summary.transactionCount = aggregate.getTransactionCount();
+            summaries.put(entry.getKey(), summary);
+            if (transactionAggregate.hasErrorSummary()) {
+                MutableErrorSummary errorSummary = new MutableErrorSummary();
+                errorSummary.errorCount = aggregate.getErrorCount();
+                errorSummary.transactionCount =
+                        transactionAggregate.getErrorSummaryTransactionCount();
+                errorSummaries.put(entry.getKey(), errorSummary);
+            }
+        }
+        futures.addAll(insertTransactionSummaries(rollup, query, summaries));
+        if (!errorSummaries.isEmpty()) {
+            futures.addAll(insertTransactionErrorSummaries(rollup, query, errorSummaries));
+        }
+
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        futures.addAll(rollupOtherPartsFromBuffer(rollup, query, overall, scratchBuffer));
+        for (Map.Entry<String, BufferedAggregate> entry : transactionAggregates.entrySet()) {
+            futures.addAll(rollupOtherPartsFromBuffer(rollup,
+                    query.withTransactionName(entry.getKey()), entry.getValue().getAggregate(),
+                    scratchBuffer));
+        }
+        return futures;
+    }
+
+    private List<Future<?>> rollupOtherPartsFromBuffer(RollupParams rollup,
+            TransactionQuery query, MutableAggregate aggregate, ScratchBuffer scratchBuffer)
+            throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        futures.addAll(insertOverview(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.isAsyncTransactions(),
+                aggregate.getMainThreadRootTimersProto(), aggregate.getAuxThreadRootTimersProto(),
+                aggregate.getAsyncTimersProto(), aggregate.getMainThreadStats(),
+                aggregate.getAuxThreadStats()));
+        futures.addAll(insertHistogram(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(),
+                aggregate.getDurationNanosHistogram().toProto(scratchBuffer)));
+        futures.addAll(insertThroughput(rollup, query, aggregate.getTransactionCount(),
+                aggregate.getErrorCount()));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            // the buffered queries are not truncated, so need to apply the rollup limit here
+            QueryCollector collector =
+                    new QueryCollector(rollup.maxQueryAggregatesPerTransactionAggregate());
+            for (MutableQuery bufferedQuery : queries.getSortedAndTruncatedQueries()) {
+                collector.mergeQuery(bufferedQuery.getType(), bufferedQuery.getTruncatedText(),
+                        bufferedQuery.getFullTextSha1(), bufferedQuery.getTotalDurationNanos(),
+                        bufferedQuery.getExecutionCount(), bufferedQuery.hasTotalRows(),
+                        bufferedQuery.getTotalRows());
+            }
+            futures.addAll(insertQueries(collector.getSortedAndTruncatedQueries(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            ServiceCallCollector collector = new ServiceCallCollector(
+                    rollup.maxServiceCallAggregatesPerTransactionAggregate());
+            for (MutableServiceCall serviceCall : serviceCalls
+                    .getSortedAndTruncatedServiceCalls()) {
+                collector.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+            futures.addAll(insertServiceCalls(collector.getSortedAndTruncatedServiceCalls(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.addAll(insertThreadProfile(rollup, query, mainThreadProfile.toProto(),
+                    mainThreadProfileTable));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.addAll(insertThreadProfile(rollup, query, auxThreadProfile.toProto(),
+                    auxThreadProfileTable));
+        }
+        return futures;
+    }
+
     private List<Future<?>> rollupOtherParts(RollupParams rollup, TransactionQuery query,
             ScratchBuffer scratchBuffer) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
@@ -1044,6 +1187,11 @@ public class AggregateDaoImpl implements AggregateDao {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
+        return insertOverallSummary(rollup, query, totalDurationNanos, transactionCount);
+    }
+
+    private List<Future<?>> insertOverallSummary(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1083,6 +1231,11 @@ public class AggregateDaoImpl implements AggregateDao {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
+        return insertErrorSummary(rollup, query, errorCount, transactionCount);
+    }
+
+    private List<Future<?>> insertErrorSummary(RollupParams rollup, TransactionQuery query,
+            long errorCount, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1143,6 +1296,13 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.totalDurationNanos += row.getDouble(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        transactionNames.addAll(summaries.keySet());
+        return insertTransactionSummaries(rollup, query, summaries);
+    }
+
+    private List<Future<?>> insertTransactionSummaries(RollupParams rollup,
+            TransactionQuery query, Map<String, MutableSummary> summaries) throws Exception {
+        BoundStatement boundStatement;
         List<Future<?>> futures = new ArrayList<>();
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(summaryTable, rollup.rollupLevel());
@@ -1159,7 +1319,6 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
             futures.add(session.executeAsync(boundStatement));
         }
-        transactionNames.addAll(summaries.keySet());
         return futures;
     }
 
@@ -1202,6 +1361,12 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.errorCount += row.getLong(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        return insertTransactionErrorSummaries(rollup, query, summaries);
+    }
+
+    private List<Future<?>> insertTransactionErrorSummaries(RollupParams rollup,
+            TransactionQuery query, Map<String, MutableErrorSummary> summaries) throws Exception {
+        BoundStatement boundStatement;
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<Future<?>> futures = new ArrayList<>();
@@ -1280,6 +1445,17 @@ public class AggregateDaoImpl implements AggregateDao {
             auxThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
             auxThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
         }
+        return insertOverview(rollup, query, totalDurationNanos, transactionCount,
+                asyncTransactions, MutableAggregate.toProto(mainThreadRootTimers),
+                MutableAggregate.toProto(auxThreadRootTimers),
+                MutableAggregate.toProto(asyncTimers), mainThreadStats, auxThreadStats);
+    }
+
+    private List<Future<?>> insertOverview(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount, boolean asyncTransactions,
+            List<Aggregate.Timer> mainThreadRootTimers, List<Aggregate.Timer> auxThreadRootTimers,
+            List<Aggregate.Timer> asyncTimers, MutableThreadStats mainThreadStats,
+            MutableThreadStats auxThreadStats) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
@@ -1299,20 +1475,17 @@ public class AggregateDaoImpl implements AggregateDao {
         if (mainThreadRootTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(mainThreadRootTimers));
         }
         if (auxThreadRootTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(auxThreadRootTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(auxThreadRootTimers));
         }
         if (asyncTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
         }
         boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
@@ -1362,6 +1535,13 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(i++));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(bytes));
         }
+        return insertHistogram(rollup, query, totalDurationNanos, transactionCount,
+                durationNanosHistogram.toProto(scratchBuffer));
+    }
+
+    private List<Future<?>> insertHistogram(RollupParams rollup, TransactionQuery query,
+            double totalDurationNanos, long transactionCount,
+            Aggregate.Histogram durationNanosHistogram) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
@@ -1377,7 +1557,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
-        boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
+        boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram));
         boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
         return ImmutableList.of(session.executeAsync(boundStatement));
     }
@@ -1421,6 +1601,12 @@ public class AggregateDaoImpl implements AggregateDao {
                 errorCount += row.getLong(1);
             }
         }
+        return insertThroughput(rollup, query, transactionCount,
+                hasMissingErrorCount ? null : errorCount);
+    }
+
+    private List<Future<?>> insertThroughput(RollupParams rollup, TransactionQuery query,
+            long transactionCount, @Nullable Long errorCount) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1435,7 +1621,7 @@ public class AggregateDaoImpl implements AggregateDao {
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
         boundStatement.setLong(i++, transactionCount);
-        if (hasMissingErrorCount) {
+        if (errorCount == null) {
             boundStatement.setToNull(i++);
         } else {
             boundStatement.setLong(i++, errorCount);
@@ -1546,6 +1732,11 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(bytes));
         }
+        return insertThreadProfile(rollup, query, profile.toProto(), table);
+    }
+
+    private List<Future<?>> insertThreadProfile(RollupParams rollup, TransactionQuery query,
+            Profile profile, Table table) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1559,7 +1750,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setString(i++, query.transactionName());
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setBytes(i++, toByteBuffer(profile.toProto()));
+        boundStatement.setBytes(i++, toByteBuffer(profile));
         boundStatement.setInt(i++, rollup.adjustedTTL().profileTTL());
         return ImmutableList.of(session.executeAsync(boundStatement));
     }
@@ -2107,7 +2298,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2127,7 +2318,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
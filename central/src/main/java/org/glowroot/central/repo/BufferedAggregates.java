@@ -0,0 +1,173 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+// the 1-minute aggregates of a single agent for a single 5-minute rollup window (see RollupBuffer),
+// merged as they are received, the same way that the rollup merges the rows read back from
+// cassandra
+class BufferedAggregates {
+
+    private final Set<Long> captureTimes = new HashSet<>();
+
+    // key is transaction type
+    private final Map<String, TransactionTypeAggregates> transactionTypes = new HashMap<>();
+
+    // returns false if aggregates with the same capture time were already added (e.g. when agent
+    // resends after a timeout), since those overwrite each other in cassandra, but cannot be
+    // un-merged here
+    boolean add(long captureTime, List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        if (!captureTimes.add(captureTime)) {
+            return false;
+        }
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            TransactionTypeAggregates transactionTypeAggregates = transactionTypes
+                    .computeIfAbsent(aggregatesByType.getTransactionType(),
+                            k -> new TransactionTypeAggregates());
+            transactionTypeAggregates.overallAggregate
+                    .add(aggregatesByType.getOverallAggregate(), sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                transactionTypeAggregates.transactionAggregates
+                        .computeIfAbsent(transactionAggregate.getTransactionName(),
+                                k -> new BufferedAggregate())
+                        .add(transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    TransactionTypeAggregates get(String transactionType) {
+        return transactionTypes.get(transactionType);
+    }
+
+    static class TransactionTypeAggregates {
+
+        private final BufferedAggregate overallAggregate = new BufferedAggregate();
+        // key is transaction name
+        private final Map<String, BufferedAggregate> transactionAggregates = new HashMap<>();
+
+        BufferedAggregate getOverallAggregate() {
+            return overallAggregate;
+        }
+
+        Map<String, BufferedAggregate> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+    }
+
+    static class BufferedAggregate {
+
+        // the query and service call limits are applied by the rollup
+        private final MutableAggregate aggregate =
+                new MutableAggregate(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        // error summary rows are only stored for aggregates with errors, so the transaction count
+        // in the error summary rollup only covers those aggregates
+        private long errorSummaryTransactionCount;
+
+        MutableAggregate getAggregate() {
+            return aggregate;
+        }
+
+        boolean hasErrorSummary() {
+            return aggregate.getErrorCount() > 0;
+        }
+
+        long getErrorSummaryTransactionCount() {
+            return errorSummaryTransactionCount;
+        }
+
+        private void add(Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            this.aggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+            this.aggregate.addTransactionCount(aggregate.getTransactionCount());
+            this.aggregate.addErrorCount(aggregate.getErrorCount());
+            if (aggregate.getErrorCount() > 0) {
+                errorSummaryTransactionCount += aggregate.getTransactionCount();
+            }
+            this.aggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+            this.aggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+            this.aggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+            this.aggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+            if (aggregate.hasOldMainThreadStats()) {
+                // data from agent prior to 0.10.9
+                Aggregate.OldThreadStats mainThreadStats = aggregate.getOldMainThreadStats();
+                this.aggregate.addMainThreadTotalCpuNanos(
+                        mainThreadStats.getTotalCpuNanos().getValue());
+                this.aggregate.addMainThreadTotalBlockedNanos(
+                        mainThreadStats.getTotalBlockedNanos().getValue());
+                this.aggregate.addMainThreadTotalWaitedNanos(
+                        mainThreadStats.getTotalWaitedNanos().getValue());
+                this.aggregate.addMainThreadTotalAllocatedBytes(
+                        mainThreadStats.getTotalAllocatedBytes().getValue());
+            } else {
+                this.aggregate.mergeMainThreadStats(aggregate.getMainThreadStats());
+            }
+            if (aggregate.hasOldAuxThreadStats()) {
+                Aggregate.OldThreadStats auxThreadStats = aggregate.getOldAuxThreadStats();
+                this.aggregate.addAuxThreadTotalCpuNanos(
+                        auxThreadStats.getTotalCpuNanos().getValue());
+                this.aggregate.addAuxThreadTotalBlockedNanos(
+                        auxThreadStats.getTotalBlockedNanos().getValue());
+                this.aggregate.addAuxThreadTotalWaitedNanos(
+                        auxThreadStats.getTotalWaitedNanos().getValue());
+                this.aggregate.addAuxThreadTotalAllocatedBytes(
+                        auxThreadStats.getTotalAllocatedBytes().getValue());
+            } else {
+                this.aggregate.mergeAuxThreadStats(aggregate.getAuxThreadStats());
+            }
+            this.aggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+            for (Aggregate.Query query : AggregateDaoImpl.getQueries(aggregate)) {
+                Aggregate.SharedQueryText sharedQueryText =
+                        sharedQueryTexts.get(query.getSharedQueryTextIndex());
+                String fullTextSha1 = sharedQueryText.getFullTextSha1();
+                if (fullTextSha1.isEmpty()) {
+                    this.aggregate.mergeQuery(query.getType(), sharedQueryText.getFullText(), null,
+                            query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                } else {
+                    this.aggregate.mergeQuery(query.getType(), sharedQueryText.getTruncatedText(),
+                            fullTextSha1, query.getTotalDurationNanos(), query.getExecutionCount(),
+                            query.hasTotalRows(), query.getTotalRows().getValue());
+                }
+            }
+            for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl.getServiceCalls(aggregate)) {
+                this.aggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                        serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+            }
+            if (aggregate.hasMainThreadProfile()) {
+                this.aggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+            }
+            if (aggregate.hasAuxThreadProfile()) {
+                this.aggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+            }
+        }
+    }
+}
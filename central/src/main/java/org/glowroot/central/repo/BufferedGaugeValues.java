@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+// the 5-second gauge values of a single agent for a single 1-minute rollup window (see
+// RollupBuffer)
+class BufferedGaugeValues {
+
+    // key is gauge name, inner key is capture time (duplicate gauge values, e.g. when agent resends
+    // after a timeout, overwrite each other the same as they do in cassandra)
+    private final Map<String, Map<Long, GaugeValue>> gaugeValues = new HashMap<>();
+
+    boolean add(List<GaugeValue> gaugeValues) {
+        for (GaugeValue gaugeValue : gaugeValues) {
+            this.gaugeValues.computeIfAbsent(gaugeValue.getGaugeName(), k -> new HashMap<>())
+                    .put(gaugeValue.getCaptureTime(), gaugeValue);
+        }
+        return true;
+    }
+
+    List<GaugeValue> getGaugeValues(String gaugeName) {
+        Map<Long, GaugeValue> values = gaugeValues.get(gaugeName);
+        return values == null ? ImmutableList.of() : ImmutableList.copyOf(values.values());
+    }
+}
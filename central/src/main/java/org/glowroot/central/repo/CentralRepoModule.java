@@ -16,6 +16,7 @@
 package org.glowroot.central.repo;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import com.datastax.driver.core.ResultSet;
@@ -46,12 +47,15 @@ public class CentralRepoModule {
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
+    private final TraceDaoImpl traceDaoImpl;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
     private final V09AgentRollupDao v09AgentRollupDao;
+    private final RollupOwnership rollupOwnership;
 
     public CentralRepoModule(ClusterManager clusterManager, Session session,
-            String cassandraSymmetricEncryptionKey, Clock clock) throws Exception {
+            String cassandraSymmetricEncryptionKey, boolean traceUserLookup,
+            List<String> traceLookupAttributeNames, Clock clock) throws Exception {
         CentralConfigDao centralConfigDao = new CentralConfigDao(session, clusterManager);
         agentConfigDao = new AgentConfigDao(session, clusterManager);
         userDao = new UserDao(session, clusterManager);
@@ -97,11 +101,13 @@ public class CentralRepoModule {
             v09TraceLastExpirationTime = checkNotNull(row.getTimestamp(i++)).getTime();
             v09AggregateLastExpirationTime = checkNotNull(row.getTimestamp(i++)).getTime();
         }
+        rollupOwnership = new RollupOwnership(clusterManager);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, agentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, clock);
-        GaugeValueDaoImpl gaugeValueDaoImpl =
-                new GaugeValueDaoImpl(session, configRepository, clock);
+                transactionTypeDao, fullQueryTextDao, configRepository, clusterManager,
+                rollupOwnership, clock);
+        GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
+                clusterManager, rollupOwnership, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl =
                 new SyntheticResultDaoImpl(session, configRepository, clock);
         if (v09AggregateLastExpirationTime < clock.currentTimeMillis()) {
@@ -116,8 +122,9 @@ public class CentralRepoModule {
             syntheticResultDao = new SyntheticResultDaoWithV09Support(agentRollupIdsWithV09Data,
                     v09LastCaptureTime, clock, syntheticResultDaoImpl);
         }
-        TraceDaoImpl traceDaoImpl = new TraceDaoImpl(session, transactionTypeDao, fullQueryTextDao,
-                traceAttributeNameDao, configRepository, clock);
+        traceDaoImpl = new TraceDaoImpl(session, transactionTypeDao, fullQueryTextDao,
+                traceAttributeNameDao, configRepository, traceUserLookup, traceLookupAttributeNames,
+                clock);
         if (v09TraceLastExpirationTime < clock.currentTimeMillis()) {
             traceDao = traceDaoImpl;
         } else {
@@ -176,6 +183,10 @@ public class CentralRepoModule {
         return traceDao;
     }
 
+    public TraceDaoImpl getTraceDaoImpl() {
+        return traceDaoImpl;
+    }
+
     public GaugeValueDao getGaugeValueDao() {
         return gaugeValueDao;
     }
@@ -187,4 +198,8 @@ public class CentralRepoModule {
     public V09AgentRollupDao getV09AgentRollupDao() {
         return v09AgentRollupDao;
     }
+
+    public RollupOwnership getRollupOwnership() {
+        return rollupOwnership;
+    }
 }
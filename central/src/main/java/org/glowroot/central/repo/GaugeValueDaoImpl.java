@@ -18,9 +18,12 @@ package org.glowroot.central.repo;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Future;
 
 import com.datastax.driver.core.BoundStatement;
@@ -28,11 +31,11 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.utils.UUIDs;
-import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
@@ -44,6 +47,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
@@ -69,6 +73,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
     private final GaugeNameDao gaugeNameDao;
 
+    private final RollupBuffer<BufferedGaugeValues> rollupBuffer;
+
     // index is rollupLevel
     private final ImmutableList<PreparedStatement> insertValuePS;
     private final ImmutableList<PreparedStatement> readValuePS;
@@ -83,12 +89,16 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     private final PreparedStatement readNeedsRollupFromChild;
     private final PreparedStatement deleteNeedsRollupFromChild;
 
-    GaugeValueDaoImpl(Session session, ConfigRepositoryImpl configRepository, Clock clock)
+    GaugeValueDaoImpl(Session session, ConfigRepositoryImpl configRepository,
+            ClusterManager clusterManager, RollupOwnership rollupOwnership, Clock clock)
             throws Exception {
         this.session = session;
         this.configRepository = configRepository;
         this.clock = clock;
 
+        rollupBuffer = new RollupBuffer<>("gaugeValueRollupBuffer", BufferedGaugeValues::new,
+                clusterManager, rollupOwnership, clock);
+
         gaugeNameDao = new GaugeNameDao(session, configRepository, clock);
 
         int count = configRepository.getRollupConfigs().size();
@@ -203,22 +213,42 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         futures.clear();
 
         // insert into gauge_needs_rollup_1
-        SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
-        for (Map.Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
+        ListMultimap<Long, GaugeValue> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
+        Map<Long, UUID> uniquenessKeys = new HashMap<>();
+        for (Map.Entry<Long, List<GaugeValue>> entry : Multimaps.asMap(rollupCaptureTimes)
+                .entrySet()) {
             BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
             Long captureTime = entry.getKey();
             int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
             int needsRollupAdjustedTTL = Common.getNeedsRollupAdjustedTTL(adjustedTTL,
                     configRepository.getRollupConfigs());
+            Set<String> gaugeNames = new HashSet<>();
+            for (GaugeValue gaugeValue : entry.getValue()) {
+                gaugeNames.add(gaugeValue.getGaugeName());
+            }
+            UUID uniqueness = UUIDs.timeBased();
+            uniquenessKeys.put(captureTime, uniqueness);
             int i = 0;
             boundStatement.setString(i++, agentId);
             boundStatement.setTimestamp(i++, new Date(captureTime));
-            boundStatement.setUUID(i++, UUIDs.timeBased());
-            boundStatement.setSet(i++, entry.getValue());
+            boundStatement.setUUID(i++, uniqueness);
+            boundStatement.setSet(i++, gaugeNames);
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
         MoreFutures.waitForAll(futures);
+
+        // buffer the gauge values so that the 1-minute rollup does not need to read them back
+        // (only after the "needs rollup" records have been stored, see RollupBuffer)
+        for (Map.Entry<Long, List<GaugeValue>> entry : Multimaps.asMap(rollupCaptureTimes)
+                .entrySet()) {
+            Long captureTime = entry.getKey();
+            // copying to immutable list since the update may be serialized and sent to the central
+            // node that owns the rollup
+            List<GaugeValue> bufferedGaugeValues = ImmutableList.copyOf(entry.getValue());
+            rollupBuffer.add(agentId, captureTime, checkNotNull(uniquenessKeys.get(captureTime)),
+                    data -> data.add(bufferedGaugeValues));
+        }
     }
 
     @Override
@@ -287,15 +317,14 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         }
     }
 
-    private SetMultimap<Long, String> getRollupCaptureTimes(List<GaugeValue> gaugeValues) {
-        SetMultimap<Long, String> rollupCaptureTimes = HashMultimap.create();
+    private ListMultimap<Long, GaugeValue> getRollupCaptureTimes(List<GaugeValue> gaugeValues) {
+        ListMultimap<Long, GaugeValue> rollupCaptureTimes = ArrayListMultimap.create();
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (GaugeValue gaugeValue : gaugeValues) {
-            String gaugeName = gaugeValue.getGaugeName();
             long captureTime = gaugeValue.getCaptureTime();
             long intervalMillis = rollupConfigs.get(0).intervalMillis();
             long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
-            rollupCaptureTimes.put(rollupCaptureTime, gaugeName);
+            rollupCaptureTimes.put(rollupCaptureTime, gaugeValue);
         }
         return rollupCaptureTimes;
     }
@@ -354,10 +383,22 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             long from = captureTime - rollupIntervalMillis;
             int adjustedTTL = Common.getAdjustedTTL(ttl, captureTime, clock);
             Set<String> gaugeNames = needsRollup.getKeys();
+            BufferedGaugeValues window = null;
+            if (rollupLevel == 1) {
+                window = rollupBuffer.remove(agentRollupId, captureTime,
+                        needsRollup.getUniquenessKeysForDeletion());
+            }
             List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
             for (String gaugeName : gaugeNames) {
-                futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
-                        adjustedTTL));
+                List<GaugeValue> bufferedGaugeValues =
+                        window == null ? ImmutableList.of() : window.getGaugeValues(gaugeName);
+                if (bufferedGaugeValues.isEmpty()) {
+                    futures.add(rollupOne(rollupLevel, agentRollupId, gaugeName, from, captureTime,
+                            adjustedTTL));
+                } else {
+                    futures.add(rollupOneFromGaugeValues(rollupLevel, agentRollupId, gaugeName,
+                            captureTime, adjustedTTL, bufferedGaugeValues));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -488,12 +529,32 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             totalWeightedValue += value * weight;
             totalWeight += weight;
         }
+        return insertRollup(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
+                totalWeightedValue, totalWeight);
+    }
+
+    private ListenableFuture<ResultSet> rollupOneFromGaugeValues(int rollupLevel,
+            String agentRollupId, String gaugeName, long to, int adjustedTTL,
+            List<GaugeValue> gaugeValues) throws Exception {
+        double totalWeightedValue = 0;
+        long totalWeight = 0;
+        for (GaugeValue gaugeValue : gaugeValues) {
+            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+            totalWeight += gaugeValue.getWeight();
+        }
+        return insertRollup(rollupLevel, agentRollupId, gaugeName, to, adjustedTTL,
+                totalWeightedValue, totalWeight);
+    }
+
+    private ListenableFuture<ResultSet> insertRollup(int rollupLevel, String agentRollupId,
+            String gaugeName, long to, int adjustedTTL, double totalWeightedValue,
+            long totalWeight) throws Exception {
         BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, gaugeName);
         boundStatement.setTimestamp(i++, new Date(to));
-        // individual gauge value weights cannot be zero, and rows is non-empty
+        // individual gauge value weights cannot be zero, and rows/gauge values are non-empty
         // (see callers of this method), so totalWeight is guaranteed non-zero
         checkState(totalWeight != 0);
         boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.infinispan.util.function.SerializableFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.DistributedExecutionMap;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// holds data received by the central cluster, grouped by agent and by rollup window, so that the
+// rollup of a window does not need to read the data back from cassandra
+//
+// agents spread their requests across all central nodes, so data received by a central node that
+// does not own the rollup of the agent (see RollupOwnership) is forwarded to the central node that
+// does
+//
+// a window can only be used for the rollup if it contains exactly the same "needs rollup" records
+// that the rollup is processing, otherwise some of the data for that window is missing (e.g. it was
+// received prior to restart of the owning central node, prior to an ownership change, or it could
+// not be forwarded), in which case the rollup falls back to reading the data from cassandra
+class RollupBuffer<W> {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupBuffer.class);
+
+    // windows are normally removed by the rollup shortly after the window closes, but ownership of
+    // the rollup may have moved to a different central node in the meantime
+    private static final long MAX_WINDOW_AGE_MILLIS = MINUTES.toMillis(10);
+
+    private static final long EVICTION_INTERVAL_MILLIS = MINUTES.toMillis(1);
+
+    private static final int FORWARDING_THREADS = 4;
+
+    // forwarding is best effort (since the rollup falls back to reading from cassandra), so drop
+    // instead of queueing up without bound when the owning central node is slow to respond
+    private static final int MAX_PENDING_FORWARDS = 10000;
+
+    private final Supplier<W> windowDataFactory;
+    private final RollupOwnership rollupOwnership;
+    private final DistributedExecutionMap<String, RollupBuffer<W>> clusterBuffers;
+    private final ExecutorService forwardingExecutor;
+    private final Clock clock;
+
+    // key is agentId, inner key is rollup capture time
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Long, Window<W>>> windows =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong lastEvictionTime = new AtomicLong();
+
+    RollupBuffer(String name, Supplier<W> windowDataFactory, ClusterManager clusterManager,
+            RollupOwnership rollupOwnership, Clock clock) {
+        this.windowDataFactory = windowDataFactory;
+        this.rollupOwnership = rollupOwnership;
+        this.clock = clock;
+        ThreadPoolExecutor forwardingExecutor = new ThreadPoolExecutor(FORWARDING_THREADS,
+                FORWARDING_THREADS, 60, SECONDS, new LinkedBlockingQueue<>(MAX_PENDING_FORWARDS),
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Glowroot-Rollup-Buffer-Forwarding-" + name + "-%d")
+                        .build());
+        // threads are only needed when this central node is part of a cluster
+        forwardingExecutor.allowCoreThreadTimeOut(true);
+        this.forwardingExecutor = forwardingExecutor;
+        clusterBuffers = clusterManager.createDistributedExecutionMap(name);
+        clusterBuffers.put(rollupOwnership.getLocalNodeId(), castInitialized(this));
+    }
+
+    // must be called only after the data and the corresponding "needs rollup" record (with the
+    // given uniqueness) have been stored
+    void add(String agentId, long rollupCaptureTime, UUID uniqueness, Update<W> update) {
+        String ownerNodeId = rollupOwnership.getOwnerNodeId(agentId);
+        if (ownerNodeId.equals(rollupOwnership.getLocalNodeId())) {
+            addLocal(agentId, rollupCaptureTime, uniqueness, update);
+            return;
+        }
+        SerializableFunction<RollupBuffer<W>, Boolean> task =
+                createForwardingTask(agentId, rollupCaptureTime, uniqueness, update);
+        try {
+            forwardingExecutor.execute(() -> {
+                try {
+                    clusterBuffers.execute(ownerNodeId, task);
+                } catch (Exception e) {
+                    // rollup will fall back to reading from cassandra
+                    logger.debug(e.getMessage(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // rollup will fall back to reading from cassandra
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // returns null if the window is not complete
+    @Nullable
+    W remove(String agentId, long rollupCaptureTime, Set<UUID> uniquenessKeys) {
+        ConcurrentNavigableMap<Long, Window<W>> agentWindows = windows.get(agentId);
+        if (agentWindows == null) {
+            return null;
+        }
+        Window<W> window = agentWindows.remove(rollupCaptureTime);
+        removeIfEmpty(agentId, agentWindows);
+        if (window == null) {
+            return null;
+        }
+        return window.close(uniquenessKeys);
+    }
+
+    @OnlyUsedByTests
+    int getAgentCount() {
+        return windows.size();
+    }
+
+    private void addLocal(String agentId, long rollupCaptureTime, UUID uniqueness,
+            Update<W> update) {
+        evictExpiredWindowsIfNeeded();
+        while (true) {
+            ConcurrentNavigableMap<Long, Window<W>> agentWindows =
+                    windows.computeIfAbsent(agentId, k -> new ConcurrentSkipListMap<>());
+            Window<W> window = agentWindows.computeIfAbsent(rollupCaptureTime,
+                    k -> new Window<>(windowDataFactory.get()));
+            if (windows.get(agentId) == agentWindows) {
+                window.add(uniqueness, update);
+                return;
+            }
+            // agent windows were concurrently removed after becoming empty
+        }
+    }
+
+    private void evictExpiredWindowsIfNeeded() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        long lastEvictionTime = this.lastEvictionTime.get();
+        if (currentTimeMillis - lastEvictionTime < EVICTION_INTERVAL_MILLIS
+                || !this.lastEvictionTime.compareAndSet(lastEvictionTime, currentTimeMillis)) {
+            return;
+        }
+        for (Map.Entry<String, ConcurrentNavigableMap<Long, Window<W>>> entry : windows
+                .entrySet()) {
+            ConcurrentNavigableMap<Long, Window<W>> agentWindows = entry.getValue();
+            agentWindows.headMap(currentTimeMillis - MAX_WINDOW_AGE_MILLIS).clear();
+            removeIfEmpty(entry.getKey(), agentWindows);
+        }
+    }
+
+    private void removeIfEmpty(String agentId,
+            ConcurrentNavigableMap<Long, Window<W>> agentWindows) {
+        if (agentWindows.isEmpty()) {
+            // a concurrent add() will retry if it races with this removal
+            windows.remove(agentId, agentWindows);
+        }
+    }
+
+    // static so that the task does not capture (and try to serialize) this buffer
+    private static <W> SerializableFunction<RollupBuffer<W>, Boolean> createForwardingTask(
+            String agentId, long rollupCaptureTime, UUID uniqueness, Update<W> update) {
+        return buffer -> {
+            buffer.addLocal(agentId, rollupCaptureTime, uniqueness, update);
+            return true;
+        };
+    }
+
+    @SuppressWarnings("return.type.incompatible")
+    private static <T> /*@Initialized*/ T castInitialized(/*@UnderInitialization*/ T obj) {
+        return obj;
+    }
+
+    // updates are sent to the central node that owns the rollup, so they need to be serializable
+    @FunctionalInterface
+    interface Update<W> extends Serializable {
+        // returns false if the update cannot be merged into the window data, in which case the
+        // window can no longer be used for the rollup
+        boolean apply(W windowData);
+    }
+
+    private static class Window<W> {
+
+        private final W data;
+        private final Set<UUID> uniquenessKeys = new HashSet<>();
+        private boolean unusable;
+        private boolean closed;
+
+        private Window(W data) {
+            this.data = data;
+        }
+
+        private synchronized void add(UUID uniqueness, Update<W> update) {
+            if (closed) {
+                // the "needs rollup" record for this update was not part of the rollup that
+                // removed this window, so it will be rolled up later by reading from cassandra
+                return;
+            }
+            uniquenessKeys.add(uniqueness);
+            if (!update.apply(data)) {
+                unusable = true;
+            }
+        }
+
+        // once closed, the data is no longer modified, so it is safe to read without locking
+        private synchronized @Nullable W close(Set<UUID> uniquenessKeys) {
+            closed = true;
+            if (unusable || !this.uniquenessKeys.equals(uniquenessKeys)) {
+                return null;
+            }
+            return data;
+        }
+    }
+}
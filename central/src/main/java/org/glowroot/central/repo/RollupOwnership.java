@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.ConsistentHashRing;
+
+// assigns agent rollups to central cluster nodes, rebalanced whenever a node joins or leaves
+//
+// child agent rollups (and agents) are owned by the same node as their top-level agent rollup, so
+// that the node can roll up the children before rolling up the parent
+public class RollupOwnership {
+
+    private final ClusterManager clusterManager;
+
+    private volatile ConsistentHashRing ring;
+
+    public RollupOwnership(ClusterManager clusterManager) {
+        this.clusterManager = clusterManager;
+        ring = createRing(clusterManager);
+        clusterManager.addMembershipListener(() -> ring = createRing(clusterManager));
+    }
+
+    // callers that make multiple ownership decisions that need to be consistent with each other
+    // should use the same ring for all of them
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    public String getLocalNodeId() {
+        return clusterManager.getLocalNodeId();
+    }
+
+    public String getOwnerNodeId(String agentRollupId) {
+        return ring.getNodeId(getTopLevelAgentRollupId(agentRollupId));
+    }
+
+    private static String getTopLevelAgentRollupId(String agentRollupId) {
+        List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentRollupId);
+        return agentRollupIds.get(agentRollupIds.size() - 1);
+    }
+
+    private static ConsistentHashRing createRing(ClusterManager clusterManager) {
+        return new ConsistentHashRing(clusterManager.getLocalNodeId(),
+                clusterManager.getNodeIds());
+    }
+}
@@ -47,6 +47,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
@@ -91,6 +92,7 @@ import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class SchemaUpgrade {
@@ -102,7 +104,13 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 76;
+    // these were replaced by *_v2 tables, which include capture_day in the partition key
+    private static final ImmutableList<String> TRACE_POINT_AND_COUNT_TABLE_NAMES =
+            ImmutableList.of("trace_tt_slow_count", "trace_tn_slow_count", "trace_tt_slow_point",
+                    "trace_tn_slow_point", "trace_tt_error_count", "trace_tn_error_count",
+                    "trace_tt_error_point", "trace_tn_error_point");
+
+    private static final int CURR_SCHEMA_VERSION = 80;
 
     private final Session session;
     private final Clock clock;
@@ -468,6 +476,22 @@ public class SchemaUpgrade {
             updateTraceAttributeNamePartitionKeyPart2();
             updateSchemaVersion(76);
         }
+        if (initialSchemaVersion < 77) {
+            addTracePointCaptureDayPartitionKeyPart1();
+            updateSchemaVersion(77);
+        }
+        if (initialSchemaVersion < 78) {
+            addTracePointCaptureDayPartitionKeyPart2();
+            updateSchemaVersion(78);
+        }
+        if (initialSchemaVersion < 79) {
+            populateTraceCountMinuteTables();
+            updateSchemaVersion(79);
+        }
+        if (initialSchemaVersion < 80) {
+            populateTraceCountMinuteKeyTable();
+            updateSchemaVersion(80);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -2432,6 +2456,210 @@ public class SchemaUpgrade {
         dropTableIfExists("trace_attribute_name_temp");
     }
 
+    private void addTracePointCaptureDayPartitionKeyPart1() throws Exception {
+        logger.info("populating trace point and count tables partitioned by capture day - this"
+                + " could take several minutes on large data sets ...");
+        CentralStorageConfig storageConfig = getCentralStorageConfig(session);
+        int ttl = storageConfig.getTraceTTL();
+        for (String tableName : TRACE_POINT_AND_COUNT_TABLE_NAMES) {
+            if (!tableExists(tableName)) {
+                // previously failed mid-upgrade prior to updating schema version
+                continue;
+            }
+            boolean overall = tableName.startsWith("trace_tt_");
+            String keyColumnDefs = "agent_rollup varchar, transaction_type varchar";
+            String keyColumns = "agent_rollup, transaction_type";
+            if (!overall) {
+                keyColumnDefs += ", transaction_name varchar";
+                keyColumns += ", transaction_name";
+            }
+            String valueColumnDefs;
+            String valueColumns;
+            if (tableName.endsWith("_slow_point")) {
+                valueColumnDefs = ", duration_nanos bigint, error boolean, headline varchar, user"
+                        + " varchar, attributes blob";
+                valueColumns = ", duration_nanos, error, headline, user, attributes";
+            } else if (tableName.endsWith("_error_point")) {
+                valueColumnDefs = ", duration_nanos bigint, error_message varchar, headline"
+                        + " varchar, user varchar, attributes blob";
+                valueColumns = ", duration_nanos, error_message, headline, user, attributes";
+            } else {
+                valueColumnDefs = "";
+                valueColumns = "";
+            }
+            session.createTableWithTWCS("create table if not exists " + tableName + "_v2 ("
+                    + keyColumnDefs + ", capture_day timestamp, capture_time timestamp, agent_id"
+                    + " varchar, trace_id varchar" + valueColumnDefs + ", primary key (("
+                    + keyColumns + ", capture_day), capture_time, agent_id, trace_id))",
+                    storageConfig.traceExpirationHours());
+            String columns = keyColumns + ", capture_time, agent_id, trace_id" + valueColumns;
+            int columnCount = columns.split(",").length;
+            StringBuilder bindMarkers = new StringBuilder();
+            for (int i = 0; i < columnCount; i++) {
+                bindMarkers.append("?, ");
+            }
+            PreparedStatement insertPS = session.prepare("insert into " + tableName + "_v2 ("
+                    + columns + ", capture_day) values (" + bindMarkers + "?) using ttl ?");
+            int captureTimeIndex = overall ? 2 : 3;
+            ResultSet results = session.execute("select " + columns + " from " + tableName);
+            Queue<ListenableFuture<ResultSet>> futures = new ArrayDeque<>();
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            int rowCount = 0;
+            for (Row row : results) {
+                BoundStatement boundStatement = insertPS.bind();
+                for (int i = 0; i < columnCount; i++) {
+                    boundStatement.setBytesUnsafe(i, row.getBytesUnsafe(i));
+                }
+                long captureTime = checkNotNull(row.getTimestamp(captureTimeIndex)).getTime();
+                boundStatement.setTimestamp(columnCount,
+                        new Date(TraceDaoImpl.getCaptureDay(captureTime)));
+                boundStatement.setInt(columnCount + 1,
+                        Common.getAdjustedTTL(ttl, captureTime, clock));
+                futures.add(session.executeAsync(boundStatement));
+                rowCount++;
+                if (stopwatch.elapsed(SECONDS) > 60) {
+                    logger.info("processed {} records", rowCount);
+                    stopwatch.reset().start();
+                }
+                waitForSome(futures);
+            }
+            MoreFutures.waitForAll(futures);
+        }
+        logger.info("populating trace point and count tables partitioned by capture day"
+                + " - complete");
+    }
+
+    private void addTracePointCaptureDayPartitionKeyPart2() throws Exception {
+        for (String tableName : TRACE_POINT_AND_COUNT_TABLE_NAMES) {
+            dropTableIfExists(tableName);
+        }
+    }
+
+    private void populateTraceCountMinuteTables() throws Exception {
+        logger.info("populating trace count minute tables - this could take several minutes on"
+                + " large data sets ...");
+        for (String tableName : ImmutableList.of("trace_tt_slow_count", "trace_tn_slow_count",
+                "trace_tt_error_count", "trace_tn_error_count")) {
+            boolean overall = tableName.startsWith("trace_tt_");
+            String keyColumnDefs = "agent_rollup varchar, transaction_type varchar";
+            String keyColumns = "agent_rollup, transaction_type";
+            if (!overall) {
+                keyColumnDefs += ", transaction_name varchar";
+                keyColumns += ", transaction_name";
+            }
+            // counter updates are not idempotent, so start over if previously failed mid-upgrade
+            // prior to updating schema version
+            dropTableIfExists(tableName + "_minute");
+            session.createTableWithLCS("create table if not exists " + tableName + "_minute ("
+                    + keyColumnDefs + ", capture_day timestamp, capture_minute timestamp,"
+                    + " trace_count counter, primary key ((" + keyColumns + ", capture_day),"
+                    + " capture_minute))");
+            int keyColumnCount = overall ? 2 : 3;
+            StringBuilder whereClause = new StringBuilder();
+            for (String keyColumn : keyColumns.split(", ")) {
+                whereClause.append(keyColumn).append(" = ? and ");
+            }
+            PreparedStatement incrementPS = session.prepare("update " + tableName + "_minute set"
+                    + " trace_count = trace_count + ? where " + whereClause + "capture_day = ? and"
+                    + " capture_minute = ?");
+            ResultSet results = session.execute(
+                    "select " + keyColumns + ", capture_time from " + tableName + "_v2");
+            Queue<ListenableFuture<ResultSet>> futures = new ArrayDeque<>();
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            int rowCount = 0;
+            // rows are returned grouped by partition and ordered by capture time within each
+            // partition, so consecutive rows with the same key and capture minute are combined
+            // into a single increment
+            List<String> currKey = null;
+            long currCaptureMinute = 0;
+            long currCount = 0;
+            for (Row row : results) {
+                List<String> key = new ArrayList<>();
+                for (int i = 0; i < keyColumnCount; i++) {
+                    key.add(checkNotNull(row.getString(i)));
+                }
+                long captureTime = checkNotNull(row.getTimestamp(keyColumnCount)).getTime();
+                long captureMinute = CaptureTimes.getRollup(captureTime, MINUTES.toMillis(1));
+                if (key.equals(currKey) && captureMinute == currCaptureMinute) {
+                    currCount++;
+                } else {
+                    if (currKey != null) {
+                        futures.add(incrementTraceCountMinute(incrementPS, currKey,
+                                currCaptureMinute, currCount));
+                    }
+                    currKey = key;
+                    currCaptureMinute = captureMinute;
+                    currCount = 1;
+                }
+                rowCount++;
+                if (stopwatch.elapsed(SECONDS) > 60) {
+                    logger.info("processed {} records", rowCount);
+                    stopwatch.reset().start();
+                }
+                waitForSome(futures);
+            }
+            if (currKey != null) {
+                futures.add(incrementTraceCountMinute(incrementPS, currKey, currCaptureMinute,
+                        currCount));
+            }
+            MoreFutures.waitForAll(futures);
+        }
+        logger.info("populating trace count minute tables - complete");
+    }
+
+    private void populateTraceCountMinuteKeyTable() throws Exception {
+        session.createTableWithLCS("create table if not exists trace_count_minute_key"
+                + " (capture_day timestamp, table_name varchar, agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, primary key (capture_day,"
+                + " table_name, agent_rollup, transaction_type, transaction_name))");
+        PreparedStatement insertPS = session.prepare("insert into trace_count_minute_key"
+                + " (agent_rollup, transaction_type, transaction_name, table_name, capture_day)"
+                + " values (?, ?, ?, ?, ?)");
+        for (String tableName : ImmutableList.of("trace_tt_slow_count_minute",
+                "trace_tn_slow_count_minute", "trace_tt_error_count_minute",
+                "trace_tn_error_count_minute")) {
+            if (!tableExists(tableName)) {
+                continue;
+            }
+            boolean overall = tableName.startsWith("trace_tt_");
+            String partitionKeyColumns = overall ? "agent_rollup, transaction_type, capture_day"
+                    : "agent_rollup, transaction_type, transaction_name, capture_day";
+            ResultSet results = session.execute(
+                    "select distinct " + partitionKeyColumns + " from " + tableName);
+            Queue<ListenableFuture<ResultSet>> futures = new ArrayDeque<>();
+            for (Row row : results) {
+                int i = 0;
+                String agentRollupId = checkNotNull(row.getString(i++));
+                String transactionType = checkNotNull(row.getString(i++));
+                String transactionName = overall ? "" : checkNotNull(row.getString(i++));
+                Date captureDay = checkNotNull(row.getTimestamp(i++));
+                BoundStatement boundStatement = insertPS.bind();
+                i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setString(i++, transactionType);
+                boundStatement.setString(i++, transactionName);
+                boundStatement.setString(i++, tableName);
+                boundStatement.setTimestamp(i++, captureDay);
+                futures.add(session.executeAsync(boundStatement));
+                waitForSome(futures);
+            }
+            MoreFutures.waitForAll(futures);
+        }
+    }
+
+    private ListenableFuture<ResultSet> incrementTraceCountMinute(PreparedStatement incrementPS,
+            List<String> key, long captureMinute, long count) throws Exception {
+        BoundStatement boundStatement = incrementPS.bind();
+        int i = 0;
+        boundStatement.setLong(i++, count);
+        for (String keyPart : key) {
+            boundStatement.setString(i++, keyPart);
+        }
+        boundStatement.setTimestamp(i++, new Date(TraceDaoImpl.getCaptureDay(captureMinute)));
+        boundStatement.setTimestamp(i++, new Date(captureMinute));
+        return session.executeAsync(boundStatement);
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType)
             throws Exception {
         if (tableExists(tableName) && !columnExists(tableName, columnName)) {
@@ -29,6 +29,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import com.datastax.driver.core.BoundStatement;
@@ -36,9 +37,17 @@ import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.SetMultimap;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
@@ -57,6 +66,7 @@ import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.Queries;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
@@ -75,12 +85,33 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class TraceDaoImpl implements TraceDao {
 
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    private static final long CAPTURE_DAY_MILLIS = DAYS.toMillis(1);
+    private static final long CAPTURE_MINUTE_MILLIS = MINUTES.toMillis(1);
+
+    private static final ImmutableList<String> COUNT_MINUTE_TABLE_NAMES =
+            ImmutableList.of("trace_tt_slow_count_minute", "trace_tn_slow_count_minute",
+                    "trace_tt_error_count_minute", "trace_tn_error_count_minute");
+
+    // agents re-send traces shortly after a failed store, so the counted trace marker rows only
+    // need to outlive that window
+    private static final int COUNTED_TRACE_EXPIRATION_HOURS = 24;
+
+    // the lookup since times are re-read at this interval, and central nodes that have a lookup
+    // disabled record that they are storing traces without it at this interval
+    private static final long LOOKUP_SINCE_REFRESH_MILLIS = MINUTES.toMillis(1);
+
+    private static final String USER_LOOKUP_NAME = "user";
+    private static final String ATTRIBUTE_LOOKUP_NAME_PREFIX = "attribute:";
+
     private final Session session;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -88,6 +119,19 @@ public class TraceDaoImpl implements TraceDao {
     private final ConfigRepositoryImpl configRepository;
     private final Clock clock;
 
+    // lookup names are "user" and "attribute:" followed by the upper case attribute name
+    // (upper case since StringComparator.EQUALS is case insensitive)
+    private final ImmutableSet<String> lookupNames;
+
+    private final PreparedStatement readLookupSince;
+    private final PreparedStatement insertLookupSince;
+    private final PreparedStatement updateLookupDisabledUntil;
+
+    // key is lookup name, value is the time after which all completed trace points have been
+    // written to the lookup tables by all central nodes (see getLookupSince())
+    private volatile ImmutableMap<String, Long> lookupSinceTimes = ImmutableMap.of();
+    private final AtomicLong nextLookupSinceRefreshTime = new AtomicLong();
+
     private final PreparedStatement insertOverallSlowCount;
     private final PreparedStatement insertOverallSlowCountPartial;
     private final PreparedStatement insertTransactionSlowCount;
@@ -104,6 +148,16 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertOverallErrorPoint;
     private final PreparedStatement insertTransactionErrorPoint;
 
+    private final PreparedStatement insertOverallSlowPointLookup;
+    private final PreparedStatement insertTransactionSlowPointLookup;
+    private final PreparedStatement insertOverallErrorPointLookup;
+    private final PreparedStatement insertTransactionErrorPointLookup;
+
+    private final PreparedStatement incrementOverallSlowCountMinute;
+    private final PreparedStatement incrementTransactionSlowCountMinute;
+    private final PreparedStatement incrementOverallErrorCountMinute;
+    private final PreparedStatement incrementTransactionErrorCountMinute;
+
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
@@ -130,6 +184,16 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
+    private final PreparedStatement readOverallSlowPointLookup;
+    private final PreparedStatement readTransactionSlowPointLookup;
+    private final PreparedStatement readOverallErrorPointLookup;
+    private final PreparedStatement readTransactionErrorPointLookup;
+
+    private final PreparedStatement readOverallSlowCountMinute;
+    private final PreparedStatement readTransactionSlowCountMinute;
+    private final PreparedStatement readOverallErrorCountMinute;
+    private final PreparedStatement readTransactionErrorCountMinute;
+
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
@@ -152,9 +216,31 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement deleteOverallSlowPointPartial;
     private final PreparedStatement deleteTransactionSlowPointPartial;
 
+    private final PreparedStatement insertCountMinuteKey;
+    private final PreparedStatement insertCountedTrace;
+    private final PreparedStatement readCountMinuteKeys;
+    private final PreparedStatement deleteCountMinuteKeys;
+    // key is count minute table name
+    private final ImmutableMap<String, PreparedStatement> deleteCountMinutePSs;
+
+    // key is agent id and trace id of traces that have already been counted in the count minute
+    // tables, since counter increments are not idempotent (this is only a local cache in front of
+    // the trace_counted table, see incrementCountMinutes())
+    private final Cache<String, Boolean> countedTraces =
+            CacheBuilder.newBuilder().expireAfterWrite(1, HOURS).maximumSize(100000).build();
+
+    // key is table name, partition key and capture day of count minute partitions that have
+    // already been recorded in trace_count_minute_key by this central node
+    private final Cache<String, Boolean> recordedCountMinuteKeys =
+            CacheBuilder.newBuilder().expireAfterWrite(1, DAYS).maximumSize(100000).build();
+
+    // only accessed by the RollupService thread
+    private long lastDeletedCountMinuteCaptureDay;
+
     TraceDaoImpl(Session session, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
-            ConfigRepositoryImpl configRepository, Clock clock) throws Exception {
+            ConfigRepositoryImpl configRepository, boolean userLookup,
+            List<String> lookupAttributeNames, Clock clock) throws Exception {
         this.session = session;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
@@ -162,16 +248,29 @@ public class TraceDaoImpl implements TraceDao {
         this.configRepository = configRepository;
         this.clock = clock;
 
+        ImmutableSet.Builder<String> lookupNames = ImmutableSet.builder();
+        if (userLookup) {
+            lookupNames.add(USER_LOOKUP_NAME);
+        }
+        for (String lookupAttributeName : lookupAttributeNames) {
+            lookupNames.add(getAttributeLookupName(lookupAttributeName));
+        }
+        this.lookupNames = lookupNames.build();
+
         int expirationHours = configRepository.getCentralStorageConfig().traceExpirationHours();
 
         // agent_rollup/capture_time is not necessarily unique
         // using a counter would be nice since only need sum over capture_time range
         // but counter has no TTL, see https://issues.apache.org/jira/browse/CASSANDRA-2103
         // so adding trace_id to provide uniqueness
-        session.createTableWithTWCS("create table if not exists trace_tt_slow_count (agent_rollup"
-                + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
-                + " trace_id varchar, primary key ((agent_rollup, transaction_type), capture_time,"
-                + " agent_id, trace_id))", expirationHours);
+        //
+        // capture_day is part of the partition key so that partitions do not grow for the entire
+        // trace retention period (see getCaptureDays())
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_count_v2"
+                + " (agent_rollup varchar, transaction_type varchar, capture_day timestamp,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
+                + " ((agent_rollup, transaction_type, capture_day), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_tt_slow_count_partial"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
@@ -179,11 +278,11 @@ public class TraceDaoImpl implements TraceDao {
                 + " transaction_type), capture_time, agent_id, trace_id))", expirationHours, false,
                 true);
 
-        session.createTableWithTWCS("create table if not exists trace_tn_slow_count (agent_rollup"
-                + " varchar, transaction_type varchar, transaction_name varchar, capture_time"
-                + " timestamp, agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
-                + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
-                expirationHours);
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_count_v2"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_day timestamp, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, primary key ((agent_rollup, transaction_type, transaction_name,"
+                + " capture_day), capture_time, agent_id, trace_id))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_tn_slow_count_partial"
                 + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
@@ -191,11 +290,12 @@ public class TraceDaoImpl implements TraceDao {
                 + " ((agent_rollup, transaction_type, transaction_name), capture_time, agent_id,"
                 + " trace_id))", expirationHours, false, true);
 
-        session.createTableWithTWCS("create table if not exists trace_tt_slow_point (agent_rollup"
-                + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
-                + " trace_id varchar, duration_nanos bigint, error boolean, headline varchar, user"
-                + " varchar, attributes blob, primary key ((agent_rollup, transaction_type),"
-                + " capture_time, agent_id, trace_id))", expirationHours);
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_point_v2"
+                + " (agent_rollup varchar, transaction_type varchar, capture_day timestamp,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, duration_nanos"
+                + " bigint, error boolean, headline varchar, user varchar, attributes blob, primary"
+                + " key ((agent_rollup, transaction_type, capture_day), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_tt_slow_point_partial"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
@@ -204,12 +304,13 @@ public class TraceDaoImpl implements TraceDao {
                 + " transaction_type), capture_time, agent_id, trace_id))", expirationHours, false,
                 true);
 
-        session.createTableWithTWCS("create table if not exists trace_tn_slow_point (agent_rollup"
-                + " varchar, transaction_type varchar, transaction_name varchar, capture_time"
-                + " timestamp, agent_id varchar, trace_id varchar, duration_nanos bigint, error"
-                + " boolean, headline varchar, user varchar, attributes blob, primary key"
-                + " ((agent_rollup, transaction_type, transaction_name), capture_time, agent_id,"
-                + " trace_id))", expirationHours);
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_point_v2"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_day timestamp, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error boolean, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, capture_day), capture_time, agent_id, trace_id))",
+                expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_tn_slow_point_partial"
                 + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
@@ -218,29 +319,130 @@ public class TraceDaoImpl implements TraceDao {
                 + " key ((agent_rollup, transaction_type, transaction_name), capture_time,"
                 + " agent_id, trace_id))", expirationHours, false, true);
 
-        session.createTableWithTWCS("create table if not exists trace_tt_error_count (agent_rollup"
-                + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
-                + " trace_id varchar, primary key ((agent_rollup, transaction_type), capture_time,"
+        session.createTableWithTWCS("create table if not exists trace_tt_error_count_v2"
+                + " (agent_rollup varchar, transaction_type varchar, capture_day timestamp,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, primary key"
+                + " ((agent_rollup, transaction_type, capture_day), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_count_v2"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_day timestamp, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, primary key ((agent_rollup, transaction_type, transaction_name,"
+                + " capture_day), capture_time, agent_id, trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tt_error_point_v2"
+                + " (agent_rollup varchar, transaction_type varchar, capture_day timestamp,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar, duration_nanos"
+                + " bigint, error_message varchar, headline varchar, user varchar, attributes blob,"
+                + " primary key ((agent_rollup, transaction_type, capture_day), capture_time,"
                 + " agent_id, trace_id))", expirationHours);
 
-        session.createTableWithTWCS("create table if not exists trace_tn_error_count (agent_rollup"
-                + " varchar, transaction_type varchar, transaction_name varchar, capture_time"
-                + " timestamp, agent_id varchar, trace_id varchar, primary key ((agent_rollup,"
-                + " transaction_type, transaction_name), capture_time, agent_id, trace_id))",
+        session.createTableWithTWCS("create table if not exists trace_tn_error_point_v2"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_day timestamp, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error_message varchar, headline varchar, user"
+                + " varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, capture_day), capture_time, agent_id, trace_id))",
                 expirationHours);
 
-        session.createTableWithTWCS("create table if not exists trace_tt_error_point (agent_rollup"
-                + " varchar, transaction_type varchar, capture_time timestamp, agent_id varchar,"
-                + " trace_id varchar, duration_nanos bigint, error_message varchar, headline"
-                + " varchar, user varchar, attributes blob, primary key ((agent_rollup,"
-                + " transaction_type), capture_time, agent_id, trace_id))", expirationHours);
+        // the trace counts are also maintained in per-minute counters, so that reading the trace
+        // count over a long time range does not need to read all of the trace count rows above
+        //
+        // trace_count for capture_minute M is the count of capture times in (M - 1 minute, M]
+        //
+        // since counters cannot have a TTL, expired capture day partitions are deleted explicitly
+        // (see deleteExpiredCountMinutes())
+        session.createTableWithLCS("create table if not exists trace_tt_slow_count_minute"
+                + " (agent_rollup varchar, transaction_type varchar, capture_day timestamp,"
+                + " capture_minute timestamp, trace_count counter, primary key ((agent_rollup,"
+                + " transaction_type, capture_day), capture_minute))");
+
+        session.createTableWithLCS("create table if not exists trace_tn_slow_count_minute"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_day timestamp, capture_minute timestamp, trace_count counter, primary"
+                + " key ((agent_rollup, transaction_type, transaction_name, capture_day),"
+                + " capture_minute))");
+
+        session.createTableWithLCS("create table if not exists trace_tt_error_count_minute"
+                + " (agent_rollup varchar, transaction_type varchar, capture_day timestamp,"
+                + " capture_minute timestamp, trace_count counter, primary key ((agent_rollup,"
+                + " transaction_type, capture_day), capture_minute))");
+
+        session.createTableWithLCS("create table if not exists trace_tn_error_count_minute"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_day timestamp, capture_minute timestamp, trace_count counter, primary"
+                + " key ((agent_rollup, transaction_type, transaction_name, capture_day),"
+                + " capture_minute))");
+
+        // keys of the count minute partitions for each capture day, so that the partitions can be
+        // deleted once they are beyond the trace retention period, even if no more traces are
+        // received for the same key (transaction_name is empty for the trace_tt_* tables)
+        session.createTableWithLCS("create table if not exists trace_count_minute_key"
+                + " (capture_day timestamp, table_name varchar, agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, primary key (capture_day,"
+                + " table_name, agent_rollup, transaction_type, transaction_name))");
+
+        // marker rows for traces that have already been counted in the count minute tables, so
+        // that a trace that is re-sent by the agent (possibly to a different central node) is not
+        // counted twice (see incrementCountMinutes())
+        session.createTableWithTWCS("create table if not exists trace_counted (agent_id varchar,"
+                + " trace_id varchar, primary key ((agent_id, trace_id)))",
+                COUNTED_TRACE_EXPIRATION_HOURS);
+
+        // the point lookup tables are optional copies of the completed trace points, keyed by user
+        // and/or by selected attribute values, so that searching for trace points with a specific
+        // user or attribute value does not need to read every trace point in the time range
+        //
+        // lookup_value is upper case since StringComparator.EQUALS is case insensitive
+        //
+        // duration_bucket is the bit length of duration_nanos, so that searching for trace points
+        // above a duration threshold can skip the shorter durations (see getDurationBuckets())
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_point_lookup"
+                + " (agent_rollup varchar, transaction_type varchar, lookup_name varchar,"
+                + " lookup_value varchar, capture_day timestamp, duration_bucket int, capture_time"
+                + " timestamp, agent_id varchar, trace_id varchar, duration_nanos bigint, error"
+                + " boolean, headline varchar, user varchar, attributes blob, primary key"
+                + " ((agent_rollup, transaction_type, lookup_name, lookup_value, capture_day),"
+                + " duration_bucket, capture_time, agent_id, trace_id))", expirationHours);
 
-        session.createTableWithTWCS("create table if not exists trace_tn_error_point (agent_rollup"
-                + " varchar, transaction_type varchar, transaction_name varchar, capture_time"
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_point_lookup"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " lookup_name varchar, lookup_value varchar, capture_day timestamp,"
+                + " duration_bucket int, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error boolean, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, lookup_name, lookup_value, capture_day), duration_bucket,"
+                + " capture_time, agent_id, trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tt_error_point_lookup"
+                + " (agent_rollup varchar, transaction_type varchar, lookup_name varchar,"
+                + " lookup_value varchar, capture_day timestamp, duration_bucket int, capture_time"
                 + " timestamp, agent_id varchar, trace_id varchar, duration_nanos bigint,"
                 + " error_message varchar, headline varchar, user varchar, attributes blob, primary"
-                + " key ((agent_rollup, transaction_type, transaction_name), capture_time,"
-                + " agent_id, trace_id))", expirationHours);
+                + " key ((agent_rollup, transaction_type, lookup_name, lookup_value, capture_day),"
+                + " duration_bucket, capture_time, agent_id, trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_point_lookup"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " lookup_name varchar, lookup_value varchar, capture_day timestamp,"
+                + " duration_bucket int, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error_message varchar, headline varchar, user"
+                + " varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, lookup_name, lookup_value, capture_day), duration_bucket,"
+                + " capture_time, agent_id, trace_id))", expirationHours);
+
+        // since is the time that the lookup was first enabled, since trace points captured prior
+        // to that are not in the lookup tables
+        //
+        // disabled_until is the most recent time that a central node with the lookup disabled
+        // recorded that it is storing trace points without writing them to the lookup tables
+        //
+        // rows are never deleted (other than by truncateAll()), since every central node caches and
+        // periodically re-reads them
+        session.createTableWithLCS("create table if not exists trace_lookup_since (one int,"
+                + " lookup_name varchar, since timestamp, disabled_until timestamp, primary key"
+                + " (one, lookup_name))");
 
         session.createTableWithTWCS("create table if not exists trace_tt_error_message"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
@@ -316,58 +518,101 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_id varchar, trace_id varchar, profile blob, primary key ((agent_id,"
                 + " trace_id)))", expirationHours);
 
-        insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
-                + " using ttl ?");
+        insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count_v2"
+                + " (agent_rollup, transaction_type, capture_day, capture_time, agent_id, trace_id)"
+                + " values (?, ?, ?, ?, ?, ?) using ttl ?");
 
         insertOverallSlowCountPartial = session.prepare("insert into trace_tt_slow_count_partial"
                 + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id) values"
                 + " (?, ?, ?, ?, ?) using ttl ?");
 
-        insertTransactionSlowCount = session.prepare("insert into trace_tn_slow_count"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
-                + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
+        insertTransactionSlowCount = session.prepare("insert into trace_tn_slow_count_v2"
+                + " (agent_rollup, transaction_type, transaction_name, capture_day, capture_time,"
+                + " agent_id, trace_id) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
         insertTransactionSlowCountPartial = session.prepare("insert into"
                 + " trace_tn_slow_count_partial (agent_rollup, transaction_type, transaction_name,"
                 + " capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos, error,"
-                + " headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point_v2"
+                + " (agent_rollup, transaction_type, capture_day, capture_time, agent_id, trace_id,"
+                + " duration_nanos, error, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?,"
+                + " ?, ?, ?, ?) using ttl ?");
 
         insertOverallSlowPointPartial = session.prepare("insert into trace_tt_slow_point_partial"
                 + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
                 + " duration_nanos, error, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?,"
                 + " ?, ?, ?) using ttl ?");
 
-        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
-                + " trace_id, duration_nanos, error, headline, user, attributes) values (?, ?, ?,"
-                + " ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point_v2"
+                + " (agent_rollup, transaction_type, transaction_name, capture_day, capture_time,"
+                + " agent_id, trace_id, duration_nanos, error, headline, user, attributes) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
         insertTransactionSlowPointPartial = session.prepare("insert into"
                 + " trace_tn_slow_point_partial (agent_rollup, transaction_type, transaction_name,"
                 + " capture_time, agent_id, trace_id, duration_nanos, error, headline, user,"
                 + " attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallErrorCount = session.prepare("insert into trace_tt_error_count (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
+        insertOverallErrorCount = session.prepare("insert into trace_tt_error_count_v2"
+                + " (agent_rollup, transaction_type, capture_day, capture_time, agent_id, trace_id)"
+                + " values (?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorCount = session.prepare("insert into trace_tn_error_count_v2"
+                + " (agent_rollup, transaction_type, transaction_name, capture_day, capture_time,"
+                + " agent_id, trace_id) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point_v2"
+                + " (agent_rollup, transaction_type, capture_day, capture_time, agent_id, trace_id,"
+                + " duration_nanos, error_message, headline, user, attributes) values (?, ?, ?, ?,"
+                + " ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorPoint = session.prepare("insert into trace_tn_error_point_v2"
+                + " (agent_rollup, transaction_type, transaction_name, capture_day, capture_time,"
+                + " agent_id, trace_id, duration_nanos, error_message, headline, user, attributes)"
+                + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertOverallSlowPointLookup = session.prepare("insert into trace_tt_slow_point_lookup"
+                + " (agent_rollup, transaction_type, lookup_name, lookup_value, capture_day,"
+                + " duration_bucket, capture_time, agent_id, trace_id, duration_nanos, error,"
+                + " headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
                 + " using ttl ?");
 
-        insertTransactionErrorCount = session.prepare("insert into trace_tn_error_count"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
-                + " trace_id) values (?, ?, ?, ?, ?, ?) using ttl ?");
+        insertTransactionSlowPointLookup = session.prepare("insert into"
+                + " trace_tn_slow_point_lookup (agent_rollup, transaction_type, transaction_name,"
+                + " lookup_name, lookup_value, capture_day, duration_bucket, capture_time,"
+                + " agent_id, trace_id, duration_nanos, error, headline, user, attributes) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertOverallErrorPoint = session.prepare("insert into trace_tt_error_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos,"
+        insertOverallErrorPointLookup = session.prepare("insert into trace_tt_error_point_lookup"
+                + " (agent_rollup, transaction_type, lookup_name, lookup_value, capture_day,"
+                + " duration_bucket, capture_time, agent_id, trace_id, duration_nanos,"
                 + " error_message, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
-                + " ?) using ttl ?");
+                + " ?, ?, ?, ?, ?) using ttl ?");
 
-        insertTransactionErrorPoint = session.prepare("insert into trace_tn_error_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
-                + " trace_id, duration_nanos, error_message, headline, user, attributes) values (?,"
-                + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        insertTransactionErrorPointLookup = session.prepare("insert into"
+                + " trace_tn_error_point_lookup (agent_rollup, transaction_type, transaction_name,"
+                + " lookup_name, lookup_value, capture_day, duration_bucket, capture_time,"
+                + " agent_id, trace_id, duration_nanos, error_message, headline, user, attributes)"
+                + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        incrementOverallSlowCountMinute = session.prepare("update trace_tt_slow_count_minute set"
+                + " trace_count = trace_count + 1 where agent_rollup = ? and transaction_type = ?"
+                + " and capture_day = ? and capture_minute = ?");
+
+        incrementTransactionSlowCountMinute = session.prepare("update"
+                + " trace_tn_slow_count_minute set trace_count = trace_count + 1 where agent_rollup"
+                + " = ? and transaction_type = ? and transaction_name = ? and capture_day = ? and"
+                + " capture_minute = ?");
+
+        incrementOverallErrorCountMinute = session.prepare("update trace_tt_error_count_minute set"
+                + " trace_count = trace_count + 1 where agent_rollup = ? and transaction_type = ?"
+                + " and capture_day = ? and capture_minute = ?");
+
+        incrementTransactionErrorCountMinute = session.prepare("update"
+                + " trace_tn_error_count_minute set trace_count = trace_count + 1 where"
+                + " agent_rollup = ? and transaction_type = ? and transaction_name = ? and"
+                + " capture_day = ? and capture_minute = ?");
 
         insertOverallErrorMessage = session.prepare("insert into trace_tt_error_message"
                 + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
@@ -400,26 +645,26 @@ public class TraceDaoImpl implements TraceDao {
         insertAuxThreadProfileV2 = session.prepare("insert into trace_aux_thread_profile_v2"
                 + " (agent_id, trace_id, profile) values (?, ?, ?) using ttl ?");
 
-        readOverallSlowCount = session.prepare("select count(*) from trace_tt_slow_count where"
-                + " agent_rollup = ? and transaction_type = ? and capture_time > ? and capture_time"
-                + " <= ?");
+        readOverallSlowCount = session.prepare("select count(*) from trace_tt_slow_count_v2 where"
+                + " agent_rollup = ? and transaction_type = ? and capture_day = ? and capture_time"
+                + " > ? and capture_time <= ?");
 
         readOverallSlowCountPartial = session.prepare("select count(*) from"
                 + " trace_tt_slow_count_partial where agent_rollup = ? and transaction_type = ? and"
                 + " capture_time > ? and capture_time <= ?");
 
-        readTransactionSlowCount = session.prepare("select count(*) from trace_tn_slow_count where"
-                + " agent_rollup = ? and transaction_type = ? and transaction_name = ? and"
-                + " capture_time > ? and capture_time <= ?");
+        readTransactionSlowCount = session.prepare("select count(*) from trace_tn_slow_count_v2"
+                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ? and"
+                + " capture_day = ? and capture_time > ? and capture_time <= ?");
 
         readTransactionSlowCountPartial = session.prepare("select count(*) from"
                 + " trace_tn_slow_count_partial where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time > ? and capture_time <= ?");
 
         readOverallSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
-                + " duration_nanos, error, headline, user, attributes from trace_tt_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time > ? and"
-                + " capture_time <= ?");
+                + " duration_nanos, error, headline, user, attributes from trace_tt_slow_point_v2"
+                + " where agent_rollup = ? and transaction_type = ? and capture_day = ? and"
+                + " capture_time > ? and capture_time <= ?");
 
         readOverallSlowPointPartial = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, error, headline, user, attributes from"
@@ -427,32 +672,75 @@ public class TraceDaoImpl implements TraceDao {
                 + " capture_time > ? and capture_time <= ?");
 
         readTransactionSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
-                + " duration_nanos, error, headline, user, attributes from trace_tn_slow_point"
+                + " duration_nanos, error, headline, user, attributes from trace_tn_slow_point_v2"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ? and"
-                + " capture_time > ? and capture_time <= ?");
+                + " capture_day = ? and capture_time > ? and capture_time <= ?");
 
         readTransactionSlowPointPartial = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, error, headline, user, attributes from"
                 + " trace_tn_slow_point_partial where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time > ? and capture_time <= ?");
 
-        readOverallErrorCount = session.prepare("select count(*) from trace_tt_error_count where"
-                + " agent_rollup = ? and transaction_type = ? and capture_time > ? and"
-                + " capture_time <= ?");
+        readOverallErrorCount = session.prepare("select count(*) from trace_tt_error_count_v2"
+                + " where agent_rollup = ? and transaction_type = ? and capture_day = ? and"
+                + " capture_time > ? and capture_time <= ?");
 
-        readTransactionErrorCount = session.prepare("select count(*) from trace_tn_error_count"
+        readTransactionErrorCount = session.prepare("select count(*) from trace_tn_error_count_v2"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
-                + " and capture_time > ? and capture_time <= ?");
+                + " and capture_day = ? and capture_time > ? and capture_time <= ?");
 
         readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, error_message, headline, user, attributes from"
-                + " trace_tt_error_point where agent_rollup = ? and transaction_type = ? and"
-                + " capture_time > ? and capture_time <= ?");
+                + " trace_tt_error_point_v2 where agent_rollup = ? and transaction_type = ? and"
+                + " capture_day = ? and capture_time > ? and capture_time <= ?");
 
         readTransactionErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, error_message, headline, user, attributes from"
-                + " trace_tn_error_point where agent_rollup = ? and transaction_type = ? and"
-                + " transaction_name = ? and capture_time > ? and capture_time <= ?");
+                + " trace_tn_error_point_v2 where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and capture_day = ? and capture_time > ? and capture_time"
+                + " <= ?");
+
+        readOverallSlowPointLookup = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error, headline, user, attributes from"
+                + " trace_tt_slow_point_lookup where agent_rollup = ? and transaction_type = ? and"
+                + " lookup_name = ? and lookup_value = ? and capture_day = ? and duration_bucket"
+                + " in ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionSlowPointLookup = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, error, headline, user, attributes from"
+                + " trace_tn_slow_point_lookup where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and lookup_name = ? and lookup_value = ? and capture_day"
+                + " = ? and duration_bucket in ? and capture_time > ? and capture_time <= ?");
+
+        readOverallErrorPointLookup = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error_message, headline, user, attributes from"
+                + " trace_tt_error_point_lookup where agent_rollup = ? and transaction_type = ? and"
+                + " lookup_name = ? and lookup_value = ? and capture_day = ? and duration_bucket"
+                + " in ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorPointLookup = session.prepare("select agent_id, trace_id,"
+                + " capture_time, duration_nanos, error_message, headline, user, attributes from"
+                + " trace_tn_error_point_lookup where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and lookup_name = ? and lookup_value = ? and capture_day"
+                + " = ? and duration_bucket in ? and capture_time > ? and capture_time <= ?");
+
+        readOverallSlowCountMinute = session.prepare("select trace_count from"
+                + " trace_tt_slow_count_minute where agent_rollup = ? and transaction_type = ? and"
+                + " capture_day = ? and capture_minute > ? and capture_minute <= ?");
+
+        readTransactionSlowCountMinute = session.prepare("select trace_count from"
+                + " trace_tn_slow_count_minute where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and capture_day = ? and capture_minute > ? and"
+                + " capture_minute <= ?");
+
+        readOverallErrorCountMinute = session.prepare("select trace_count from"
+                + " trace_tt_error_count_minute where agent_rollup = ? and transaction_type = ? and"
+                + " capture_day = ? and capture_minute > ? and capture_minute <= ?");
+
+        readTransactionErrorCountMinute = session.prepare("select trace_count from"
+                + " trace_tn_error_count_minute where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and capture_day = ? and capture_minute > ? and"
+                + " capture_minute <= ?");
 
         readOverallErrorMessage = session.prepare("select capture_time, error_message from"
                 + " trace_tt_error_message where agent_rollup = ? and transaction_type = ? and"
@@ -517,6 +805,89 @@ public class TraceDaoImpl implements TraceDao {
         deleteTransactionSlowPointPartial = session.prepare("delete from"
                 + " trace_tn_slow_point_partial where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        insertCountMinuteKey = session.prepare("insert into trace_count_minute_key"
+                + " (agent_rollup, transaction_type, transaction_name, table_name, capture_day)"
+                + " values (?, ?, ?, ?, ?)");
+
+        insertCountedTrace = session.prepare("insert into trace_counted (agent_id, trace_id)"
+                + " values (?, ?) if not exists using ttl "
+                + HOURS.toSeconds(COUNTED_TRACE_EXPIRATION_HOURS));
+
+        readCountMinuteKeys = session.prepare("select table_name, agent_rollup,"
+                + " transaction_type, transaction_name from trace_count_minute_key where"
+                + " capture_day = ?");
+
+        deleteCountMinuteKeys =
+                session.prepare("delete from trace_count_minute_key where capture_day = ?");
+
+        ImmutableMap.Builder<String, PreparedStatement> deleteCountMinutePSs =
+                ImmutableMap.builder();
+        for (String tableName : COUNT_MINUTE_TABLE_NAMES) {
+            String transactionNameClause =
+                    tableName.startsWith("trace_tt_") ? "" : " and transaction_name = ?";
+            deleteCountMinutePSs.put(tableName, session.prepare("delete from " + tableName
+                    + " where agent_rollup = ? and transaction_type = ?" + transactionNameClause
+                    + " and capture_day = ?"));
+        }
+        this.deleteCountMinutePSs = deleteCountMinutePSs.build();
+
+        readLookupSince = session.prepare("select lookup_name, since, disabled_until from"
+                + " trace_lookup_since where one = 1");
+        // "if since = null" in case another central node is enabling the lookup concurrently
+        insertLookupSince = session.prepare("update trace_lookup_since set since = ? where one = 1"
+                + " and lookup_name = ? if since = null");
+        updateLookupDisabledUntil = session.prepare("update trace_lookup_since set"
+                + " disabled_until = ? where one = 1 and lookup_name = ?");
+
+        refreshLookupSinceTimes();
+    }
+
+    private void refreshLookupSinceTimesIfNeeded() throws Exception {
+        long nextRefreshTime = nextLookupSinceRefreshTime.get();
+        if (clock.currentTimeMillis() >= nextRefreshTime
+                && nextLookupSinceRefreshTime.compareAndSet(nextRefreshTime,
+                        clock.currentTimeMillis() + LOOKUP_SINCE_REFRESH_MILLIS)) {
+            refreshLookupSinceTimes();
+        }
+    }
+
+    private void refreshLookupSinceTimes() throws Exception {
+        long currentTimeMillis = clock.currentTimeMillis();
+        nextLookupSinceRefreshTime.set(currentTimeMillis + LOOKUP_SINCE_REFRESH_MILLIS);
+        Map<String, Long> lookupSinceTimes = new HashMap<>();
+        List<Future<?>> futures = new ArrayList<>();
+        ResultSet results = session.execute(readLookupSince.bind());
+        for (Row row : results) {
+            int i = 0;
+            String lookupName = checkNotNull(row.getString(i++));
+            Date since = row.getTimestamp(i++);
+            Date disabledUntil = row.getTimestamp(i++);
+            if (!lookupNames.contains(lookupName)) {
+                // the row is never deleted here, since other central nodes with the lookup enabled
+                // still rely on it
+                BoundStatement boundStatement = updateLookupDisabledUntil.bind();
+                boundStatement.setTimestamp(0, new Date(currentTimeMillis));
+                boundStatement.setString(1, lookupName);
+                futures.add(session.executeAsync(boundStatement));
+            } else if (since != null) {
+                lookupSinceTimes.put(lookupName, getLookupSince(since.getTime(),
+                        disabledUntil == null ? null : disabledUntil.getTime()));
+            }
+        }
+        for (String lookupName : lookupNames) {
+            if (!lookupSinceTimes.containsKey(lookupName)) {
+                // the since row is missing (e.g. lookup has just been enabled), so the lookup is
+                // not used by this central node until the next refresh, and queries fall back to
+                // reading every trace point in the time range
+                BoundStatement boundStatement = insertLookupSince.bind();
+                boundStatement.setTimestamp(0, new Date(currentTimeMillis));
+                boundStatement.setString(1, lookupName);
+                futures.add(session.executeAsync(boundStatement));
+            }
+        }
+        MoreFutures.waitForAll(futures);
+        this.lookupSinceTimes = ImmutableMap.copyOf(lookupSinceTimes);
     }
 
     @Override
@@ -542,6 +913,7 @@ public class TraceDaoImpl implements TraceDao {
 
     private void storeInternal(String agentId, List<String> agentRollupIds,
             List<String> agentRollupIdsForMeta, Trace trace) throws Exception {
+        refreshLookupSinceTimesIfNeeded();
         String traceId = trace.getId();
         Trace.Header priorHeader = trace.getUpdate() ? readHeader(agentId, traceId) : null;
         Trace.Header header = trace.getHeader();
@@ -589,6 +961,7 @@ public class TraceDaoImpl implements TraceDao {
         int adjustedTTL =
                 Common.getAdjustedTTL(configRepository.getCentralStorageConfig().getTraceTTL(),
                         header.getCaptureTime(), clock);
+        SetMultimap<String, String> lookups = getLookups(header);
         for (String agentRollupId : agentRollupIds) {
             if (header.getSlow()) {
                 BoundStatement boundStatement;
@@ -598,7 +971,7 @@ public class TraceDaoImpl implements TraceDao {
                     boundStatement = insertOverallSlowPoint.bind();
                 }
                 bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
+                        true, !header.getPartial());
                 futures.add(session.executeAsync(boundStatement));
 
                 if (header.getPartial()) {
@@ -607,7 +980,7 @@ public class TraceDaoImpl implements TraceDao {
                     boundStatement = insertTransactionSlowPoint.bind();
                 }
                 bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
+                        false, !header.getPartial());
                 futures.add(session.executeAsync(boundStatement));
 
                 if (header.getPartial()) {
@@ -616,7 +989,7 @@ public class TraceDaoImpl implements TraceDao {
                     boundStatement = insertOverallSlowCount.bind();
                 }
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
+                        true, !header.getPartial());
                 futures.add(session.executeAsync(boundStatement));
 
                 if (header.getPartial()) {
@@ -625,9 +998,25 @@ public class TraceDaoImpl implements TraceDao {
                     boundStatement = insertTransactionSlowCount.bind();
                 }
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
+                        false, !header.getPartial());
                 futures.add(session.executeAsync(boundStatement));
 
+                if (!header.getPartial()) {
+                    for (Map.Entry<String, String> lookup : lookups.entries()) {
+                        boundStatement = insertOverallSlowPointLookup.bind();
+                        int i = bindLookup(boundStatement, agentRollupId, agentId, traceId, header,
+                                true, lookup.getKey(), lookup.getValue());
+                        bindSlowPointValues(boundStatement, i, header, adjustedTTL);
+                        futures.add(session.executeAsync(boundStatement));
+
+                        boundStatement = insertTransactionSlowPointLookup.bind();
+                        i = bindLookup(boundStatement, agentRollupId, agentId, traceId, header,
+                                false, lookup.getKey(), lookup.getValue());
+                        bindSlowPointValues(boundStatement, i, header, adjustedTTL);
+                        futures.add(session.executeAsync(boundStatement));
+                    }
+                }
+
                 if (priorHeader != null) {
                     boundStatement = deleteOverallSlowPointPartial.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
@@ -671,13 +1060,27 @@ public class TraceDaoImpl implements TraceDao {
 
                 boundStatement = insertOverallErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
+                        true, true);
                 futures.add(session.executeAsync(boundStatement));
 
                 boundStatement = insertTransactionErrorCount.bind();
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
+                        false, true);
                 futures.add(session.executeAsync(boundStatement));
+
+                for (Map.Entry<String, String> lookup : lookups.entries()) {
+                    boundStatement = insertOverallErrorPointLookup.bind();
+                    int i = bindLookup(boundStatement, agentRollupId, agentId, traceId, header,
+                            true, lookup.getKey(), lookup.getValue());
+                    bindErrorPointValues(boundStatement, i, header, adjustedTTL);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = insertTransactionErrorPointLookup.bind();
+                    i = bindLookup(boundStatement, agentRollupId, agentId, traceId, header, false,
+                            lookup.getKey(), lookup.getValue());
+                    bindErrorPointValues(boundStatement, i, header, adjustedTTL);
+                    futures.add(session.executeAsync(boundStatement));
+                }
             }
         }
         for (String agentRollupIdForMeta : agentRollupIdsForMeta) {
@@ -797,82 +1200,210 @@ public class TraceDaoImpl implements TraceDao {
         futures.addAll(
                 transactionTypeDao.store(agentRollupIdsForMeta, header.getTransactionType()));
         MoreFutures.waitForAll(futures);
+
+        incrementCountMinutes(agentId, agentRollupIds, trace);
+    }
+
+    // counter increments are not idempotent, so they are only issued after all of the other writes
+    // for the trace have succeeded (so that a store that fails and is then re-sent by the agent
+    // does not count the trace twice), and only by the central node that first inserts the trace's
+    // marker row into trace_counted (so that a trace that is re-sent to a different central node
+    // after the increments have succeeded, e.g. if the response to the agent is lost, is not
+    // counted twice either)
+    //
+    // a trace can still be under counted if the increments themselves fail after the marker row
+    // has been inserted
+    private void incrementCountMinutes(String agentId, List<String> agentRollupIds, Trace trace)
+            throws Exception {
+        Trace.Header header = trace.getHeader();
+        if (header.getPartial()) {
+            return;
+        }
+        boolean slow = header.getSlow();
+        boolean error = header.hasError();
+        if (!slow && !error) {
+            return;
+        }
+        if (countedTraces.asMap().putIfAbsent(agentId + ':' + trace.getId(), true) != null) {
+            return;
+        }
+        long captureMinute = CaptureTimes.getRollup(header.getCaptureTime(), CAPTURE_MINUTE_MILLIS);
+        long captureDay = getCaptureDay(captureMinute);
+        if (captureDay < getCaptureDay(clock.currentTimeMillis() - HOURS.toMillis(
+                configRepository.getCentralStorageConfig().traceExpirationHours()))) {
+            // the capture day partition may already be deleted (see deleteExpiredCountMinutes()),
+            // and incrementing a counter after it has been deleted is undefined in Cassandra,
+            // but no need to count it anyways since it is already beyond the trace retention
+            return;
+        }
+        if (!insertCountedTrace(agentId, trace.getId())) {
+            // already counted (possibly by a different central node)
+            return;
+        }
+        // key is count minute table name
+        Map<String, PreparedStatement> incrementPSs = new LinkedHashMap<>();
+        if (slow) {
+            incrementPSs.put("trace_tt_slow_count_minute", incrementOverallSlowCountMinute);
+            incrementPSs.put("trace_tn_slow_count_minute", incrementTransactionSlowCountMinute);
+        }
+        if (error) {
+            incrementPSs.put("trace_tt_error_count_minute", incrementOverallErrorCountMinute);
+            incrementPSs.put("trace_tn_error_count_minute", incrementTransactionErrorCountMinute);
+        }
+        // the count minute keys are recorded before incrementing, so that a count minute partition
+        // can never be missed by deleteExpiredCountMinutes()
+        List<Future<?>> futures = new ArrayList<>();
+        List<String> recordedKeys = new ArrayList<>();
+        for (String agentRollupId : agentRollupIds) {
+            for (String tableName : incrementPSs.keySet()) {
+                String transactionName = tableName.startsWith("trace_tt_") ? ""
+                        : header.getTransactionName();
+                String key = tableName + ':' + agentRollupId + ':' + header.getTransactionType()
+                        + ':' + transactionName + ':' + captureDay;
+                if (recordedCountMinuteKeys.getIfPresent(key) == null) {
+                    BoundStatement boundStatement = insertCountMinuteKey.bind();
+                    int i = 0;
+                    boundStatement.setString(i++, agentRollupId);
+                    boundStatement.setString(i++, header.getTransactionType());
+                    boundStatement.setString(i++, transactionName);
+                    boundStatement.setString(i++, tableName);
+                    boundStatement.setTimestamp(i++, new Date(captureDay));
+                    futures.add(session.executeAsync(boundStatement));
+                    recordedKeys.add(key);
+                }
+            }
+        }
+        MoreFutures.waitForAll(futures);
+        for (String recordedKey : recordedKeys) {
+            recordedCountMinuteKeys.put(recordedKey, true);
+        }
+        futures.clear();
+        for (String agentRollupId : agentRollupIds) {
+            for (Map.Entry<String, PreparedStatement> entry : incrementPSs.entrySet()) {
+                String transactionName = entry.getKey().startsWith("trace_tt_") ? null
+                        : header.getTransactionName();
+                BoundStatement boundStatement = entry.getValue().bind();
+                int i = bindCaptureDayKey(boundStatement, agentRollupId,
+                        header.getTransactionType(), transactionName, captureDay);
+                boundStatement.setTimestamp(i++, new Date(captureMinute));
+                futures.add(session.executeAsync(boundStatement));
+            }
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    // returns false if the trace has already been counted
+    private boolean insertCountedTrace(String agentId, String traceId) throws Exception {
+        BoundStatement boundStatement = insertCountedTrace.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        ResultSet results = session.execute(boundStatement);
+        Row row = checkNotNull(results.one());
+        return row.getBool("[applied]");
     }
 
     @Override
     public long readSlowCount(String agentRollupId, TraceQuery query) throws Exception {
-        BoundStatement boundStatement;
         BoundStatement boundStatementPartial;
         String transactionName = query.transactionName();
         if (transactionName == null) {
-            boundStatement = readOverallSlowCount.bind();
             boundStatementPartial = readOverallSlowCountPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
             bindTraceQuery(boundStatementPartial, agentRollupId, query, true);
         } else {
-            boundStatement = readTransactionSlowCount.bind();
             boundStatementPartial = readTransactionSlowCountPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
             bindTraceQuery(boundStatementPartial, agentRollupId, query, false);
         }
-        Future<ResultSet> future = session.executeAsync(boundStatement);
         Future<ResultSet> futurePartial = session.executeAsync(boundStatementPartial);
-        return future.get().one().getLong(0) + futurePartial.get().one().getLong(0);
+        long count;
+        if (transactionName == null) {
+            count = readCount(readOverallSlowCount, readOverallSlowCountMinute, agentRollupId,
+                    query, true);
+        } else {
+            count = readCount(readTransactionSlowCount, readTransactionSlowCountMinute,
+                    agentRollupId, query, false);
+        }
+        return count + futurePartial.get().one().getLong(0);
     }
 
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        BoundStatement boundStatement;
+        List<ListenableFuture<ResultSet>> futures;
         BoundStatement boundStatementPartial;
         String transactionName = query.transactionName();
+        // the duration filter is only pushed down to cassandra when reading from the lookup
+        // tables, otherwise (e.g. duration-only filter) every trace point in the time range is read
+        // and the duration filter is applied in processPoints()
+        Lookup lookup = getLookup(filter, query.from());
         if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
+            if (lookup == null) {
+                futures = executeForEachCaptureDay(readOverallSlowPoint, agentRollupId, query,
+                        true);
+            } else {
+                futures = executeLookupForEachCaptureDay(readOverallSlowPointLookup,
+                        agentRollupId, query, true, lookup, filter);
+            }
             boundStatementPartial = readOverallSlowPointPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
             bindTraceQuery(boundStatementPartial, agentRollupId, query, true);
         } else {
-            boundStatement = readTransactionSlowPoint.bind();
+            if (lookup == null) {
+                futures = executeForEachCaptureDay(readTransactionSlowPoint, agentRollupId, query,
+                        false);
+            } else {
+                futures = executeLookupForEachCaptureDay(readTransactionSlowPointLookup,
+                        agentRollupId, query, false, lookup, filter);
+            }
             boundStatementPartial = readTransactionSlowPointPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
             bindTraceQuery(boundStatementPartial, agentRollupId, query, false);
         }
-        Future<ResultSet> future = session.executeAsync(boundStatement);
         Future<ResultSet> futurePartial = session.executeAsync(boundStatementPartial);
-        List<TracePoint> completedPoints = processPoints(future.get(), filter, false, false);
+        List<TracePoint> completedPoints = processPoints(futures, filter, false, false);
+        if (lookup != null) {
+            // lookup results are ordered by duration bucket before capture time
+            completedPoints.sort(Comparator.comparingLong(TracePoint::captureTime));
+        }
         List<TracePoint> partialPoints = processPoints(futurePartial.get(), filter, true, false);
         return combine(completedPoints, partialPoints, limit);
     }
 
     @Override
     public long readErrorCount(String agentRollupId, TraceQuery query) throws Exception {
-        BoundStatement boundStatement;
         String transactionName = query.transactionName();
         if (transactionName == null) {
-            boundStatement = readOverallErrorCount.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
+            return readCount(readOverallErrorCount, readOverallErrorCountMinute, agentRollupId,
+                    query, true);
         } else {
-            boundStatement = readTransactionErrorCount.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+            return readCount(readTransactionErrorCount, readTransactionErrorCountMinute,
+                    agentRollupId, query, false);
         }
-        ResultSet results = session.execute(boundStatement);
-        return results.one().getLong(0);
     }
 
     @Override
     public Result<TracePoint> readErrorPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws Exception {
-        BoundStatement boundStatement;
+        List<ListenableFuture<ResultSet>> futures;
         String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
+        Lookup lookup = getLookup(filter, query.from());
+        if (lookup != null) {
+            if (transactionName == null) {
+                futures = executeLookupForEachCaptureDay(readOverallErrorPointLookup,
+                        agentRollupId, query, true, lookup, filter);
+            } else {
+                futures = executeLookupForEachCaptureDay(readTransactionErrorPointLookup,
+                        agentRollupId, query, false, lookup, filter);
+            }
+        } else if (transactionName == null) {
+            futures = executeForEachCaptureDay(readOverallErrorPoint, agentRollupId, query, true);
         } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+            futures = executeForEachCaptureDay(readTransactionErrorPoint, agentRollupId, query,
+                    false);
+        }
+        List<TracePoint> errorPoints = processPoints(futures, filter, false, true);
+        if (lookup != null) {
+            // lookup results are ordered by duration bucket before capture time
+            errorPoints.sort(Comparator.comparingLong(TracePoint::captureTime));
         }
-        ResultSet results = session.execute(boundStatement);
-        List<TracePoint> errorPoints = processPoints(results, filter, false, true);
         return createResult(errorPoints, limit);
     }
 
@@ -1179,23 +1710,218 @@ public class TraceDaoImpl implements TraceDao {
         return sharedQueryTexts;
     }
 
+    // whole minutes of the query range are read from the per-minute counters, and only the
+    // partial minutes at either end of the query range are counted from the trace count rows
+    private long readCount(PreparedStatement readCountPS, PreparedStatement readCountMinutePS,
+            String agentRollupId, TraceQuery query, boolean overall) throws Exception {
+        long from = query.from();
+        long to = query.to();
+        CountMinuteRange countMinuteRange = getCountMinuteRange(from, to);
+        if (countMinuteRange == null) {
+            return sumCounts(
+                    executeForEachCaptureDay(readCountPS, agentRollupId, query, overall, from, to));
+        }
+        long fromMinute = countMinuteRange.fromMinute();
+        long toMinute = countMinuteRange.toMinute();
+        List<ListenableFuture<ResultSet>> countFutures = new ArrayList<>();
+        if (from < fromMinute) {
+            countFutures.addAll(executeForEachCaptureDay(readCountPS, agentRollupId, query,
+                    overall, from, fromMinute));
+        }
+        if (toMinute < to) {
+            countFutures.addAll(executeForEachCaptureDay(readCountPS, agentRollupId, query,
+                    overall, toMinute, to));
+        }
+        List<ListenableFuture<ResultSet>> countMinuteFutures = executeForEachCaptureDay(
+                readCountMinutePS, agentRollupId, query, overall, fromMinute, toMinute);
+        long count = sumCounts(countFutures);
+        for (ListenableFuture<ResultSet> future : countMinuteFutures) {
+            for (Row row : future.get()) {
+                count += row.getLong(0);
+            }
+        }
+        return count;
+    }
+
+    private List<ListenableFuture<ResultSet>> executeForEachCaptureDay(PreparedStatement readPS,
+            String agentRollupId, TraceQuery query, boolean overall) throws Exception {
+        return executeForEachCaptureDay(readPS, agentRollupId, query, overall, query.from(),
+                query.to());
+    }
+
+    // the capture day partitions are read in parallel
+    private List<ListenableFuture<ResultSet>> executeForEachCaptureDay(PreparedStatement readPS,
+            String agentRollupId, TraceQuery query, boolean overall, long from, long to)
+            throws Exception {
+        long minCaptureTime = clock.currentTimeMillis() - HOURS.toMillis(
+                configRepository.getCentralStorageConfig().traceExpirationHours());
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (long captureDay : getCaptureDays(from, to, minCaptureTime)) {
+            BoundStatement boundStatement = readPS.bind();
+            int i = bindCaptureDayKey(boundStatement, agentRollupId, query.transactionType(),
+                    overall ? null : query.transactionName(), captureDay);
+            boundStatement.setTimestamp(i++, new Date(from));
+            boundStatement.setTimestamp(i++, new Date(to));
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
+    private List<ListenableFuture<ResultSet>> executeLookupForEachCaptureDay(
+            PreparedStatement readPS, String agentRollupId, TraceQuery query, boolean overall,
+            Lookup lookup, TracePointFilter filter) throws Exception {
+        long minCaptureTime = clock.currentTimeMillis() - HOURS.toMillis(
+                configRepository.getCentralStorageConfig().traceExpirationHours());
+        List<Integer> durationBuckets =
+                getDurationBuckets(filter.durationNanosLow(), filter.durationNanosHigh());
+        List<ListenableFuture<ResultSet>> futures = new ArrayList<>();
+        for (long captureDay : getCaptureDays(query.from(), query.to(), minCaptureTime)) {
+            BoundStatement boundStatement = readPS.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, query.transactionType());
+            if (!overall) {
+                boundStatement.setString(i++, query.transactionName());
+            }
+            boundStatement.setString(i++, lookup.name());
+            boundStatement.setString(i++, lookup.value());
+            boundStatement.setTimestamp(i++, new Date(captureDay));
+            boundStatement.setList(i++, durationBuckets);
+            boundStatement.setTimestamp(i++, new Date(query.from()));
+            boundStatement.setTimestamp(i++, new Date(query.to()));
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
+    // only equality filters on user or on a lookup attribute can use the lookup tables, and only
+    // when the lookup was already enabled at the start of the query range
+    private @Nullable Lookup getLookup(TracePointFilter filter, long from) throws Exception {
+        String user = filter.user();
+        if (filter.userComparator() == StringComparator.EQUALS && !Strings.isNullOrEmpty(user)
+                && isLookupAvailable(USER_LOOKUP_NAME, from)) {
+            return ImmutableLookup.builder()
+                    .name(USER_LOOKUP_NAME)
+                    .value(upper(user))
+                    .build();
+        }
+        String attributeName = filter.attributeName();
+        String attributeValue = filter.attributeValue();
+        if (!Strings.isNullOrEmpty(attributeName)
+                && filter.attributeValueComparator() == StringComparator.EQUALS
+                && !Strings.isNullOrEmpty(attributeValue)) {
+            String lookupName = getAttributeLookupName(attributeName);
+            if (isLookupAvailable(lookupName, from)) {
+                return ImmutableLookup.builder()
+                        .name(lookupName)
+                        .value(upper(attributeValue))
+                        .build();
+            }
+        }
+        return null;
+    }
+
+    private boolean isLookupAvailable(String lookupName, long from) throws Exception {
+        refreshLookupSinceTimesIfNeeded();
+        Long since = lookupSinceTimes.get(lookupName);
+        return since != null && from >= since;
+    }
+
+    private SetMultimap<String, String> getLookups(Trace.Header header) {
+        SetMultimap<String, String> lookups = LinkedHashMultimap.create();
+        if (lookupNames.isEmpty()) {
+            return lookups;
+        }
+        String user = header.getUser();
+        if (!user.isEmpty() && lookupNames.contains(USER_LOOKUP_NAME)) {
+            lookups.put(USER_LOOKUP_NAME, upper(user));
+        }
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            String lookupName = getAttributeLookupName(attribute.getName());
+            if (lookupNames.contains(lookupName)) {
+                for (String value : attribute.getValueList()) {
+                    lookups.put(lookupName, upper(value));
+                }
+            }
+        }
+        return lookups;
+    }
+
+    // counter tables cannot have a TTL, so the count minute partitions are deleted explicitly once
+    // they are a full day beyond the trace retention period (see incrementCountMinutes() for why
+    // the extra day is needed)
+    //
+    // this is called once a minute by RollupService, on a single central node
+    public void deleteExpiredCountMinutes() throws Exception {
+        long expiredCaptureDay = getExpiredCountMinuteCaptureDay(clock.currentTimeMillis(),
+                configRepository.getCentralStorageConfig().traceExpirationHours());
+        if (expiredCaptureDay <= lastDeletedCountMinuteCaptureDay) {
+            return;
+        }
+        ResultSet results =
+                session.execute("select distinct capture_day from trace_count_minute_key");
+        List<Long> captureDays = new ArrayList<>();
+        for (Row row : results) {
+            long captureDay = checkNotNull(row.getTimestamp(0)).getTime();
+            if (captureDay <= expiredCaptureDay) {
+                captureDays.add(captureDay);
+            }
+        }
+        for (long captureDay : captureDays) {
+            BoundStatement boundStatement = readCountMinuteKeys.bind();
+            boundStatement.setTimestamp(0, new Date(captureDay));
+            results = session.execute(boundStatement);
+            List<Future<?>> futures = new ArrayList<>();
+            for (Row row : results) {
+                int i = 0;
+                String tableName = checkNotNull(row.getString(i++));
+                String agentRollupId = checkNotNull(row.getString(i++));
+                String transactionType = checkNotNull(row.getString(i++));
+                String transactionName = tableName.startsWith("trace_tt_") ? null
+                        : checkNotNull(row.getString(i++));
+                boundStatement = checkNotNull(deleteCountMinutePSs.get(tableName)).bind();
+                bindCaptureDayKey(boundStatement, agentRollupId, transactionType, transactionName,
+                        captureDay);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            MoreFutures.waitForAll(futures);
+            boundStatement = deleteCountMinuteKeys.bind();
+            boundStatement.setTimestamp(0, new Date(captureDay));
+            session.execute(boundStatement);
+        }
+        lastDeletedCountMinuteCaptureDay = expiredCaptureDay;
+    }
+
     @Override
     @OnlyUsedByTests
     public void truncateAll() throws Exception {
-        session.execute("truncate table trace_tt_slow_count");
-        session.execute("truncate table trace_tn_slow_count");
+        session.execute("truncate table trace_tt_slow_count_v2");
+        session.execute("truncate table trace_tt_slow_count_minute");
+        session.execute("truncate table trace_tn_slow_count_v2");
+        session.execute("truncate table trace_tn_slow_count_minute");
         session.execute("truncate table trace_tt_slow_count_partial");
         session.execute("truncate table trace_tn_slow_count_partial");
-        session.execute("truncate table trace_tt_slow_point");
-        session.execute("truncate table trace_tn_slow_point");
+        session.execute("truncate table trace_tt_slow_point_v2");
+        session.execute("truncate table trace_tt_slow_point_lookup");
+        session.execute("truncate table trace_tn_slow_point_v2");
+        session.execute("truncate table trace_tn_slow_point_lookup");
         session.execute("truncate table trace_tt_slow_point_partial");
         session.execute("truncate table trace_tn_slow_point_partial");
-        session.execute("truncate table trace_tt_error_count");
-        session.execute("truncate table trace_tn_error_count");
-        session.execute("truncate table trace_tt_error_point");
-        session.execute("truncate table trace_tn_error_point");
+        session.execute("truncate table trace_tt_error_count_v2");
+        session.execute("truncate table trace_tt_error_count_minute");
+        session.execute("truncate table trace_tn_error_count_v2");
+        session.execute("truncate table trace_tn_error_count_minute");
+        session.execute("truncate table trace_count_minute_key");
+        session.execute("truncate table trace_counted");
+        countedTraces.invalidateAll();
+        recordedCountMinuteKeys.invalidateAll();
+        session.execute("truncate table trace_tt_error_point_v2");
+        session.execute("truncate table trace_tt_error_point_lookup");
+        session.execute("truncate table trace_tn_error_point_v2");
+        session.execute("truncate table trace_tn_error_point_lookup");
         session.execute("truncate table trace_tt_error_message");
         session.execute("truncate table trace_tn_error_message");
+        session.execute("truncate table trace_lookup_since");
         session.execute("truncate table trace_header");
         session.execute("truncate table trace_entry");
         session.execute("truncate table trace_shared_query_text");
@@ -1207,12 +1933,23 @@ public class TraceDaoImpl implements TraceDao {
         session.execute("truncate table trace_shared_query_text_v2");
         session.execute("truncate table trace_main_thread_profile_v2");
         session.execute("truncate table trace_aux_thread_profile_v2");
+        // otherwise the cached since times would still point before the truncation (the first
+        // refresh inserts the since rows, and the second refresh caches them, since the lookup
+        // tables are complete from here on)
+        refreshLookupSinceTimes();
+        refreshLookupSinceTimes();
     }
 
     private static void bindSlowPoint(BoundStatement boundStatement, String agentRollupId,
-            String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall)
-            throws IOException {
-        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+            String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall,
+            boolean captureDay) throws IOException {
+        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall, captureDay);
+        bindSlowPointValues(boundStatement, i, header, adjustedTTL);
+    }
+
+    private static void bindSlowPointValues(BoundStatement boundStatement, int startIndex,
+            Trace.Header header, int adjustedTTL) throws IOException {
+        int i = startIndex;
         boundStatement.setLong(i++, header.getDurationNanos());
         boundStatement.setBool(i++, header.hasError());
         boundStatement.setString(i++, header.getHeadline());
@@ -1227,8 +1964,9 @@ public class TraceDaoImpl implements TraceDao {
     }
 
     private static void bindCount(BoundStatement boundStatement, String agentRollupId,
-            String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall) {
-        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+            String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall,
+            boolean captureDay) {
+        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall, captureDay);
         boundStatement.setInt(i++, adjustedTTL);
     }
 
@@ -1242,7 +1980,13 @@ public class TraceDaoImpl implements TraceDao {
     private static void bindErrorPoint(BoundStatement boundStatement, String agentRollupId,
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall)
             throws IOException {
-        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall, true);
+        bindErrorPointValues(boundStatement, i, header, adjustedTTL);
+    }
+
+    private static void bindErrorPointValues(BoundStatement boundStatement, int startIndex,
+            Trace.Header header, int adjustedTTL) throws IOException {
+        int i = startIndex;
         boundStatement.setLong(i++, header.getDurationNanos());
         boundStatement.setString(i++, header.getError().getMessage());
         boundStatement.setString(i++, header.getHeadline());
@@ -1258,12 +2002,39 @@ public class TraceDaoImpl implements TraceDao {
 
     private static int bind(BoundStatement boundStatement, String agentRollupId, String agentId,
             String traceId, Trace.Header header, boolean overall) {
+        return bind(boundStatement, agentRollupId, agentId, traceId, header, overall, false);
+    }
+
+    private static int bind(BoundStatement boundStatement, String agentRollupId, String agentId,
+            String traceId, Trace.Header header, boolean overall, boolean captureDay) {
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, header.getTransactionType());
         if (!overall) {
             boundStatement.setString(i++, header.getTransactionName());
         }
+        if (captureDay) {
+            boundStatement.setTimestamp(i++, new Date(getCaptureDay(header.getCaptureTime())));
+        }
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        return i;
+    }
+
+    private static int bindLookup(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, boolean overall,
+            String lookupName, String lookupValue) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setString(i++, lookupName);
+        boundStatement.setString(i++, lookupValue);
+        boundStatement.setTimestamp(i++, new Date(getCaptureDay(header.getCaptureTime())));
+        boundStatement.setInt(i++, getDurationBucket(header.getDurationNanos()));
         boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
         boundStatement.setString(i++, agentId);
         boundStatement.setString(i++, traceId);
@@ -1291,6 +2062,111 @@ public class TraceDaoImpl implements TraceDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
+    // transactionName is null for the overall (trace_tt_*) tables
+    private static int bindCaptureDayKey(BoundStatement boundStatement, String agentRollupId,
+            String transactionType, @Nullable String transactionName, long captureDay) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(captureDay));
+        return i;
+    }
+
+    // returns the range (fromMinute, toMinute] of whole capture minutes within (from, to], or null
+    // if there are no whole capture minutes within (from, to]
+    static @Nullable CountMinuteRange getCountMinuteRange(long from, long to) {
+        long fromMinute = CaptureTimes.getRollup(from, CAPTURE_MINUTE_MILLIS);
+        long toMinute = to - Math.floorMod(to, CAPTURE_MINUTE_MILLIS);
+        if (fromMinute >= toMinute) {
+            return null;
+        }
+        return ImmutableCountMinuteRange.builder()
+                .fromMinute(fromMinute)
+                .toMinute(toMinute)
+                .build();
+    }
+
+    // returns the most recent capture day whose count minute partitions can be deleted
+    static long getExpiredCountMinuteCaptureDay(long currentTimeMillis, int expirationHours) {
+        return getCaptureDay(currentTimeMillis - HOURS.toMillis(expirationHours))
+                - CAPTURE_DAY_MILLIS;
+    }
+
+    // a central node with the lookup disabled may store trace points without writing them to the
+    // lookup tables for up to one refresh interval after it last recorded disabled_until, and
+    // another refresh interval is allowed for clock skew between central nodes
+    static long getLookupSince(long since, @Nullable Long disabledUntil) {
+        if (disabledUntil == null) {
+            return since;
+        }
+        return Math.max(since, disabledUntil + 2 * LOOKUP_SINCE_REFRESH_MILLIS);
+    }
+
+    static long getCaptureDay(long captureTime) {
+        return captureTime - Math.floorMod(captureTime, CAPTURE_DAY_MILLIS);
+    }
+
+    // returns the capture days (in ascending order) that can contain capture times in the range
+    // (from, to], skipping capture days that are beyond the trace retention period
+    static List<Long> getCaptureDays(long from, long to, long minCaptureTime) {
+        List<Long> captureDays = new ArrayList<>();
+        long captureDay = getCaptureDay(Math.max(from + 1, minCaptureTime));
+        while (captureDay <= to) {
+            captureDays.add(captureDay);
+            captureDay += CAPTURE_DAY_MILLIS;
+        }
+        return captureDays;
+    }
+
+    // the duration bucket is the bit length of the duration nanos, so each bucket covers a factor
+    // of two in duration
+    static int getDurationBucket(long durationNanos) {
+        return durationNanos <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(durationNanos);
+    }
+
+    // returns the duration buckets that can contain durations in the range [low, high]
+    static List<Integer> getDurationBuckets(long durationNanosLow,
+            @Nullable Long durationNanosHigh) {
+        int lowBucket = getDurationBucket(durationNanosLow);
+        int highBucket = getDurationBucket(
+                durationNanosHigh == null ? Long.MAX_VALUE : durationNanosHigh);
+        List<Integer> durationBuckets = new ArrayList<>();
+        for (int bucket = lowBucket; bucket <= highBucket; bucket++) {
+            durationBuckets.add(bucket);
+        }
+        return durationBuckets;
+    }
+
+    private static String getAttributeLookupName(String attributeName) {
+        // attribute name matching in TracePointFilter is also case insensitive
+        return ATTRIBUTE_LOOKUP_NAME_PREFIX + upper(attributeName);
+    }
+
+    private static String upper(String str) {
+        return str.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static long sumCounts(List<ListenableFuture<ResultSet>> futures) throws Exception {
+        long count = 0;
+        for (ListenableFuture<ResultSet> future : futures) {
+            count += future.get().one().getLong(0);
+        }
+        return count;
+    }
+
+    // futures are in capture day order, so the combined trace points are in capture time order
+    private static List<TracePoint> processPoints(List<ListenableFuture<ResultSet>> futures,
+            TracePointFilter filter, boolean partial, boolean errorPoints) throws Exception {
+        List<TracePoint> tracePoints = new ArrayList<>();
+        for (ListenableFuture<ResultSet> future : futures) {
+            tracePoints.addAll(processPoints(future.get(), filter, partial, errorPoints));
+        }
+        return tracePoints;
+    }
+
     private static List<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
             boolean partial, boolean errorPoints) throws IOException {
         List<TracePoint> tracePoints = new ArrayList<>();
@@ -1415,6 +2291,18 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
+    @Value.Immutable
+    interface CountMinuteRange {
+        long fromMinute();
+        long toMinute();
+    }
+
+    @Value.Immutable
+    interface Lookup {
+        String name();
+        String value();
+    }
+
     private static class MutableLong {
         private long value;
         private void increment() {
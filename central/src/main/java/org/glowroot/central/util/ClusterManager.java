@@ -17,7 +17,9 @@ package org.glowroot.central.util;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -28,6 +30,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.infinispan.configuration.cache.CacheMode;
@@ -36,6 +39,9 @@ import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
 import org.infinispan.remoting.transport.Address;
 import org.infinispan.util.function.SerializableFunction;
 import org.infinispan.util.function.TriConsumer;
@@ -80,6 +86,15 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    // used to partition work across central cluster nodes
+    public abstract String getLocalNodeId();
+
+    // used to partition work across central cluster nodes (includes the local node)
+    public abstract List<String> getNodeIds();
+
+    // listener is called whenever a central cluster node joins or leaves
+    public abstract void addMembershipListener(Runnable listener);
+
     public abstract void close() throws InterruptedException;
 
     private static class ClusterManagerImpl extends ClusterManager {
@@ -127,6 +142,25 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public String getLocalNodeId() {
+            return cacheManager.getAddress().toString();
+        }
+
+        @Override
+        public List<String> getNodeIds() {
+            List<String> nodeIds = new ArrayList<>();
+            for (Address address : cacheManager.getMembers()) {
+                nodeIds.add(address.toString());
+            }
+            return nodeIds;
+        }
+
+        @Override
+        public void addMembershipListener(Runnable listener) {
+            cacheManager.addListener(new MembershipListener(listener));
+        }
+
         @Override
         public void close() throws InterruptedException {
             cacheManager.stop();
@@ -199,10 +233,43 @@ public abstract class ClusterManager {
             return new ConcurrentHashMap<>();
         }
 
+        @Override
+        public String getLocalNodeId() {
+            return "local";
+        }
+
+        @Override
+        public List<String> getNodeIds() {
+            return ImmutableList.of(getLocalNodeId());
+        }
+
+        @Override
+        public void addMembershipListener(Runnable listener) {}
+
         @Override
         public void close() {}
     }
 
+    // infinispan requires listener classes to be public
+    @Listener
+    public static class MembershipListener {
+
+        private final Runnable listener;
+
+        private MembershipListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        @ViewChanged
+        public void onViewChanged(ViewChangedEvent event) {
+            try {
+                listener.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
     private static class CacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
             implements Cache<K, V> {
 
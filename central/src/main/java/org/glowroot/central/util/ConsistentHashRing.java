@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// assigns keys to nodes, such that adding or removing a node only moves the keys of that node
+public class ConsistentHashRing {
+
+    // virtual nodes per node, to even out the distribution of keys across nodes
+    private static final int VIRTUAL_NODES = 128;
+
+    private static final HashFunction hashFunction = Hashing.murmur3_32();
+
+    private final String localNodeId;
+    private final int nodeCount;
+
+    // sorted
+    private final int[] hashes;
+    // parallel to hashes
+    private final String[] nodeIds;
+
+    public ConsistentHashRing(String localNodeId, List<String> nodeIds) {
+        checkArgument(!nodeIds.isEmpty());
+        this.localNodeId = localNodeId;
+        this.nodeCount = nodeIds.size();
+        long[] entries = new long[nodeIds.size() * VIRTUAL_NODES];
+        int i = 0;
+        for (int nodeIndex = 0; nodeIndex < nodeIds.size(); nodeIndex++) {
+            String nodeId = nodeIds.get(nodeIndex);
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                int hash = hash(nodeId + "#" + j);
+                // pack hash (high bits) and node index (low bits) so sorting keeps them together
+                entries[i++] = ((long) hash << 32) | nodeIndex;
+            }
+        }
+        Arrays.sort(entries);
+        hashes = new int[entries.length];
+        this.nodeIds = new String[entries.length];
+        for (i = 0; i < entries.length; i++) {
+            hashes[i] = (int) (entries[i] >> 32);
+            this.nodeIds[i] = nodeIds.get((int) entries[i]);
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public boolean isLocal(String key) {
+        return getNodeId(key).equals(localNodeId);
+    }
+
+    public String getNodeId(String key) {
+        int index = Arrays.binarySearch(hashes, hash(key));
+        if (index < 0) {
+            // first virtual node clockwise from the key
+            index = -index - 1;
+            if (index == hashes.length) {
+                index = 0;
+            }
+        }
+        return nodeIds[index];
+    }
+
+    private static int hash(String value) {
+        return hashFunction.hashString(value, UTF_8).asInt();
+    }
+}
@@ -96,7 +96,8 @@ public class AggregateDaoIT {
         agentDao = new AgentDao(session, agentConfigDao, configRepository, Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
                 new AggregateDaoImpl(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, Clock.systemClock()));
+                        configRepository, clusterManager, new RollupOwnership(clusterManager),
+                        Clock.systemClock()));
     }
 
     @AfterClass
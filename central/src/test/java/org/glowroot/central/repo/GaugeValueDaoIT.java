@@ -55,7 +55,8 @@ public class GaugeValueDaoIT {
         ConfigRepositoryImpl configRepository = new ConfigRepositoryImpl(centralConfigDao,
                 agentConfigDao, userDao, roleDao, "");
         gaugeValueDao = new GaugeValueDaoWithV09Support(ImmutableSet.of(), 0, Clock.systemClock(),
-                new GaugeValueDaoImpl(session, configRepository, Clock.systemClock()));
+                new GaugeValueDaoImpl(session, configRepository, clusterManager,
+                        new RollupOwnership(clusterManager), Clock.systemClock()));
     }
 
     @AfterClass
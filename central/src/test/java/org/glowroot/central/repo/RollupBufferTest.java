@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.BufferedAggregates.BufferedAggregate;
+import org.glowroot.central.repo.BufferedAggregates.TransactionTypeAggregates;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RollupBufferTest {
+
+    private ClusterManager clusterManager;
+    private RollupOwnership rollupOwnership;
+    private Clock clock;
+
+    @Before
+    public void beforeEachTest() {
+        clusterManager = ClusterManager.create();
+        rollupOwnership = new RollupOwnership(clusterManager);
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(60000L);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        clusterManager.close();
+    }
+
+    @Test
+    public void shouldReturnCompleteWindow() {
+        // given
+        RollupBuffer<BufferedGaugeValues> buffer = createGaugeValueBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        List<GaugeValue> gaugeValues1 =
+                ImmutableList.of(gaugeValue("x", 5000, 1), gaugeValue("y", 5000, 2));
+        List<GaugeValue> gaugeValues2 = ImmutableList.of(gaugeValue("x", 10000, 3));
+        buffer.add("a", 60000, uniqueness1, data -> data.add(gaugeValues1));
+        buffer.add("a", 60000, uniqueness2, data -> data.add(gaugeValues2));
+        // when
+        BufferedGaugeValues window =
+                buffer.remove("a", 60000, ImmutableSet.of(uniqueness1, uniqueness2));
+        // then
+        assertThat(window).isNotNull();
+        assertThat(window.getGaugeValues("x")).hasSize(2);
+        assertThat(window.getGaugeValues("y")).hasSize(1);
+        assertThat(window.getGaugeValues("z")).isEmpty();
+        assertThat(buffer.remove("a", 60000, ImmutableSet.of(uniqueness1, uniqueness2)))
+                .isNull();
+    }
+
+    @Test
+    public void shouldNotReturnIncompleteWindow() {
+        // given
+        RollupBuffer<BufferedGaugeValues> buffer = createGaugeValueBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        List<GaugeValue> gaugeValues = ImmutableList.of(gaugeValue("x", 5000, 1));
+        buffer.add("a", 60000, uniqueness1, data -> data.add(gaugeValues));
+        // when
+        BufferedGaugeValues window =
+                buffer.remove("a", 60000, ImmutableSet.of(uniqueness1, UUID.randomUUID()));
+        // then
+        assertThat(window).isNull();
+    }
+
+    @Test
+    public void shouldOverwriteDuplicateGaugeValue() {
+        // given
+        RollupBuffer<BufferedGaugeValues> buffer = createGaugeValueBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        List<GaugeValue> gaugeValues = ImmutableList.of(gaugeValue("x", 5000, 1));
+        buffer.add("a", 60000, uniqueness1, data -> data.add(gaugeValues));
+        buffer.add("a", 60000, uniqueness2, data -> data.add(gaugeValues));
+        // when
+        BufferedGaugeValues window =
+                buffer.remove("a", 60000, ImmutableSet.of(uniqueness1, uniqueness2));
+        // then
+        assertThat(window.getGaugeValues("x")).hasSize(1);
+    }
+
+    @Test
+    public void shouldIgnoreAddAfterRemove() {
+        // given
+        RollupBuffer<BufferedGaugeValues> buffer = createGaugeValueBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        List<GaugeValue> gaugeValues = ImmutableList.of(gaugeValue("x", 5000, 1));
+        buffer.add("a", 60000, uniqueness1, data -> data.add(gaugeValues));
+        BufferedGaugeValues window = buffer.remove("a", 60000, ImmutableSet.of(uniqueness1));
+        // when
+        buffer.add("a", 60000, UUID.randomUUID(),
+                data -> data.add(ImmutableList.of(gaugeValue("x", 10000, 1))));
+        // then
+        assertThat(window.getGaugeValues("x")).hasSize(1);
+    }
+
+    @Test
+    public void shouldEvictOldWindows() {
+        // given
+        RollupBuffer<BufferedGaugeValues> buffer = createGaugeValueBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        buffer.add("a", 60000, uniqueness1,
+                data -> data.add(ImmutableList.of(gaugeValue("x", 5000, 1))));
+        // when
+        when(clock.currentTimeMillis()).thenReturn(3600000L);
+        buffer.add("b", 3600000, UUID.randomUUID(),
+                data -> data.add(ImmutableList.of(gaugeValue("x", 3595000, 1))));
+        // then
+        assertThat(buffer.getAgentCount()).isEqualTo(1);
+        assertThat(buffer.remove("a", 60000, ImmutableSet.of(uniqueness1))).isNull();
+    }
+
+    @Test
+    public void shouldRemoveEmptyAgentWindows() {
+        // given
+        RollupBuffer<BufferedGaugeValues> buffer = createGaugeValueBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        buffer.add("a", 60000, uniqueness1,
+                data -> data.add(ImmutableList.of(gaugeValue("x", 5000, 1))));
+        // when
+        buffer.remove("a", 60000, ImmutableSet.of(uniqueness1));
+        // then
+        assertThat(buffer.getAgentCount()).isZero();
+    }
+
+    @Test
+    public void shouldMergeAggregates() {
+        // given
+        RollupBuffer<BufferedAggregates> buffer = createAggregateBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        List<OldAggregatesByType> aggregates1 = ImmutableList.of(aggregatesByType(2, 0));
+        List<OldAggregatesByType> aggregates2 = ImmutableList.of(aggregatesByType(3, 1));
+        buffer.add("a", 300000, uniqueness1,
+                data -> data.add(60000, aggregates1, ImmutableList.of()));
+        buffer.add("a", 300000, uniqueness2,
+                data -> data.add(120000, aggregates2, ImmutableList.of()));
+        // when
+        BufferedAggregates window =
+                buffer.remove("a", 300000, ImmutableSet.of(uniqueness1, uniqueness2));
+        // then
+        TransactionTypeAggregates transactionTypeAggregates = window.get("Web");
+        BufferedAggregate overallAggregate = transactionTypeAggregates.getOverallAggregate();
+        assertThat(overallAggregate.getAggregate().getTransactionCount()).isEqualTo(5);
+        assertThat(overallAggregate.getAggregate().getTotalDurationNanos()).isEqualTo(5000);
+        assertThat(overallAggregate.hasErrorSummary()).isTrue();
+        assertThat(overallAggregate.getAggregate().getErrorCount()).isEqualTo(1);
+        assertThat(overallAggregate.getErrorSummaryTransactionCount()).isEqualTo(3);
+        assertThat(transactionTypeAggregates.getTransactionAggregates().keySet())
+                .containsExactly("t");
+        assertThat(window.get("Background")).isNull();
+    }
+
+    @Test
+    public void shouldNotReturnWindowWithDuplicateAggregates() {
+        // given
+        RollupBuffer<BufferedAggregates> buffer = createAggregateBuffer();
+        UUID uniqueness1 = UUID.randomUUID();
+        UUID uniqueness2 = UUID.randomUUID();
+        List<OldAggregatesByType> aggregates = ImmutableList.of(aggregatesByType(2, 0));
+        buffer.add("a", 300000, uniqueness1,
+                data -> data.add(60000, aggregates, ImmutableList.of()));
+        buffer.add("a", 300000, uniqueness2,
+                data -> data.add(60000, aggregates, ImmutableList.of()));
+        // when
+        BufferedAggregates window =
+                buffer.remove("a", 300000, ImmutableSet.of(uniqueness1, uniqueness2));
+        // then
+        assertThat(window).isNull();
+    }
+
+    private RollupBuffer<BufferedGaugeValues> createGaugeValueBuffer() {
+        return new RollupBuffer<>("gaugeValueRollupBuffer", BufferedGaugeValues::new,
+                clusterManager, rollupOwnership, clock);
+    }
+
+    private RollupBuffer<BufferedAggregates> createAggregateBuffer() {
+        return new RollupBuffer<>("aggregateRollupBuffer", BufferedAggregates::new,
+                clusterManager, rollupOwnership, clock);
+    }
+
+    private static GaugeValue gaugeValue(String gaugeName, long captureTime, double value) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(value)
+                .setWeight(1)
+                .build();
+    }
+
+    private static OldAggregatesByType aggregatesByType(long transactionCount, long errorCount) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(1000 * transactionCount)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(errorCount)
+                .build();
+        return OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("t")
+                        .setAggregate(aggregate))
+                .build();
+    }
+}
@@ -43,6 +43,7 @@ import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -81,7 +82,7 @@ public class TraceDaoIT {
         traceDao = new TraceDaoWithV09Support(ImmutableSet.of(), 0, 0, clock,
                 new TraceDaoImpl(session, mock(TransactionTypeDao.class),
                         mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class),
-                        configRepository, clock));
+                        configRepository, false, ImmutableList.of(), clock));
     }
 
     @AfterClass
@@ -310,4 +311,65 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadCountsAcrossCaptureMinutes() throws Exception {
+        // given
+        long minute = MINUTES.toMillis(1);
+        long[] captureTimes = {minute / 2, minute, minute + 1, 2 * minute, 3 * minute - 1,
+                3 * minute + 1};
+        for (long captureTime : captureTimes) {
+            Trace trace = TraceTestData.createTrace(partial);
+            traceDao.store(AGENT_ID, trace.toBuilder()
+                    .setHeader(trace.getHeader().toBuilder()
+                            .setCaptureTime(captureTime)
+                            .setError(Trace.Error.newBuilder()
+                                    .setMessage("test error message")))
+                    .build());
+        }
+
+        // when
+        // whole capture minutes only
+        long count1 = readSlowCount(0, 3 * minute);
+        // partial first and last capture minutes
+        long count2 = readSlowCount(minute / 2, 3 * minute + 1);
+        // partial first and last capture minutes within the same capture minute
+        long count3 = readSlowCount(minute + 1, 2 * minute - 1);
+        long count4 = readErrorCount(0, 3 * minute);
+        long count5 = readErrorCount(minute / 2, 3 * minute + 1);
+        long count6 = readErrorCount(minute, 2 * minute);
+
+        // then
+        assertThat(count1).isEqualTo(5);
+        assertThat(count2).isEqualTo(5);
+        assertThat(count3).isEqualTo(0);
+        if (partial) {
+            // partial traces are not counted as error traces until they are complete
+            assertThat(count4).isEqualTo(0);
+            assertThat(count5).isEqualTo(0);
+            assertThat(count6).isEqualTo(0);
+        } else {
+            assertThat(count4).isEqualTo(5);
+            assertThat(count5).isEqualTo(5);
+            assertThat(count6).isEqualTo(2);
+        }
+    }
+
+    private static long readSlowCount(long from, long to) throws Exception {
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(from)
+                .to(to)
+                .build();
+        return traceDao.readSlowCount(AGENT_ID, query);
+    }
+
+    private static long readErrorCount(long from, long to) throws Exception {
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(from)
+                .to(to)
+                .build();
+        return traceDao.readErrorCount(AGENT_ID, query);
+    }
 }
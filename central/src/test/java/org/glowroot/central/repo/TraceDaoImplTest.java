@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceDaoImplTest {
+
+    private static final long DAY = DAYS.toMillis(1);
+    private static final long MINUTE = MINUTES.toMillis(1);
+
+    @Test
+    public void shouldGetCaptureDay() {
+        assertThat(TraceDaoImpl.getCaptureDay(0)).isEqualTo(0);
+        assertThat(TraceDaoImpl.getCaptureDay(DAY - 1)).isEqualTo(0);
+        assertThat(TraceDaoImpl.getCaptureDay(DAY)).isEqualTo(DAY);
+        assertThat(TraceDaoImpl.getCaptureDay(10 * DAY + HOURS.toMillis(5))).isEqualTo(10 * DAY);
+    }
+
+    @Test
+    public void shouldGetCaptureDaysWithinSingleDay() {
+        assertThat(TraceDaoImpl.getCaptureDays(10 * DAY + 1000, 10 * DAY + 2000, 0))
+                .containsExactly(10 * DAY);
+    }
+
+    @Test
+    public void shouldGetCaptureDaysSpanningMultipleDays() {
+        assertThat(TraceDaoImpl.getCaptureDays(11 * DAY - 2, 13 * DAY - 1, 0))
+                .containsExactly(10 * DAY, 11 * DAY, 12 * DAY);
+        // from is exclusive, so capture day 10 is not needed
+        assertThat(TraceDaoImpl.getCaptureDays(11 * DAY - 1, 13 * DAY, 0))
+                .containsExactly(11 * DAY, 12 * DAY, 13 * DAY);
+    }
+
+    @Test
+    public void shouldSkipCaptureDaysBeyondRetention() {
+        assertThat(TraceDaoImpl.getCaptureDays(0, 13 * DAY, 12 * DAY + 1))
+                .containsExactly(12 * DAY, 13 * DAY);
+    }
+
+    @Test
+    public void shouldGetDurationBucket() {
+        assertThat(TraceDaoImpl.getDurationBucket(0)).isEqualTo(0);
+        assertThat(TraceDaoImpl.getDurationBucket(1)).isEqualTo(1);
+        assertThat(TraceDaoImpl.getDurationBucket(2)).isEqualTo(2);
+        assertThat(TraceDaoImpl.getDurationBucket(3)).isEqualTo(2);
+        assertThat(TraceDaoImpl.getDurationBucket(4)).isEqualTo(3);
+        assertThat(TraceDaoImpl.getDurationBucket(Long.MAX_VALUE)).isEqualTo(63);
+    }
+
+    @Test
+    public void shouldGetDurationBuckets() {
+        assertThat(TraceDaoImpl.getDurationBuckets(3, 8L)).containsExactly(2, 3, 4);
+        assertThat(TraceDaoImpl.getDurationBuckets(1L << 40, null)).hasSize(23);
+        assertThat(TraceDaoImpl.getDurationBuckets(0, null)).hasSize(64);
+    }
+
+    @Test
+    public void shouldGetCountMinuteRange() {
+        TraceDaoImpl.CountMinuteRange range = TraceDaoImpl.getCountMinuteRange(0, 2 * MINUTE);
+        assertThat(range.fromMinute()).isEqualTo(0);
+        assertThat(range.toMinute()).isEqualTo(2 * MINUTE);
+    }
+
+    @Test
+    public void shouldGetCountMinuteRangeWithPartialFirstAndLastMinutes() {
+        TraceDaoImpl.CountMinuteRange range =
+                TraceDaoImpl.getCountMinuteRange(MINUTE / 2, 3 * MINUTE + 1);
+        // (MINUTE / 2, MINUTE] and (3 * MINUTE, 3 * MINUTE + 1] are counted from the rows
+        assertThat(range.fromMinute()).isEqualTo(MINUTE);
+        assertThat(range.toMinute()).isEqualTo(3 * MINUTE);
+    }
+
+    @Test
+    public void shouldNotGetCountMinuteRangeWithoutWholeMinute() {
+        assertThat(TraceDaoImpl.getCountMinuteRange(1, MINUTE - 1)).isNull();
+        assertThat(TraceDaoImpl.getCountMinuteRange(MINUTE - 1, MINUTE + 1)).isNull();
+        assertThat(TraceDaoImpl.getCountMinuteRange(MINUTE / 2, 2 * MINUTE - 1)).isNull();
+    }
+
+    @Test
+    public void shouldGetExpiredCountMinuteCaptureDay() {
+        // the capture day that is partially within the retention period and the capture day
+        // before it are not expired
+        assertThat(TraceDaoImpl.getExpiredCountMinuteCaptureDay(10 * DAY + HOURS.toMillis(5), 48))
+                .isEqualTo(7 * DAY);
+    }
+
+    @Test
+    public void shouldGetLookupSince() {
+        assertThat(TraceDaoImpl.getLookupSince(1000, null)).isEqualTo(1000);
+        assertThat(TraceDaoImpl.getLookupSince(10 * MINUTE, MINUTE)).isEqualTo(10 * MINUTE);
+        assertThat(TraceDaoImpl.getLookupSince(MINUTE, 10 * MINUTE)).isEqualTo(12 * MINUTE);
+    }
+}
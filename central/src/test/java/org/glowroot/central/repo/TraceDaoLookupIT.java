@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.collect.ImmutableList;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
+import org.glowroot.common.model.Result;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.config.ImmutableCentralStorageConfig;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.TraceQuery;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TraceDaoLookupIT {
+
+    private static final String AGENT_ID = "xyz";
+
+    // the lookups are enabled at this time (see TraceTestData for the trace capture time)
+    private static final long LOOKUP_SINCE = 5;
+
+    private static Cluster cluster;
+    private static Session session;
+    private static ClusterManager clusterManager;
+    private static ConfigRepositoryImpl configRepository;
+    private static TraceDaoImpl traceDao;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Clusters.newCluster();
+        session = new Session(cluster.newSession(), "glowroot_unit_tests");
+
+        clusterManager = ClusterManager.create();
+        configRepository = mock(ConfigRepositoryImpl.class);
+        when(configRepository.getCentralStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        // create the tables first, so that any lookup since rows left behind by other tests can
+        // be removed before the lookups are enabled
+        createTraceDao(false, 0);
+        session.execute("truncate table trace_lookup_since");
+        traceDao = createTraceDao(true, LOOKUP_SINCE);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        clusterManager.close();
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        traceDao.truncateAll();
+    }
+
+    @Test
+    public void shouldWriteLookups() throws Exception {
+        // given
+        Trace trace = createErrorTrace();
+
+        // when
+        traceDao.store(AGENT_ID, trace);
+
+        // then
+        assertThat(readLookupTraceIds("trace_tt_slow_point_lookup", "user", "J"))
+                .containsExactly(trace.getId());
+        assertThat(readLookupTraceIds("trace_tt_slow_point_lookup", "attribute:ABC", "XYZ"))
+                .containsExactly(trace.getId());
+        assertThat(readLookupTraceIds("trace_tt_error_point_lookup", "user", "J"))
+                .containsExactly(trace.getId());
+        // attribute "xyz" is not a lookup attribute
+        assertThat(readLookupTraceIds("trace_tt_slow_point_lookup", "attribute:XYZ", "ABC"))
+                .isEmpty();
+    }
+
+    @Test
+    public void shouldNotWriteLookupsForPartialTrace() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(true);
+
+        // when
+        traceDao.store(AGENT_ID, trace);
+
+        // then
+        assertThat(readLookupTraceIds("trace_tt_slow_point_lookup", "user", "J")).isEmpty();
+    }
+
+    @Test
+    public void shouldReadSlowPointsUsingUserLookup() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, TraceTestData.createTrace(false));
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("J")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID,
+                createQuery(LOOKUP_SINCE), filter, 10);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+        assertThat(queryResult.records().get(0).captureTime()).isEqualTo(11);
+    }
+
+    @Test
+    public void shouldReadErrorPointsUsingAttributeLookup() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, createErrorTrace());
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .attributeName("ABC")
+                .attributeValueComparator(StringComparator.EQUALS)
+                .attributeValue("Xyz")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readErrorPoints(AGENT_ID,
+                createQuery(LOOKUP_SINCE), filter, 10);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldOnlyUseLookupAfterLookupSince() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, TraceTestData.createTrace(false));
+        // remove the trace point from the lookup tables only, so that results show which path
+        // was used
+        session.execute("truncate table trace_tt_slow_point_lookup");
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("j")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult1 = traceDao.readSlowPoints(AGENT_ID,
+                createQuery(LOOKUP_SINCE - 1), filter, 10);
+        Result<TracePoint> queryResult2 = traceDao.readSlowPoints(AGENT_ID,
+                createQuery(LOOKUP_SINCE), filter, 10);
+
+        // then
+        // full scan, since query range starts before the lookup was enabled
+        assertThat(queryResult1.records()).hasSize(1);
+        // lookup
+        assertThat(queryResult2.records()).isEmpty();
+    }
+
+    @Test
+    public void shouldNotDeleteLookupSinceFromNodeWithLookupDisabled() throws Exception {
+        // when
+        createTraceDao(false, 7);
+
+        // then
+        ResultSet results = session.execute("select since, disabled_until from"
+                + " trace_lookup_since where one = 1 and lookup_name = 'user'");
+        Row row = results.one();
+        assertThat(row).isNotNull();
+        assertThat(row.getTimestamp(0).getTime()).isEqualTo(LOOKUP_SINCE);
+        assertThat(row.getTimestamp(1).getTime()).isEqualTo(7);
+        long since = TraceDaoImpl.getLookupSince(LOOKUP_SINCE, 7L);
+        assertThat(since).isGreaterThan(7);
+    }
+
+    private static TraceDaoImpl createTraceDao(boolean lookups, long currentTimeMillis)
+            throws Exception {
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(currentTimeMillis);
+        return new TraceDaoImpl(session, mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class), configRepository,
+                lookups, lookups ? ImmutableList.of("abc") : ImmutableList.of(), clock);
+    }
+
+    private static TraceQuery createQuery(long from) {
+        return ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(from)
+                .to(100)
+                .build();
+    }
+
+    private static Trace createErrorTrace() {
+        Trace trace = TraceTestData.createTrace(false);
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("test error message")))
+                .build();
+    }
+
+    private static List<String> readLookupTraceIds(String tableName, String lookupName,
+            String lookupValue) throws Exception {
+        ResultSet results = session.execute("select trace_id from " + tableName
+                + " where agent_rollup = '" + AGENT_ID + "' and transaction_type = 'unit test'"
+                + " and lookup_name = '" + lookupName + "' and lookup_value = '" + lookupValue
+                + "' and capture_day = 0");
+        List<String> traceIds = new ArrayList<>();
+        for (Row row : results) {
+            traceIds.add(row.getString(0));
+        }
+        return traceIds;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConsistentHashRingTest {
+
+    @Test
+    public void shouldAssignAllKeysToSingleNode() {
+        // given
+        ConsistentHashRing ring = new ConsistentHashRing("a", ImmutableList.of("a"));
+        // then
+        for (int i = 0; i < 100; i++) {
+            assertThat(ring.isLocal("agent-" + i)).isTrue();
+        }
+    }
+
+    @Test
+    public void shouldAssignKeysToOneNodeEach() {
+        // given
+        List<String> nodeIds = ImmutableList.of("a", "b", "c");
+        ConsistentHashRing ringA = new ConsistentHashRing("a", nodeIds);
+        ConsistentHashRing ringB = new ConsistentHashRing("b", nodeIds);
+        ConsistentHashRing ringC = new ConsistentHashRing("c", nodeIds);
+        // then
+        for (int i = 0; i < 1000; i++) {
+            String key = "agent-" + i;
+            int owners = (ringA.isLocal(key) ? 1 : 0) + (ringB.isLocal(key) ? 1 : 0)
+                    + (ringC.isLocal(key) ? 1 : 0);
+            assertThat(owners).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void shouldDistributeKeysEvenly() {
+        // given
+        ConsistentHashRing ring =
+                new ConsistentHashRing("a", ImmutableList.of("a", "b", "c", "d"));
+        Map<String, Integer> counts = Maps.newHashMap();
+        // when
+        for (int i = 0; i < 10000; i++) {
+            counts.merge(ring.getNodeId("agent-" + i), 1, Integer::sum);
+        }
+        // then
+        assertThat(counts).hasSize(4);
+        for (int count : counts.values()) {
+            assertThat(count).isBetween(1500, 3500);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysOfRemovedNode() {
+        // given
+        ConsistentHashRing before = new ConsistentHashRing("a", ImmutableList.of("a", "b", "c"));
+        ConsistentHashRing after = new ConsistentHashRing("a", ImmutableList.of("a", "b"));
+        // then
+        for (int i = 0; i < 1000; i++) {
+            String key = "agent-" + i;
+            String nodeId = before.getNodeId(key);
+            if (!nodeId.equals("c")) {
+                assertThat(after.getNodeId(key)).isEqualTo(nodeId);
+            }
+        }
+    }
+}
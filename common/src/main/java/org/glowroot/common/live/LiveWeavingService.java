@@ -17,6 +17,8 @@ package org.glowroot.common.live;
 
 import java.util.List;
 
+import org.immutables.value.Value;
+
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.GlobalMeta;
 import org.glowroot.wire.api.model.DownstreamServiceOuterClass.MethodSignature;
 
@@ -35,5 +37,15 @@ public interface LiveWeavingService {
     List<MethodSignature> getMethodSignatures(String agentId, String className, String methodName)
             throws Exception;
 
-    int reweave(String agentId) throws Exception;
+    ReweaveResult reweave(String agentId) throws Exception;
+
+    @Value.Immutable
+    public interface ReweaveResult {
+        int classUpdateCount();
+        // classes are re-transformed in batches to avoid long pauses in application threads
+        int batchCount();
+        long durationMillis();
+        // batches are still being re-transformed in the background (see GlobalMeta for progress)
+        boolean inProgress();
+    }
 }
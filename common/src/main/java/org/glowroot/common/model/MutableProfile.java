@@ -16,10 +16,9 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 
@@ -27,38 +26,83 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
+import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// the profile tree is stored as a struct of arrays (indexed by node) instead of as node objects, in
+// order to minimize allocation when merging stack traces, which is done continuously while
+// profiling
 public class MutableProfile {
 
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    // node 0 is a virtual root node whose children are the profile's root nodes, this also means
+    // that 0 can be used to represent "no node" in the link arrays and in the child lookup table
+    private static final int ROOT = 0;
+    private static final int NONE = 0;
+
+    private static final int INITIAL_NODE_CAPACITY = 16;
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
 
+    // packed package name index (high 32 bits) and class name index (low 32 bits), this avoids
+    // splitting the full class name and performing two lookups for each stack frame
+    private final Map<String, Long> fullClassNameIndexes = Maps.newHashMap();
+
     private final List<String> packageNames = Lists.newArrayList();
     private final List<String> classNames = Lists.newArrayList();
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private int nodeCount = 1;
+
+    private int[] nodePackageNameIndex = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeClassNameIndex = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeMethodNameIndex = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeFileNameIndex = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeLineNumber = new int[INITIAL_NODE_CAPACITY];
+    private byte[] nodeLeafThreadState = new byte[INITIAL_NODE_CAPACITY];
+    private long[] nodeSampleCount = new long[INITIAL_NODE_CAPACITY];
+
+    // parent is set to -1 when a node is removed from the tree (by filtering or truncation)
+    private int[] nodeParent = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeFirstChild = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeLastChild = new int[INITIAL_NODE_CAPACITY];
+    private int[] nodeNextSibling = new int[INITIAL_NODE_CAPACITY];
+
+    // this is only used for truncating, so is lazily allocated
+    private long /*@Nullable*/ [] nodeEllipsedSampleCount;
+
+    // open addressing hash table of (parent, frame, leaf thread state) -> child node, so that
+    // finding the matching child node does not require scanning all of the parent's children
+    private int[] childTable = new int[INITIAL_NODE_CAPACITY * 2];
+    private int childTableEntryCount;
+
+    // the StackFrameCache generation that issued the frame ids in frameIdKeys
+    private /*@Nullable*/ StackFrameCache frameCache;
+    // open addressing hash table of StackFrameCache frame id -> this profile's name indexes for
+    // that frame (package, class, method and file name indexes are stored in consecutive slots of
+    // frameNameIndexes), keys are stored as frame id + 1 so that 0 can represent an empty slot
+    private int /*@Nullable*/ [] frameIdKeys;
+    private int /*@Nullable*/ [] frameNameIndexes;
+    private int frameIdEntryCount;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
@@ -70,117 +114,185 @@ public class MutableProfile {
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping = makeIndexMapping(profile.getPackageNameList(),
+                packageNameIndexes, packageNames);
+        int[] classNameIndexMapping =
+                makeIndexMapping(profile.getClassNameList(), classNameIndexes, classNames);
+        int[] methodNameIndexMapping =
+                makeIndexMapping(profile.getMethodNameList(), methodNameIndexes, methodNames);
+        int[] fileNameIndexMapping =
+                makeIndexMapping(profile.getFileNameList(), fileNameIndexes, fileNames);
+        // destinationStack[depth] is the most recently merged node at that depth
+        int[] destinationStack = new int[16];
+        for (Profile.ProfileNode flatNode : profile.getNodeList()) {
+            int depth = flatNode.getDepth();
+            int parent = depth == 0 ? ROOT : destinationStack[depth - 1];
+            int packageNameIndex = packageNameIndexMapping[flatNode.getPackageNameIndex()];
+            int classNameIndex = classNameIndexMapping[flatNode.getClassNameIndex()];
+            int methodNameIndex = methodNameIndexMapping[flatNode.getMethodNameIndex()];
+            int fileNameIndex = fileNameIndexMapping[flatNode.getFileNameIndex()];
+            int lineNumber = flatNode.getLineNumber();
+            int leafThreadState = flatNode.getLeafThreadState().ordinal();
+            int node = findChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+            if (node == NONE) {
+                node = addChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
+            }
+            nodeSampleCount[node] += flatNode.getSampleCount();
+            if (depth == destinationStack.length) {
+                destinationStack = Arrays.copyOf(destinationStack, depth * 2);
+            }
+            destinationStack[depth] = node;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
+        int parent = ROOT;
         boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
+        ListIterator<StackTraceElement> i =
+                stackTraceElements.listIterator(stackTraceElements.size());
+        while (i.hasPrevious()) {
+            StackTraceElement stackTraceElement = i.previous();
+            long packageAndClassNameIndex =
+                    getPackageAndClassNameIndex(stackTraceElement.getClassName());
+            int packageNameIndex = (int) (packageAndClassNameIndex >>> 32);
+            int classNameIndex = (int) packageAndClassNameIndex;
             int methodNameIndex =
                     getNameIndex(MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
                             "<null method name>"), methodNameIndexes, methodNames);
             int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
                     fileNameIndexes, fileNames);
             int lineNumber = stackTraceElement.getLineNumber();
-            Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+            int leafThreadState = i.hasPrevious() ? Profile.LeafThreadState.NONE.ordinal()
+                    : getThreadState(threadState).ordinal();
 
-            ProfileNode node = null;
+            int node = NONE;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = findChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
             }
-            if (node == null) {
+            if (node == NONE) {
                 lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
+                node = addChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
                         fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
             }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            nodeSampleCount[node]++;
+            parent = node;
+        }
+    }
+
+    // frame ids are from the given StackFrameCache generation
+    public void merge(int[] frameIds, StackFrameCache frameCache, Thread.State threadState) {
+        if (frameCache != this.frameCache) {
+            // frame ids from a different generation do not correspond to the cached frame ids
+            // (the name indexes themselves remain valid, only the frame id lookup is reset)
+            this.frameCache = frameCache;
+            frameIdKeys = null;
+            frameNameIndexes = null;
+            frameIdEntryCount = 0;
+        }
+        int parent = ROOT;
+        boolean lookingForMatch = true;
+        for (int i = frameIds.length - 1; i >= 0; i--) {
+            int frameId = frameIds[i];
+            int slot = getFrameSlot(frameCache, frameId);
+            int[] frameNameIndexes = this.frameNameIndexes;
+            int packageNameIndex = frameNameIndexes[slot * 4];
+            int classNameIndex = frameNameIndexes[slot * 4 + 1];
+            int methodNameIndex = frameNameIndexes[slot * 4 + 2];
+            int fileNameIndex = frameNameIndexes[slot * 4 + 3];
+            int lineNumber = frameCache.getFrame(frameId).getLineNumber();
+            int leafThreadState = i == 0 ? getThreadState(threadState).ordinal()
+                    : Profile.LeafThreadState.NONE.ordinal();
+
+            int node = NONE;
+            if (lookingForMatch) {
+                node = findChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
+            }
+            if (node == NONE) {
+                lookingForMatch = false;
+                node = addChild(parent, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
+            }
+            nodeSampleCount[node]++;
+            parent = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        @Nullable String[] nodeTextUpper = new String[nodeCount];
+        boolean[] nodeMatched = new boolean[nodeCount];
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            int rootNode = nodeFirstChild[ROOT];
+            while (rootNode != NONE) {
+                int nextRootNode = nodeNextSibling[rootNode];
+                new ProfileFilterer(include, false, nodeTextUpper, nodeMatched)
+                        .traverse(rootNode);
+                if (nodeMatched[rootNode]) {
+                    new ProfileResetMatches(nodeMatched).traverse(rootNode);
                 } else {
-                    i.remove();
+                    removeChild(ROOT, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            int rootNode = nodeFirstChild[ROOT];
+            while (rootNode != NONE) {
+                int nextRootNode = nodeNextSibling[rootNode];
+                new ProfileFilterer(exclude, true, nodeTextUpper, nodeMatched)
+                        .traverse(rootNode);
+                if (nodeMatched[rootNode]) {
+                    removeChild(ROOT, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
     }
 
-    public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
-                    // TODO capture sampleCount per timerName of non-ellipsed structure
-                    // and use this in UI dropdown filter of timer names
-                    // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
-                } else {
-                    toBeVisited.add(childNode);
+    public void truncateBranches(final int minSamples) {
+        if (nodeEllipsedSampleCount == null) {
+            nodeEllipsedSampleCount = new long[nodePackageNameIndex.length];
+        }
+        final long[] nodeEllipsedSampleCount = this.nodeEllipsedSampleCount;
+        NodeVisitor<RuntimeException> truncator = new NodeVisitor<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                int childNode = nodeFirstChild[node];
+                while (childNode != NONE) {
+                    int nextChildNode = nodeNextSibling[childNode];
+                    if (nodeSampleCount[childNode] < minSamples) {
+                        removeChild(node, childNode);
+                        // TODO capture sampleCount per timerName of non-ellipsed structure
+                        // and use this in UI dropdown filter of timer names
+                        // (currently sampleCount per timerName of ellipsed structure is used)
+                        nodeEllipsedSampleCount[node] += nodeSampleCount[childNode];
+                    }
+                    childNode = nextChildNode;
                 }
+                return true;
             }
+        };
+        int rootNode = nodeFirstChild[ROOT];
+        while (rootNode != NONE) {
+            truncator.traverse(rootNode);
+            rootNode = nodeNextSibling[rootNode];
         }
     }
 
     public boolean isEmpty() {
-        return rootNodes.isEmpty();
+        return nodeFirstChild[ROOT] == NONE;
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        int rootNode = nodeFirstChild[ROOT];
+        while (rootNode != NONE) {
+            sampleCount += nodeSampleCount[rootNode];
+            rootNode = nodeNextSibling[rootNode];
         }
         return sampleCount;
     }
@@ -194,9 +306,27 @@ public class MutableProfile {
     }
 
     public Profile toProto() {
-        List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        final List<Profile.ProfileNode> nodes = Lists.newArrayList();
+        NodeVisitor<RuntimeException> collector = new NodeVisitor<RuntimeException>() {
+            @Override
+            boolean visit(int node, int depth) {
+                nodes.add(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(nodePackageNameIndex[node])
+                        .setClassNameIndex(nodeClassNameIndex[node])
+                        .setMethodNameIndex(nodeMethodNameIndex[node])
+                        .setFileNameIndex(nodeFileNameIndex[node])
+                        .setLineNumber(nodeLineNumber[node])
+                        .setLeafThreadState(getLeafThreadState(node))
+                        .setSampleCount(nodeSampleCount[node])
+                        .build());
+                return true;
+            }
+        };
+        int rootNode = nodeFirstChild[ROOT];
+        while (rootNode != NONE) {
+            collector.traverse(rootNode);
+            rootNode = nodeNextSibling[rootNode];
         }
         return Profile.newBuilder()
                 .addAllPackageName(packageNames)
@@ -219,8 +349,11 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        ProfileWriter profileWriter = new ProfileWriter(jg);
+        int rootNode = nodeFirstChild[ROOT];
+        while (rootNode != NONE) {
+            profileWriter.traverse(rootNode);
+            rootNode = nodeNextSibling[rootNode];
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -234,12 +367,14 @@ public class MutableProfile {
             jg.writeNumberField("totalSampleCount", getSampleCount());
             jg.writeArrayFieldStart("rootNodes");
             int height = 0;
-            for (ProfileNode rootNode : rootNodes) {
-                if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                    flameGraphWriter.traverse();
+            int rootNode = nodeFirstChild[ROOT];
+            while (rootNode != NONE) {
+                if (nodeSampleCount[rootNode] > getEllipsedSampleCount(rootNode)) {
+                    FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+                    flameGraphWriter.traverse(rootNode);
                     height = Math.max(height, flameGraphWriter.height);
                 }
+                rootNode = nodeNextSibling[rootNode];
             }
             jg.writeEndArray();
             jg.writeNumberField("height", height);
@@ -250,6 +385,244 @@ public class MutableProfile {
         return sb.toString();
     }
 
+    private long getPackageAndClassNameIndex(String fullClassName) {
+        Long packageAndClassNameIndex = fullClassNameIndexes.get(fullClassName);
+        if (packageAndClassNameIndex == null) {
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
+            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
+            packageAndClassNameIndex =
+                    ((long) packageNameIndex << 32) | (classNameIndex & 0xFFFFFFFFL);
+            fullClassNameIndexes.put(fullClassName, packageAndClassNameIndex);
+        }
+        return packageAndClassNameIndex;
+    }
+
+    // returns slot in frameIdKeys (and slot * 4 in frameNameIndexes), adding the frame's names to
+    // this profile if the frame has not been seen before by this profile
+    @EnsuresNonNull({"frameIdKeys", "frameNameIndexes"})
+    private int getFrameSlot(StackFrameCache frameCache, int frameId) {
+        if (frameIdKeys == null || frameNameIndexes == null) {
+            frameIdKeys = new int[64];
+            frameNameIndexes = new int[64 * 4];
+        }
+        int slot = findFrameSlot(frameIdKeys, frameId);
+        if (frameIdKeys[slot] != 0) {
+            return slot;
+        }
+        if ((frameIdEntryCount + 1) * 2 > frameIdKeys.length) {
+            growFrameIdTable();
+            slot = findFrameSlot(frameIdKeys, frameId);
+        }
+        frameIdEntryCount++;
+        StackFrameCache.Frame frame = frameCache.getFrame(frameId);
+        frameIdKeys[slot] = frameId + 1;
+        frameNameIndexes[slot * 4] =
+                getNameIndex(frame.getPackageName(), packageNameIndexes, packageNames);
+        frameNameIndexes[slot * 4 + 1] =
+                getNameIndex(frame.getClassName(), classNameIndexes, classNames);
+        frameNameIndexes[slot * 4 + 2] =
+                getNameIndex(frame.getMethodName(), methodNameIndexes, methodNames);
+        frameNameIndexes[slot * 4 + 3] =
+                getNameIndex(frame.getFileName(), fileNameIndexes, fileNames);
+        return slot;
+    }
+
+    @RequiresNonNull({"frameIdKeys", "frameNameIndexes"})
+    private void growFrameIdTable() {
+        int[] oldKeys = frameIdKeys;
+        int[] oldNameIndexes = frameNameIndexes;
+        int capacity = oldKeys.length * 2;
+        int[] keys = new int[capacity];
+        int[] nameIndexes = new int[capacity * 4];
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            int key = oldKeys[oldSlot];
+            if (key == 0) {
+                continue;
+            }
+            int slot = findFrameSlot(keys, key - 1);
+            keys[slot] = key;
+            System.arraycopy(oldNameIndexes, oldSlot * 4, nameIndexes, slot * 4, 4);
+        }
+        frameIdKeys = keys;
+        frameNameIndexes = nameIndexes;
+    }
+
+    // returns the slot containing the frame id, or the empty slot where it should be inserted
+    private static int findFrameSlot(int[] frameIdKeys, int frameId) {
+        int mask = frameIdKeys.length - 1;
+        int slot = hashFrameId(frameId) & mask;
+        while (true) {
+            int key = frameIdKeys[slot];
+            if (key == frameId + 1 || key == 0) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int findChild(int parent, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int mask = childTable.length - 1;
+        int slot = hash(parent, packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadState) & mask;
+        while (true) {
+            int node = childTable[slot];
+            if (node == NONE) {
+                return NONE;
+            }
+            // checking line number first since most likely to be different
+            if (nodeLineNumber[node] == lineNumber && nodeParent[node] == parent
+                    && nodeFileNameIndex[node] == fileNameIndex
+                    && nodeLeafThreadState[node] == leafThreadState
+                    && nodeMethodNameIndex[node] == methodNameIndex
+                    && nodeClassNameIndex[node] == classNameIndex
+                    && nodePackageNameIndex[node] == packageNameIndex) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int addChild(int parent, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        if (nodeCount == nodePackageNameIndex.length) {
+            growNodeArrays();
+        }
+        int node = nodeCount++;
+        nodePackageNameIndex[node] = packageNameIndex;
+        nodeClassNameIndex[node] = classNameIndex;
+        nodeMethodNameIndex[node] = methodNameIndex;
+        nodeFileNameIndex[node] = fileNameIndex;
+        nodeLineNumber[node] = lineNumber;
+        nodeLeafThreadState[node] = (byte) leafThreadState;
+        nodeParent[node] = parent;
+        // append to preserve child order
+        if (nodeFirstChild[parent] == NONE) {
+            nodeFirstChild[parent] = node;
+        } else {
+            nodeNextSibling[nodeLastChild[parent]] = node;
+        }
+        nodeLastChild[parent] = node;
+        if (++childTableEntryCount * 2 > childTable.length) {
+            rebuildChildTable(childTable.length * 2);
+        } else {
+            insertIntoChildTable(node);
+        }
+        return node;
+    }
+
+    // removed nodes are not removed from the child table, but they will never match again since
+    // their parent is set to -1
+    private void removeChild(int parent, int node) {
+        int prev = NONE;
+        int curr = nodeFirstChild[parent];
+        while (curr != node) {
+            prev = curr;
+            curr = nodeNextSibling[curr];
+        }
+        int next = nodeNextSibling[node];
+        if (prev == NONE) {
+            nodeFirstChild[parent] = next;
+        } else {
+            nodeNextSibling[prev] = next;
+        }
+        if (nodeLastChild[parent] == node) {
+            nodeLastChild[parent] = prev;
+        }
+        nodeNextSibling[node] = NONE;
+        nodeParent[node] = -1;
+    }
+
+    private void growNodeArrays() {
+        int capacity = nodePackageNameIndex.length * 2;
+        nodePackageNameIndex = Arrays.copyOf(nodePackageNameIndex, capacity);
+        nodeClassNameIndex = Arrays.copyOf(nodeClassNameIndex, capacity);
+        nodeMethodNameIndex = Arrays.copyOf(nodeMethodNameIndex, capacity);
+        nodeFileNameIndex = Arrays.copyOf(nodeFileNameIndex, capacity);
+        nodeLineNumber = Arrays.copyOf(nodeLineNumber, capacity);
+        nodeLeafThreadState = Arrays.copyOf(nodeLeafThreadState, capacity);
+        nodeSampleCount = Arrays.copyOf(nodeSampleCount, capacity);
+        nodeParent = Arrays.copyOf(nodeParent, capacity);
+        nodeFirstChild = Arrays.copyOf(nodeFirstChild, capacity);
+        nodeLastChild = Arrays.copyOf(nodeLastChild, capacity);
+        nodeNextSibling = Arrays.copyOf(nodeNextSibling, capacity);
+        if (nodeEllipsedSampleCount != null) {
+            nodeEllipsedSampleCount = Arrays.copyOf(nodeEllipsedSampleCount, capacity);
+        }
+    }
+
+    private void rebuildChildTable(int capacity) {
+        childTable = new int[capacity];
+        childTableEntryCount = 0;
+        for (int node = 1; node < nodeCount; node++) {
+            if (nodeParent[node] != -1) {
+                insertIntoChildTable(node);
+                childTableEntryCount++;
+            }
+        }
+    }
+
+    private void insertIntoChildTable(int node) {
+        int mask = childTable.length - 1;
+        int slot = hash(nodeParent[node], nodePackageNameIndex[node], nodeClassNameIndex[node],
+                nodeMethodNameIndex[node], nodeFileNameIndex[node], nodeLineNumber[node],
+                nodeLeafThreadState[node]) & mask;
+        while (childTable[slot] != NONE) {
+            slot = (slot + 1) & mask;
+        }
+        childTable[slot] = node;
+    }
+
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return LEAF_THREAD_STATES[nodeLeafThreadState[node]];
+    }
+
+    private long getEllipsedSampleCount(int node) {
+        return nodeEllipsedSampleCount == null ? 0 : nodeEllipsedSampleCount[node];
+    }
+
+    private String getText(int node) {
+        String packageName = packageNames.get(nodePackageNameIndex[node]);
+        String className = classNames.get(nodeClassNameIndex[node]);
+        String fullClassName;
+        if (packageName.isEmpty()) {
+            fullClassName = className;
+        } else {
+            fullClassName = packageName + '.' + className;
+        }
+        return new StackTraceElement(fullClassName, methodNames.get(nodeMethodNameIndex[node]),
+                fileNames.get(nodeFileNameIndex[node]), nodeLineNumber[node]).toString();
+    }
+
+    private static int hash(int parent, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState) {
+        int h = parent;
+        h = 31 * h + packageNameIndex;
+        h = 31 * h + classNameIndex;
+        h = 31 * h + methodNameIndex;
+        h = 31 * h + fileNameIndex;
+        h = 31 * h + lineNumber;
+        h = 31 * h + leafThreadState;
+        // spread bits since table size is a power of 2
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashFrameId(int frameId) {
+        int h = frameId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
     private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
             List<String> names) {
         Integer index = nameIndexes.get(name);
@@ -284,18 +657,6 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -314,227 +675,130 @@ public class MutableProfile {
         return indexMapping;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
-                }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
-            }
-            return text;
-        }
-
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
-            }
-            return textUpper;
-        }
-    }
-
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
-                }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+    // iterative depth-first traversal to avoid StackOverflowError caused by a recursive algorithm
+    private abstract class NodeVisitor<E extends Exception> {
+
+        private int[] path = new int[16];
+
+        void traverse(int rootNode) throws E {
+            int depth = 0;
+            int node = rootNode;
+            path[0] = node;
+            boolean visitChildren = visit(node, depth);
+            while (true) {
+                int childNode = visitChildren ? nodeFirstChild[node] : NONE;
+                if (childNode != NONE) {
+                    depth++;
+                    if (depth == path.length) {
+                        path = Arrays.copyOf(path, depth * 2);
+                    }
+                    path[depth] = childNode;
+                    node = childNode;
+                    visitChildren = visit(node, depth);
+                    continue;
                 }
-            }
-        }
-
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
+                // no (more) children to visit, so go back up until reaching a node with a sibling
+                while (true) {
+                    revisitAfterChildren(node);
+                    if (depth == 0) {
+                        return;
+                    }
+                    int siblingNode = nodeNextSibling[node];
+                    if (siblingNode != NONE) {
+                        path[depth] = siblingNode;
+                        node = siblingNode;
+                        visitChildren = visit(node, depth);
+                        break;
+                    }
+                    depth--;
+                    node = path[depth];
                 }
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
-        }
-
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
         }
-    }
-
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
 
-        private final List<Profile.ProfileNode> nodes;
+        // returns false if the node's children should not be visited
+        abstract boolean visit(int node, int depth) throws E;
 
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
-            this.nodes = nodes;
-        }
-
-        @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            nodes.add(Profile.ProfileNode.newBuilder()
-                    .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
-                    .build());
-            return node.childNodes;
-        }
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeVisitor<RuntimeException> {
 
         private final String filterTextUpper;
         private final boolean exclusion;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        // these are indexed by node
+        private final @Nullable String[] nodeTextUpper;
+        private final boolean[] nodeMatched;
+
+        private ProfileFilterer(String filterText, boolean exclusion,
+                @Nullable String[] nodeTextUpper, boolean[] nodeMatched) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
+            this.nodeTextUpper = nodeTextUpper;
+            this.nodeMatched = nodeMatched;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                nodeMatched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (nodeMatched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (nodeFirstChild[node] == NONE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    nodeMatched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                nodeMatched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int childNode = nodeFirstChild[node];
+            while (childNode != NONE) {
+                int nextChildNode = nodeNextSibling[childNode];
+                if (exclusion == !nodeMatched[childNode]) {
+                    filteredSampleCount += nodeSampleCount[childNode];
                 } else {
-                    i.remove();
+                    removeChild(node, childNode);
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            nodeSampleCount[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = nodeTextUpper[node];
+            if (textUpper == null) {
+                textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+                nodeTextUpper[node] = textUpper;
+            }
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
-            if (leafThreadState != null) {
-                String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
-                if (leafThreadStateUpper.contains(filterTextUpper)) {
-                    return true;
-                }
-            }
-            return false;
+            String leafThreadStateUpper =
+                    getLeafThreadState(node).name().toUpperCase(Locale.ENGLISH);
+            return leafThreadStateUpper.contains(filterTextUpper);
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -542,101 +806,104 @@ public class MutableProfile {
             }
         }
 
-        private static boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            int childNode = nodeFirstChild[node];
+            while (childNode != NONE) {
+                if (!nodeMatched[childNode]) {
                     return false;
                 }
+                childNode = nodeNextSibling[childNode];
             }
             return true;
         }
 
-        private static boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            int childNode = nodeFirstChild[node];
+            while (childNode != NONE) {
+                if (nodeMatched[childNode]) {
                     return false;
                 }
+                childNode = nodeNextSibling[childNode];
             }
             return true;
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileResetMatches extends NodeVisitor<RuntimeException> {
 
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
+        private final boolean[] nodeMatched;
+
+        private ProfileResetMatches(boolean[] nodeMatched) {
+            this.nodeMatched = nodeMatched;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
+        boolean visit(int node, int depth) {
+            nodeMatched[node] = false;
+            return true;
         }
     }
 
-    private static class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeVisitor<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", nodeSampleCount[node]);
+            long ellipsedSampleCount = getEllipsedSampleCount(node);
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (nodeFirstChild[node] != NONE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChild[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private static class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeVisitor<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", nodeSampleCount[node]);
+            if (nodeFirstChild[node] != NONE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChild[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+// cache of stack frames sampled by the profiler, the same frames are sampled over and over so
+// this assigns each distinct frame a compact int id (with the package/class name split already
+// performed), which makes merging a sample into a profile an int array walk
+//
+// ids are never reused within a cache generation, so each generation is bounded, and once the
+// current generation is full, a new (empty) generation replaces it, frame ids are only meaningful
+// together with the generation that issued them, so profiles hold onto the generation of the frame
+// ids they have merged, which means an old generation (and all of its frames) becomes eligible for
+// garbage collection as soon as the transaction profiles and aggregate interval profiles that
+// sampled it are gone
+public class StackFrameCache {
+
+    public static final int MAX_SIZE =
+            Integer.getInteger("glowroot.profile.frameCacheSize", 65536);
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final AtomicReference<StackFrameCache> current =
+            new AtomicReference<StackFrameCache>(new StackFrameCache(MAX_SIZE));
+
+    private final int maxSize;
+
+    private final ConcurrentMap<StackTraceElement, Integer> frameIds = Maps.newConcurrentMap();
+
+    // frames are stored in lazily allocated chunks to avoid allocating the max size up front
+    //
+    // frames (and chunks) are written before the frame id is published via the concurrent map, and
+    // frame ids are only obtained via the concurrent map, so no additional synchronization is needed
+    // for reading frames
+    private final Frame[][] frameChunks;
+
+    private final Object lock = new Object();
+    // guarded by lock
+    private int frameCount;
+
+    @VisibleForTesting
+    StackFrameCache(int maxSize) {
+        this.maxSize = maxSize;
+        frameChunks = new Frame[(maxSize - 1) / CHUNK_SIZE + 1][];
+    }
+
+    public static StackFrameCache getCurrent() {
+        return current.get();
+    }
+
+    // returns null if this generation is full and not all of the frames are already cached, in
+    // which case this generation is also retired so that subsequent samples use a new generation
+    public int /*@Nullable*/ [] getFrameIds(StackTraceElement[] stackTrace) {
+        int[] ids = new int[stackTrace.length];
+        for (int i = 0; i < stackTrace.length; i++) {
+            int id = getFrameId(stackTrace[i]);
+            if (id == -1) {
+                current.compareAndSet(this, new StackFrameCache(maxSize));
+                return null;
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    // returns -1 if this generation is full and the frame is not already cached
+    int getFrameId(StackTraceElement stackTraceElement) {
+        Integer id = frameIds.get(stackTraceElement);
+        if (id != null) {
+            return id;
+        }
+        synchronized (lock) {
+            id = frameIds.get(stackTraceElement);
+            if (id != null) {
+                return id;
+            }
+            if (frameCount == maxSize) {
+                return -1;
+            }
+            int newId = frameCount++;
+            Frame[] chunk = frameChunks[newId >> CHUNK_SHIFT];
+            if (chunk == null) {
+                chunk = new Frame[CHUNK_SIZE];
+                frameChunks[newId >> CHUNK_SHIFT] = chunk;
+            }
+            chunk[newId & (CHUNK_SIZE - 1)] = new Frame(stackTraceElement);
+            frameIds.put(stackTraceElement, newId);
+            return newId;
+        }
+    }
+
+    Frame getFrame(int id) {
+        return frameChunks[id >> CHUNK_SHIFT][id & (CHUNK_SIZE - 1)];
+    }
+
+    static class Frame {
+
+        private final String packageName;
+        private final String className;
+        private final String methodName;
+        private final String fileName;
+        private final int lineNumber;
+
+        private Frame(StackTraceElement stackTraceElement) {
+            String fullClassName = stackTraceElement.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            methodName = MoreObjects.firstNonNull(stackTraceElement.getMethodName(),
+                    "<null method name>");
+            fileName = Strings.nullToEmpty(stackTraceElement.getFileName());
+            lineNumber = stackTraceElement.getLineNumber();
+        }
+
+        String getPackageName() {
+            return packageName;
+        }
+
+        String getClassName() {
+            return className;
+        }
+
+        String getMethodName() {
+            return methodName;
+        }
+
+        String getFileName() {
+            return fileName;
+        }
+
+        int getLineNumber() {
+            return lineNumber;
+        }
+    }
+}
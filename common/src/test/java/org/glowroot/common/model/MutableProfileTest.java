@@ -16,6 +16,7 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -23,6 +24,7 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
@@ -164,6 +166,172 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingManyStackTraces() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 100; i++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+            stackTraceElements.add(new StackTraceElement("Main", "main", "Main.java", i % 2));
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+        // when
+        MutableProfile copy = new MutableProfile();
+        copy.merge(profile);
+        copy.merge(profile.toProto());
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(200);
+        assertThat(profile.toProto().getNodeCount()).isEqualTo(104);
+        assertThat(copy.getSampleCount()).isEqualTo(400);
+        assertThat(copy.toProto().getNodeCount()).isEqualTo(104);
+        assertThat(copy.toProto().getNode(0).getSampleCount()).isEqualTo(200);
+    }
+
+    @Test
+    public void testMergingFrameIds() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        MutableProfile frameIdProfile = new MutableProfile();
+        for (int i = 0; i < 100; i++) {
+            StackTraceElement[] stackTrace = new StackTraceElement[] {
+                    new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i),
+                    new StackTraceElement("aa.bb.cc.Def", "ghi", null, 456),
+                    new StackTraceElement("Main", "main", "Main.java", i % 2)};
+            Thread.State threadState = i % 3 == 0 ? Thread.State.BLOCKED : Thread.State.RUNNABLE;
+            // when
+            profile.merge(Arrays.asList(stackTrace), threadState);
+            StackFrameCache frameCache = StackFrameCache.getCurrent();
+            int[] frameIds = frameCache.getFrameIds(stackTrace);
+            if (i % 5 == 0) {
+                // mixing both kinds of merges, same as when the frame cache is full
+                frameIdProfile.merge(Arrays.asList(stackTrace), threadState);
+            } else {
+                frameIdProfile.merge(frameIds, frameCache, threadState);
+            }
+        }
+        // then
+        assertThat(frameIdProfile.getSampleCount()).isEqualTo(100);
+        assertThat(frameIdProfile.toJson()).isEqualTo(profile.toJson());
+        assertThat(frameIdProfile.toProto()).isEqualTo(profile.toProto());
+    }
+
+    @Test
+    public void testMergingFrameIdsAcrossFrameCacheGenerations() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        MutableProfile frameIdProfile = new MutableProfile();
+        StackFrameCache frameCache = new StackFrameCache(4);
+        for (int i = 0; i < 100; i++) {
+            StackTraceElement[] stackTrace = new StackTraceElement[] {
+                    new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i % 3),
+                    new StackTraceElement("Main", "main", "Main.java", i % 2)};
+            Thread.State threadState = i % 3 == 0 ? Thread.State.BLOCKED : Thread.State.RUNNABLE;
+            // when
+            profile.merge(Arrays.asList(stackTrace), threadState);
+            int[] frameIds = frameCache.getFrameIds(stackTrace);
+            if (frameIds == null) {
+                // generation is full, frame ids from the next generation are unrelated to the
+                // frame ids that the profile has already seen
+                frameIdProfile.merge(Arrays.asList(stackTrace), threadState);
+                frameCache = new StackFrameCache(4);
+            } else {
+                frameIdProfile.merge(frameIds, frameCache, threadState);
+            }
+        }
+        // then
+        assertThat(frameIdProfile.getSampleCount()).isEqualTo(100);
+        assertThat(frameIdProfile.toJson()).isEqualTo(profile.toJson());
+        assertThat(frameIdProfile.toProto()).isEqualTo(profile.toProto());
+    }
+
+    @Test
+    public void testFullFrameCacheGenerationIsReplaced() {
+        // given
+        StackFrameCache frameCache = StackFrameCache.getCurrent();
+        StackTraceElement[] stackTrace = new StackTraceElement[StackFrameCache.MAX_SIZE + 1];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] = new StackTraceElement("aa.bb.cc.Generation", "full", "Full.java", i);
+        }
+        // when
+        int[] frameIds = frameCache.getFrameIds(stackTrace);
+        // then
+        assertThat(frameIds).isNull();
+        assertThat(StackFrameCache.getCurrent()).isNotSameAs(frameCache);
+        assertThat(StackFrameCache.getCurrent().getFrameIds(new StackTraceElement[] {
+                new StackTraceElement("Main", "main", "Main.java", 1)})).containsExactly(0);
+    }
+
+    @Test
+    public void testTruncateBranches() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        // when
+        profile.truncateBranches(2);
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 3,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 3,"
+                + "      \"ellipsedSampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 2"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Xyz", "ghi", "Xyz.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.BLOCKED);
+        // when
+        profile.filter(ImmutableList.of("main"), ImmutableList.of("blocked"));
+        // then
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 2,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 1"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
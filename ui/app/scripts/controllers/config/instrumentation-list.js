@@ -67,6 +67,8 @@ glowroot.controller('ConfigInstrumentationListCtrl', [
       return '?new';
     };
 
+    var reweaveProgressTimer;
+
     function refresh(deferred) {
       $http.get('backend/config/instrumentation?agent-id=' + encodeURIComponent($scope.agentId))
           .then(function (response) {
@@ -74,6 +76,16 @@ glowroot.controller('ConfigInstrumentationListCtrl', [
             $scope.configs = response.data.configs;
             $scope.dirty = response.data.jvmOutOfSync;
             $scope.jvmRetransformClassesSupported = response.data.jvmRetransformClassesSupported;
+            $scope.reweaveBatchCount = response.data.reweaveBatchCount;
+            $scope.reweaveCompletedBatchCount = response.data.reweaveCompletedBatchCount;
+            $timeout.cancel(reweaveProgressTimer);
+            if ($scope.reweaveBatchCount) {
+              // poll for progress of background re-transformation
+              reweaveProgressTimer = $timeout(function () {
+                // passing deferred so that classpath cache is not preloaded again
+                refresh($q.defer());
+              }, 1000);
+            }
             var configs = angular.copy($scope.configs);
             angular.forEach(configs, function (config) {
               instrumentationExport.clean(config);
@@ -209,8 +221,19 @@ glowroot.controller('ConfigInstrumentationListCtrl', [
           .then(function (response) {
             $scope.dirty = false;
             var data = response.data;
-            if (data.classes) {
+            if (data.inProgress && !data.classes) {
+              // re-transformation will start once the prior background re-transformation completes
+              deferred.resolve('Success (re-transforming in the background)');
+              refresh($q.defer());
+            } else if (data.inProgress) {
+              deferred.resolve('Success (re-transforming ' + data.classes + ' classes in ' + data.batches
+                  + ' batches in the background)');
+              refresh($q.defer());
+            } else if (data.classes) {
               var msg = 're-transformed ' + data.classes + ' class' + (data.classes > 1 ? 'es' : '');
+              if (data.batches > 1) {
+                msg += ' in ' + data.batches + ' batches';
+              }
               deferred.resolve('Success (' + msg + ')');
             } else {
               deferred.resolve('Success (no classes needed re-transforming)');
@@ -250,5 +273,9 @@ glowroot.controller('ConfigInstrumentationListCtrl', [
       }
       dealWithModals();
     });
+
+    $scope.$on('$destroy', function () {
+      $timeout.cancel(reweaveProgressTimer);
+    });
   }
 ]);
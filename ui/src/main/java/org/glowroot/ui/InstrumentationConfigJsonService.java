@@ -37,6 +37,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.common.live.LiveJvmService;
 import org.glowroot.common.live.LiveJvmService.AgentNotConnectedException;
 import org.glowroot.common.live.LiveWeavingService;
+import org.glowroot.common.live.LiveWeavingService.ReweaveResult;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.common.util.Versions;
 import org.glowroot.common2.repo.ConfigRepository;
@@ -101,6 +102,9 @@ class InstrumentationConfigJsonService {
                     .jvmOutOfSync(globalMeta != null && globalMeta.getJvmOutOfSync())
                     .jvmRetransformClassesSupported(
                             globalMeta != null && globalMeta.getJvmRetransformClassesSupported())
+                    .reweaveBatchCount(globalMeta == null ? 0 : globalMeta.getReweaveBatchCount())
+                    .reweaveCompletedBatchCount(
+                            globalMeta == null ? 0 : globalMeta.getReweaveCompletedBatchCount())
                     .build());
         }
     }
@@ -217,8 +221,10 @@ class InstrumentationConfigJsonService {
     @POST(path = "/backend/config/reweave", permission = "agent:config:edit:instrumentation")
     String reweave(@BindAgentId String agentId) throws Exception {
         checkNotNull(liveWeavingService); // agent:config:edit is disabled in offline viewer
-        int count = liveWeavingService.reweave(agentId);
-        return "{\"classes\":" + count + "}";
+        ReweaveResult result = liveWeavingService.reweave(agentId);
+        return "{\"classes\":" + result.classUpdateCount() + ",\"batches\":"
+                + result.batchCount() + ",\"durationMillis\":" + result.durationMillis()
+                + ",\"inProgress\":" + result.inProgress() + "}";
     }
 
     private String getInstrumentationConfigInternal(String agentId, String version)
@@ -298,6 +304,9 @@ class InstrumentationConfigJsonService {
         ImmutableList<InstrumentationConfigDto> configs();
         boolean jvmOutOfSync();
         boolean jvmRetransformClassesSupported();
+        // non-zero while batches are being re-transformed in the background
+        int reweaveBatchCount();
+        int reweaveCompletedBatchCount();
     }
 
     @Value.Immutable
@@ -747,6 +747,9 @@ class TraceCommonService {
         jg.writeNumberField("totalBlockedNanos", threadStats.getTotalBlockedNanos());
         jg.writeNumberField("totalWaitedNanos", threadStats.getTotalWaitedNanos());
         jg.writeNumberField("totalAllocatedBytes", threadStats.getTotalAllocatedBytes());
+        if (threadStats.getBlockedWaitedPartial()) {
+            jg.writeBooleanField("blockedWaitedPartial", true);
+        }
         jg.writeEndObject();
     }
 